@@ -0,0 +1,263 @@
+package uk.co.envsys.cobweb.middleware.sos.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.geotools.feature.FeatureIterator;
+import org.n52.wps.io.data.binding.complex.GTVectorDataBinding;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import uk.co.envsys.cobweb.middleware.sos.sosparser.ParserSelection;
+import uk.co.envsys.cobweb.middleware.sos.sosparser.SimpleSOSParser;
+import uk.co.envsys.cobweb.middleware.sos.sosparser.SimpleSOSParser_200;
+import uk.co.envsys.cobweb.middleware.sos.sosparser.SocialSOSParser;
+
+/**
+ * JMH benchmarks for each of the SOS parsers, over synthetic responses
+ * scaled up from the sample responses in src/test.
+ *
+ * Every feature of the parsed collection is read, so lazy and streamed
+ * collections are measured in full. The {@code observations} counter gives
+ * throughput in observations per second; run with {@code -prof gc}, or
+ * through {@link #main(String[])} which adds it, for allocation rates.
+ *
+ * Build and run with
+ * <pre>
+ * mvn -P benchmark package
+ * java -jar target/benchmarks.jar
+ * </pre>
+ * The sample responses are read from ./src/test unless the
+ * {@code sos.fixtures} system property names another directory.
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx6g"})
+public class ParserBenchmark {
+	private static final String FIXTURES = System.getProperty("sos.fixtures", "./src/test");
+	private static final String UCD_XML_100 = "test_get_observation_100_ucd_twitter.xml";
+	private static final String UCD_XML_200 = "test_get_observation_200_ucd_twitter.xml";
+	private static final String DEMO_52N_XML_200 = "test_get_observation_200_demo_52n.xml";
+	// enough for the Factory to sniff, selection does not depend on size
+	private static final int SELECTION_OBSERVATIONS = 1000;
+
+	/**
+	 * Observations converted, reported by JMH as a rate alongside ops/s
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Counters {
+		public long observations;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			observations = 0;
+		}
+	}
+
+	/**
+	 * A generated response on disk, removed once the benchmark is done
+	 */
+	public abstract static class Response {
+		File file;
+
+		protected void generate(String fixture, String member, int observations) throws IOException {
+			file = new ResponseGenerator(new File(FIXTURES, fixture), member).writeTempFile(observations);
+		}
+
+		InputStream open() throws IOException {
+			return new BufferedInputStream(new FileInputStream(file), 1 << 16);
+		}
+
+		@TearDown(Level.Trial)
+		public void delete() {
+			if(file != null) {
+				file.delete();
+			}
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Response100 extends Response {
+		@Param({"10000", "100000", "1000000"})
+		public int observations;
+
+		@Setup(Level.Trial)
+		public void setup() throws IOException {
+			generate(UCD_XML_100, ResponseGenerator.MEMBER_100, observations);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Response200 extends Response {
+		@Param({"10000", "100000", "1000000"})
+		public int observations;
+
+		@Param({"false", "true"})
+		public boolean streaming;
+
+		SimpleSOSParser parser;
+
+		@Setup(Level.Trial)
+		public void setup() throws IOException {
+			generate(DEMO_52N_XML_200, ResponseGenerator.MEMBER_200, observations);
+			SimpleSOSParser_200 sos200 = new SimpleSOSParser_200();
+			sos200.setStreaming(streaming);
+			parser = sos200;
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class SocialResponse extends Response {
+		@Param({"10000", "100000", "1000000"})
+		public int observations;
+
+		@Param({"false", "true"})
+		public boolean streaming;
+
+		SimpleSOSParser parser;
+
+		@Setup(Level.Trial)
+		public void setup() throws IOException {
+			generate(UCD_XML_200, ResponseGenerator.MEMBER_200, observations);
+			SocialSOSParser social = new SocialSOSParser();
+			social.setStreaming(streaming);
+			parser = social;
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class SocialFactoryResponse extends Response {
+		@Param({"10000", "100000", "1000000"})
+		public int observations;
+
+		@Setup(Level.Trial)
+		public void setup() throws IOException {
+			generate(UCD_XML_200, ResponseGenerator.MEMBER_200, observations);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class SelectionResponse extends Response {
+		@Param({"1.0.0", "2.0.0", "social"})
+		public String response;
+
+		@Setup(Level.Trial)
+		public void setup() throws IOException {
+			if("1.0.0".equals(response)) {
+				generate(UCD_XML_100, ResponseGenerator.MEMBER_100, SELECTION_OBSERVATIONS);
+			} else if("2.0.0".equals(response)) {
+				generate(DEMO_52N_XML_200, ResponseGenerator.MEMBER_200, SELECTION_OBSERVATIONS);
+			} else {
+				generate(UCD_XML_200, ResponseGenerator.MEMBER_200, SELECTION_OBSERVATIONS);
+			}
+		}
+	}
+
+	@Benchmark
+	public long parse100(Response100 response, Counters counters) throws IOException {
+		return parse(SimpleSOSParser.Factory.getParser("1.0.0"), response, counters);
+	}
+
+	@Benchmark
+	public long parse200(Response200 response, Counters counters) throws IOException {
+		return parse(response.parser, response, counters);
+	}
+
+	@Benchmark
+	public long parseSocial(SocialResponse response, Counters counters) throws IOException {
+		return parse(response.parser, response, counters);
+	}
+
+	/**
+	 * Cost of picking a parser from the start of a response
+	 */
+	@Benchmark
+	public SimpleSOSParser selectParser(SelectionResponse response) throws IOException {
+		InputStream in = response.open();
+		try {
+			return SimpleSOSParser.Factory.getParser(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Picking a parser from the start of a response, then parsing all of it
+	 */
+	@Benchmark
+	public long selectAndParse(SocialFactoryResponse response, Counters counters) throws IOException {
+		InputStream in = response.open();
+		try {
+			ParserSelection selection = SimpleSOSParser.Factory.select(in);
+			return count((GTVectorDataBinding) selection.parse(), counters);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static long parse(SimpleSOSParser parser, Response response, Counters counters) throws IOException {
+		InputStream in = response.open();
+		try {
+			return count((GTVectorDataBinding) parser.parse(in, "", ""), counters);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static long count(GTVectorDataBinding data, Counters counters) {
+		long count = 0;
+		FeatureIterator<?> features = data.getPayload().features();
+		try {
+			while(features.hasNext()) {
+				features.next();
+				count++;
+			}
+		} finally {
+			features.close();
+		}
+		counters.observations += count;
+		return count;
+	}
+
+	/**
+	 * Runs the benchmarks with the gc profiler, taking any other JMH
+	 * command line options as given
+	 */
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions options = new CommandLineOptions(args);
+		OptionsBuilder builder = new OptionsBuilder();
+		builder.parent(options);
+		if(options.getIncludes().isEmpty()) {
+			builder.include(ParserBenchmark.class.getSimpleName());
+		}
+		builder.addProfiler(GCProfiler.class);
+		new Runner(builder.build()).run();
+	}
+}
@@ -0,0 +1,150 @@
+package uk.co.envsys.cobweb.middleware.sos.benchmark;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Builds synthetic SOS responses of any size from one of the sample
+ * responses, by repeating its observations in turn between the sample's
+ * own header and footer.
+ *
+ * Each copy of an observation has its gml:ids, and local xlink:hrefs
+ * pointing at them, suffixed with the copy number so that the ids stay
+ * unique across the generated document.
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public class ResponseGenerator {
+	/** Element wrapping each observation of a SOS 1.0.0 ObservationCollection */
+	public static final String MEMBER_100 = "om:member";
+	/** Element wrapping each observation of a SOS 2.0.0 GetObservationResponse */
+	public static final String MEMBER_200 = "sos:observationData";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Pattern ID = Pattern.compile("(gml:id=\"|xlink:href=\"#)([^\"]*)\"");
+
+	private final String header;
+	private final String footer;
+	// each member split around its ids, so a copy is written without regex work
+	private final List<List<String>> members = new ArrayList<List<String>>();
+
+	/**
+	 * @param fixture The sample response to scale up
+	 * @param member The prefixed name of the element wrapping each observation
+	 * @throws IOException If the sample could not be read
+	 */
+	public ResponseGenerator(File fixture, String member) throws IOException {
+		String xml = read(fixture);
+		String open = "<" + member;
+		String close = "</" + member + ">";
+		int first = xml.indexOf(open);
+		int last = xml.lastIndexOf(close);
+		if(first < 0 || last < 0) {
+			throw new IllegalArgumentException("No " + member + " elements in " + fixture);
+		}
+		header = xml.substring(0, first);
+		footer = xml.substring(last + close.length());
+		int start = first;
+		while(start >= 0 && start < last) {
+			int end = xml.indexOf(close, start) + close.length();
+			members.add(split(xml.substring(start, end)));
+			start = xml.indexOf(open, end);
+		}
+	}
+
+	/**
+	 * @return The number of observations in the sample
+	 */
+	public int getMemberCount() {
+		return members.size();
+	}
+
+	/**
+	 * Writes a response holding the given number of observations
+	 *
+	 * @param observations How many observations to write
+	 * @param out Where to write the response, as UTF-8
+	 * @throws IOException If the response could not be written
+	 */
+	public void write(int observations, Writer out) throws IOException {
+		out.write(header);
+		for(int i = 0; i < observations; i++) {
+			List<String> parts = members.get(i % members.size());
+			String suffix = "_" + i;
+			for(int p = 0; p < parts.size(); p++) {
+				out.write(parts.get(p));
+				if(p < parts.size() - 1) {
+					out.write(suffix);
+				}
+			}
+			out.write('\n');
+		}
+		out.write(footer);
+	}
+
+	/**
+	 * Writes a response holding the given number of observations to a
+	 * temporary file, deleted when the JVM exits
+	 *
+	 * @param observations How many observations to write
+	 * @return The file written
+	 * @throws IOException If the response could not be written
+	 */
+	public File writeTempFile(int observations) throws IOException {
+		File file = File.createTempFile("sos-" + observations + "-", ".xml");
+		file.deleteOnExit();
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF8), 1 << 16);
+		try {
+			write(observations, out);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	/**
+	 * Splits a member at the end of each id value, where the copy suffix goes
+	 */
+	private static List<String> split(String member) {
+		List<String> parts = new ArrayList<String>();
+		Matcher matcher = ID.matcher(member);
+		int from = 0;
+		while(matcher.find()) {
+			parts.add(member.substring(from, matcher.end(2)));
+			from = matcher.end(2);
+		}
+		parts.add(member.substring(from));
+		return parts;
+	}
+
+	private static String read(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			Reader reader = new InputStreamReader(in, UTF8);
+			StringBuilder xml = new StringBuilder();
+			char[] buffer = new char[8192];
+			int read;
+			while((read = reader.read(buffer)) > 0) {
+				xml.append(buffer, 0, read);
+			}
+			return xml.toString();
+		} finally {
+			in.close();
+		}
+	}
+}
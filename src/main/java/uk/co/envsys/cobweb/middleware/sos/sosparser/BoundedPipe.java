@@ -0,0 +1,147 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Ring buffer of bytes between one thread transferring a response and
+ * another parsing it. The writer blocks while the buffer is full, so no
+ * more than its capacity is ever held between the two, and the reader
+ * blocks while it is empty.
+ *
+ * The writer ends the stream with {@link #finish()}, or passes a failure
+ * on to the reader with {@link #fail(IOException)}. Closing the reader
+ * makes any further write fail, so that the transfer stops early when
+ * the parse does.
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+class BoundedPipe extends InputStream {
+	private final byte[] buffer;
+	private int head = 0; // next byte to read
+	private int count = 0;
+	private boolean finished = false;
+	private boolean closed = false;
+	private IOException failure = null;
+
+	/**
+	 * @param capacity The most bytes held at once
+	 */
+	BoundedPipe(int capacity) {
+		if(capacity < 1) {
+			throw new IllegalArgumentException("Pipe capacity must be positive: " + capacity);
+		}
+		buffer = new byte[capacity];
+	}
+
+	/**
+	 * Adds bytes to the pipe, waiting for the reader to make room
+	 *
+	 * @throws IOException if the reader has closed the pipe, or the thread was interrupted
+	 */
+	synchronized void write(byte[] b, int off, int len) throws IOException {
+		while(len > 0) {
+			while(count == buffer.length && !closed) {
+				await();
+			}
+			if(closed) {
+				throw new IOException("Response reader closed");
+			}
+			int tail = (head + count) % buffer.length;
+			int n = Math.min(len, Math.min(buffer.length - count, buffer.length - tail));
+			System.arraycopy(b, off, buffer, tail, n);
+			count += n;
+			off += n;
+			len -= n;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Marks the end of the stream, once the remaining bytes have been read
+	 */
+	synchronized void finish() {
+		finished = true;
+		notifyAll();
+	}
+
+	/**
+	 * Ends the stream with an error, thrown to the reader once the remaining bytes have been read
+	 */
+	synchronized void fail(IOException e) {
+		failure = e;
+		finished = true;
+		notifyAll();
+	}
+
+	@Override
+	public synchronized int read() throws IOException {
+		if(!awaitData()) {
+			return -1;
+		}
+		int b = buffer[head] & 0xff;
+		head = (head + 1) % buffer.length;
+		count--;
+		notifyAll();
+		return b;
+	}
+
+	@Override
+	public synchronized int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0) {
+			return 0;
+		}
+		if(!awaitData()) {
+			return -1;
+		}
+		int n = Math.min(len, Math.min(count, buffer.length - head));
+		System.arraycopy(buffer, head, b, off, n);
+		head = (head + n) % buffer.length;
+		count -= n;
+		notifyAll();
+		return n;
+	}
+
+	@Override
+	public synchronized int available() {
+		return count;
+	}
+
+	@Override
+	public synchronized void close() {
+		closed = true;
+		count = 0;
+		notifyAll();
+	}
+
+	/**
+	 * @return false at the end of the stream
+	 */
+	private boolean awaitData() throws IOException {
+		while(count == 0 && !finished && !closed) {
+			await();
+		}
+		if(closed) {
+			throw new IOException("Stream closed");
+		}
+		if(count == 0) {
+			if(failure != null) {
+				throw new IOException("Error transferring response: " + failure.getMessage(), failure);
+			}
+			return false;
+		}
+		return true;
+	}
+
+	private void await() throws IOException {
+		try {
+			wait();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting on response pipe");
+		}
+	}
+}
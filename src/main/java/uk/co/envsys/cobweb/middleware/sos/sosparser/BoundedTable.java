@@ -0,0 +1,75 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Concurrent map holding at most a given number of entries, behind
+ * {@link InternTable} and {@link GeometryTable}. Once full it either keeps
+ * no more entries, or is emptied so that the newest entries are kept.
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ * @param <K> Type of the keys
+ * @param <V> Type of the values
+ */
+class BoundedTable<K, V> {
+	private final int maxSize;
+	private final boolean clearWhenFull;
+	private final ConcurrentMap<K, V> entries = new ConcurrentHashMap<K, V>();
+	private final AtomicInteger size = new AtomicInteger();
+
+	/**
+	 * @param maxSize The most entries to hold
+	 * @param clearWhenFull Whether a new entry empties a full table, rather than not being kept
+	 */
+	BoundedTable(int maxSize, boolean clearWhenFull) {
+		this.maxSize = maxSize;
+		this.clearWhenFull = clearWhenFull;
+	}
+
+	/**
+	 * @return The value held for the key, or null if there is none or the key is null
+	 */
+	V get(K key) {
+		return key == null ? null : entries.get(key);
+	}
+
+	/**
+	 * Keeps a value for a key, unless one is already kept for it
+	 *
+	 * @param key The key, not null
+	 * @param value The value, not null
+	 * @return The value held for the key, which may have been put by another
+	 * thread, or the given value if it could not be kept
+	 */
+	V putIfAbsent(K key, V value) {
+		V existing = entries.get(key);
+		if(existing != null) {
+			return existing;
+		}
+		if(size.get() >= maxSize) {
+			if(!clearWhenFull) {
+				return value;
+			}
+			clear();
+		}
+		existing = entries.putIfAbsent(key, value);
+		if(existing != null) {
+			return existing;
+		}
+		size.incrementAndGet();
+		return value;
+	}
+
+	int size() {
+		return size.get();
+	}
+
+	void clear() {
+		entries.clear();
+		size.set(0);
+	}
+}
@@ -0,0 +1,126 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes an HTTP/1.1 chunked transfer coding, for response bodies read
+ * straight off a connection rather than through HttpURLConnection, which
+ * decodes the chunks itself. Chunk extensions and trailers are skipped.
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+class ChunkedInputStream extends FilterInputStream {
+	// longest chunk size line read, hex digits and any extensions
+	private static final int MAX_LINE = 1024;
+	private long remaining = 0; // bytes left in the current chunk
+	private boolean finished = false;
+
+	ChunkedInputStream(InputStream in) {
+		super(in);
+	}
+
+	@Override
+	public int read() throws IOException {
+		if(!nextChunk()) {
+			return -1;
+		}
+		int b = in.read();
+		if(b == -1) {
+			throw new EOFException("Response ended within a chunk");
+		}
+		remaining--;
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0) {
+			return 0;
+		}
+		if(!nextChunk()) {
+			return -1;
+		}
+		int read = in.read(b, off, (int) Math.min(len, remaining));
+		if(read == -1) {
+			throw new EOFException("Response ended within a chunk");
+		}
+		remaining -= read;
+		return read;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return finished ? 0 : (int) Math.min(in.available(), remaining);
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		byte[] skipped = new byte[(int) Math.min(n, 4096)];
+		int read = read(skipped, 0, skipped.length);
+		return read < 0 ? 0 : read;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	/**
+	 * Moves on to the next chunk once the current one has been read
+	 *
+	 * @return false after the last chunk
+	 */
+	private boolean nextChunk() throws IOException {
+		if(finished) {
+			return false;
+		}
+		if(remaining > 0) {
+			return true;
+		}
+		String line = readLine();
+		if(line.isEmpty()) {
+			// the CRLF ending the previous chunk's data
+			line = readLine();
+		}
+		int end = line.indexOf(';');
+		String size = (end < 0 ? line : line.substring(0, end)).trim();
+		try {
+			remaining = Long.parseLong(size, 16);
+		} catch(NumberFormatException e) {
+			throw new IOException("Not a chunk size: " + size, e);
+		}
+		if(remaining < 0) {
+			throw new IOException("Not a chunk size: " + size);
+		}
+		if(remaining == 0) {
+			// trailers end with an empty line
+			while(!readLine().isEmpty()) {
+			}
+			finished = true;
+			return false;
+		}
+		return true;
+	}
+
+	private String readLine() throws IOException {
+		StringBuilder line = new StringBuilder();
+		int b;
+		while((b = in.read()) != '\n') {
+			if(b == -1) {
+				throw new EOFException("Response ended within a chunk header");
+			}
+			if(b != '\r') {
+				if(line.length() == MAX_LINE) {
+					throw new IOException("Chunk header longer than " + MAX_LINE + " bytes");
+				}
+				line.append((char) b);
+			}
+		}
+		return line.toString();
+	}
+}
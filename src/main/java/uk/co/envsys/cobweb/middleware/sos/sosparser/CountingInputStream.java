@@ -0,0 +1,65 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stream counting the bytes read through it, for {@link ParseMetrics}
+ * 
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+class CountingInputStream extends FilterInputStream {
+	private long count = 0;
+	private long mark = 0;
+	
+	CountingInputStream(InputStream in) {
+		super(in);
+	}
+	
+	/**
+	 * @return The number of bytes read so far
+	 */
+	long getCount() {
+		return count;
+	}
+	
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if(b != -1) {
+			count++;
+		}
+		return b;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int read = super.read(b, off, len);
+		if(read > 0) {
+			count += read;
+		}
+		return read;
+	}
+	
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = super.skip(n);
+		count += skipped;
+		return skipped;
+	}
+	
+	@Override
+	public synchronized void mark(int readlimit) {
+		super.mark(readlimit);
+		mark = count;
+	}
+	
+	@Override
+	public synchronized void reset() throws IOException {
+		super.reset();
+		count = mark;
+	}
+}
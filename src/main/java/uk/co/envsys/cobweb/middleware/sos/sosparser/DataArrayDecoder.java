@@ -0,0 +1,495 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+
+import org.apache.xmlbeans.XmlCursor;
+import org.apache.xmlbeans.XmlObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decodes a SWE Common swe:DataArray with a swe:TextBlock encoding, as
+ * returned in the results of 52&deg;North's SOS 1.0.0, into typed columns.
+ *
+ * The fields of the swe:elementType DataRecord give the columns: a Time
+ * is read as epoch milliseconds, a Quantity as a double, a Count as a long,
+ * and a Text, Category or Boolean as a string. The swe:values string is
+ * scanned once by index, cutting it at the declared token and block
+ * separators, so each block becomes one row. A block which cannot be read
+ * does not stop the others being decoded; the reason is kept for its row.
+ *
+ * A decoder holds the columns of the last array decoded and is used by
+ * one thread at a time.
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public class DataArrayDecoder {
+	private static final Logger LOGGER = LoggerFactory.getLogger(DataArrayDecoder.class);
+	private static final String SWE_101 = "http://www.opengis.net/swe/1.0.1";
+	private static final String SWE_20 = "http://www.opengis.net/swe/2.0";
+	private static final QName NAME = new QName("name");
+	private static final QName DEFINITION = new QName("definition");
+	private static final QName CODE = new QName("code");
+	private static final QName XLINK_HREF = new QName("http://www.w3.org/1999/xlink", "href");
+	private static final int INITIAL_ROWS = 64;
+
+	/**
+	 * The kinds of field a DataRecord may hold
+	 */
+	public enum FieldType {
+		TIME, QUANTITY, COUNT, TEXT
+	}
+
+	private final List<String> names = new ArrayList<String>();
+	private final List<FieldType> types = new ArrayList<FieldType>();
+	private final List<String> definitions = new ArrayList<String>();
+	private final List<String> uoms = new ArrayList<String>();
+	private String tokenSeparator;
+	private String blockSeparator;
+	private char decimalSeparator;
+	private String values;
+
+	// one array per field: long[] for times and counts, double[] for quantities, String[] for text
+	private Object[] columns;
+	private String[] rowErrors;
+	private int rowCount;
+
+	/**
+	 * Decodes the DataArray of an observation result, replacing any previous one
+	 *
+	 * @param result The om:result element, or the swe:DataArray itself
+	 * @param interns Table to share repeated text values through, may be null
+	 * @return false if the result is not a DataArray of simple fields with a TextBlock encoding
+	 */
+	public boolean decode(XmlObject result, InternTable interns) {
+		names.clear();
+		types.clear();
+		definitions.clear();
+		uoms.clear();
+		values = null;
+		rowCount = 0;
+		if(result == null || !readStructure(result)) {
+			return false;
+		}
+		scan(interns);
+		return true;
+	}
+
+	/**
+	 * @return The number of fields of each block
+	 */
+	public int getFieldCount() {
+		return names.size();
+	}
+
+	public String getFieldName(int field) {
+		return names.get(field);
+	}
+
+	public FieldType getFieldType(int field) {
+		return types.get(field);
+	}
+
+	/**
+	 * @return The definition URI of a field, or null if it has none
+	 */
+	public String getDefinition(int field) {
+		return definitions.get(field);
+	}
+
+	/**
+	 * @return The unit of measure code or href of a field, or null if it has none
+	 */
+	public String getUom(int field) {
+		return uoms.get(field);
+	}
+
+	/**
+	 * @return The names and types of the fields, equal for arrays of the same structure
+	 */
+	public String getSignature() {
+		StringBuilder signature = new StringBuilder();
+		for(int i = 0; i < names.size(); i++) {
+			signature.append(names.get(i)).append(':').append(types.get(i)).append(';');
+		}
+		return signature.toString();
+	}
+
+	/**
+	 * @return The number of blocks decoded
+	 */
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * @return Why a row could not be read, or null if it was read in full
+	 */
+	public String getRowError(int row) {
+		return rowErrors[row];
+	}
+
+	/**
+	 * @return The value of a Time field, in epoch milliseconds, or {@link ObservationColumns#NO_TIME} if empty
+	 */
+	public long getTime(int field, int row) {
+		return ((long[]) column(field, FieldType.TIME))[row];
+	}
+
+	/**
+	 * @return The value of a Quantity field, or NaN if empty
+	 */
+	public double getQuantity(int field, int row) {
+		return ((double[]) column(field, FieldType.QUANTITY))[row];
+	}
+
+	/**
+	 * @return The value of a Count field
+	 */
+	public long getCount(int field, int row) {
+		return ((long[]) column(field, FieldType.COUNT))[row];
+	}
+
+	/**
+	 * @return The value of a Text field, or null if empty
+	 */
+	public String getText(int field, int row) {
+		return ((String[]) column(field, FieldType.TEXT))[row];
+	}
+
+	/**
+	 * @return The value of any field as an object: Long, Double or String, or null if empty
+	 */
+	public Object getValue(int field, int row) {
+		Object column = columns[field];
+		switch(types.get(field)) {
+		case TIME:
+			long time = ((long[]) column)[row];
+			return time == ObservationColumns.NO_TIME ? null : Long.valueOf(time);
+		case QUANTITY:
+			double quantity = ((double[]) column)[row];
+			return Double.isNaN(quantity) ? null : Double.valueOf(quantity);
+		case COUNT:
+			return Long.valueOf(((long[]) column)[row]);
+		default:
+			return ((String[]) column)[row];
+		}
+	}
+
+	private Object column(int field, FieldType type) {
+		if(types.get(field) != type) {
+			throw new IllegalArgumentException("Field " + names.get(field) + " is a " + types.get(field) + ", not a " + type);
+		}
+		return columns[field];
+	}
+
+	/**
+	 * Reads the fields, encoding and values of the DataArray in or at the result
+	 */
+	private boolean readStructure(XmlObject result) {
+		XmlCursor cursor = result.newCursor();
+		try {
+			if(cursor.isStartdoc()) {
+				cursor.toFirstChild();
+			}
+			if(!"DataArray".equals(sweName(cursor)) && !(cursor.toFirstChild() && "DataArray".equals(sweName(cursor)))) {
+				return false;
+			}
+			if(!cursor.toFirstChild()) {
+				return false;
+			}
+			boolean encoded = false;
+			do {
+				String name = sweName(cursor);
+				if("elementType".equals(name)) {
+					if(!readFields(cursor)) {
+						return false;
+					}
+				} else if("encoding".equals(name)) {
+					encoded = readEncoding(cursor);
+				} else if("values".equals(name)) {
+					values = cursor.getTextValue();
+				}
+			} while(cursor.toNextSibling());
+			return encoded && values != null && !names.isEmpty();
+		} finally {
+			cursor.dispose();
+		}
+	}
+
+	private boolean readFields(XmlCursor cursor) {
+		if(!cursor.toFirstChild()) {
+			return false;
+		}
+		try {
+			if(!"DataRecord".equals(sweName(cursor)) || !cursor.toFirstChild()) {
+				return false;
+			}
+			try {
+				do {
+					if(!"field".equals(sweName(cursor))) {
+						continue;
+					}
+					String name = cursor.getAttributeText(NAME);
+					if(!cursor.toFirstChild()) {
+						return false;
+					}
+					try {
+						FieldType type = fieldType(sweName(cursor));
+						if(type == null) {
+							LOGGER.debug("Cannot decode DataArray field {} of type {}", name, cursor.getName());
+							return false;
+						}
+						names.add(name != null ? name : "field" + names.size());
+						types.add(type);
+						definitions.add(cursor.getAttributeText(DEFINITION));
+						uoms.add(readUom(cursor));
+					} finally {
+						cursor.toParent();
+					}
+				} while(cursor.toNextSibling());
+			} finally {
+				cursor.toParent();
+			}
+		} finally {
+			cursor.toParent();
+		}
+		return true;
+	}
+
+	private static FieldType fieldType(String component) {
+		if("Time".equals(component)) {
+			return FieldType.TIME;
+		} else if("Quantity".equals(component)) {
+			return FieldType.QUANTITY;
+		} else if("Count".equals(component)) {
+			return FieldType.COUNT;
+		} else if("Text".equals(component) || "Category".equals(component) || "Boolean".equals(component)) {
+			return FieldType.TEXT;
+		}
+		return null;
+	}
+
+	private static String readUom(XmlCursor cursor) {
+		if(!cursor.toFirstChild()) {
+			return null;
+		}
+		try {
+			do {
+				if("uom".equals(sweName(cursor))) {
+					String code = cursor.getAttributeText(CODE);
+					return code != null ? code : cursor.getAttributeText(XLINK_HREF);
+				}
+			} while(cursor.toNextSibling());
+			return null;
+		} finally {
+			cursor.toParent();
+		}
+	}
+
+	private boolean readEncoding(XmlCursor cursor) {
+		if(!cursor.toFirstChild()) {
+			return false;
+		}
+		try {
+			if(!"TextBlock".equals(sweName(cursor)) && !"TextEncoding".equals(sweName(cursor))) {
+				return false;
+			}
+			tokenSeparator = cursor.getAttributeText(new QName("tokenSeparator"));
+			blockSeparator = cursor.getAttributeText(new QName("blockSeparator"));
+			String decimal = cursor.getAttributeText(new QName("decimalSeparator"));
+			decimalSeparator = decimal == null || decimal.isEmpty() ? '.' : decimal.charAt(0);
+			return tokenSeparator != null && !tokenSeparator.isEmpty() &&
+					blockSeparator != null && !blockSeparator.isEmpty();
+		} finally {
+			cursor.toParent();
+		}
+	}
+
+	/**
+	 * Cuts the values string into blocks and tokens in a single pass
+	 */
+	private void scan(InternTable interns) {
+		int fieldCount = names.size();
+		allocate(INITIAL_ROWS);
+		String s = values;
+		int length = s.length();
+		int pos = 0;
+		int field = 0;
+		String error = null;
+		// values ending part way through a block, after a token separator, end it with an empty token
+		while(pos < length || field > 0) {
+			if(field == 0) {
+				// white space between blocks is not part of the first token, even when it separates tokens
+				while(pos < length && Character.isWhitespace(s.charAt(pos))) {
+					pos++;
+				}
+				if(pos == length) {
+					break;
+				}
+			}
+			// the token ends at the next separator or the end of the values
+			int end = pos;
+			boolean blockEnd = false;
+			while(end < length) {
+				if(s.startsWith(blockSeparator, end)) {
+					blockEnd = true;
+					break;
+				}
+				if(s.startsWith(tokenSeparator, end)) {
+					break;
+				}
+				end++;
+			}
+			boolean last = end >= length;
+			if(field == 0 && rowCount == rowErrors.length) {
+				allocate(rowCount * 2);
+			}
+			if(field < fieldCount) {
+				try {
+					store(field, s, pos, end, interns);
+				} catch(IllegalArgumentException e) {
+					if(error == null) {
+						error = "Field " + names.get(field) + ": " + e.getMessage();
+					}
+				}
+			}
+			field++;
+			if(blockEnd || last) {
+				if(field != fieldCount && error == null) {
+					error = "Expected " + fieldCount + " tokens in block, found " + field;
+				}
+				fill(field);
+				rowErrors[rowCount++] = error;
+				field = 0;
+				error = null;
+				pos = blockEnd ? end + blockSeparator.length() : end;
+			} else {
+				pos = end + tokenSeparator.length();
+			}
+		}
+	}
+
+	/**
+	 * Empties the fields of the current row missing from its block
+	 */
+	private void fill(int from) {
+		for(int field = from; field < names.size(); field++) {
+			Object column = columns[field];
+			switch(types.get(field)) {
+			case TIME:
+				((long[]) column)[rowCount] = ObservationColumns.NO_TIME;
+				break;
+			case QUANTITY:
+				((double[]) column)[rowCount] = Double.NaN;
+				break;
+			case COUNT:
+				((long[]) column)[rowCount] = 0;
+				break;
+			default:
+				((String[]) column)[rowCount] = null;
+			}
+		}
+	}
+
+	private void store(int field, String s, int start, int end, InternTable interns) {
+		// tokens may be padded with white space, e.g. blocks on separate lines
+		while(start < end && Character.isWhitespace(s.charAt(start))) {
+			start++;
+		}
+		while(end > start && Character.isWhitespace(s.charAt(end - 1))) {
+			end--;
+		}
+		boolean empty = start == end;
+		Object column = columns[field];
+		switch(types.get(field)) {
+		case TIME:
+			((long[]) column)[rowCount] = empty ? ObservationColumns.NO_TIME : SimpleSOSParser.parseTime(s.substring(start, end));
+			break;
+		case QUANTITY:
+			((double[]) column)[rowCount] = empty ? Double.NaN : parseDouble(s, start, end);
+			break;
+		case COUNT:
+			if(empty) {
+				throw new IllegalArgumentException("Empty count");
+			}
+			((long[]) column)[rowCount] = parseLong(s, start, end);
+			break;
+		default:
+			String text = empty ? null : s.substring(start, end);
+			((String[]) column)[rowCount] = interns == null ? text : interns.intern(text);
+		}
+	}
+
+	private double parseDouble(String s, int start, int end) {
+		String token = s.substring(start, end);
+		if(decimalSeparator != '.') {
+			token = token.replace(decimalSeparator, '.');
+		}
+		try {
+			return Double.parseDouble(token);
+		} catch(NumberFormatException e) {
+			throw new IllegalArgumentException("Not a quantity: " + token, e);
+		}
+	}
+
+	private static long parseLong(String s, int start, int end) {
+		int pos = start;
+		boolean negative = s.charAt(pos) == '-';
+		if(negative || s.charAt(pos) == '+') {
+			pos++;
+		}
+		if(pos == end || end - pos > 18) {
+			throw new IllegalArgumentException("Not a count: " + s.substring(start, end));
+		}
+		long value = 0;
+		for(; pos < end; pos++) {
+			char c = s.charAt(pos);
+			if(c < '0' || c > '9') {
+				throw new IllegalArgumentException("Not a count: " + s.substring(start, end));
+			}
+			value = value * 10 + (c - '0');
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Makes room for the given number of rows, keeping those decoded so far
+	 */
+	private void allocate(int capacity) {
+		if(rowCount == 0) {
+			columns = new Object[names.size()];
+		}
+		for(int field = 0; field < names.size(); field++) {
+			Object column = columns[field];
+			switch(types.get(field)) {
+			case QUANTITY:
+				columns[field] = column == null ? new double[capacity] : Arrays.copyOf((double[]) column, capacity);
+				break;
+			case TEXT:
+				columns[field] = column == null ? new String[capacity] : Arrays.copyOf((String[]) column, capacity);
+				break;
+			default:
+				columns[field] = column == null ? new long[capacity] : Arrays.copyOf((long[]) column, capacity);
+			}
+		}
+		rowErrors = rowCount == 0 ? new String[capacity] : Arrays.copyOf(rowErrors, capacity);
+	}
+
+	/**
+	 * @return The local name of the element at the cursor if it is in a SWE namespace, otherwise null
+	 */
+	private static String sweName(XmlCursor cursor) {
+		QName name = cursor.getName();
+		if(name != null && (SWE_101.equals(name.getNamespaceURI()) || SWE_20.equals(name.getNamespaceURI()))) {
+			return name.getLocalPart();
+		}
+		return null;
+	}
+}
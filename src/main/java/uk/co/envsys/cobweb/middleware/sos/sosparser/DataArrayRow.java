@@ -0,0 +1,31 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import net.opengis.om.x10.ObservationType;
+
+/**
+ * One block of the DataArray result of an O&amp;M 1.0 observation, handed
+ * to the conversion engine in place of the observation when arrays are
+ * expanded. The rows of an observation share its decoder and the hrefs
+ * read from it.
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+class DataArrayRow {
+	final ObservationType observation;
+	// null when the result is not a DataArray, so the observation cannot be expanded
+	final DataArrayDecoder decoder;
+	final String procedure;
+	final String featureOfInterest;
+	final int row;
+
+	DataArrayRow(ObservationType observation, DataArrayDecoder decoder, String procedure,
+			String featureOfInterest, int row) {
+		this.observation = observation;
+		this.decoder = decoder;
+		this.procedure = procedure;
+		this.featureOfInterest = featureOfInterest;
+		this.row = row;
+	}
+}
@@ -0,0 +1,179 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * Bounded, least recently used cache of FeatureTypes, keyed on the shape of
+ * the observations they were made for, i.e. which optional O&amp;M elements
+ * are present. Responses of the same shape then share one immutable
+ * FeatureType, and feature builders for it are pooled between parses.
+ *
+ * Hit and miss counts are kept so the cache can be checked under load.
+ * Safe for use from several threads.
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public class FeatureTypeCache {
+	public static final int DEFAULT_MAX_SIZE = 64;
+	// builders kept per FeatureType, enough for one per busy thread
+	protected static final int MAX_POOLED_BUILDERS = 16;
+
+	private static final FeatureTypeCache DEFAULT = new FeatureTypeCache(DEFAULT_MAX_SIZE);
+
+	private final int maxSize;
+	private final Map<String, Cached> entries;
+	private final Map<SimpleFeatureType, Cached> byType = new IdentityHashMap<SimpleFeatureType, Cached>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param maxSize The most FeatureTypes to hold before evicting the least recently used
+	 */
+	public FeatureTypeCache(int maxSize) {
+		this.maxSize = maxSize;
+		this.entries = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+				if(size() > FeatureTypeCache.this.maxSize) {
+					byType.remove(eldest.getValue().type);
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @return The cache shared by all parsers unless they are given another
+	 */
+	public static FeatureTypeCache getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Looks up the FeatureType for a shape of observation, counting a hit or miss
+	 *
+	 * @param key Identifies the parser and the shape of the observation
+	 * @return The cached FeatureType, or null if there is none
+	 */
+	public synchronized SimpleFeatureType get(String key) {
+		Cached entry = entries.get(key);
+		if(entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.type;
+	}
+
+	/**
+	 * Adds a FeatureType to the cache, unless one was added for the key in
+	 * the meantime, in which case that one is kept.
+	 *
+	 * @param key Identifies the parser and the shape of the observation
+	 * @param type The FeatureType built for this shape
+	 * @return The FeatureType to use for the key
+	 */
+	public synchronized SimpleFeatureType put(String key, SimpleFeatureType type) {
+		Cached entry = entries.get(key);
+		if(entry == null) {
+			entry = new Cached(type);
+			entries.put(key, entry);
+			byType.put(type, entry);
+		}
+		return entry.type;
+	}
+
+	/**
+	 * Takes a builder for the FeatureType from the pool, or makes a new one
+	 *
+	 * @param type A FeatureType, cached or not
+	 * @return SimpleFeatureBuilder for the type, for use by one thread at a time
+	 */
+	public SimpleFeatureBuilder borrowBuilder(SimpleFeatureType type) {
+		Cached entry;
+		synchronized(this) {
+			entry = byType.get(type);
+		}
+		if(entry != null) {
+			SimpleFeatureBuilder builder = entry.builders.poll();
+			if(builder != null) {
+				entry.pooled.decrementAndGet();
+				return builder;
+			}
+		}
+		return new SimpleFeatureBuilder(type);
+	}
+
+	/**
+	 * Returns a builder to the pool once finished with. Builders for types
+	 * no longer in the cache are dropped.
+	 *
+	 * @param builder A builder from {@link #borrowBuilder(SimpleFeatureType)}
+	 */
+	public void releaseBuilder(SimpleFeatureBuilder builder) {
+		Cached entry;
+		synchronized(this) {
+			entry = byType.get(builder.getFeatureType());
+		}
+		if(entry != null && entry.pooled.incrementAndGet() <= MAX_POOLED_BUILDERS) {
+			builder.reset();
+			entry.builders.offer(builder);
+		} else if(entry != null) {
+			entry.pooled.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @return The number of lookups which found a FeatureType
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return The number of lookups which found nothing
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return The number of FeatureTypes held
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Empties the cache and resets the counters
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		byType.clear();
+		hits.set(0);
+		misses.set(0);
+	}
+
+	private static class Cached {
+		final SimpleFeatureType type;
+		final ConcurrentLinkedQueue<SimpleFeatureBuilder> builders = new ConcurrentLinkedQueue<SimpleFeatureBuilder>();
+		final AtomicInteger pooled = new AtomicInteger();
+
+		Cached(SimpleFeatureType type) {
+			this.type = type;
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Source handing out only the observations of another source which match
+ * an {@link ObservationFilter}, so that skipped observations never reach
+ * a feature builder, whether converted sequentially, in parallel or lazily.
+ * 
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ * @param <T> The XmlBeans type of the observations
+ */
+class FilteredObservationSource<T> implements ObservationSource<T> {
+	private final ObservationSource<T> source;
+	private final ObservationConverter<T> converter;
+	private final ObservationFilter filter;
+	
+	FilteredObservationSource(ObservationSource<T> source, ObservationConverter<T> converter, 
+			ObservationFilter filter) {
+		this.source = source;
+		this.converter = converter;
+		this.filter = filter;
+	}
+	
+	public Iterator<T> open() {
+		return new FilteredIterator(source.open());
+	}
+	
+	public boolean isRepeatable() {
+		return source.isRepeatable();
+	}
+	
+	private class FilteredIterator implements Iterator<T>, Closeable {
+		private final Iterator<T> observations;
+		private T next;
+		
+		FilteredIterator(Iterator<T> observations) {
+			this.observations = observations;
+		}
+		
+		public boolean hasNext() {
+			while(next == null && observations.hasNext()) {
+				T observation = observations.next();
+				if(converter.matches(observation, filter)) {
+					next = observation;
+				}
+			}
+			return next != null;
+		}
+		
+		public T next() {
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			T observation = next;
+			next = null;
+			return observation;
+		}
+		
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+		
+		public void close() throws IOException {
+			if(observations instanceof Closeable) {
+				((Closeable) observations).close();
+			}
+		}
+	}
+}
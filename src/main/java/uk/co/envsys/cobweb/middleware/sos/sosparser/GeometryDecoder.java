@@ -0,0 +1,308 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+
+import org.apache.xmlbeans.XmlCursor;
+import org.apache.xmlbeans.XmlObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.PrecisionModel;
+
+/**
+ * Decodes the GML geometries found in observations, such as the sams:shape
+ * or sa:position of a sampling feature, the location of an O&amp;M 1.0
+ * observation or a gml:boundedBy envelope, into JTS geometries.
+ *
+ * Points, LineStrings and Polygons of GML 3.1 and 3.2 are read wherever they
+ * appear inside the element, and more than one are combined into a collection;
+ * an Envelope is only used if there are none. Geometries are given in WGS84
+ * with longitude as x. Coordinates in the latitude-first order of the EPSG URNs
+ * are swapped, and geometries in any other reference system are left out.
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public class GeometryDecoder {
+	private static final Logger LOGGER = LoggerFactory.getLogger(GeometryDecoder.class);
+	public static final int WGS84_SRID = 4326;
+	private static final GeometryFactory FACTORY = new GeometryFactory(new PrecisionModel(), WGS84_SRID);
+
+	private static final String GML = "http://www.opengis.net/gml";
+	private static final String GML_32 = "http://www.opengis.net/gml/3.2";
+	private static final QName SRS_NAME = new QName("srsName");
+	private static final QName SRS_DIMENSION = new QName("srsDimension");
+
+	private GeometryDecoder() {
+	}
+
+	/**
+	 * Decodes the geometry held anywhere within an element
+	 *
+	 * @param element The element, may be null
+	 * @return Geometry in WGS84, or null if there is none or it is in another reference system
+	 */
+	public static Geometry decode(XmlObject element) {
+		if(element == null) {
+			return null;
+		}
+		XmlCursor cursor = element.newCursor();
+		try {
+			List<Geometry> geometries = new ArrayList<Geometry>(1);
+			Geometry[] envelope = new Geometry[1];
+			collect(cursor, null, geometries, envelope);
+			if(geometries.isEmpty()) {
+				return envelope[0];
+			}
+			return geometries.size() == 1 ? geometries.get(0) : FACTORY.buildGeometry(geometries);
+		} catch(IllegalArgumentException e) {
+			LOGGER.debug("Could not decode geometry: {}", e.getMessage());
+			return null;
+		} finally {
+			cursor.dispose();
+		}
+	}
+
+	/**
+	 * Finds the geometries among the children of the element at the cursor,
+	 * descending into anything which is not a geometry itself
+	 */
+	private static void collect(XmlCursor cursor, String srsName, List<Geometry> geometries, Geometry[] envelope) {
+		srsName = srsName(cursor, srsName);
+		if(!cursor.toFirstChild()) {
+			return;
+		}
+		do {
+			String name = gmlName(cursor);
+			if("Point".equals(name) || "LineString".equals(name) || "Polygon".equals(name)) {
+				Geometry geometry = readGeometry(cursor, name, srsName(cursor, srsName));
+				if(geometry != null) {
+					geometries.add(geometry);
+				}
+			} else if("Envelope".equals(name)) {
+				if(envelope[0] == null) {
+					envelope[0] = readEnvelope(cursor, srsName(cursor, srsName));
+				}
+			} else {
+				collect(cursor, srsName, geometries, envelope);
+			}
+		} while(cursor.toNextSibling());
+		cursor.toParent();
+	}
+
+	private static Geometry readGeometry(XmlCursor cursor, String name, String srsName) {
+		if("Point".equals(name)) {
+			double[] ordinates = readOrdinates(cursor, srsName);
+			if(ordinates == null) {
+				return null;
+			}
+			return FACTORY.createPoint(new Coordinate(ordinates[0], ordinates[1]));
+		}
+		if("LineString".equals(name)) {
+			Coordinate[] coordinates = readCoordinates(cursor, srsName);
+			return coordinates == null ? null : FACTORY.createLineString(coordinates);
+		}
+		// Polygon: one exterior ring and any number of interior rings
+		LinearRing shell = null;
+		List<LinearRing> holes = new ArrayList<LinearRing>();
+		if(cursor.toFirstChild()) {
+			do {
+				String boundary = gmlName(cursor);
+				if(("exterior".equals(boundary) || "outerBoundaryIs".equals(boundary) ||
+						"interior".equals(boundary) || "innerBoundaryIs".equals(boundary)) && cursor.toFirstChild()) {
+					Coordinate[] ring = readCoordinates(cursor, srsName(cursor, srsName));
+					cursor.toParent();
+					if(ring == null) {
+						cursor.toParent();
+						return null;
+					}
+					if(shell == null && ("exterior".equals(boundary) || "outerBoundaryIs".equals(boundary))) {
+						shell = FACTORY.createLinearRing(ring);
+					} else {
+						holes.add(FACTORY.createLinearRing(ring));
+					}
+				}
+			} while(cursor.toNextSibling());
+			cursor.toParent();
+		}
+		return shell == null ? null : FACTORY.createPolygon(shell, holes.toArray(new LinearRing[holes.size()]));
+	}
+
+	private static Geometry readEnvelope(XmlCursor cursor, String srsName) {
+		double[] lower = null;
+		double[] upper = null;
+		if(cursor.toFirstChild()) {
+			do {
+				String name = gmlName(cursor);
+				if("lowerCorner".equals(name)) {
+					lower = readPosition(cursor, srsName);
+				} else if("upperCorner".equals(name)) {
+					upper = readPosition(cursor, srsName);
+				}
+			} while(cursor.toNextSibling());
+			cursor.toParent();
+		}
+		if(lower == null || upper == null) {
+			return null;
+		}
+		return FACTORY.toGeometry(new Envelope(lower[0], upper[0], lower[1], upper[1]));
+	}
+
+	/**
+	 * Reads the single position of a Point, from a gml:pos or gml:coordinates child
+	 */
+	private static double[] readOrdinates(XmlCursor cursor, String srsName) {
+		Coordinate[] coordinates = readCoordinates(cursor, srsName);
+		if(coordinates == null || coordinates.length == 0) {
+			return null;
+		}
+		return new double[] {coordinates[0].x, coordinates[0].y};
+	}
+
+	/**
+	 * Reads the positions of the geometry element at the cursor, from a gml:posList,
+	 * gml:pos elements or gml:coordinates
+	 *
+	 * @return The coordinates, or null if the reference system is not WGS84
+	 */
+	private static Coordinate[] readCoordinates(XmlCursor cursor, String srsName) {
+		int dimension = dimension(cursor, 2);
+		List<Coordinate> coordinates = new ArrayList<Coordinate>();
+		if(!cursor.toFirstChild()) {
+			return null;
+		}
+		try {
+			do {
+				String name = gmlName(cursor);
+				String childSrsName = srsName(cursor, srsName);
+				if("pos".equals(name)) {
+					double[] position = readPosition(cursor, childSrsName);
+					if(position == null) {
+						return null;
+					}
+					coordinates.add(new Coordinate(position[0], position[1]));
+				} else if("posList".equals(name)) {
+					if(!addPositions(coordinates, cursor.getTextValue(), dimension(cursor, dimension), childSrsName)) {
+						return null;
+					}
+				} else if("coordinates".equals(name)) {
+					// GML 2 style tuples of "x,y x,y"
+					String text = cursor.getTextValue().trim().replace(',', ' ');
+					if(!addPositions(coordinates, text, 2, childSrsName)) {
+						return null;
+					}
+				}
+			} while(cursor.toNextSibling());
+		} finally {
+			cursor.toParent();
+		}
+		return coordinates.toArray(new Coordinate[coordinates.size()]);
+	}
+
+	private static double[] readPosition(XmlCursor cursor, String srsName) {
+		List<Coordinate> coordinates = new ArrayList<Coordinate>(1);
+		if(!addPositions(coordinates, cursor.getTextValue(), dimension(cursor, 0), srsName(cursor, srsName))
+				|| coordinates.isEmpty()) {
+			return null;
+		}
+		return new double[] {coordinates.get(0).x, coordinates.get(0).y};
+	}
+
+	/**
+	 * Adds the positions of a whitespace separated list of ordinates
+	 *
+	 * @param dimension The number of ordinates of each position, or 0 for a single position
+	 * @return false if the reference system is not WGS84
+	 */
+	private static boolean addPositions(List<Coordinate> coordinates, String text, int dimension, String srsName) {
+		boolean latitudeFirst;
+		if(srsName == null || isLongitudeFirst(srsName)) {
+			latitudeFirst = false;
+		} else if(isLatitudeFirst(srsName)) {
+			latitudeFirst = true;
+		} else {
+			LOGGER.debug("Leaving out geometry in unsupported reference system {}", srsName);
+			return false;
+		}
+		List<Double> ordinates = new ArrayList<Double>();
+		int length = text.length();
+		int start = -1;
+		for(int i = 0; i <= length; i++) {
+			boolean space = i == length || Character.isWhitespace(text.charAt(i));
+			if(space && start >= 0) {
+				try {
+					ordinates.add(Double.valueOf(text.substring(start, i)));
+				} catch(NumberFormatException e) {
+					throw new IllegalArgumentException("Not a coordinate: " + text.substring(start, i), e);
+				}
+				start = -1;
+			} else if(!space && start < 0) {
+				start = i;
+			}
+		}
+		if(dimension == 0) {
+			dimension = ordinates.size();
+		}
+		if(dimension < 2 || ordinates.size() % dimension != 0) {
+			throw new IllegalArgumentException("Expected positions of " + dimension + " ordinates: " + text.trim());
+		}
+		for(int i = 0; i < ordinates.size(); i += dimension) {
+			double first = ordinates.get(i);
+			double second = ordinates.get(i + 1);
+			coordinates.add(latitudeFirst ? new Coordinate(second, first) : new Coordinate(first, second));
+		}
+		return true;
+	}
+
+	/**
+	 * The URN and URL forms of EPSG:4326 give latitude first
+	 */
+	private static boolean isLatitudeFirst(String srsName) {
+		return srsName.endsWith("EPSG::4326") || srsName.endsWith("/EPSG/0/4326") ||
+				(srsName.startsWith("urn:") && srsName.contains(":EPSG:") && srsName.endsWith(":4326"));
+	}
+
+	/**
+	 * The legacy EPSG:4326 code and CRS84 give longitude first
+	 */
+	private static boolean isLongitudeFirst(String srsName) {
+		return srsName.equals("EPSG:4326") || srsName.endsWith("CRS84") || srsName.endsWith("#4326");
+	}
+
+	private static String srsName(XmlCursor cursor, String inherited) {
+		String srsName = cursor.getAttributeText(SRS_NAME);
+		return srsName != null ? srsName.trim() : inherited;
+	}
+
+	private static int dimension(XmlCursor cursor, int inherited) {
+		String dimension = cursor.getAttributeText(SRS_DIMENSION);
+		if(dimension == null) {
+			return inherited;
+		}
+		try {
+			return Integer.parseInt(dimension.trim());
+		} catch(NumberFormatException e) {
+			throw new IllegalArgumentException("Not an srsDimension: " + dimension, e);
+		}
+	}
+
+	/**
+	 * @return The local name of the element at the cursor if it is in a GML namespace, otherwise null
+	 */
+	private static String gmlName(XmlCursor cursor) {
+		QName name = cursor.getName();
+		if(name != null && (GML.equals(name.getNamespaceURI()) || GML_32.equals(name.getNamespaceURI()))) {
+			return name.getLocalPart();
+		}
+		return null;
+	}
+}
@@ -0,0 +1,62 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Bounded table of the geometries of the features of interest decoded
+ * during a parse, by their gml:id, identifier or name, so that observations
+ * referring to a feature given inline earlier in the response share its
+ * geometry.
+ *
+ * Once full, new geometries are not kept, so a response with many distinct
+ * features cannot grow the table without limit, while the features already
+ * kept can still be referred to. Safe for use from several threads, so one
+ * table may be shared between the workers of a parse.
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public class GeometryTable {
+	// features of interest are usually few, and repeated by many observations
+	public static final int DEFAULT_MAX_SIZE = 4096;
+
+	private final BoundedTable<String, Geometry> geometries;
+
+	/**
+	 * @param maxSize The most geometries to hold
+	 */
+	public GeometryTable(int maxSize) {
+		geometries = new BoundedTable<String, Geometry>(maxSize, false);
+	}
+
+	/**
+	 * @param id Identifies the feature of interest, e.g. its href, name or "#" and its gml:id
+	 * @return The geometry kept for it, or null if there is none
+	 */
+	public Geometry get(String id) {
+		return geometries.get(id);
+	}
+
+	/**
+	 * Keeps the geometry of a feature of interest, unless one is already kept for it
+	 *
+	 * @param id Identifies the feature of interest, may be null
+	 * @param geometry The decoded geometry, may be null
+	 * @return The geometry kept for the feature, which may have been put by another
+	 * thread, or the given geometry if it could not be kept
+	 */
+	public Geometry put(String id, Geometry geometry) {
+		if(id == null || geometry == null) {
+			return geometry;
+		}
+		return geometries.putIfAbsent(id, geometry);
+	}
+
+	/**
+	 * @return The number of geometries held
+	 */
+	public int size() {
+		return geometries.size();
+	}
+}
@@ -0,0 +1,318 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.n52.wps.io.data.IData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads SOS responses straight off the network into a parser, without
+ * first buffering the whole body in memory.
+ *
+ * A transfer thread reads the body, undoes any chunked transfer coding and
+ * gzip or deflate content coding, and hands the XML to the parsing thread
+ * through a buffer of at most {@link #setMaxBufferedBytes(int)} bytes. The
+ * transfer waits while the buffer is full, so a slow parse holds back the
+ * network rather than growing memory, and the parse starts on the first
+ * bytes to arrive. With a SOS 2.0.0 parser in streaming mode the first
+ * observations are converted while the rest are still being transferred.
+ *
+ * A parser which streams lazily is not accepted, as the transfer ends
+ * when the parse returns. A parse which finishes or fails before the body
+ * has been read does not wait for the transfer: a read blocked on a socket
+ * may not end until the read timeout, so the body is closed and the
+ * connection released in the background.
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public class HttpResponseReader {
+	private static final Logger LOGGER = LoggerFactory.getLogger(HttpResponseReader.class);
+	public static final int DEFAULT_MAX_BUFFERED_BYTES = 256 * 1024;
+	private static final int TRANSFER_SIZE = 8192;
+	private static final String ACCEPT_ENCODING = "gzip, deflate";
+
+	private final SimpleSOSParser parser;
+	private int maxBufferedBytes = DEFAULT_MAX_BUFFERED_BYTES;
+	private int connectTimeout = 30000;
+	private int readTimeout = 300000;
+
+	/**
+	 * Creates a reader which chooses a shared parser for each response
+	 * with {@link SimpleSOSParser.Factory#select(InputStream)}
+	 */
+	public HttpResponseReader() {
+		this(null);
+	}
+
+	/**
+	 * @param parser Parser for the responses, which must not stream lazily,
+	 * or null to choose one for each response
+	 */
+	public HttpResponseReader(SimpleSOSParser parser) {
+		if(parser != null && parser.lazy && parser instanceof SimpleSOSParser_200
+				&& ((SimpleSOSParser_200) parser).streaming) {
+			IllegalArgumentException e = new IllegalArgumentException(
+					"Reading responses off the network needs a parser which does not stream lazily");
+			LOGGER.error(e.getMessage());
+			throw e;
+		}
+		this.parser = parser;
+	}
+
+	/**
+	 * Sets the most bytes of decoded response held between the transfer and the parse
+	 *
+	 * @param maxBufferedBytes The size of the buffer, at least 1
+	 */
+	public void setMaxBufferedBytes(int maxBufferedBytes) {
+		if(maxBufferedBytes < 1) {
+			throw new IllegalArgumentException("Buffer size must be positive: " + maxBufferedBytes);
+		}
+		this.maxBufferedBytes = maxBufferedBytes;
+	}
+
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * Requests a response, compressed if the server is willing, and parses it
+	 *
+	 * @param url The request, e.g. a KVP GetObservation
+	 * @param filter Which observations to keep, or null to keep all of them
+	 * @param errors Where to record skipped observations, or null to only log them
+	 * @return GTVectorDataBinding of the matching observations
+	 * @throws IOException if the request failed or the transfer broke off
+	 * @throws IllegalArgumentException if the response could not be parsed
+	 */
+	public IData fetch(URL url, ObservationFilter filter, ParseErrorReport errors) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setConnectTimeout(connectTimeout);
+		connection.setReadTimeout(readTimeout);
+		connection.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+		ReadableByteChannel body;
+		try {
+			int status = connection.getResponseCode();
+			if(status != HttpURLConnection.HTTP_OK) {
+				throw new IOException("Request for " + url + " failed with HTTP " + status);
+			}
+			body = Channels.newChannel(connection.getInputStream());
+		} catch(IOException e) {
+			connection.disconnect();
+			throw e;
+		}
+		// HttpURLConnection has already undone any chunked transfer coding
+		return read(body, null, connection.getContentEncoding(), filter, errors, connection);
+	}
+
+	/**
+	 * Parses a response body as it is read from a channel. The channel is
+	 * closed once the body has been read or the parse has finished, though
+	 * if a read is still blocked on it, the closing is left to another thread.
+	 *
+	 * @param body The response body, as sent
+	 * @param transferEncoding The Transfer-Encoding header, "chunked" or null
+	 * @param contentEncoding The Content-Encoding header: gzip, deflate, identity or null
+	 * @param filter Which observations to keep, or null to keep all of them
+	 * @param errors Where to record skipped observations, or null to only log them
+	 * @return GTVectorDataBinding of the matching observations
+	 * @throws IOException if the body is in an unsupported coding or the transfer broke off
+	 * @throws IllegalArgumentException if the response could not be parsed
+	 */
+	public IData read(ReadableByteChannel body, String transferEncoding, String contentEncoding,
+			ObservationFilter filter, ParseErrorReport errors) throws IOException {
+		return read(body, transferEncoding, contentEncoding, filter, errors, null);
+	}
+
+	/**
+	 * @param connection The connection the body is read from, disconnected once the
+	 * transfer has ended, or null
+	 */
+	private IData read(ReadableByteChannel body, String transferEncoding, String contentEncoding,
+			ObservationFilter filter, ParseErrorReport errors, HttpURLConnection connection) throws IOException {
+		if(transferEncoding != null && !"chunked".equalsIgnoreCase(transferEncoding.trim())) {
+			body.close();
+			if(connection != null) {
+				connection.disconnect();
+			}
+			throw new IOException("Unsupported Transfer-Encoding: " + transferEncoding);
+		}
+		BoundedPipe pipe = new BoundedPipe(maxBufferedBytes);
+		Transfer transfer = new Transfer(body, transferEncoding != null, contentEncoding, pipe, connection);
+		Thread thread = new Thread(transfer, "SOS response transfer");
+		thread.setDaemon(true);
+		thread.start();
+		try {
+			if(parser == null) {
+				ParserSelection selection = SimpleSOSParser.Factory.select(pipe);
+				return selection.getParser().parse(selection.getInputStream(), filter, errors);
+			}
+			return parser.parse(pipe, filter, errors);
+		} catch(IllegalArgumentException e) {
+			// a parse failing because the transfer did is reported as the transfer's failure
+			if(transfer.failure != null) {
+				throw transfer.failure;
+			}
+			throw e;
+		} finally {
+			// stops the transfer if the parse finished early
+			pipe.close();
+			transfer.stop();
+		}
+	}
+
+	/**
+	 * Wraps a response body to undo its content coding
+	 *
+	 * @param in The body as sent
+	 * @param contentEncoding The Content-Encoding header, may list several codings or be null
+	 * @return The decoded body
+	 * @throws IOException if a coding is not supported
+	 */
+	static InputStream decode(InputStream in, String contentEncoding) throws IOException {
+		if(contentEncoding == null) {
+			return in;
+		}
+		// codings are listed in the order they were applied
+		String[] codings = contentEncoding.split(",");
+		for(int i = codings.length - 1; i >= 0; i--) {
+			String coding = codings[i].trim().toLowerCase();
+			if("gzip".equals(coding) || "x-gzip".equals(coding)) {
+				in = new GZIPInputStream(in, TRANSFER_SIZE);
+			} else if("deflate".equals(coding)) {
+				in = inflate(in);
+			} else if(!"identity".equals(coding) && !coding.isEmpty()) {
+				throw new IOException("Unsupported Content-Encoding: " + contentEncoding);
+			}
+		}
+		return in;
+	}
+
+	/**
+	 * Deflate should be sent in a zlib wrapper, but some servers send the raw
+	 * stream, so the first two bytes are checked for a zlib header
+	 */
+	private static InputStream inflate(InputStream in) throws IOException {
+		PushbackInputStream pushback = new PushbackInputStream(in, 2);
+		int first = pushback.read();
+		int second = first == -1 ? -1 : pushback.read();
+		if(second != -1) {
+			pushback.unread(second);
+		}
+		if(first != -1) {
+			pushback.unread(first);
+		}
+		boolean zlib = second != -1 && (first & 0x0f) == 8 && ((first << 8) | second) % 31 == 0;
+		final Inflater inflater = new Inflater(!zlib);
+		return new InflaterInputStream(pushback, inflater, TRANSFER_SIZE) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					inflater.end();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Copies the decoded body into the pipe, on its own thread
+	 */
+	private static class Transfer implements Runnable {
+		private final ReadableByteChannel body;
+		private final boolean chunked;
+		private final String contentEncoding;
+		private final BoundedPipe pipe;
+		private final HttpURLConnection connection;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile IOException failure = null;
+
+		Transfer(ReadableByteChannel body, boolean chunked, String contentEncoding, BoundedPipe pipe,
+				HttpURLConnection connection) {
+			this.body = body;
+			this.chunked = chunked;
+			this.contentEncoding = contentEncoding;
+			this.pipe = pipe;
+			this.connection = connection;
+		}
+
+		public void run() {
+			InputStream in = null;
+			try {
+				in = new BufferedInputStream(Channels.newInputStream(body), TRANSFER_SIZE);
+				if(chunked) {
+					in = new ChunkedInputStream(in);
+				}
+				in = decode(in, contentEncoding);
+				byte[] buffer = new byte[TRANSFER_SIZE];
+				int read;
+				while((read = in.read(buffer)) != -1) {
+					pipe.write(buffer, 0, read);
+				}
+				pipe.finish();
+			} catch(IOException e) {
+				failure = e;
+				pipe.fail(e);
+				LOGGER.debug("Response transfer ended: {}", e.getMessage());
+			} finally {
+				try {
+					if(in != null) {
+						in.close();
+					} else {
+						body.close();
+					}
+				} catch(IOException e) {
+					LOGGER.debug("Error closing response: {}", e.getMessage());
+				}
+				if(connection != null) {
+					connection.disconnect();
+				}
+				done.countDown();
+			}
+		}
+
+		/**
+		 * Ends a transfer which is still running once the pipe has been closed.
+		 * Closing the body wakes a read blocked on a socket channel, but a stream
+		 * such as HttpURLConnection's cannot be closed until its blocked read
+		 * returns, so the body is closed on a thread of its own rather than
+		 * holding up the caller. The transfer then ends on its next read, or at
+		 * the latest when that read times out.
+		 */
+		void stop() {
+			if(done.getCount() == 0) {
+				return;
+			}
+			Thread closer = new Thread(new Runnable() {
+				public void run() {
+					try {
+						body.close();
+					} catch(IOException e) {
+						LOGGER.debug("Error closing response: {}", e.getMessage());
+					}
+				}
+			}, "SOS response close");
+			closer.setDaemon(true);
+			closer.start();
+		}
+	}
+}
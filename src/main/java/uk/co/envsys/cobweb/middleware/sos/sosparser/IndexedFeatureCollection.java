@@ -0,0 +1,224 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.Filter;
+import org.opengis.filter.expression.Expression;
+import org.opengis.filter.expression.Literal;
+import org.opengis.filter.expression.PropertyName;
+import org.opengis.filter.spatial.BBOX;
+import org.opengis.filter.spatial.BinarySpatialOperator;
+import org.opengis.filter.spatial.Intersects;
+import org.opengis.geometry.BoundingBox;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+/**
+ * A list of features with an STRtree over the envelopes of their default
+ * geometries, so that the features within a bounding box are found in
+ * logarithmic rather than linear time. Besides {@link #query(Envelope)},
+ * {@link #subCollection(Filter)} uses the index for BBOX and Intersects
+ * filters on the default geometry, checking the filter against only the
+ * features whose envelopes meet its own.
+ *
+ * The index is built in one go the first time the collection is queried
+ * or its bounds are asked for. Adding or removing features drops it, to be
+ * built again on the next query. Features without a geometry are never
+ * returned by a query. Queries keep the order of the features in the list
+ * and are safe from several threads, though not while features are being
+ * added or removed.
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public class IndexedFeatureCollection extends ListFeatureCollection {
+	private STRtree index = null;
+	private ReferencedEnvelope bounds = null;
+
+	/**
+	 * @param type The FeatureType of the features
+	 * @param features The features, which the collection takes over
+	 */
+	public IndexedFeatureCollection(SimpleFeatureType type, List<SimpleFeature> features) {
+		super(type, new IndexedList(features));
+		((IndexedList) list).collection = this;
+	}
+
+	/**
+	 * Finds the features whose geometry's envelope intersects a bounding box
+	 *
+	 * @param bbox The bounding box, in the coordinates of the features
+	 * @return The features, in the order of the collection
+	 */
+	public List<SimpleFeature> query(Envelope bbox) {
+		@SuppressWarnings("unchecked")
+		List<Integer> positions = index().query(bbox);
+		Collections.sort(positions);
+		List<SimpleFeature> features = new ArrayList<SimpleFeature>(positions.size());
+		for(Integer position : positions) {
+			features.add(list.get(position));
+		}
+		return features;
+	}
+
+	/**
+	 * Finds the features whose geometry's envelope intersects a bounding box
+	 *
+	 * @param bbox The bounding box, in the coordinates of the features
+	 * @return The features as a collection of the same FeatureType
+	 */
+	public SimpleFeatureCollection subCollection(Envelope bbox) {
+		return new ListFeatureCollection(getSchema(), query(bbox));
+	}
+
+	/**
+	 * Finds the features matching a filter, through the index for a BBOX or
+	 * Intersects filter on the default geometry, otherwise by checking each feature
+	 *
+	 * @param filter The filter to match
+	 * @return The matching features, in the order of the collection
+	 */
+	@Override
+	public SimpleFeatureCollection subCollection(Filter filter) {
+		Envelope bbox = indexedEnvelope(filter);
+		if(bbox == null) {
+			return super.subCollection(filter);
+		}
+		List<SimpleFeature> candidates = query(bbox);
+		List<SimpleFeature> matches = new ArrayList<SimpleFeature>(candidates.size());
+		for(SimpleFeature feature : candidates) {
+			if(filter.evaluate(feature)) {
+				matches.add(feature);
+			}
+		}
+		return new ListFeatureCollection(getSchema(), matches);
+	}
+
+	/**
+	 * @return The envelope any feature matching the filter must meet, or null if
+	 * the filter is not one the index can answer
+	 */
+	private Envelope indexedEnvelope(Filter filter) {
+		if(!(filter instanceof BBOX || filter instanceof Intersects)) {
+			return null;
+		}
+		BinarySpatialOperator operator = (BinarySpatialOperator) filter;
+		Expression property = operator.getExpression1();
+		Expression literal = operator.getExpression2();
+		if(property instanceof Literal) {
+			property = operator.getExpression2();
+			literal = operator.getExpression1();
+		}
+		if(!(property instanceof PropertyName) || !(literal instanceof Literal)
+				|| getSchema().getGeometryDescriptor() == null) {
+			return null;
+		}
+		// an empty name stands for the default geometry
+		String name = ((PropertyName) property).getPropertyName();
+		if(name != null && name.length() > 0 && !name.equals(getSchema().getGeometryDescriptor().getLocalName())) {
+			return null;
+		}
+		// taken as given, as the filter compares the coordinates without reprojecting
+		Object value = ((Literal) literal).getValue();
+		if(value instanceof Geometry) {
+			return ((Geometry) value).getEnvelopeInternal();
+		}
+		if(value instanceof Envelope) {
+			return (Envelope) value;
+		}
+		if(value instanceof BoundingBox) {
+			BoundingBox box = (BoundingBox) value;
+			return new Envelope(box.getMinX(), box.getMaxX(), box.getMinY(), box.getMaxY());
+		}
+		return null;
+	}
+
+	@Override
+	public synchronized ReferencedEnvelope getBounds() {
+		index();
+		return new ReferencedEnvelope(bounds);
+	}
+
+	private synchronized STRtree index() {
+		if(index == null) {
+			// items are positions in the list, so that queries can be put back in order
+			STRtree tree = new STRtree();
+			Envelope extent = new Envelope();
+			for(int i = 0; i < list.size(); i++) {
+				Object geometry = list.get(i).getDefaultGeometry();
+				if(geometry instanceof Geometry) {
+					Envelope envelope = ((Geometry) geometry).getEnvelopeInternal();
+					if(!envelope.isNull()) {
+						tree.insert(envelope, Integer.valueOf(i));
+						extent.expandToInclude(envelope);
+					}
+				}
+			}
+			tree.build();
+			bounds = new ReferencedEnvelope(extent, getSchema().getCoordinateReferenceSystem());
+			index = tree;
+		}
+		return index;
+	}
+
+	/**
+	 * Drops the index once the features have changed
+	 */
+	private synchronized void invalidate() {
+		index = null;
+		bounds = null;
+	}
+
+	/**
+	 * The features of the collection, which drops its index when they are added,
+	 * removed or replaced, however the change is made
+	 */
+	private static class IndexedList extends AbstractList<SimpleFeature> implements RandomAccess {
+		private final List<SimpleFeature> features;
+		private IndexedFeatureCollection collection;
+
+		IndexedList(List<SimpleFeature> features) {
+			this.features = features;
+		}
+
+		@Override
+		public SimpleFeature get(int index) {
+			return features.get(index);
+		}
+
+		@Override
+		public int size() {
+			return features.size();
+		}
+
+		@Override
+		public SimpleFeature set(int index, SimpleFeature feature) {
+			collection.invalidate();
+			return features.set(index, feature);
+		}
+
+		@Override
+		public void add(int index, SimpleFeature feature) {
+			collection.invalidate();
+			features.add(index, feature);
+		}
+
+		@Override
+		public SimpleFeature remove(int index) {
+			collection.invalidate();
+			return features.remove(index);
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+/**
+ * Bounded table of shared String instances, so that the hrefs and titles
+ * repeated by every observation of a response are held once rather than
+ * once per feature.
+ *
+ * Once full, the table is emptied before the next new value is added, so
+ * a response with many distinct values cannot grow it without limit, and a
+ * table shared between parses goes on interning the values of recent
+ * responses rather than only those of the first. Safe for use from several
+ * threads, so one table may be shared between the workers of a parse, or
+ * between parses.
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public class InternTable {
+	public static final int DEFAULT_MAX_SIZE = 4096;
+
+	private final BoundedTable<String, String> values;
+
+	/**
+	 * @param maxSize The most distinct values to hold
+	 */
+	public InternTable(int maxSize) {
+		values = new BoundedTable<String, String>(maxSize, true);
+	}
+
+	/**
+	 * @param value The value to share, may be null
+	 * @return The instance held for an equal value, or the value itself if
+	 * it is new
+	 */
+	public String intern(String value) {
+		if(value == null) {
+			return null;
+		}
+		return values.putIfAbsent(value, value);
+	}
+
+	/**
+	 * @return The number of distinct values held
+	 */
+	public int size() {
+		return values.size();
+	}
+
+	/**
+	 * Empties the table
+	 */
+	public void clear() {
+		values.clear();
+	}
+}
@@ -0,0 +1,229 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+
+/**
+ * Decodes the ISO 8601 time positions written by SOS servers, such as
+ * {@code 2015-02-13T22:11:18.557Z} or {@code 2013-01-10T15:00:00.000+01:00},
+ * to milliseconds since the epoch.
+ *
+ * The common form, a four digit year with seconds and a zone, is read
+ * straight from the characters without allocating. The observations of a
+ * response tend to share their date, hour and zone, so the last date and
+ * hour prefix and the last zone seen are kept and compared before being
+ * decoded again. Anything else the xsd:dateTime type allows, e.g. a time
+ * without a zone, is passed on to {@link DatatypeFactory}.
+ *
+ * A decoder holds the prefix and zone of the last time decoded and is used
+ * by one thread at a time.
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public class IsoTimeDecoder {
+	// "yyyy-MM-ddTHH"
+	private static final int PREFIX_LENGTH = 13;
+	// "yyyy-MM-ddTHH:mm:ss"
+	private static final int SECONDS_END = 19;
+	private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+	private static final long MILLIS_PER_HOUR = 60L * 60 * 1000;
+	// earlier dates fall before the Gregorian calendar of java.util
+	private static final int FIRST_GREGORIAN_YEAR = 1583;
+	private static final int[] DAYS_IN_MONTH = {31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+
+	private static DatatypeFactory datatypeFactory;
+
+	private final char[] prefix = new char[PREFIX_LENGTH];
+	private boolean hasPrefix = false;
+	private long prefixMillis;
+	private String zone = null;
+	private long zoneMillis;
+
+	/**
+	 * Decodes a time position
+	 *
+	 * @param time The text of the time position
+	 * @return long milliseconds since the epoch
+	 * @throws IllegalArgumentException if the text is not an ISO 8601 date and time
+	 */
+	public long decode(String time) {
+		int length = time.length();
+		if(length < SECONDS_END + 1) {
+			return decodeOther(time);
+		}
+		long millis;
+		if(hasPrefix && matchesPrefix(time)) {
+			millis = prefixMillis;
+		} else {
+			millis = readPrefix(time);
+			if(millis == Long.MIN_VALUE) {
+				return decodeOther(time);
+			}
+		}
+
+		int minutes = readTwoDigits(time, 14);
+		int seconds = readTwoDigits(time, 17);
+		if(time.charAt(13) != ':' || time.charAt(16) != ':' || minutes < 0 || minutes > 59
+				|| seconds < 0 || seconds > 59) {
+			return decodeOther(time);
+		}
+		millis += minutes * 60000L + seconds * 1000L;
+
+		int pos = SECONDS_END;
+		if(time.charAt(pos) == '.') {
+			// milliseconds, further digits are truncated
+			int fraction = 0;
+			int digits = 0;
+			pos++;
+			for(; pos < length; pos++) {
+				char c = time.charAt(pos);
+				if(c < '0' || c > '9') {
+					break;
+				}
+				if(digits < 3) {
+					fraction = fraction * 10 + (c - '0');
+				}
+				digits++;
+			}
+			if(digits == 0) {
+				return decodeOther(time);
+			}
+			for(; digits < 3; digits++) {
+				fraction *= 10;
+			}
+			millis += fraction;
+		}
+
+		if(pos == length) {
+			// local time, which depends on the default time zone
+			return decodeOther(time);
+		}
+		if(zone != null && zone.length() == length - pos && time.regionMatches(pos, zone, 0, zone.length())) {
+			return millis - zoneMillis;
+		}
+		long offset = readZone(time, pos);
+		if(offset == Long.MIN_VALUE) {
+			return decodeOther(time);
+		}
+		zone = time.substring(pos);
+		zoneMillis = offset;
+		return millis - offset;
+	}
+
+	private boolean matchesPrefix(String time) {
+		for(int i = 0; i < PREFIX_LENGTH; i++) {
+			if(prefix[i] != time.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the date and hour, keeping them as the prefix for the next time
+	 *
+	 * @return The start of the hour in UTC milliseconds, or Long.MIN_VALUE
+	 * if it is not in the common form
+	 */
+	private long readPrefix(String time) {
+		int century = readTwoDigits(time, 0);
+		int yearOfCentury = readTwoDigits(time, 2);
+		int year = century < 0 || yearOfCentury < 0 ? -1 : century * 100 + yearOfCentury;
+		int month = readTwoDigits(time, 5);
+		int day = readTwoDigits(time, 8);
+		int hour = readTwoDigits(time, 11);
+		if(year < FIRST_GREGORIAN_YEAR || month < 1 || month > 12 || day < 1 || hour < 0 || hour > 23
+				|| time.charAt(4) != '-' || time.charAt(7) != '-' || time.charAt(10) != 'T') {
+			return Long.MIN_VALUE;
+		}
+		int daysInMonth = DAYS_IN_MONTH[month - 1];
+		if(month == 2 && isLeapYear(year)) {
+			daysInMonth++;
+		}
+		if(day > daysInMonth) {
+			return Long.MIN_VALUE;
+		}
+		long millis = daysSinceEpoch(year, month, day) * MILLIS_PER_DAY + hour * MILLIS_PER_HOUR;
+		time.getChars(0, PREFIX_LENGTH, prefix, 0);
+		hasPrefix = true;
+		prefixMillis = millis;
+		return millis;
+	}
+
+	/**
+	 * Reads a zone of Z, +hh:mm or -hh:mm running to the end of the text
+	 *
+	 * @return The offset from UTC in milliseconds, or Long.MIN_VALUE if there is no such zone
+	 */
+	private static long readZone(String time, int pos) {
+		int length = time.length();
+		char sign = time.charAt(pos);
+		if(sign == 'Z') {
+			return pos + 1 == length ? 0 : Long.MIN_VALUE;
+		}
+		if((sign != '+' && sign != '-') || pos + 6 != length || time.charAt(pos + 3) != ':') {
+			return Long.MIN_VALUE;
+		}
+		int hours = readTwoDigits(time, pos + 1);
+		int minutes = readTwoDigits(time, pos + 4);
+		if(hours < 0 || hours > 14 || minutes < 0 || minutes > 59) {
+			return Long.MIN_VALUE;
+		}
+		long offset = hours * MILLIS_PER_HOUR + minutes * 60000L;
+		return sign == '-' ? -offset : offset;
+	}
+
+	/**
+	 * @return The two digit number at pos, or -1 if they are not digits
+	 */
+	private static int readTwoDigits(String time, int pos) {
+		char tens = time.charAt(pos);
+		char units = time.charAt(pos + 1);
+		if(tens < '0' || tens > '9' || units < '0' || units > '9') {
+			return -1;
+		}
+		return (tens - '0') * 10 + (units - '0');
+	}
+
+	private static boolean isLeapYear(int year) {
+		return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+	}
+
+	/**
+	 * Days from 1970-01-01 to a date of the proleptic Gregorian calendar
+	 */
+	private static long daysSinceEpoch(int year, int month, int day) {
+		// count years from March, so the leap day falls at the end of the year
+		long y = month <= 2 ? year - 1 : year;
+		long era = (y >= 0 ? y : y - 399) / 400;
+		long yearOfEra = y - era * 400;
+		long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	/**
+	 * Decodes any other form of xsd:dateTime
+	 */
+	private static long decodeOther(String time) {
+		try {
+			return getDatatypeFactory().newXMLGregorianCalendar(time.trim())
+					.toGregorianCalendar().getTimeInMillis();
+		} catch(IllegalArgumentException e) {
+			throw new IllegalArgumentException("Not an ISO 8601 time: " + time, e);
+		}
+	}
+
+	private static synchronized DatatypeFactory getDatatypeFactory() {
+		if(datatypeFactory == null) {
+			try {
+				datatypeFactory = DatatypeFactory.newInstance();
+			} catch(DatatypeConfigurationException e) {
+				throw new IllegalStateException("No DatatypeFactory available", e);
+			}
+		}
+		return datatypeFactory;
+	}
+}
@@ -0,0 +1,243 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.util.Arrays;
+
+/**
+ * Observations binned into fixed windows of phenomenonTime, one bucket for
+ * each window of each procedure and observedProperty, holding the count,
+ * minimum, maximum and sum of the numeric results in primitive arrays.
+ *
+ * Observations are added a batch at a time through a small
+ * {@link ObservationColumns} buffer, which is folded into the buckets and
+ * emptied, so memory grows with the number of buckets rather than the
+ * number of observations. The buffer does not keep features of interest,
+ * whose hrefs would otherwise pile up in its dictionary though no bucket
+ * refers to them. Windows are aligned to the epoch and an
+ * observation falls in the window holding the start of its phenomenonTime.
+ * Observations with no time or no numeric result are counted as skipped.
+ *
+ * Buckets are found through an open addressing table keyed on the
+ * procedure and observedProperty codes and the window. Use
+ * {@link ObservationAggregatesFeatureCollection} to read them as features.
+ *
+ * Not safe for use from several threads while observations are being added.
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public class ObservationAggregates {
+	private static final int INITIAL_CAPACITY = 64;
+	// rows buffered before they are folded into the buckets
+	static final int FOLD_SIZE = 256;
+
+	private final long window;
+	private final ObservationColumns pending = new ObservationColumns(false);
+	private int size = 0;
+	private int skipped = 0;
+	private long[] windowBegin = new long[INITIAL_CAPACITY];
+	private int[] procedure = new int[INITIAL_CAPACITY];
+	private int[] observedProperty = new int[INITIAL_CAPACITY];
+	private long[] count = new long[INITIAL_CAPACITY];
+	private double[] min = new double[INITIAL_CAPACITY];
+	private double[] max = new double[INITIAL_CAPACITY];
+	private double[] sum = new double[INITIAL_CAPACITY];
+	// bucket of each slot, -1 for empty; kept at most half full
+	private int[] slots = newSlots(INITIAL_CAPACITY * 2);
+
+	/**
+	 * @param window The length of each window in milliseconds, at least 1
+	 */
+	public ObservationAggregates(long window) {
+		if(window < 1) {
+			throw new IllegalArgumentException("Aggregation window must be positive: " + window);
+		}
+		this.window = window;
+	}
+
+	/**
+	 * @return The buffer observations are added to, folded in by {@link #fold()}.
+	 * Its procedure and observedProperty dictionaries are those of the buckets.
+	 */
+	ObservationColumns pending() {
+		return pending;
+	}
+
+	/**
+	 * Folds the observations waiting in the buffer into their buckets, and empties it
+	 */
+	void fold() {
+		long[] begins = pending.getPhenomenonTimeBegin();
+		double[] results = pending.getResult();
+		int[] procedures = pending.getProcedure();
+		int[] properties = pending.getObservedProperty();
+		for(int row = 0; row < pending.size(); row++) {
+			double result = results[row];
+			if(begins[row] == ObservationColumns.NO_TIME || Double.isNaN(result)) {
+				skipped++;
+				continue;
+			}
+			int bucket = bucketOf(procedures[row], properties[row], Math.floorDiv(begins[row], window) * window);
+			if(count[bucket] == 0) {
+				min[bucket] = result;
+				max[bucket] = result;
+			} else {
+				min[bucket] = Math.min(min[bucket], result);
+				max[bucket] = Math.max(max[bucket], result);
+			}
+			count[bucket]++;
+			sum[bucket] += result;
+		}
+		pending.clear();
+	}
+
+	/**
+	 * @return The bucket of a window of a procedure and observedProperty, added if new
+	 */
+	private int bucketOf(int procedureCode, int propertyCode, long begin) {
+		int mask = slots.length - 1;
+		int slot = hash(procedureCode, propertyCode, begin) & mask;
+		while(slots[slot] != -1) {
+			int bucket = slots[slot];
+			if(windowBegin[bucket] == begin && procedure[bucket] == procedureCode
+					&& observedProperty[bucket] == propertyCode) {
+				return bucket;
+			}
+			slot = (slot + 1) & mask;
+		}
+		if(size == count.length) {
+			grow();
+			return bucketOf(procedureCode, propertyCode, begin);
+		}
+		windowBegin[size] = begin;
+		procedure[size] = procedureCode;
+		observedProperty[size] = propertyCode;
+		count[size] = 0;
+		sum[size] = 0;
+		slots[slot] = size;
+		return size++;
+	}
+
+	private void grow() {
+		int capacity = count.length * 2;
+		windowBegin = Arrays.copyOf(windowBegin, capacity);
+		procedure = Arrays.copyOf(procedure, capacity);
+		observedProperty = Arrays.copyOf(observedProperty, capacity);
+		count = Arrays.copyOf(count, capacity);
+		min = Arrays.copyOf(min, capacity);
+		max = Arrays.copyOf(max, capacity);
+		sum = Arrays.copyOf(sum, capacity);
+		slots = newSlots(capacity * 2);
+		int mask = slots.length - 1;
+		for(int bucket = 0; bucket < size; bucket++) {
+			int slot = hash(procedure[bucket], observedProperty[bucket], windowBegin[bucket]) & mask;
+			while(slots[slot] != -1) {
+				slot = (slot + 1) & mask;
+			}
+			slots[slot] = bucket;
+		}
+	}
+
+	private int hash(int procedureCode, int propertyCode, long begin) {
+		long hash = (procedureCode * 31L + propertyCode) * 0x9E3779B97F4A7C15L ^ (begin / window) * 0xC2B2AE3D27D4EB4FL;
+		return (int) (hash ^ (hash >>> 32));
+	}
+
+	private static int[] newSlots(int length) {
+		int[] slots = new int[length];
+		Arrays.fill(slots, -1);
+		return slots;
+	}
+
+	/**
+	 * @return The length of each window in milliseconds
+	 */
+	public long getWindow() {
+		return window;
+	}
+
+	/**
+	 * @return The number of buckets
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return The number of observations left out for having no time or no numeric result
+	 */
+	public int getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * @return Start of the window of each bucket in epoch milliseconds
+	 */
+	public long[] getWindowBegin() {
+		return windowBegin;
+	}
+
+	/**
+	 * @return Code of the procedure of each bucket in {@link #getProcedures()}
+	 */
+	public int[] getProcedure() {
+		return procedure;
+	}
+
+	/**
+	 * @return Code of the observedProperty of each bucket in {@link #getObservedProperties()}
+	 */
+	public int[] getObservedProperty() {
+		return observedProperty;
+	}
+
+	/**
+	 * @return The number of observations in each bucket, at least 1
+	 */
+	public long[] getCount() {
+		return count;
+	}
+
+	/**
+	 * @return The smallest result of each bucket
+	 */
+	public double[] getMin() {
+		return min;
+	}
+
+	/**
+	 * @return The largest result of each bucket
+	 */
+	public double[] getMax() {
+		return max;
+	}
+
+	/**
+	 * @return The sum of the results of each bucket
+	 */
+	public double[] getSum() {
+		return sum;
+	}
+
+	/**
+	 * @param bucket The index of a bucket
+	 * @return The mean of its results
+	 */
+	public double getMean(int bucket) {
+		return sum[bucket] / count[bucket];
+	}
+
+	/**
+	 * @return Dictionary of the procedure URIs
+	 */
+	public UriDictionary getProcedures() {
+		return pending.getProcedures();
+	}
+
+	/**
+	 * @return Dictionary of the observedProperty URIs
+	 */
+	public UriDictionary getObservedProperties() {
+		return pending.getObservedProperties();
+	}
+}
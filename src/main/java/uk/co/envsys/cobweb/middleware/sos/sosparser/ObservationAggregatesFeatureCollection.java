@@ -0,0 +1,129 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.NoSuchElementException;
+
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.collection.BaseSimpleFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * View of an {@link ObservationAggregates} store as a FeatureCollection,
+ * one feature per bucket, made only when the iterator reaches it. Buckets
+ * are grouped by procedure and then observedProperty, in the order each
+ * was first seen, and each group is in order of time.
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public class ObservationAggregatesFeatureCollection extends BaseSimpleFeatureCollection {
+
+	/** FeatureType of the features made from the buckets */
+	public static final SimpleFeatureType TYPE = createType();
+
+	private final ObservationAggregates aggregates;
+	private final Integer[] order;
+
+	/**
+	 * @param aggregates The store to present as features
+	 */
+	public ObservationAggregatesFeatureCollection(final ObservationAggregates aggregates) {
+		super(TYPE);
+		this.aggregates = aggregates;
+		order = new Integer[aggregates.size()];
+		for(int i = 0; i < order.length; i++) {
+			order[i] = Integer.valueOf(i);
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int x = a.intValue();
+				int y = b.intValue();
+				if(aggregates.getProcedure()[x] != aggregates.getProcedure()[y]) {
+					return aggregates.getProcedure()[x] < aggregates.getProcedure()[y] ? -1 : 1;
+				}
+				if(aggregates.getObservedProperty()[x] != aggregates.getObservedProperty()[y]) {
+					return aggregates.getObservedProperty()[x] < aggregates.getObservedProperty()[y] ? -1 : 1;
+				}
+				long begin = aggregates.getWindowBegin()[x];
+				long other = aggregates.getWindowBegin()[y];
+				return begin < other ? -1 : (begin == other ? 0 : 1);
+			}
+		});
+	}
+
+	private static SimpleFeatureType createType() {
+		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+		builder.setName("observation-aggregates");
+		builder.add("procedure", String.class);
+		builder.add("observedProperty", String.class);
+		builder.add("windowBegin", Date.class);
+		builder.add("windowEnd", Date.class);
+		builder.add("count", Long.class);
+		builder.add("min", Double.class);
+		builder.add("max", Double.class);
+		builder.add("mean", Double.class);
+		builder.add("sum", Double.class);
+		return builder.buildFeatureType();
+	}
+
+	/**
+	 * @return The store behind this collection
+	 */
+	public ObservationAggregates getAggregates() {
+		return aggregates;
+	}
+
+	@Override
+	public SimpleFeatureIterator features() {
+		return new AggregatesIterator();
+	}
+
+	@Override
+	public int size() {
+		return aggregates.size();
+	}
+
+	@Override
+	public ReferencedEnvelope getBounds() {
+		// the buckets hold no geometry
+		return new ReferencedEnvelope(TYPE.getCoordinateReferenceSystem());
+	}
+
+	private class AggregatesIterator implements SimpleFeatureIterator {
+		private final SimpleFeatureBuilder builder = new SimpleFeatureBuilder(TYPE);
+		private int position = 0;
+
+		public boolean hasNext() {
+			return position < order.length;
+		}
+
+		public SimpleFeature next() throws NoSuchElementException {
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			int bucket = order[position++].intValue();
+			long begin = aggregates.getWindowBegin()[bucket];
+			builder.add(aggregates.getProcedures().decode(aggregates.getProcedure()[bucket]));
+			builder.add(aggregates.getObservedProperties().decode(aggregates.getObservedProperty()[bucket]));
+			builder.add(new Date(begin));
+			builder.add(new Date(begin + aggregates.getWindow()));
+			builder.add(Long.valueOf(aggregates.getCount()[bucket]));
+			builder.add(Double.valueOf(aggregates.getMin()[bucket]));
+			builder.add(Double.valueOf(aggregates.getMax()[bucket]));
+			builder.add(Double.valueOf(aggregates.getMean(bucket)));
+			builder.add(Double.valueOf(aggregates.getSum()[bucket]));
+			return builder.buildFeature("aggregate." + bucket);
+		}
+
+		public void close() {
+			position = order.length;
+		}
+	}
+}
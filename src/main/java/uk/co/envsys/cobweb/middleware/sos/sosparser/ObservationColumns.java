@@ -0,0 +1,178 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.util.Arrays;
+
+/**
+ * Columnar store of parsed observations, holding each property of the
+ * observations in its own primitive array rather than as features of 
+ * boxed values and XmlBeans objects. Times are epoch milliseconds, results
+ * are doubles, and the procedure, observedProperty and featureOfInterest
+ * URIs are dictionary encoded.
+ * 
+ * The arrays returned by the column getters are the store's own and may be
+ * longer than {@link #size()}; only the first size() entries are in use.
+ * Use {@link ObservationColumnsFeatureCollection} to read the store as
+ * features.
+ * 
+ * Not safe for use from several threads while observations are being added.
+ * 
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public class ObservationColumns {
+	/** Time of an observation which has none, or none that could be read */
+	public static final long NO_TIME = Long.MIN_VALUE;
+	
+	private static final int INITIAL_CAPACITY = 64;
+	
+	private int size = 0;
+	private long[] phenomenonTimeBegin = new long[INITIAL_CAPACITY];
+	private long[] phenomenonTimeEnd = new long[INITIAL_CAPACITY];
+	private long[] resultTime = new long[INITIAL_CAPACITY];
+	private double[] result = new double[INITIAL_CAPACITY];
+	private int[] procedure = new int[INITIAL_CAPACITY];
+	private int[] observedProperty = new int[INITIAL_CAPACITY];
+	private int[] featureOfInterest = new int[INITIAL_CAPACITY];
+	private final UriDictionary procedures = new UriDictionary();
+	private final UriDictionary observedProperties = new UriDictionary();
+	private final UriDictionary featuresOfInterest = new UriDictionary();
+	private final boolean keepFeaturesOfInterest;
+	
+	public ObservationColumns() {
+		this(true);
+	}
+	
+	/**
+	 * @param keepFeaturesOfInterest false to leave out the featureOfInterest of every
+	 * observation, so that its URIs are never added to the dictionary
+	 */
+	ObservationColumns(boolean keepFeaturesOfInterest) {
+		this.keepFeaturesOfInterest = keepFeaturesOfInterest;
+	}
+	
+	/**
+	 * Adds an observation to the end of the store
+	 * 
+	 * @param phenomenonBegin Start of the phenomenonTime, the instant itself for time instants, or {@link #NO_TIME}
+	 * @param phenomenonEnd End of the phenomenonTime, the instant itself for time instants, or {@link #NO_TIME}
+	 * @param resultTimeMillis The resultTime, or {@link #NO_TIME}
+	 * @param procedureUri The procedure href, may be null
+	 * @param observedPropertyUri The observedProperty href, may be null
+	 * @param featureOfInterestUri The featureOfInterest href, may be null, ignored
+	 * if features of interest are not kept
+	 * @param resultValue The numeric result, or NaN for results which are not numbers
+	 * @return The index of the observation in the store
+	 */
+	public int add(long phenomenonBegin, long phenomenonEnd, long resultTimeMillis, String procedureUri,
+			String observedPropertyUri, String featureOfInterestUri, double resultValue) {
+		if(size == result.length) {
+			grow();
+		}
+		phenomenonTimeBegin[size] = phenomenonBegin;
+		phenomenonTimeEnd[size] = phenomenonEnd;
+		resultTime[size] = resultTimeMillis;
+		result[size] = resultValue;
+		procedure[size] = procedures.encode(procedureUri);
+		observedProperty[size] = observedProperties.encode(observedPropertyUri);
+		featureOfInterest[size] = keepFeaturesOfInterest
+				? featuresOfInterest.encode(featureOfInterestUri) : UriDictionary.NONE;
+		return size++;
+	}
+	
+	/**
+	 * Empties the store, keeping its arrays and dictionaries, so that URIs
+	 * added again are given the same codes
+	 */
+	public void clear() {
+		size = 0;
+	}
+	
+	private void grow() {
+		int capacity = result.length * 2;
+		phenomenonTimeBegin = Arrays.copyOf(phenomenonTimeBegin, capacity);
+		phenomenonTimeEnd = Arrays.copyOf(phenomenonTimeEnd, capacity);
+		resultTime = Arrays.copyOf(resultTime, capacity);
+		result = Arrays.copyOf(result, capacity);
+		procedure = Arrays.copyOf(procedure, capacity);
+		observedProperty = Arrays.copyOf(observedProperty, capacity);
+		featureOfInterest = Arrays.copyOf(featureOfInterest, capacity);
+	}
+	
+	/**
+	 * @return The number of observations in the store
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * @return Start of each phenomenonTime in epoch milliseconds
+	 */
+	public long[] getPhenomenonTimeBegin() {
+		return phenomenonTimeBegin;
+	}
+	
+	/**
+	 * @return End of each phenomenonTime in epoch milliseconds, equal to the start for instants
+	 */
+	public long[] getPhenomenonTimeEnd() {
+		return phenomenonTimeEnd;
+	}
+	
+	/**
+	 * @return Each resultTime in epoch milliseconds
+	 */
+	public long[] getResultTime() {
+		return resultTime;
+	}
+	
+	/**
+	 * @return Each numeric result, NaN where the result is not a number
+	 */
+	public double[] getResult() {
+		return result;
+	}
+	
+	/**
+	 * @return Code of each procedure in {@link #getProcedures()}
+	 */
+	public int[] getProcedure() {
+		return procedure;
+	}
+	
+	/**
+	 * @return Code of each observedProperty in {@link #getObservedProperties()}
+	 */
+	public int[] getObservedProperty() {
+		return observedProperty;
+	}
+	
+	/**
+	 * @return Code of each featureOfInterest in {@link #getFeaturesOfInterest()}
+	 */
+	public int[] getFeatureOfInterest() {
+		return featureOfInterest;
+	}
+	
+	/**
+	 * @return Dictionary of the procedure URIs
+	 */
+	public UriDictionary getProcedures() {
+		return procedures;
+	}
+	
+	/**
+	 * @return Dictionary of the observedProperty URIs
+	 */
+	public UriDictionary getObservedProperties() {
+		return observedProperties;
+	}
+	
+	/**
+	 * @return Dictionary of the featureOfInterest URIs
+	 */
+	public UriDictionary getFeaturesOfInterest() {
+		return featuresOfInterest;
+	}
+}
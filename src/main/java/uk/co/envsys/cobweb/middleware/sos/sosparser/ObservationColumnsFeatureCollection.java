@@ -0,0 +1,106 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.util.Date;
+import java.util.NoSuchElementException;
+
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.collection.BaseSimpleFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * View of an {@link ObservationColumns} store as a FeatureCollection. The 
+ * columns are not copied: each feature is made from its row of the store
+ * only when the iterator reaches it. The store itself is available from
+ * {@link #getColumns()} for work on the primitive arrays.
+ * 
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public class ObservationColumnsFeatureCollection extends BaseSimpleFeatureCollection {
+	
+	/** FeatureType of the features made from the columns */
+	public static final SimpleFeatureType TYPE = createType();
+	
+	private final ObservationColumns columns;
+	
+	/**
+	 * @param columns The store to present as features
+	 */
+	public ObservationColumnsFeatureCollection(ObservationColumns columns) {
+		super(TYPE);
+		this.columns = columns;
+	}
+	
+	private static SimpleFeatureType createType() {
+		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+		builder.setName("observation-columns");
+		builder.add("phenomenonTimeBegin", Date.class);
+		builder.add("phenomenonTimeEnd", Date.class);
+		builder.add("resultTime", Date.class);
+		builder.add("procedure", String.class);
+		builder.add("observedProperty", String.class);
+		builder.add("featureOfInterest", String.class);
+		builder.add("result", Double.class);
+		return builder.buildFeatureType();
+	}
+	
+	/**
+	 * @return The store behind this collection
+	 */
+	public ObservationColumns getColumns() {
+		return columns;
+	}
+	
+	@Override
+	public SimpleFeatureIterator features() {
+		return new ColumnsIterator();
+	}
+	
+	@Override
+	public int size() {
+		return columns.size();
+	}
+	
+	@Override
+	public ReferencedEnvelope getBounds() {
+		// the columns hold no geometry
+		return new ReferencedEnvelope(TYPE.getCoordinateReferenceSystem());
+	}
+	
+	private static Date toDate(long time) {
+		return time == ObservationColumns.NO_TIME ? null : new Date(time);
+	}
+	
+	private class ColumnsIterator implements SimpleFeatureIterator {
+		private final SimpleFeatureBuilder builder = new SimpleFeatureBuilder(TYPE);
+		private int row = 0;
+		
+		public boolean hasNext() {
+			return row < columns.size();
+		}
+		
+		public SimpleFeature next() throws NoSuchElementException {
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			builder.add(toDate(columns.getPhenomenonTimeBegin()[row]));
+			builder.add(toDate(columns.getPhenomenonTimeEnd()[row]));
+			builder.add(toDate(columns.getResultTime()[row]));
+			builder.add(columns.getProcedures().decode(columns.getProcedure()[row]));
+			builder.add(columns.getObservedProperties().decode(columns.getObservedProperty()[row]));
+			builder.add(columns.getFeaturesOfInterest().decode(columns.getFeatureOfInterest()[row]));
+			double result = columns.getResult()[row];
+			builder.add(Double.isNaN(result) ? null : Double.valueOf(result));
+			return builder.buildFeature("observation." + row++);
+		}
+		
+		public void close() {
+			row = columns.size();
+		}
+	}
+}
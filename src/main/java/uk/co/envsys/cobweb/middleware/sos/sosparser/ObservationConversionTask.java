@@ -0,0 +1,130 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.xmlbeans.XmlException;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * Fork/join task converting a range of observations to features. Ranges
+ * are split in half until they are small enough to convert directly, with
+ * each leaf using its own ParseContext, and therefore its own feature builder,
+ * though all of them share the tables of interned strings and geometries.
+ * Features are written to the output array at the index of their observation
+ * so that the input order is kept. Observations skipped outside strict mode
+ * leave a null at their index.
+ * 
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ * @param <T> The XmlBeans type of the observations
+ */
+class ObservationConversionTask<T> extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+	
+	private final List<T> observations;
+	private final ObservationConverter<T> converter;
+	private final SimpleFeatureType type;
+	private final SimpleFeature[] features;
+	private final int from;
+	private final int to;
+	private final int chunkSize;
+	private final FeatureTypeCache typeCache;
+	private final InternTable interns;
+	private final GeometryTable geometries;
+	private final ParseErrorReport report;
+	
+	private ObservationConversionTask(List<T> observations, ObservationConverter<T> converter, 
+			SimpleFeatureType type, SimpleFeature[] features, int from, int to, int chunkSize, 
+			FeatureTypeCache typeCache, InternTable interns, GeometryTable geometries, ParseErrorReport report) {
+		this.observations = observations;
+		this.converter = converter;
+		this.type = type;
+		this.features = features;
+		this.from = from;
+		this.to = to;
+		this.chunkSize = chunkSize;
+		this.typeCache = typeCache;
+		this.interns = interns;
+		this.geometries = geometries;
+		this.report = report;
+	}
+	
+	/**
+	 * Converts all of the observations on the given pool
+	 * 
+	 * @param pool The ForkJoinPool to run the conversion on
+	 * @param observations The observations to convert
+	 * @param first The index of the observation the FeatureType was made from, 
+	 * earlier observations having been skipped
+	 * @param converter How to convert observations of this type
+	 * @param type The FeatureType made from the first observation
+	 * @param typeCache Cache to borrow feature builders from, may be null
+	 * @param interns Table of shared hrefs and titles for all workers
+	 * @param geometries Table of the geometries of features of interest for all workers
+	 * @param report Where to record observations which could not be converted, 
+	 * or null to fail instead
+	 * @return The features, in the same order as the observations
+	 * @throws XmlException if any observation could not be converted in strict mode
+	 */
+	static <T> SimpleFeature[] convert(ForkJoinPool pool, List<T> observations, int first,
+			ObservationConverter<T> converter, SimpleFeatureType type, FeatureTypeCache typeCache, 
+			InternTable interns, GeometryTable geometries, ParseErrorReport report) throws XmlException {
+		SimpleFeature[] features = new SimpleFeature[observations.size()];
+		// a few chunks per worker evens out observations of different sizes
+		int chunkSize = Math.max(16, observations.size() / (pool.getParallelism() * 4));
+		try {
+			pool.invoke(new ObservationConversionTask<T>(observations, converter, type, features, 
+					first, observations.size(), chunkSize, typeCache, interns, geometries, report));
+		} catch(RuntimeException e) {
+			// fork/join may rethrow a copy of the exception, so look down the causes
+			for(Throwable cause = e; cause != null; cause = cause.getCause()) {
+				if(cause instanceof XmlException) {
+					throw (XmlException) cause;
+				}
+			}
+			throw e;
+		}
+		return features;
+	}
+	
+	@Override
+	protected void compute() {
+		if(to - from <= chunkSize) {
+			ParseContext context = new ParseContext(type, typeCache, interns, geometries);
+			try {
+				for(int i = from; i < to; i++) {
+					T observation = observations.get(i);
+					try {
+						features[i] = converter.convertToFeature(observation, context);
+					} catch(Exception e) {
+						SimpleSOSParser.skip(report, i, converter, observation, e);
+						context.getFeatureBuilder().reset();
+					}
+				}
+			} catch(XmlException e) {
+				throw new ConversionException(e);
+			} finally {
+				context.release();
+			}
+		} else {
+			int middle = (from + to) >>> 1;
+			invokeAll(new ObservationConversionTask<T>(observations, converter, type, features, from, middle, chunkSize, typeCache, interns, geometries, report),
+					new ObservationConversionTask<T>(observations, converter, type, features, middle, to, chunkSize, typeCache, interns, geometries, report));
+		}
+	}
+	
+	/**
+	 * Carries an XmlException out of a worker thread
+	 */
+	private static class ConversionException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		
+		ConversionException(XmlException cause) {
+			super(cause.getMessage(), cause);
+		}
+	}
+}
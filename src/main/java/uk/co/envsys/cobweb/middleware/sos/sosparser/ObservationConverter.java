@@ -0,0 +1,87 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import org.apache.xmlbeans.XmlException;
+import org.apache.xmlbeans.XmlObject;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * Turns raw observations into features, or rows of an {@link ObservationColumns}
+ * store. Each parser provides one
+ * for the O&amp;M version it handles. Implementations keep no state of
+ * their own between calls and must be safe to use from several threads.
+ * 
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ * @param <T> The XmlBeans type of the observations
+ */
+public interface ObservationConverter<T> {
+	
+	/**
+	 * Describes which optional elements an observation has, as bits of a mask,
+	 * so that observations of different shapes can share one FeatureType
+	 * 
+	 * @param observation The observation to describe
+	 * @return Bits for the optional elements set, 0 for none
+	 */
+	int shapeOf(T observation);
+	
+	/**
+	 * Creates the FeatureType (schema) for the features, with an attribute for
+	 * each required element and each optional element of the shape. Features 
+	 * of observations without one of those optional elements hold null for it.
+	 * 
+	 * @param observation The observation to check the required elements of
+	 * @param shape Bits from {@link #shapeOf(Object)} of the optional elements 
+	 * to include, or -1 for all of them
+	 * @return {@code SimpleFeatureType} The created FeatureType
+	 * @throws XmlException If any required elements are missing
+	 */
+	SimpleFeatureType createType(T observation, int shape) throws XmlException;
+	
+	/**
+	 * Converts an observation to a feature
+	 * 
+	 * @param observation The observation to convert
+	 * @param context The state of the current parse, including a builder for 
+	 * the FeatureType made by {@link #createType(Object)}
+	 * @return {@code SimpleFeature} a feature representing this observation
+	 * @throws XmlException if any required elements were not found during parsing
+	 */
+	SimpleFeature convertToFeature(T observation, ParseContext context) throws XmlException;
+	
+	/**
+	 * Checks an observation against a filter without building anything.
+	 * Observations with missing or unreadable elements should be kept, so 
+	 * that conversion reports the problem as usual.
+	 * 
+	 * @param observation The observation to check
+	 * @param filter The filter for the current parse
+	 * @return false if the observation is to be skipped
+	 */
+	boolean matches(T observation, ObservationFilter filter);
+	
+	/**
+	 * Adds an observation to a columnar store instead of building a feature for it
+	 * 
+	 * @param observation The observation to add
+	 * @param columns The store for the current parse
+	 * @throws XmlException if any required elements were not found during parsing
+	 */
+	void appendTo(T observation, ObservationColumns columns) throws XmlException;
+	
+	/**
+	 * @param observation The observation
+	 * @return The featureOfInterest property of the observation, or null if it has none
+	 */
+	XmlObject getFeatureOfInterest(T observation);
+	
+	/**
+	 * Identifies an observation in reports of observations that could not be converted
+	 * 
+	 * @param observation The observation
+	 * @return The gml:id of the observation, or null if it has none
+	 */
+	String getId(T observation);
+}
@@ -0,0 +1,320 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.xmlbeans.XmlException;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.collection.BaseSimpleFeatureCollection;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.geometry.BoundingBox;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A FeatureCollection which converts observations into features only as
+ * they are read from its iterator, rather than holding a list of features.
+ *
+ * When backed by a streamed response the collection can be iterated only
+ * once, and the features can be consumed while the response is still
+ * arriving. The size and bounds are recorded at the end of the first
+ * complete iteration. Until then a collection whose source can be read
+ * again works them out by iterating on first request, while one whose
+ * source cannot reports a size of -1 and empty bounds rather than use up
+ * its only read. Callers which need the size before iterating should not
+ * parse lazily from a stream.
+ *
+ * Outside strict mode the iterator converts one observation ahead, so that
+ * observations which cannot be converted are skipped. Those met by the first
+ * iteration are recorded in the error report of the parse.
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ * @param <T> The XmlBeans type of the observations
+ */
+public class ObservationFeatureCollection<T> extends BaseSimpleFeatureCollection {
+
+	private static Logger LOGGER = LoggerFactory.getLogger(ObservationFeatureCollection.class);
+
+	private final ObservationSource<T> source;
+	private final ObservationConverter<T> converter;
+	private final FeatureTypeCache typeCache;
+	private final InternTable interns;
+	private final boolean lenient;
+	private ParseErrorReport report;
+	private final int firstIndex;
+	private volatile int size = -1;
+	private volatile ReferencedEnvelope bounds;
+
+	/**
+	 * @param type The FeatureType of the converted features
+	 * @param source Where to read the observations from
+	 * @param converter How to turn each observation into a feature of the given type
+	 */
+	public ObservationFeatureCollection(SimpleFeatureType type, ObservationSource<T> source,
+			ObservationConverter<T> converter) {
+		this(type, source, converter, null, null);
+	}
+
+	/**
+	 * @param type The FeatureType of the converted features
+	 * @param source Where to read the observations from
+	 * @param converter How to turn each observation into a feature of the given type
+	 * @param typeCache Cache to borrow feature builders from, may be null
+	 * @param interns Table of shared hrefs and titles, or null for one per iteration
+	 */
+	public ObservationFeatureCollection(SimpleFeatureType type, ObservationSource<T> source,
+			ObservationConverter<T> converter, FeatureTypeCache typeCache, InternTable interns) {
+		this(type, source, converter, typeCache, interns, null, 0);
+	}
+
+	/**
+	 * @param type The FeatureType of the converted features
+	 * @param source Where to read the observations from
+	 * @param converter How to turn each observation into a feature of the given type
+	 * @param typeCache Cache to borrow feature builders from, may be null
+	 * @param interns Table of shared hrefs and titles, or null for one per iteration
+	 * @param report Where the first iteration records observations it skips, or null
+	 * to fail on the first observation which cannot be converted
+	 * @param firstIndex The position in the response of the first observation of the source
+	 */
+	public ObservationFeatureCollection(SimpleFeatureType type, ObservationSource<T> source,
+			ObservationConverter<T> converter, FeatureTypeCache typeCache, InternTable interns,
+			ParseErrorReport report, int firstIndex) {
+		super(type);
+		this.source = source;
+		this.converter = converter;
+		this.typeCache = typeCache;
+		this.interns = interns;
+		this.lenient = report != null;
+		this.report = report;
+		this.firstIndex = firstIndex;
+	}
+
+	@Override
+	public SimpleFeatureIterator features() {
+		ParseErrorReport iterationReport;
+		synchronized(this) {
+			// later iterations would only record the same observations again
+			iterationReport = report;
+			report = null;
+		}
+		return new ObservationFeatureIterator(source.open(), iterationReport);
+	}
+
+	/**
+	 * @return The number of features, or -1 if the source can only be read
+	 * once and has not yet been read to the end, as allowed by
+	 * {@link org.geotools.feature.FeatureCollection#size()} for collections
+	 * which cannot be counted cheaply
+	 */
+	@Override
+	public int size() {
+		if(size < 0) {
+			measure();
+		}
+		return size;
+	}
+
+	/**
+	 * @return The bounds of the features, empty if the source can only be
+	 * read once and has not yet been read to the end
+	 */
+	@Override
+	public ReferencedEnvelope getBounds() {
+		if(bounds == null) {
+			measure();
+		}
+		ReferencedEnvelope measured = bounds;
+		return measured == null ? new ReferencedEnvelope(getSchema().getCoordinateReferenceSystem())
+				: new ReferencedEnvelope(measured);
+	}
+
+	/**
+	 * Reads through every feature once to find the size and bounds, unless
+	 * that would use up the only read of the source
+	 */
+	private synchronized void measure() {
+		if(bounds != null || !source.isRepeatable()) {
+			return;
+		}
+		SimpleFeatureIterator features = features();
+		try {
+			while(features.hasNext()) {
+				features.next();
+			}
+		} finally {
+			features.close();
+		}
+	}
+
+	/**
+	 * Iterator converting one observation per call to next(), and recording
+	 * the size and bounds of the collection when it reaches the end
+	 */
+	private class ObservationFeatureIterator implements SimpleFeatureIterator {
+		private final Iterator<T> observations;
+		private final ParseContext context;
+		private final ReferencedEnvelope seen;
+		private final ParseErrorReport iterationReport;
+		private SimpleFeature ahead = null;
+		private int index = firstIndex;
+		private int count = 0;
+		private boolean closed = false;
+
+		ObservationFeatureIterator(Iterator<T> observations, ParseErrorReport iterationReport) {
+			this.observations = observations;
+			this.iterationReport = iterationReport;
+			this.context = new ParseContext(getSchema(), typeCache, interns);
+			this.seen = new ReferencedEnvelope(getSchema().getCoordinateReferenceSystem());
+		}
+
+		public boolean hasNext() {
+			if(closed) {
+				return false;
+			}
+			if(ahead != null || (lenient ? convertAhead() : observations.hasNext())) {
+				return true;
+			}
+			if(bounds == null) {
+				size = count;
+				bounds = seen;
+			}
+			close();
+			return false;
+		}
+
+		public SimpleFeature next() throws NoSuchElementException {
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			SimpleFeature feature = ahead;
+			ahead = null;
+			if(feature == null) {
+				try {
+					feature = converter.convertToFeature(observations.next(), context);
+				} catch(XmlException e) {
+					IllegalArgumentException ex = new IllegalArgumentException("Problem parseing xml", e);
+					LOGGER.error(ex.getMessage());
+					close();
+					throw ex;
+				}
+			}
+			count++;
+			BoundingBox featureBounds = feature.getBounds();
+			if(featureBounds != null && !featureBounds.isEmpty()) {
+				seen.expandToInclude(featureBounds.getMinX(), featureBounds.getMinY());
+				seen.expandToInclude(featureBounds.getMaxX(), featureBounds.getMaxY());
+			}
+			return feature;
+		}
+
+		/**
+		 * Converts observations until one succeeds, skipping the others
+		 *
+		 * @return false if there are no more observations
+		 */
+		private boolean convertAhead() {
+			while(observations.hasNext()) {
+				T observation = observations.next();
+				try {
+					ahead = converter.convertToFeature(observation, context);
+					index++;
+					return true;
+				} catch(Exception e) {
+					context.getFeatureBuilder().reset();
+					if(iterationReport != null) {
+						SimpleSOSParser.record(iterationReport, index, converter, observation, e);
+					}
+					index++;
+				}
+			}
+			return false;
+		}
+
+		public void close() {
+			if(closed) {
+				return;
+			}
+			closed = true;
+			context.release();
+			if(observations instanceof Closeable) {
+				try {
+					((Closeable) observations).close();
+				} catch(IOException e) {
+					LOGGER.warn("Problem closing observations: {}", e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Source which hands back an observation that has already been read from
+	 * an opened iterator, before carrying on with the rest of that iterator.
+	 * Used so that the first observation can be read to build the FeatureType.
+	 * Later calls to open() go back to the underlying source.
+	 */
+	static class PeekedSource<T> implements ObservationSource<T> {
+		private final ObservationSource<T> source;
+		private T first;
+		private Iterator<T> rest;
+
+		PeekedSource(ObservationSource<T> source, T first, Iterator<T> rest) {
+			this.source = source;
+			this.first = first;
+			this.rest = rest;
+		}
+
+		public boolean isRepeatable() {
+			return source.isRepeatable();
+		}
+
+		public synchronized Iterator<T> open() {
+			if(rest == null) {
+				return source.open();
+			}
+			Iterator<T> peeked = new PeekedIterator<T>(first, rest);
+			first = null;
+			rest = null;
+			return peeked;
+		}
+	}
+
+	private static class PeekedIterator<T> implements Iterator<T>, Closeable {
+		private T first;
+		private final Iterator<T> rest;
+
+		PeekedIterator(T first, Iterator<T> rest) {
+			this.first = first;
+			this.rest = rest;
+		}
+
+		public boolean hasNext() {
+			return first != null || rest.hasNext();
+		}
+
+		public T next() {
+			if(first != null) {
+				T observation = first;
+				first = null;
+				return observation;
+			}
+			return rest.next();
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		public void close() throws IOException {
+			if(rest instanceof Closeable) {
+				((Closeable) rest).close();
+			}
+		}
+	}
+}
@@ -0,0 +1,540 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.n52.wps.io.data.IData;
+import org.n52.wps.io.data.binding.complex.GTVectorDataBinding;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Fetches the observations of many GetObservation requests at once and
+ * merges them into one collection in order of phenomenonTime.
+ *
+ * At most {@link #setMaxConcurrentRequests(int)} requests are in flight at
+ * a time; each is read off the network and parsed on a thread of its own
+ * by an {@link HttpResponseReader} as soon as its response arrives. The
+ * features of each response are put in order of phenomenonTime as that
+ * parse finishes, which for a SOS returning them in order costs a single
+ * pass, and the ordered runs are then merged through a heap keyed on the
+ * next time of each run, rather than sorting everything again. Features
+ * with the same time keep the order of their requests, then of their
+ * responses, and features with no phenomenonTime come last.
+ *
+ * Responses parsed into different FeatureTypes, e.g. with results of
+ * different types, are merged into one FeatureType holding the attributes
+ * of all of them, and their features retyped to it. An attribute bound to
+ * different classes in different responses is bound to the nearest class
+ * they share. Responses with geometries in different coordinate reference
+ * systems are not merged.
+ *
+ * By default each fetch starts a daemon thread per request. An
+ * {@link Executor} may be set instead, e.g. one starting a virtual thread
+ * per task on a JVM which has them; the limit on requests in flight holds
+ * for any executor.
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public class ObservationFetcher {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ObservationFetcher.class);
+	public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 8;
+	private static final long UNTIMED = Long.MAX_VALUE;
+
+	private static final Executor THREAD_PER_REQUEST = new Executor() {
+		private final ThreadFactory factory = new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "SOS fetch");
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+
+		public void execute(Runnable task) {
+			factory.newThread(task).start();
+		}
+	};
+
+	private final String serviceUrl;
+	private final String version;
+	private final HttpResponseReader reader;
+	private int maxConcurrentRequests = DEFAULT_MAX_CONCURRENT_REQUESTS;
+	private Executor executor = THREAD_PER_REQUEST;
+
+	/**
+	 * Creates a fetcher which chooses a shared parser for each response
+	 * with {@link SimpleSOSParser.Factory#select(java.io.InputStream)}
+	 *
+	 * @param serviceUrl The URL of the SOS KVP binding, e.g. http://host/52n-sos/service
+	 * @param version SOS version to request, "1.0.0" or "2.0.0"
+	 */
+	public ObservationFetcher(String serviceUrl, String version) {
+		this(serviceUrl, version, null);
+	}
+
+	/**
+	 * @param serviceUrl The URL of the SOS KVP binding, e.g. http://host/52n-sos/service
+	 * @param version SOS version to request, "1.0.0" or "2.0.0"
+	 * @param parser Parser for every response, which must not stream lazily,
+	 * or null to choose one for each response
+	 */
+	public ObservationFetcher(String serviceUrl, String version, SimpleSOSParser parser) {
+		if(!SimpleSOSParser.SOS_V1.equals(version) && !SimpleSOSParser.SOS_V2.equals(version)) {
+			IllegalArgumentException e = new IllegalArgumentException("Unsupported SOS version: " + version);
+			LOGGER.error(e.getMessage());
+			throw e;
+		}
+		this.serviceUrl = serviceUrl;
+		this.version = version;
+		this.reader = new HttpResponseReader(parser);
+	}
+
+	/**
+	 * @param maxConcurrentRequests The most requests in flight at once, at least 1
+	 */
+	public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+		if(maxConcurrentRequests < 1) {
+			throw new IllegalArgumentException("Concurrent requests must be positive: " + maxConcurrentRequests);
+		}
+		this.maxConcurrentRequests = maxConcurrentRequests;
+	}
+
+	/**
+	 * Sets what runs the requests. The executor must be able to run
+	 * {@link #setMaxConcurrentRequests(int)} tasks at once, or requests
+	 * simply wait for it.
+	 *
+	 * @param executor The executor to use, or null to start a thread per request
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor == null ? THREAD_PER_REQUEST : executor;
+	}
+
+	/**
+	 * @param connectTimeout Timeout in milliseconds for connecting to the SOS
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		reader.setConnectTimeout(connectTimeout);
+	}
+
+	/**
+	 * @param readTimeout Timeout in milliseconds for reading a response
+	 */
+	public void setReadTimeout(int readTimeout) {
+		reader.setReadTimeout(readTimeout);
+	}
+
+	/**
+	 * Fetches the observations of several offerings, one request each
+	 *
+	 * @param offerings The offering identifiers
+	 * @param filter Which observations to keep, or null to keep all of them
+	 * @param errors Where to record skipped observations, or null to only log them
+	 * @return GTVectorDataBinding of the observations of every offering, in order of phenomenonTime
+	 * @throws IOException if a request failed
+	 * @throws IllegalArgumentException if a response could not be parsed
+	 */
+	public IData fetch(Collection<String> offerings, ObservationFilter filter, ParseErrorReport errors)
+			throws IOException {
+		List<URL> requests = new ArrayList<URL>();
+		for(String offering : offerings) {
+			requests.add(new URL(ObservationPoller.buildRequest(serviceUrl, version, offering, null, null)));
+		}
+		return fetchAll(requests, filter, errors);
+	}
+
+	/**
+	 * Fetches the observations of several GetObservation requests
+	 *
+	 * @param requests The request URLs
+	 * @param filter Which observations to keep, or null to keep all of them
+	 * @param errors Where to record skipped observations, or null to only log them. Positions
+	 * are those within each response.
+	 * @return GTVectorDataBinding of the observations of every response, in order of phenomenonTime
+	 * @throws IOException if a request failed
+	 * @throws IllegalArgumentException if a response could not be parsed
+	 */
+	public IData fetchAll(List<URL> requests, ObservationFilter filter, ParseErrorReport errors)
+			throws IOException {
+		Semaphore permits = new Semaphore(maxConcurrentRequests);
+		CountDownLatch done = new CountDownLatch(requests.size());
+		List<Request> fetches = new ArrayList<Request>();
+		try {
+			for(URL url : requests) {
+				permits.acquire();
+				if(failed(fetches)) {
+					// no point starting more once one has failed
+					permits.release();
+					break;
+				}
+				Request request = new Request(fetches.size(), url, filter, errors, permits, done);
+				fetches.add(request);
+				try {
+					executor.execute(request);
+				} catch(RejectedExecutionException e) {
+					// the request will never run to release its permit or count down
+					request.ioFailure = new IOException("Request for " + url + " could not be started", e);
+					LOGGER.error(request.ioFailure.getMessage());
+					permits.release();
+					done.countDown();
+				}
+			}
+			// those never started are not waited for
+			for(int i = fetches.size(); i < requests.size(); i++) {
+				done.countDown();
+			}
+			done.await();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while fetching observations", e);
+		}
+
+		List<Run> runs = new ArrayList<Run>();
+		for(Request request : fetches) {
+			if(request.ioFailure != null) {
+				throw request.ioFailure;
+			}
+			if(request.parseFailure != null) {
+				throw request.parseFailure;
+			}
+			runs.add(request.run);
+		}
+		return new GTVectorDataBinding(merge(runs));
+	}
+
+	private static boolean failed(List<Request> fetches) {
+		for(Request request : fetches) {
+			if(request.ioFailure != null || request.parseFailure != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Merges runs of features, each in order of time, through a heap of their next features
+	 *
+	 * @throws IllegalArgumentException if the runs have geometries in different
+	 * coordinate reference systems
+	 */
+	static ListFeatureCollection merge(List<Run> runs) {
+		int total = 0;
+		List<SimpleFeatureType> types = new ArrayList<SimpleFeatureType>();
+		PriorityQueue<Run> heap = new PriorityQueue<Run>(Math.max(1, runs.size()), Run.BY_NEXT);
+		for(Run run : runs) {
+			total += run.size();
+			if(run.size() > 0) {
+				for(SimpleFeatureType type : run.types) {
+					if(!types.contains(type)) {
+						types.add(type);
+					}
+				}
+				heap.add(run);
+			}
+		}
+		if(types.isEmpty()) {
+			return new ListFeatureCollection(runs.isEmpty() ? null : runs.get(0).type, new ArrayList<SimpleFeature>());
+		}
+		SimpleFeatureType type = commonType(types);
+		// features of the common type are kept as they are, the others retyped
+		Map<SimpleFeatureType, Boolean> retype = new IdentityHashMap<SimpleFeatureType, Boolean>();
+		List<SimpleFeature> merged = new ArrayList<SimpleFeature>(total);
+		while(!heap.isEmpty()) {
+			Run run = heap.poll();
+			SimpleFeature feature = run.features.get(run.next++);
+			Boolean differs = retype.get(feature.getFeatureType());
+			if(differs == null) {
+				differs = Boolean.valueOf(!type.equals(feature.getFeatureType()));
+				retype.put(feature.getFeatureType(), differs);
+			}
+			merged.add(differs.booleanValue() ? SimpleFeatureBuilder.retype(feature, type) : feature);
+			if(run.next < run.size()) {
+				heap.add(run);
+			}
+		}
+		return new ListFeatureCollection(type, merged);
+	}
+
+	/**
+	 * Builds a FeatureType holding the attributes of several, in the order they are first met
+	 *
+	 * @param types The distinct FeatureTypes, at least one
+	 * @return The only type given, or one whose attributes are bound to the nearest
+	 * class shared by each attribute of the same name
+	 * @throws IllegalArgumentException if a geometry attribute is in different coordinate
+	 * reference systems
+	 */
+	static SimpleFeatureType commonType(List<SimpleFeatureType> types) {
+		SimpleFeatureType first = types.get(0);
+		if(types.size() == 1) {
+			return first;
+		}
+		Map<String, Class<?>> bindings = new LinkedHashMap<String, Class<?>>();
+		Map<String, CoordinateReferenceSystem> crss = new HashMap<String, CoordinateReferenceSystem>();
+		String defaultGeometry = null;
+		for(SimpleFeatureType type : types) {
+			if(defaultGeometry == null && type.getGeometryDescriptor() != null) {
+				defaultGeometry = type.getGeometryDescriptor().getLocalName();
+			}
+			for(AttributeDescriptor descriptor : type.getAttributeDescriptors()) {
+				String name = descriptor.getLocalName();
+				Class<?> binding = descriptor.getType().getBinding();
+				Class<?> existing = bindings.get(name);
+				bindings.put(name, existing == null ? binding : commonClass(existing, binding));
+				if(descriptor instanceof GeometryDescriptor && Geometry.class.isAssignableFrom(binding)) {
+					CoordinateReferenceSystem crs = ((GeometryDescriptor) descriptor).getCoordinateReferenceSystem();
+					if(crss.containsKey(name) && !(crs == null ? crss.get(name) == null : crs.equals(crss.get(name)))) {
+						IllegalArgumentException e = new IllegalArgumentException(
+								"Cannot merge responses with " + name + " in different coordinate reference systems");
+						LOGGER.error(e.getMessage());
+						throw e;
+					}
+					crss.put(name, crs);
+				}
+			}
+		}
+		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+		builder.setName(first.getTypeName());
+		for(Map.Entry<String, Class<?>> attribute : bindings.entrySet()) {
+			if(Geometry.class.isAssignableFrom(attribute.getValue())) {
+				builder.add(attribute.getKey(), attribute.getValue(), crss.get(attribute.getKey()));
+			} else {
+				builder.add(attribute.getKey(), attribute.getValue());
+			}
+		}
+		// a geometry bound to a non-geometry class elsewhere is no longer a geometry
+		if(defaultGeometry != null && Geometry.class.isAssignableFrom(bindings.get(defaultGeometry))) {
+			builder.setDefaultGeometry(defaultGeometry);
+		}
+		return builder.buildFeatureType();
+	}
+
+	/**
+	 * @return The nearest class or interface of which either is a subtype, searching up
+	 * the superclasses only, so Object for unrelated interfaces
+	 */
+	private static Class<?> commonClass(Class<?> a, Class<?> b) {
+		if(b.isAssignableFrom(a)) {
+			return b;
+		}
+		Class<?> common = a;
+		while(common != null && !common.isAssignableFrom(b)) {
+			common = common.getSuperclass();
+		}
+		return common == null ? Object.class : common;
+	}
+
+	/**
+	 * @return The start of the first phenomenonTime among the attributes of a feature,
+	 * in epoch milliseconds, or {@link #UNTIMED}
+	 */
+	static long timeOf(SimpleFeature feature, int attribute) {
+		if(attribute < 0) {
+			return UNTIMED;
+		}
+		Object value = feature.getAttribute(attribute);
+		if(value instanceof ObservationTime) {
+			return ((ObservationTime) value).getBeginMillis();
+		}
+		if(value instanceof Date) {
+			return ((Date) value).getTime();
+		}
+		long[] span = new long[2];
+		if(value instanceof net.opengis.om.x20.TimeObjectPropertyType
+				&& SimpleSOSParser_200.readTimeSpan(
+						((net.opengis.om.x20.TimeObjectPropertyType) value).getAbstractTimeObject(), span)) {
+			return span[0];
+		}
+		if(value instanceof net.opengis.swe.x101.TimeObjectPropertyType
+				&& SimpleSOSParser_100.readTimeSpan(
+						((net.opengis.swe.x101.TimeObjectPropertyType) value).getTimeObject(), span)) {
+			return span[0];
+		}
+		return UNTIMED;
+	}
+
+	/**
+	 * @return The index of the first time attribute of a FeatureType, which every
+	 * parser puts before the resultTime, or -1 if it has none
+	 */
+	static int timeAttribute(SimpleFeatureType type) {
+		if(type == null) {
+			return -1;
+		}
+		for(int i = 0; i < type.getAttributeCount(); i++) {
+			Class<?> binding = type.getDescriptor(i).getType().getBinding();
+			if(binding == ObservationTime.class || binding == Date.class
+					|| binding == net.opengis.om.x20.TimeObjectPropertyType.class
+					|| binding == net.opengis.swe.x101.TimeObjectPropertyType.class) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * The features of one response in order of time, with the position of the next to merge
+	 */
+	static class Run {
+		static final Comparator<Run> BY_NEXT = new Comparator<Run>() {
+			public int compare(Run a, Run b) {
+				long timeA = a.times[a.next];
+				long timeB = b.times[b.next];
+				if(timeA != timeB) {
+					return timeA < timeB ? -1 : 1;
+				}
+				return a.index < b.index ? -1 : (a.index == b.index ? 0 : 1);
+			}
+		};
+
+		private final int index;
+		private final SimpleFeatureType type;
+		// the FeatureTypes of the features, normally just the one
+		private final Collection<SimpleFeatureType> types;
+		private final List<SimpleFeature> features;
+		private final long[] times;
+		private int next = 0;
+
+		/**
+		 * Reads the features of a parsed response and their times, putting them in order
+		 *
+		 * @param index The position of the response among those merged
+		 * @param collection The parsed features
+		 */
+		Run(int index, FeatureCollection<?, ?> collection) {
+			this.index = index;
+			this.type = collection.getSchema() instanceof SimpleFeatureType
+					? (SimpleFeatureType) collection.getSchema() : null;
+			List<SimpleFeature> read = new ArrayList<SimpleFeature>();
+			List<Long> readTimes = new ArrayList<Long>();
+			// features of a response normally share one type, so its time attribute is found once
+			Map<SimpleFeatureType, Integer> timeAttributes = new IdentityHashMap<SimpleFeatureType, Integer>();
+			boolean ordered = true;
+			long last = Long.MIN_VALUE;
+			FeatureIterator<?> iterator = collection.features();
+			try {
+				while(iterator.hasNext()) {
+					SimpleFeature feature = (SimpleFeature) iterator.next();
+					Integer attribute = timeAttributes.get(feature.getFeatureType());
+					if(attribute == null) {
+						attribute = Integer.valueOf(timeAttribute(feature.getFeatureType()));
+						timeAttributes.put(feature.getFeatureType(), attribute);
+					}
+					long time = timeOf(feature, attribute.intValue());
+					ordered &= time >= last;
+					last = time;
+					read.add(feature);
+					readTimes.add(Long.valueOf(time));
+				}
+			} finally {
+				iterator.close();
+			}
+			this.types = timeAttributes.keySet();
+			this.features = new ArrayList<SimpleFeature>(read.size());
+			this.times = new long[read.size()];
+			if(ordered) {
+				features.addAll(read);
+				for(int i = 0; i < times.length; i++) {
+					times[i] = readTimes.get(i).longValue();
+				}
+			} else {
+				sort(read, readTimes);
+			}
+		}
+
+		/**
+		 * Sorts the features of a response the SOS did not return in order, keeping
+		 * the order of features with the same time
+		 */
+		private void sort(final List<SimpleFeature> read, final List<Long> readTimes) {
+			Integer[] order = new Integer[read.size()];
+			for(int i = 0; i < order.length; i++) {
+				order[i] = Integer.valueOf(i);
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return readTimes.get(a.intValue()).compareTo(readTimes.get(b.intValue()));
+				}
+			});
+			for(int i = 0; i < order.length; i++) {
+				features.add(read.get(order[i].intValue()));
+				times[i] = readTimes.get(order[i].intValue()).longValue();
+			}
+		}
+
+		int size() {
+			return times.length;
+		}
+	}
+
+	/**
+	 * Fetches and parses one response, then puts its features in order
+	 */
+	private class Request implements Runnable {
+		private final int index;
+		private final URL url;
+		private final ObservationFilter filter;
+		private final ParseErrorReport errors;
+		private final Semaphore permits;
+		private final CountDownLatch done;
+		private volatile Run run = null;
+		private volatile IOException ioFailure = null;
+		private volatile RuntimeException parseFailure = null;
+
+		Request(int index, URL url, ObservationFilter filter, ParseErrorReport errors, Semaphore permits,
+				CountDownLatch done) {
+			this.index = index;
+			this.url = url;
+			this.filter = filter;
+			this.errors = errors;
+			this.permits = permits;
+			this.done = done;
+		}
+
+		public void run() {
+			try {
+				IData data = reader.fetch(url, filter, errors);
+				run = new Run(index, ((GTVectorDataBinding) data).getPayload());
+			} catch(IOException e) {
+				ioFailure = e;
+				LOGGER.error("Request for " + url + " failed: " + e.getMessage());
+			} catch(RuntimeException e) {
+				parseFailure = e;
+				LOGGER.error("Response to " + url + " could not be parsed: " + e.getMessage());
+			} finally {
+				permits.release();
+				done.countDown();
+			}
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Selects which observations of a response are converted to features.
+ * It is checked against each raw observation before any feature is built,
+ * so observations that do not match cost little more than reading their
+ * observedProperty, procedure and phenomenonTime.
+ *
+ * An observation matches when its phenomenonTime overlaps the time window,
+ * if one is set, and its observedProperty and procedure hrefs are among
+ * those added, if any were. Observations whose values cannot be read
+ * without following a reference, e.g. an inline phenomenon or a time given
+ * by xlink:href, are kept, so that a later full filter can decide on them.
+ *
+ * Subclasses may also check each observation by its gml:id, procedure and
+ * times, e.g. to drop observations already seen, by overriding
+ * {@link #checksObservations()} and
+ * {@link #acceptsObservation(String, String, long, long)}.
+ *
+ * A filter should not be changed while a parse is using it.
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public class ObservationFilter {
+	private boolean timeWindow = false;
+	private long begin = Long.MIN_VALUE;
+	private long end = Long.MAX_VALUE;
+	private Set<String> observedProperties = null;
+	private Set<String> procedures = null;
+
+	/**
+	 * Keeps only observations whose phenomenonTime overlaps the window.
+	 * An instant matches if begin &lt;= instant &lt; end, a period if it
+	 * starts before end and ends at or after begin.
+	 *
+	 * @param begin Start of the window, inclusive, or null for no start
+	 * @param end End of the window, exclusive, or null for no end
+	 */
+	public void setTimeWindow(Date begin, Date end) {
+		this.timeWindow = begin != null || end != null;
+		this.begin = begin == null ? Long.MIN_VALUE : begin.getTime();
+		this.end = end == null ? Long.MAX_VALUE : end.getTime();
+	}
+
+	/**
+	 * Adds an observedProperty to keep. Once any are added, observations
+	 * of other properties are skipped.
+	 *
+	 * @param href The xlink:href of the observedProperty
+	 */
+	public void addObservedProperty(String href) {
+		if(observedProperties == null) {
+			observedProperties = new HashSet<String>();
+		}
+		observedProperties.add(href);
+	}
+
+	/**
+	 * Adds a procedure to keep. Once any are added, observations made by
+	 * other procedures are skipped.
+	 *
+	 * @param href The xlink:href of the procedure
+	 */
+	public void addProcedure(String href) {
+		if(procedures == null) {
+			procedures = new HashSet<String>();
+		}
+		procedures.add(href);
+	}
+
+	/**
+	 * @return Whether a time window is set, so phenomenonTime must be read
+	 */
+	public boolean hasTimeWindow() {
+		return timeWindow;
+	}
+
+	/**
+	 * @param href The observedProperty href of an observation, or null if it has none
+	 * @return false if the observation can be skipped on its observedProperty
+	 */
+	public boolean acceptsObservedProperty(String href) {
+		return observedProperties == null || href == null || observedProperties.contains(href);
+	}
+
+	/**
+	 * @param href The procedure href of an observation, or null if it has none
+	 * @return false if the observation can be skipped on its procedure
+	 */
+	public boolean acceptsProcedure(String href) {
+		return procedures == null || href == null || procedures.contains(href);
+	}
+
+	/**
+	 * @param instant A time instant in milliseconds since the epoch
+	 * @return false if an observation at this instant is outside the time window
+	 */
+	public boolean acceptsInstant(long instant) {
+		return instant >= begin && instant < end;
+	}
+
+	/**
+	 * @param periodBegin The start of a time period in milliseconds since the epoch
+	 * @param periodEnd The end of the time period in milliseconds since the epoch
+	 * @return false if an observation over this period is outside the time window
+	 */
+	public boolean acceptsPeriod(long periodBegin, long periodEnd) {
+		return periodBegin < end && periodEnd >= begin;
+	}
+
+	/**
+	 * @return Whether {@link #acceptsObservation(String, String, long, long)}
+	 * is to be called for every observation, so its times must be read
+	 */
+	public boolean checksObservations() {
+		return false;
+	}
+
+	/**
+	 * Checks an observation which has passed every other test of the filter.
+	 * Accepts everything; subclasses override this, and
+	 * {@link #checksObservations()}, to check observations one by one.
+	 *
+	 * @param id The gml:id of the observation, or null if it has none
+	 * @param procedure The procedure href of the observation, or null if it has none
+	 * @param phenomenonEnd The end of the phenomenonTime in milliseconds since the epoch,
+	 * or {@link ObservationColumns#NO_TIME} if it could not be read
+	 * @param resultTime The resultTime in milliseconds since the epoch,
+	 * or {@link ObservationColumns#NO_TIME} if it could not be read
+	 * @return false if the observation is to be skipped
+	 */
+	public boolean acceptsObservation(String id, String procedure, long phenomenonEnd, long resultTime) {
+		return true;
+	}
+}
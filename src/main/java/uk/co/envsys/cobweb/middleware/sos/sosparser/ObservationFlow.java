@@ -0,0 +1,62 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+/**
+ * The interfaces of a back-pressured stream of observations, declared as
+ * those of {@code java.util.concurrent.Flow} and the Reactive Streams
+ * specification are, so that on a newer JVM each may be adapted to the
+ * other with a one-line wrapper. A subscriber receives nothing until it
+ * requests it, and signals to one subscriber are never concurrent.
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public final class ObservationFlow {
+
+	private ObservationFlow() {
+	}
+
+	/**
+	 * A source of items for subscribers to request
+	 */
+	public interface Publisher<T> {
+		/**
+		 * Adds a subscriber, which is first handed its subscription by
+		 * {@link Subscriber#onSubscribe(Subscription)}
+		 *
+		 * @param subscriber The subscriber
+		 */
+		void subscribe(Subscriber<? super T> subscriber);
+	}
+
+	/**
+	 * A receiver of the items it requests, then of completion or an error
+	 */
+	public interface Subscriber<T> {
+		void onSubscribe(Subscription subscription);
+
+		void onNext(T item);
+
+		void onError(Throwable throwable);
+
+		void onComplete();
+	}
+
+	/**
+	 * The link between a publisher and one subscriber
+	 */
+	public interface Subscription {
+		/**
+		 * Asks for up to n more items. Requests add up, and Long.MAX_VALUE
+		 * asks for everything.
+		 *
+		 * @param n The number of items, at least 1
+		 */
+		void request(long n);
+
+		/**
+		 * Stops the flow of items. A few already on their way may still arrive.
+		 */
+		void cancel();
+	}
+}
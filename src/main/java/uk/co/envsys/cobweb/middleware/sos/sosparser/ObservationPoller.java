@@ -0,0 +1,448 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+import org.n52.wps.io.data.IData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Polls a SOS for the observations of some offerings, returning only the
+ * observations which are new since the last poll.
+ *
+ * A watermark, the latest time seen, is kept for each procedure of each
+ * offering, along with the gml:ids of the observations at that time. The
+ * watermark is the resultTime for SOS 2.0.0 and the end of the samplingTime
+ * for SOS 1.0.0, whose KVP requests can only filter on the latter. Each
+ * GetObservation request asks only for observations from the lowest
+ * watermark of its offering on, and while the response is parsed any
+ * observation before the watermark of its procedure, or at the watermark
+ * with an id already seen, is skipped before it is converted to a feature.
+ * An offering never polled before is fetched in full, unless a watermark is
+ * set for it first. Observations without a time are returned once for each
+ * gml:id, and skipped if they have no id either.
+ *
+ * Watermarks only move once a response has been parsed without error, so
+ * the parser must convert observations during the parse rather than lazily,
+ * and only for the observations converted; one skipped as invalid by a
+ * parser not in strict mode does not move its watermark. Observations are
+ * told apart by gml:id, so the SOS should give each observation the same id
+ * in every response, as 52&deg;North's does.
+ *
+ * The poller is only locked while a request is built and while watermarks
+ * are moved, not while a response is fetched and parsed, so offerings can
+ * be polled from several threads at once. An offering polled by two threads
+ * at once may have the same new observations returned to both.
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public class ObservationPoller {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ObservationPoller.class);
+	private static final String RESPONSE_FORMAT_100 = "text/xml;subtype=\"om/1.0.0\"";
+
+	private final String serviceUrl;
+	private final String version;
+	private final HttpResponseReader reader;
+	// offering to the procedures to request, null for all of them
+	private final Map<String, Set<String>> offerings = new LinkedHashMap<String, Set<String>>();
+	// offering to procedure to watermark
+	private final Map<String, Map<String, Watermark>> watermarks = new HashMap<String, Map<String, Watermark>>();
+	// offering to the gml:ids of the observations seen without a time
+	private final Map<String, Set<String>> untimed = new HashMap<String, Set<String>>();
+
+	/**
+	 * Creates a poller using the shared parser of the given version
+	 *
+	 * @param serviceUrl The URL of the SOS KVP binding, e.g. http://host/52n-sos/service
+	 * @param version SOS version to request, "1.0.0" or "2.0.0"
+	 */
+	public ObservationPoller(String serviceUrl, String version) {
+		this(serviceUrl, version, SimpleSOSParser.Factory.getParser(version));
+	}
+
+	/**
+	 * @param serviceUrl The URL of the SOS KVP binding, e.g. http://host/52n-sos/service
+	 * @param version SOS version to request, "1.0.0" or "2.0.0"
+	 * @param parser Parser for the responses, which must not be lazy
+	 */
+	public ObservationPoller(String serviceUrl, String version, SimpleSOSParser parser) {
+		if(!SimpleSOSParser.SOS_V1.equals(version) && !SimpleSOSParser.SOS_V2.equals(version)) {
+			IllegalArgumentException e = new IllegalArgumentException("Unsupported SOS version: " + version);
+			LOGGER.error(e.getMessage());
+			throw e;
+		}
+		if(parser.lazy) {
+			IllegalArgumentException e = new IllegalArgumentException("Polling needs a parser which is not lazy");
+			LOGGER.error(e.getMessage());
+			throw e;
+		}
+		this.serviceUrl = serviceUrl;
+		this.version = version;
+		this.reader = new HttpResponseReader(parser);
+	}
+
+	/**
+	 * Adds an offering to poll, for all of its procedures
+	 *
+	 * @param offering The offering identifier
+	 */
+	public synchronized void addOffering(String offering) {
+		offerings.put(offering, null);
+	}
+
+	/**
+	 * Adds a procedure of an offering to poll. Unless the offering is polled
+	 * for all procedures, each procedure added is requested.
+	 *
+	 * @param offering The offering identifier
+	 * @param procedure The procedure identifier
+	 */
+	public synchronized void addOffering(String offering, String procedure) {
+		if(offerings.containsKey(offering) && offerings.get(offering) == null) {
+			return;
+		}
+		Set<String> procedures = offerings.get(offering);
+		if(procedures == null) {
+			procedures = new HashSet<String>();
+			offerings.put(offering, procedures);
+		}
+		procedures.add(procedure);
+	}
+
+	/**
+	 * Sets the watermark of a procedure, e.g. to resume polling where an earlier
+	 * poller stopped. Observations before it are not returned.
+	 *
+	 * @param offering The offering identifier
+	 * @param procedure The procedure identifier
+	 * @param time The latest time already seen
+	 */
+	public synchronized void setWatermark(String offering, String procedure, Date time) {
+		getWatermarks(offering).put(procedure, new Watermark(time.getTime()));
+	}
+
+	/**
+	 * @param offering The offering identifier
+	 * @param procedure The procedure identifier
+	 * @return The latest time seen for the procedure, or null if none has been
+	 */
+	public synchronized Date getWatermark(String offering, String procedure) {
+		Map<String, Watermark> procedures = watermarks.get(offering);
+		Watermark watermark = procedures == null ? null : procedures.get(procedure);
+		return watermark == null ? null : new Date(watermark.time);
+	}
+
+	/**
+	 * @param connectTimeout Timeout in milliseconds for connecting to the SOS
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		reader.setConnectTimeout(connectTimeout);
+	}
+
+	/**
+	 * @param readTimeout Timeout in milliseconds for reading a response
+	 */
+	public void setReadTimeout(int readTimeout) {
+		reader.setReadTimeout(readTimeout);
+	}
+
+	/**
+	 * Polls every offering added, in the order they were added
+	 *
+	 * @return The new observations of each offering, as parsed
+	 * @throws IOException If a request failed
+	 */
+	public List<IData> poll() throws IOException {
+		List<String> polled;
+		synchronized(this) {
+			polled = new ArrayList<String>(offerings.keySet());
+		}
+		List<IData> results = new ArrayList<IData>();
+		for(String offering : polled) {
+			results.add(poll(offering));
+		}
+		return results;
+	}
+
+	/**
+	 * Polls one offering for the observations which are new since it was last polled
+	 *
+	 * @param offering The offering identifier
+	 * @return The new observations, as parsed
+	 * @throws IOException If the request failed
+	 * @throws IllegalArgumentException If the response could not be parsed
+	 */
+	public IData poll(String offering) throws IOException {
+		URL url;
+		WatermarkFilter filter;
+		synchronized(this) {
+			Set<String> procedures = offerings.get(offering);
+			Map<String, Watermark> offeringWatermarks = getWatermarks(offering);
+			long since = Long.MAX_VALUE;
+			for(Map.Entry<String, Watermark> entry : offeringWatermarks.entrySet()) {
+				if(procedures == null || procedures.contains(entry.getKey())) {
+					since = Math.min(since, entry.getValue().time);
+				}
+			}
+			if(procedures != null && !offeringWatermarks.keySet().containsAll(procedures)) {
+				// a procedure has never been seen, so fetch all of its observations
+				since = Long.MAX_VALUE;
+			}
+
+			url = new URL(buildRequest(offering, procedures, since == Long.MAX_VALUE ? null : since));
+			// the parse checks against copies, as the watermarks may move meanwhile
+			Map<String, Watermark> current = new HashMap<String, Watermark>();
+			for(Map.Entry<String, Watermark> entry : offeringWatermarks.entrySet()) {
+				current.put(entry.getKey(), entry.getValue().copy());
+			}
+			filter = new WatermarkFilter(current, new HashSet<String>(getUntimed(offering)));
+			if(procedures != null) {
+				for(String procedure : procedures) {
+					filter.addProcedure(procedure);
+				}
+			}
+		}
+
+		IData data = reader.fetch(url, filter, filter.skipped);
+		int accepted;
+		synchronized(this) {
+			accepted = filter.commit(getWatermarks(offering), getUntimed(offering));
+		}
+		LOGGER.debug("Polled {}, {} new observations", offering, accepted);
+		return data;
+	}
+
+	/**
+	 * Builds the KVP GetObservation request for an offering
+	 *
+	 * @param offering The offering identifier
+	 * @param procedures The procedures to request, or null for all
+	 * @param since The lowest watermark of the procedures, or null for no temporal filter
+	 * @return The request URL
+	 */
+	protected String buildRequest(String offering, Set<String> procedures, Long since)
+			throws UnsupportedEncodingException {
+		return buildRequest(serviceUrl, version, offering, procedures, since);
+	}
+
+	/**
+	 * Builds a KVP GetObservation request for an offering of a SOS
+	 *
+	 * @param serviceUrl The URL of the SOS KVP binding
+	 * @param version SOS version to request, "1.0.0" or "2.0.0"
+	 * @param offering The offering identifier
+	 * @param procedures The procedures to request, or null for all
+	 * @param since The earliest time to request, or null for no temporal filter
+	 * @return The request URL
+	 */
+	static String buildRequest(String serviceUrl, String version, String offering, Set<String> procedures,
+			Long since) throws UnsupportedEncodingException {
+		StringBuilder request = new StringBuilder(serviceUrl);
+		request.append(serviceUrl.indexOf('?') < 0 ? '?' : '&');
+		request.append("service=SOS&version=").append(version).append("&request=GetObservation");
+		request.append("&offering=").append(URLEncoder.encode(offering, "UTF-8"));
+		if(procedures != null && !procedures.isEmpty()) {
+			request.append("&procedure=");
+			boolean first = true;
+			for(String procedure : procedures) {
+				if(!first) {
+					request.append(',');
+				}
+				request.append(URLEncoder.encode(procedure, "UTF-8"));
+				first = false;
+			}
+		}
+		if(SimpleSOSParser.SOS_V1.equals(version)) {
+			request.append("&responseFormat=").append(URLEncoder.encode(RESPONSE_FORMAT_100, "UTF-8"));
+		}
+		if(since != null) {
+			// start just before the watermark, so servers reading the period as
+			// exclusive still return the observations at it
+			String period = formatTime(since - 1) + "/" + formatTime(System.currentTimeMillis());
+			if(SimpleSOSParser.SOS_V1.equals(version)) {
+				request.append("&eventTime=").append(URLEncoder.encode(period, "UTF-8"));
+			} else {
+				request.append("&temporalFilter=").append(URLEncoder.encode("om:resultTime," + period, "UTF-8"));
+			}
+		}
+		return request.toString();
+	}
+
+	private Map<String, Watermark> getWatermarks(String offering) {
+		Map<String, Watermark> procedures = watermarks.get(offering);
+		if(procedures == null) {
+			procedures = new HashMap<String, Watermark>();
+			watermarks.put(offering, procedures);
+		}
+		return procedures;
+	}
+
+	private Set<String> getUntimed(String offering) {
+		Set<String> ids = untimed.get(offering);
+		if(ids == null) {
+			ids = new HashSet<String>();
+			untimed.put(offering, ids);
+		}
+		return ids;
+	}
+
+	private static String formatTime(long time) {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.format(new Date(time));
+	}
+
+	/**
+	 * The latest time seen for a procedure, and the ids of the observations at it
+	 */
+	private static class Watermark {
+		private long time;
+		private final Set<String> ids = new HashSet<String>();
+
+		Watermark(long time) {
+			this.time = time;
+		}
+
+		Watermark copy() {
+			Watermark copy = new Watermark(time);
+			copy.ids.addAll(ids);
+			return copy;
+		}
+
+		/**
+		 * @return false if the observation is older than the watermark, or was seen at it
+		 */
+		boolean isNew(String id, long observationTime) {
+			return observationTime > time || (observationTime == time && (id == null || !ids.contains(id)));
+		}
+
+		/**
+		 * Moves the watermark up to an observation's time
+		 */
+		void advance(String id, long observationTime) {
+			if(observationTime > time) {
+				time = observationTime;
+				ids.clear();
+			}
+			if(observationTime == time && id != null) {
+				ids.add(id);
+			}
+		}
+	}
+
+	/**
+	 * An observation the filter let through, to move the watermark of its
+	 * procedure once it has been converted
+	 */
+	private static class Accepted {
+		private final String id;
+		private final String procedure;
+		private final long time;
+
+		Accepted(String id, String procedure, long time) {
+			this.id = id;
+			this.procedure = procedure;
+			this.time = time;
+		}
+	}
+
+	/**
+	 * Skips observations at or before the watermarks of their procedures,
+	 * collecting those let through so that the watermarks of the ones
+	 * converted can be moved once the parse has succeeded
+	 */
+	private class WatermarkFilter extends ObservationFilter {
+		private final Map<String, Watermark> current;
+		private final Set<String> untimedSeen;
+		// in the order let through, which is the order the parse indexes them in
+		private final List<Accepted> accepted = new ArrayList<Accepted>();
+		private final Set<Integer> skippedIndexes = new HashSet<Integer>();
+		private final Set<String> skippedIds = new HashSet<String>();
+		private final ParseErrorReport skipped = new ParseErrorReport() {
+			@Override
+			public synchronized void add(int index, String id, Throwable cause) {
+				super.add(index, id, cause);
+				skippedIndexes.add(index);
+				if(id != null) {
+					skippedIds.add(id);
+				}
+			}
+		};
+
+		WatermarkFilter(Map<String, Watermark> current, Set<String> untimedSeen) {
+			this.current = current;
+			this.untimedSeen = untimedSeen;
+		}
+
+		@Override
+		public boolean checksObservations() {
+			return true;
+		}
+
+		@Override
+		public boolean acceptsObservation(String id, String procedure, long phenomenonEnd, long resultTime) {
+			long time = SimpleSOSParser.SOS_V1.equals(version) || resultTime == ObservationColumns.NO_TIME
+					? phenomenonEnd : resultTime;
+			if(time == ObservationColumns.NO_TIME) {
+				// cannot be placed against a watermark, so only its id tells whether it was seen
+				if(id == null || !untimedSeen.add(id)) {
+					return false;
+				}
+			} else {
+				Watermark watermark = current.get(procedure);
+				if(watermark != null && !watermark.isNew(id, time)) {
+					return false;
+				}
+			}
+			accepted.add(new Accepted(id, procedure, time));
+			return true;
+		}
+
+		/**
+		 * Moves the watermarks up to the observations converted. Those skipped
+		 * are told apart by gml:id, or where they have none by their index in
+		 * the parse, which is their position among those let through unless
+		 * DataArrays are expanded into rows.
+		 *
+		 * @param watermarks The watermarks of the offering
+		 * @param untimedIds The ids of the offering's observations seen without a time
+		 * @return The number of observations converted
+		 */
+		int commit(Map<String, Watermark> watermarks, Set<String> untimedIds) {
+			int converted = 0;
+			for(int i = 0; i < accepted.size(); i++) {
+				Accepted observation = accepted.get(i);
+				if(observation.id != null ? skippedIds.contains(observation.id) : skippedIndexes.contains(i)) {
+					continue;
+				}
+				converted++;
+				if(observation.time == ObservationColumns.NO_TIME) {
+					untimedIds.add(observation.id);
+					continue;
+				}
+				Watermark watermark = watermarks.get(observation.procedure);
+				if(watermark == null) {
+					watermark = new Watermark(observation.time);
+					watermarks.put(observation.procedure, watermark);
+				}
+				watermark.advance(observation.id, observation.time);
+			}
+			return converted;
+		}
+	}
+}
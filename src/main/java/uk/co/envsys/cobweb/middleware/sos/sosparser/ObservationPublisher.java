@@ -0,0 +1,228 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Executor;
+
+import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
+import org.n52.wps.io.data.IData;
+import org.n52.wps.io.data.binding.complex.GTVectorDataBinding;
+import org.opengis.feature.simple.SimpleFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes the features of one SOS response to a subscriber as they are
+ * requested, rather than handing back the whole collection at once.
+ *
+ * The response is parsed on a thread of the publisher's executor, which
+ * starts on the first request and waits whenever the features requested
+ * have all been sent. With a lazy parser each observation is converted
+ * as it is requested, one ahead; with a {@link SimpleSOSParser_200} which
+ * is also streaming, the response itself is only read that far, so a
+ * subscriber which stops requesting holds back the input.
+ * Other parsers read and convert the whole response before the first
+ * feature is published.
+ *
+ * Cancelling closes the input straight away, so a read blocked on a socket
+ * ends. The subscriber then hears nothing more, not even an error. A
+ * response can only be read once, so only the first subscriber receives
+ * it; any other is sent an IllegalStateException.
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public class ObservationPublisher implements ObservationFlow.Publisher<SimpleFeature> {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ObservationPublisher.class);
+
+	private static final Executor THREAD_PER_SUBSCRIPTION = new Executor() {
+		public void execute(Runnable task) {
+			Thread thread = new Thread(task, "SOS observation publisher");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	};
+
+	// handed to subscribers which are turned away
+	private static final ObservationFlow.Subscription NO_SUBSCRIPTION = new ObservationFlow.Subscription() {
+		public void request(long n) {
+		}
+
+		public void cancel() {
+		}
+	};
+
+	private final SimpleSOSParser parser;
+	private final InputStream input;
+	private final ObservationFilter filter;
+	private final ParseErrorReport errors;
+	private Executor executor = THREAD_PER_SUBSCRIPTION;
+	private boolean subscribed = false;
+
+	/**
+	 * @param parser Parser for the response, lazy and streaming to hold back the input
+	 * @param input The SOS response, closed once it has been published or the subscription cancelled
+	 * @param filter Which observations to publish, or null to publish all of them
+	 * @param errors Where to record skipped observations, or null to only log them
+	 */
+	public ObservationPublisher(SimpleSOSParser parser, InputStream input, ObservationFilter filter,
+			ParseErrorReport errors) {
+		this.parser = parser;
+		this.input = input;
+		this.filter = filter;
+		this.errors = errors;
+	}
+
+	/**
+	 * Sets what runs the parse. Each subscription keeps one of its threads
+	 * until the response has been published or the subscription cancelled.
+	 *
+	 * @param executor The executor to use, or null to start a thread for the subscription
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor == null ? THREAD_PER_SUBSCRIPTION : executor;
+	}
+
+	public void subscribe(ObservationFlow.Subscriber<? super SimpleFeature> subscriber) {
+		if(subscriber == null) {
+			throw new NullPointerException("Subscriber is null");
+		}
+		boolean first;
+		synchronized(this) {
+			first = !subscribed;
+			subscribed = true;
+		}
+		if(!first) {
+			subscriber.onSubscribe(NO_SUBSCRIPTION);
+			subscriber.onError(new IllegalStateException("SOS response can only be published once"));
+			return;
+		}
+		Emission emission = new Emission(subscriber);
+		subscriber.onSubscribe(emission);
+		executor.execute(emission);
+	}
+
+	/**
+	 * The subscription of the subscriber, and the task parsing the response for it
+	 */
+	private class Emission implements ObservationFlow.Subscription, Runnable {
+		private final ObservationFlow.Subscriber<? super SimpleFeature> subscriber;
+		// features requested and not yet sent, guarded by this
+		private long demand = 0;
+		private volatile boolean cancelled = false;
+		private Throwable invalidRequest = null;
+
+		Emission(ObservationFlow.Subscriber<? super SimpleFeature> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		public void request(long n) {
+			if(n <= 0) {
+				synchronized(this) {
+					if(invalidRequest == null && !cancelled) {
+						invalidRequest = new IllegalArgumentException("Must request a positive number of features: " + n);
+					}
+					notifyAll();
+				}
+				return;
+			}
+			synchronized(this) {
+				demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+				notifyAll();
+			}
+		}
+
+		public void cancel() {
+			if(cancelled) {
+				return;
+			}
+			synchronized(this) {
+				cancelled = true;
+				notifyAll();
+			}
+			closeInput();
+		}
+
+		public void run() {
+			FeatureIterator<?> features = null;
+			boolean complete = false;
+			Throwable failure = null;
+			try {
+				if(awaitDemand()) {
+					IData data = parser.parse(input, filter, errors);
+					FeatureCollection<?, ?> collection = ((GTVectorDataBinding) data).getPayload();
+					features = collection.features();
+					// looking for the next feature before it is requested lets the last one be
+					// followed straight away by completion, at the cost of reading one observation ahead
+					complete = true;
+					while(features.hasNext()) {
+						if(!awaitDemand()) {
+							complete = false;
+							break;
+						}
+						SimpleFeature feature = (SimpleFeature) features.next();
+						synchronized(this) {
+							if(demand != Long.MAX_VALUE) {
+								demand--;
+							}
+						}
+						subscriber.onNext(feature);
+					}
+				}
+			} catch(RuntimeException e) {
+				complete = false;
+				// a cancelled parse fails as its input is closed under it
+				if(!cancelled) {
+					LOGGER.error("Could not publish SOS response: " + e.getMessage());
+					failure = e;
+				}
+			} finally {
+				if(features != null) {
+					features.close();
+				}
+				closeInput();
+			}
+			// the input is released before the subscriber hears the end
+			synchronized(this) {
+				if(failure == null) {
+					failure = invalidRequest;
+				}
+			}
+			if(failure != null) {
+				subscriber.onError(failure);
+			} else if(complete && !cancelled) {
+				subscriber.onComplete();
+			}
+		}
+
+		/**
+		 * Waits until a feature is requested, which holds back the parse and so the input
+		 *
+		 * @return false if the subscription was cancelled or a request was invalid
+		 */
+		private synchronized boolean awaitDemand() {
+			try {
+				while(demand == 0 && !cancelled && invalidRequest == null) {
+					wait();
+				}
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				cancelled = true;
+			}
+			if(invalidRequest != null) {
+				cancelled = true;
+			}
+			return !cancelled;
+		}
+
+		private void closeInput() {
+			try {
+				input.close();
+			} catch(IOException e) {
+				LOGGER.debug("Error closing SOS response: {}", e.getMessage());
+			}
+		}
+	}
+}
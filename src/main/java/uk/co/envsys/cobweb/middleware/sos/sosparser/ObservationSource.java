@@ -0,0 +1,33 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.util.Iterator;
+
+/**
+ * A supply of raw observations, as XmlBeans objects, taken from a parsed 
+ * SOS response or read from a stream.
+ * 
+ * Each call to {@link #open()} starts again from the first observation. 
+ * Sources reading straight from an InputStream can only be opened once.
+ * 
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ * @param <T> The XmlBeans type of the observations
+ */
+public interface ObservationSource<T> {
+	
+	/**
+	 * Returns an iterator over the observations. Where the iterator is
+	 * also {@link java.io.Closeable} it should be closed once finished with.
+	 * 
+	 * @return Iterator over the observations in document order
+	 * @throws IllegalStateException if the source cannot be read again
+	 */
+	Iterator<T> open();
+	
+	/**
+	 * @return true if {@link #open()} may be called more than once, false for
+	 * a source read straight from a stream
+	 */
+	boolean isRepeatable();
+}
@@ -0,0 +1,93 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.util.Date;
+
+/**
+ * Immutable time instant or period of an observation, detached from the
+ * gml:TimeInstant or gml:TimePeriod it was read from. Times are held as 
+ * milliseconds since the epoch; an instant has the same begin and end.
+ * 
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public final class ObservationTime {
+	private final long begin;
+	private final long end;
+	
+	private ObservationTime(long begin, long end) {
+		this.begin = begin;
+		this.end = end;
+	}
+	
+	/**
+	 * @param instant Milliseconds since the epoch
+	 * @return ObservationTime for the instant
+	 */
+	public static ObservationTime instant(long instant) {
+		return new ObservationTime(instant, instant);
+	}
+	
+	/**
+	 * @param begin Start of the period in milliseconds since the epoch
+	 * @param end End of the period in milliseconds since the epoch
+	 * @return ObservationTime for the period
+	 */
+	public static ObservationTime period(long begin, long end) {
+		return new ObservationTime(begin, end);
+	}
+	
+	/**
+	 * @return Whether this is a time instant rather than a period
+	 */
+	public boolean isInstant() {
+		return begin == end;
+	}
+	
+	/**
+	 * @return Start of the period, or the instant, in milliseconds since the epoch
+	 */
+	public long getBeginMillis() {
+		return begin;
+	}
+	
+	/**
+	 * @return End of the period, or the instant, in milliseconds since the epoch
+	 */
+	public long getEndMillis() {
+		return end;
+	}
+	
+	/**
+	 * @return Start of the period, or the instant
+	 */
+	public Date getBegin() {
+		return new Date(begin);
+	}
+	
+	/**
+	 * @return End of the period, or the instant
+	 */
+	public Date getEnd() {
+		return new Date(end);
+	}
+	
+	@Override
+	public boolean equals(Object other) {
+		if(!(other instanceof ObservationTime)) {
+			return false;
+		}
+		ObservationTime time = (ObservationTime) other;
+		return begin == time.begin && end == time.end;
+	}
+	
+	@Override
+	public int hashCode() {
+		return (int) (begin ^ (begin >>> 32)) * 31 + (int) (end ^ (end >>> 32));
+	}
+	
+	@Override
+	public String toString() {
+		return isInstant() ? String.valueOf(begin) : begin + "/" + end;
+	}
+}
@@ -0,0 +1,121 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Holds the state needed while converting the observations of a single 
+ * response, so that the parsers themselves keep no per-call state and one
+ * parser instance can serve many requests at once.
+ * 
+ * A context is used by one thread at a time.
+ * 
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public class ParseContext {
+	private final SimpleFeatureType type;
+	private final SimpleFeatureBuilder featureBuilder;
+	private final FeatureTypeCache typeCache;
+	private final InternTable interns;
+	private GeometryTable geometries;
+	
+	/**
+	 * @param type The FeatureType (schema) the observations are converted to
+	 */
+	public ParseContext(SimpleFeatureType type) {
+		this(type, null, null);
+	}
+	
+	/**
+	 * @param type The FeatureType (schema) the observations are converted to
+	 * @param typeCache Cache to borrow the feature builder from, or null for a new builder
+	 * @param interns Table of shared hrefs and titles, or null for one of this context's own
+	 */
+	public ParseContext(SimpleFeatureType type, FeatureTypeCache typeCache, InternTable interns) {
+		this(type, typeCache, interns, null);
+	}
+	
+	/**
+	 * @param type The FeatureType (schema) the observations are converted to
+	 * @param typeCache Cache to borrow the feature builder from, or null for a new builder
+	 * @param interns Table of shared hrefs and titles, or null for one of this context's own
+	 * @param geometries Table of the geometries decoded so far in the parse, shared by all 
+	 * of its contexts, or null for one of this context's own
+	 */
+	public ParseContext(SimpleFeatureType type, FeatureTypeCache typeCache, InternTable interns,
+			GeometryTable geometries) {
+		this.type = type;
+		this.typeCache = typeCache;
+		this.interns = interns == null ? new InternTable(InternTable.DEFAULT_MAX_SIZE) : interns;
+		this.geometries = geometries;
+		this.featureBuilder = typeCache == null ? new SimpleFeatureBuilder(type) : typeCache.borrowBuilder(type);
+	}
+	
+	/**
+	 * Hands the feature builder back to the cache it came from. The context
+	 * must not be used afterwards.
+	 */
+	public void release() {
+		if(typeCache != null) {
+			typeCache.releaseBuilder(featureBuilder);
+		}
+	}
+	
+	/**
+	 * @return The FeatureType (schema) the observations are converted to
+	 */
+	public SimpleFeatureType getType() {
+		return type;
+	}
+	
+	/**
+	 * Shares one instance between equal hrefs, titles and other strings repeated
+	 * from observation to observation
+	 * 
+	 * @param value The value to share, may be null
+	 * @return An equal, shared String
+	 */
+	public String intern(String value) {
+		return interns.intern(value);
+	}
+	
+	/**
+	 * Looks up the geometry decoded earlier in the parse for a feature of interest
+	 * 
+	 * @param id Identifies the feature of interest, e.g. its href, name or "#" and its gml:id
+	 * @return The shared geometry, or null if none has been kept
+	 */
+	public Geometry getGeometry(String id) {
+		return geometries == null ? null : geometries.get(id);
+	}
+	
+	/**
+	 * Keeps the geometry of a feature of interest, so that observations of the
+	 * same feature share one instance. Once {@link GeometryTable#DEFAULT_MAX_SIZE} 
+	 * are kept in a table of the context's own no more are added.
+	 * 
+	 * @param id Identifies the feature of interest, may be null
+	 * @param geometry The decoded geometry
+	 * @return The geometry to use for the feature, which may be one already kept
+	 */
+	public Geometry putGeometry(String id, Geometry geometry) {
+		if(id == null || geometry == null) {
+			return geometry;
+		}
+		if(geometries == null) {
+			geometries = new GeometryTable(GeometryTable.DEFAULT_MAX_SIZE);
+		}
+		return geometries.put(id, geometry);
+	}
+	
+	/**
+	 * @return A SimpleFeatureBuilder for the FeatureType, for use by this context only
+	 */
+	public SimpleFeatureBuilder getFeatureBuilder() {
+		return featureBuilder;
+	}
+}
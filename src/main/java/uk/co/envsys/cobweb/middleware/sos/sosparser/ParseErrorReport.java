@@ -0,0 +1,130 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The observations a lenient parse skipped because they could not be
+ * converted, each with its position in the response, gml:id and the
+ * reason. Only the first errors are kept, up to a maximum, so a response
+ * of nothing but bad observations cannot fill the heap; all are counted.
+ *
+ * Positions count the observations that reached conversion, which is every
+ * observation of the response unless an {@link ObservationFilter} skipped
+ * some. A report may be filled from several threads during a parallel parse.
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public class ParseErrorReport {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ParseErrorReport.class);
+	public static final int DEFAULT_MAX_ERRORS = 100;
+
+	private final int maxErrors;
+	private final List<ParseError> errors = new ArrayList<ParseError>();
+	private int count = 0;
+
+	/**
+	 * Creates a report keeping up to {@link #DEFAULT_MAX_ERRORS} errors
+	 */
+	public ParseErrorReport() {
+		this(DEFAULT_MAX_ERRORS);
+	}
+
+	/**
+	 * @param maxErrors The most errors to keep
+	 */
+	public ParseErrorReport(int maxErrors) {
+		this.maxErrors = maxErrors;
+	}
+
+	/**
+	 * Records a skipped observation
+	 *
+	 * @param index The position of the observation
+	 * @param id The gml:id of the observation, or null if it has none
+	 * @param cause Why it could not be converted
+	 */
+	public synchronized void add(int index, String id, Throwable cause) {
+		count++;
+		if(errors.size() < maxErrors) {
+			ParseError error = new ParseError(index, id, 
+					cause.getMessage() != null ? cause.getMessage() : cause.getClass().getName());
+			errors.add(error);
+			LOGGER.warn("Skipped {}", error);
+		}
+	}
+
+	/**
+	 * @return The errors kept, in the order they were recorded
+	 */
+	public synchronized List<ParseError> getErrors() {
+		return new ArrayList<ParseError>(errors);
+	}
+
+	/**
+	 * @return The number of observations skipped, including those past the maximum kept
+	 */
+	public synchronized int getErrorCount() {
+		return count;
+	}
+
+	/**
+	 * @return Whether more observations were skipped than errors kept
+	 */
+	public synchronized boolean isTruncated() {
+		return count > errors.size();
+	}
+
+	/**
+	 * @return Whether no observation was skipped
+	 */
+	public synchronized boolean isEmpty() {
+		return count == 0;
+	}
+
+	/**
+	 * One skipped observation
+	 */
+	public static final class ParseError {
+		private final int index;
+		private final String id;
+		private final String reason;
+
+		ParseError(int index, String id, String reason) {
+			this.index = index;
+			this.id = id;
+			this.reason = reason;
+		}
+
+		/**
+		 * @return The position of the observation
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * @return The gml:id of the observation, or null if it has none
+		 */
+		public String getId() {
+			return id;
+		}
+
+		/**
+		 * @return Why the observation could not be converted
+		 */
+		public String getReason() {
+			return reason;
+		}
+
+		@Override
+		public String toString() {
+			return "observation " + index + (id != null ? " (" + id + ")" : "") + ": " + reason;
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+/**
+ * Receives measurements of each stage of a parse, for a parser given one
+ * with {@link SimpleSOSParser#setMetrics(ParseMetrics)}. Implementations
+ * pass them on to a metrics registry or tracer; {@link ParseStatistics}
+ * keeps running totals.
+ *
+ * Parsers without metrics skip every measurement, so instrumentation costs
+ * nothing unless it is used. Times are in nanoseconds. Methods are called
+ * from every thread parsing with the parser, so must be thread-safe, and
+ * should return quickly as some are called once per observation.
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public interface ParseMetrics {
+
+	/**
+	 * @param bytes The length of a response read by a parse
+	 */
+	void bytesRead(long bytes);
+
+	/**
+	 * @param nanos Time taken by XmlBeans to parse a response into a document
+	 */
+	void documentParsed(long nanos);
+
+	/**
+	 * @param nanos Time taken to find the observations in a document, 
+	 * e.g. to strip its SOAP envelope
+	 */
+	void payloadUnwrapped(long nanos);
+
+	/**
+	 * @param nanos Time taken to create or look up the FeatureType of a parse
+	 */
+	void typeBuilt(long nanos);
+
+	/**
+	 * Called for each observation converted during a sequential or columnar
+	 * parse. Parallel and lazy conversions are not timed one by one.
+	 *
+	 * @param nanos Time taken to convert one observation
+	 */
+	void observationConverted(long nanos);
+
+	/**
+	 * @param observations The number of observations a parse converted, 
+	 * or -1 for a lazy parse which converts them later
+	 * @param nanos Time taken by the parse, from reading the response to 
+	 * returning its features
+	 */
+	void parseCompleted(int observations, long nanos);
+
+	/**
+	 * @param element The required element an observation is missing
+	 */
+	void elementMissing(String element);
+
+	/**
+	 * @param cause Why a parse failed
+	 */
+	void parseFailed(Throwable cause);
+}
@@ -0,0 +1,159 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics which keep running totals of every parse, for reading by a
+ * monitoring job or exporting to a metrics registry. Safe for use from 
+ * several threads.
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public class ParseStatistics implements ParseMetrics {
+	private static final double NANOS_PER_SECOND = 1e9;
+
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong documentNanos = new AtomicLong();
+	private final AtomicLong unwrapNanos = new AtomicLong();
+	private final AtomicLong typeNanos = new AtomicLong();
+	private final AtomicLong conversions = new AtomicLong();
+	private final AtomicLong conversionNanos = new AtomicLong();
+	private final AtomicLong parses = new AtomicLong();
+	private final AtomicLong observations = new AtomicLong();
+	private final AtomicLong parseNanos = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final ConcurrentMap<String, AtomicLong> missingElements = new ConcurrentHashMap<String, AtomicLong>();
+
+	public void bytesRead(long bytes) {
+		this.bytes.addAndGet(bytes);
+	}
+
+	public void documentParsed(long nanos) {
+		documentNanos.addAndGet(nanos);
+	}
+
+	public void payloadUnwrapped(long nanos) {
+		unwrapNanos.addAndGet(nanos);
+	}
+
+	public void typeBuilt(long nanos) {
+		typeNanos.addAndGet(nanos);
+	}
+
+	public void observationConverted(long nanos) {
+		conversions.incrementAndGet();
+		conversionNanos.addAndGet(nanos);
+	}
+
+	public void parseCompleted(int observations, long nanos) {
+		parses.incrementAndGet();
+		if(observations > 0) {
+			this.observations.addAndGet(observations);
+		}
+		parseNanos.addAndGet(nanos);
+	}
+
+	public void elementMissing(String element) {
+		AtomicLong count = missingElements.get(element);
+		if(count == null) {
+			AtomicLong added = missingElements.putIfAbsent(element, count = new AtomicLong());
+			if(added != null) {
+				count = added;
+			}
+		}
+		count.incrementAndGet();
+	}
+
+	public void parseFailed(Throwable cause) {
+		failures.incrementAndGet();
+	}
+
+	/**
+	 * @return Bytes of responses read
+	 */
+	public long getBytesRead() {
+		return bytes.get();
+	}
+
+	/**
+	 * @return Total time XmlBeans spent parsing responses, in nanoseconds
+	 */
+	public long getDocumentNanos() {
+		return documentNanos.get();
+	}
+
+	/**
+	 * @return Total time spent finding the observations in documents, in nanoseconds
+	 */
+	public long getUnwrapNanos() {
+		return unwrapNanos.get();
+	}
+
+	/**
+	 * @return Total time spent creating FeatureTypes, in nanoseconds
+	 */
+	public long getTypeNanos() {
+		return typeNanos.get();
+	}
+
+	/**
+	 * @return The number of observations timed one by one
+	 */
+	public long getConversions() {
+		return conversions.get();
+	}
+
+	/**
+	 * @return Mean time to convert an observation, in nanoseconds, or 0 if none were timed
+	 */
+	public double getMeanConversionNanos() {
+		long count = conversions.get();
+		return count == 0 ? 0 : (double) conversionNanos.get() / count;
+	}
+
+	/**
+	 * @return The number of parses completed
+	 */
+	public long getParses() {
+		return parses.get();
+	}
+
+	/**
+	 * @return The number of observations converted by completed parses
+	 */
+	public long getObservations() {
+		return observations.get();
+	}
+
+	/**
+	 * @return Observations converted per second of parsing, over all completed parses
+	 */
+	public double getObservationsPerSecond() {
+		long nanos = parseNanos.get();
+		return nanos == 0 ? 0 : observations.get() * NANOS_PER_SECOND / nanos;
+	}
+
+	/**
+	 * @return The number of parses which failed
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * @return How many times each required element was found missing
+	 */
+	public Map<String, Long> getMissingElements() {
+		Map<String, Long> counts = new HashMap<String, Long>();
+		for(Map.Entry<String, AtomicLong> entry : missingElements.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().get());
+		}
+		return counts;
+	}
+}
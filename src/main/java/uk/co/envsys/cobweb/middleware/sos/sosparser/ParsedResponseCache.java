@@ -0,0 +1,448 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.xmlbeans.XmlObject;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.feature.collection.BaseSimpleFeatureCollection;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.n52.wps.io.data.IData;
+import org.n52.wps.io.data.binding.complex.GTVectorDataBinding;
+import org.opengis.feature.simple.SimpleFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Bounded, least recently used cache of parsed responses, placed in front
+ * of {@link SimpleSOSParser.Factory}. Byte-identical responses parsed again
+ * while still cached return the same feature collection without parsing.
+ *
+ * Responses are keyed by a SHA-256 digest of their bytes, which costs
+ * little beside parsing them, or by a key for the request given by the
+ * caller. Entries are evicted when there are more than the maximum number,
+ * or their estimated heap size is over the maximum. A response being parsed
+ * is parsed once, however many threads ask for it at the same time.
+ *
+ * The response to a request may change, so entries keyed by request can be
+ * invalidated, and are dropped once older than the maximum age if one is set.
+ *
+ * Cached collections are shared by every caller, and are handed out as a
+ * read-only view; their features must not be modified. Hit, miss and
+ * eviction counts are kept so the cache can be checked under load. Safe for
+ * use from several threads.
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public class ParsedResponseCache {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ParsedResponseCache.class);
+	public static final int DEFAULT_MAX_ENTRIES = 32;
+	public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+	// XmlBeans keeps the parsed document, several times the size of its text
+	protected static final int DOCUMENT_BYTES_PER_RESPONSE_BYTE = 4;
+	// a feature's object, its id and values arrays, and a reference per attribute
+	protected static final int FEATURE_BYTES = 96;
+	protected static final int ATTRIBUTE_BYTES = 8;
+	// a String's object and array headers, besides two bytes a char
+	protected static final int STRING_BYTES = 40;
+	// a boxed number, Date or other small value
+	protected static final int VALUE_BYTES = 24;
+	protected static final int GEOMETRY_BYTES = 80;
+	protected static final int COORDINATE_BYTES = 40;
+	private static final String REQUEST_KEY = "request:";
+
+	private final int maxEntries;
+	private final long maxBytes;
+	private final Map<String, Cached> entries = new LinkedHashMap<String, Cached>(16, 0.75f, true);
+	private long bytes = 0;
+	private volatile long maxAgeMillis = 0;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Creates a cache of {@link #DEFAULT_MAX_ENTRIES} entries and {@link #DEFAULT_MAX_BYTES} bytes
+	 */
+	public ParsedResponseCache() {
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * @param maxEntries The most responses to hold before evicting the least recently used
+	 * @param maxBytes The most estimated heap to hold before evicting the least recently used
+	 */
+	public ParsedResponseCache(int maxEntries, long maxBytes) {
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Sets how long the parsed response to a request is kept. Entries keyed by
+	 * content are not aged, as the same bytes always parse the same way.
+	 *
+	 * @param maxAge The longest to keep a response, or 0 to keep it until evicted or invalidated
+	 * @param unit The unit of maxAge
+	 */
+	public void setMaxAge(long maxAge, TimeUnit unit) {
+		this.maxAgeMillis = unit.toMillis(maxAge);
+	}
+
+	/**
+	 * Parses a response with the parser the Factory selects for it, or
+	 * returns the result of parsing the same bytes before
+	 *
+	 * @param input The response
+	 * @return GTVectorDataBinding of the observations
+	 * @throws IllegalArgumentException If the response could not be read or parsed
+	 */
+	public IData parse(InputStream input) {
+		byte[] response = readFully(input);
+		return getOrParse("content:" + digest(response), response);
+	}
+
+	/**
+	 * Parses the response to a request, or returns the result of parsing the
+	 * response to the same request before, in which case the stream is not read
+	 *
+	 * @param requestKey Identifies the request, e.g. its URL or body
+	 * @param input The response
+	 * @return GTVectorDataBinding of the observations
+	 * @throws IllegalArgumentException If the response could not be read or parsed
+	 */
+	public IData parse(String requestKey, InputStream input) {
+		String key = REQUEST_KEY + requestKey;
+		IData cached = get(key, false);
+		if(cached != null) {
+			return cached;
+		}
+		return getOrParse(key, readFully(input));
+	}
+
+	/**
+	 * Looks up the parsed response to a request, so that a request need not
+	 * be made again
+	 *
+	 * @param requestKey Identifies the request, as given to {@link #parse(String, InputStream)}
+	 * @return GTVectorDataBinding of the observations, or null if none is cached
+	 */
+	public IData get(String requestKey) {
+		return get(REQUEST_KEY + requestKey, true);
+	}
+
+	/**
+	 * Drops the parsed response to a request, so that the next one is parsed again
+	 *
+	 * @param requestKey Identifies the request, as given to {@link #parse(String, InputStream)}
+	 * @return Whether a response was cached for the request
+	 */
+	public synchronized boolean invalidate(String requestKey) {
+		return remove(REQUEST_KEY + requestKey) != null;
+	}
+
+	private IData get(String key, boolean countMiss) {
+		Cached cached;
+		synchronized(this) {
+			cached = entries.get(key);
+			if(cached != null && isExpired(key, cached)) {
+				remove(key);
+				cached = null;
+			}
+		}
+		if(cached == null || !cached.task.isDone()) {
+			if(countMiss) {
+				misses.incrementAndGet();
+			}
+			return null;
+		}
+		hits.incrementAndGet();
+		return await(key, cached);
+	}
+
+	private IData getOrParse(String key, final byte[] response) {
+		Cached cached;
+		boolean parsing = false;
+		synchronized(this) {
+			cached = entries.get(key);
+			if(cached == null) {
+				cached = new Cached(new FutureTask<IData>(new Callable<IData>() {
+					public IData call() {
+						return readOnly(SimpleSOSParser.Factory.select(new ByteArrayInputStream(response)).parse());
+					}
+				}));
+				entries.put(key, cached);
+				parsing = true;
+			}
+		}
+		if(!parsing) {
+			hits.incrementAndGet();
+			return await(key, cached);
+		}
+		misses.incrementAndGet();
+		cached.task.run();
+		IData data = await(key, cached);
+		// walking the features is left outside the lock
+		long size = estimateSize(response.length, data);
+		synchronized(this) {
+			if(entries.get(key) == cached) {
+				cached.parsedAt = System.currentTimeMillis();
+				cached.bytes = size;
+				bytes += cached.bytes;
+				evict();
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Waits for an entry to be parsed, dropping it from the cache if parsing failed
+	 */
+	private IData await(String key, Cached cached) {
+		try {
+			return cached.task.get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted waiting for a response to be parsed", e);
+		} catch(ExecutionException e) {
+			synchronized(this) {
+				if(entries.get(key) == cached) {
+					remove(key);
+				}
+			}
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalArgumentException("Could not parse response", e.getCause());
+		}
+	}
+
+	private boolean isExpired(String key, Cached cached) {
+		long maxAge = maxAgeMillis;
+		return maxAge > 0 && cached.parsedAt > 0 && key.startsWith(REQUEST_KEY)
+				&& System.currentTimeMillis() - cached.parsedAt > maxAge;
+	}
+
+	/**
+	 * Removes an entry, whether or not it has been parsed
+	 */
+	private Cached remove(String key) {
+		Cached cached = entries.remove(key);
+		if(cached != null) {
+			bytes -= cached.bytes;
+		}
+		return cached;
+	}
+
+	/**
+	 * Removes the least recently used parsed entries until the cache is within
+	 * its bounds. Entries still being parsed are left.
+	 */
+	private void evict() {
+		Iterator<Cached> eldest = entries.values().iterator();
+		while((entries.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+			Cached cached = eldest.next();
+			if(cached.task.isDone()) {
+				eldest.remove();
+				bytes -= cached.bytes;
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Estimates the heap held by a parsed response from its features and
+	 * their values, counting values shared between features once. Features
+	 * which still hold XmlObjects keep the whole document XmlBeans parsed,
+	 * which is charged from the length of the response.
+	 *
+	 * @param responseLength The length of the response in bytes
+	 * @param data The parsed response
+	 * @return Estimated size in bytes
+	 */
+	protected long estimateSize(int responseLength, IData data) {
+		if(!(data instanceof GTVectorDataBinding)) {
+			return (long) responseLength * DOCUMENT_BYTES_PER_RESPONSE_BYTE;
+		}
+		Map<Object, Boolean> seen = new IdentityHashMap<Object, Boolean>();
+		long size = 0;
+		boolean document = false;
+		FeatureIterator<?> features = ((GTVectorDataBinding) data).getPayload().features();
+		try {
+			while(features.hasNext()) {
+				SimpleFeature feature = (SimpleFeature) features.next();
+				size += FEATURE_BYTES + estimateSize(feature.getID(), seen);
+				for(Object value : feature.getAttributes()) {
+					size += ATTRIBUTE_BYTES + estimateSize(value, seen);
+					document |= value instanceof XmlObject;
+				}
+			}
+		} finally {
+			features.close();
+		}
+		if(document) {
+			size += (long) responseLength * DOCUMENT_BYTES_PER_RESPONSE_BYTE;
+		}
+		return size;
+	}
+
+	private static long estimateSize(Object value, Map<Object, Boolean> seen) {
+		if(value == null || value instanceof XmlObject || seen.put(value, Boolean.TRUE) != null) {
+			return 0;
+		}
+		if(value instanceof String) {
+			return STRING_BYTES + 2L * ((String) value).length();
+		} else if(value instanceof Geometry) {
+			return GEOMETRY_BYTES + (long) COORDINATE_BYTES * ((Geometry) value).getNumPoints();
+		} else if(value instanceof Object[]) {
+			long size = VALUE_BYTES;
+			for(Object element : (Object[]) value) {
+				size += ATTRIBUTE_BYTES + estimateSize(element, seen);
+			}
+			return size;
+		}
+		return VALUE_BYTES;
+	}
+
+	/**
+	 * @return The number of lookups which found a response
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return The number of lookups which found nothing
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return The number of responses evicted to keep within the bounds
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return The number of responses held
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return The estimated heap held by the cached responses, in bytes
+	 */
+	public synchronized long getEstimatedBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Empties the cache and resets the counters
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+		hits.set(0);
+		misses.set(0);
+		evictions.set(0);
+	}
+
+	private static IData readOnly(IData data) {
+		if(data instanceof GTVectorDataBinding
+				&& ((GTVectorDataBinding) data).getPayload() instanceof SimpleFeatureCollection) {
+			return new GTVectorDataBinding(new ReadOnlyFeatureCollection(
+					(SimpleFeatureCollection) ((GTVectorDataBinding) data).getPayload()));
+		}
+		return data;
+	}
+
+	private static byte[] readFully(InputStream input) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		try {
+			int read;
+			while((read = input.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+		} catch(IOException e) {
+			IllegalArgumentException ex = new IllegalArgumentException("Error transferring XML", e);
+			LOGGER.error(ex.getMessage());
+			throw ex;
+		}
+		return out.toByteArray();
+	}
+
+	private static String digest(byte[] response) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch(NoSuchAlgorithmException e) {
+			// every JVM provides SHA-256
+			throw new IllegalStateException(e);
+		}
+		byte[] hash = digest.digest(response);
+		StringBuilder hex = new StringBuilder(hash.length * 2);
+		for(byte b : hash) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	private static class Cached {
+		final FutureTask<IData> task;
+		long bytes = 0;
+		long parsedAt = 0;
+
+		Cached(FutureTask<IData> task) {
+			this.task = task;
+		}
+	}
+
+	/**
+	 * View of a cached collection, so that callers cannot add to or remove
+	 * from a collection other callers share
+	 */
+	private static class ReadOnlyFeatureCollection extends BaseSimpleFeatureCollection {
+		private final SimpleFeatureCollection collection;
+
+		ReadOnlyFeatureCollection(SimpleFeatureCollection collection) {
+			super(collection.getSchema());
+			this.collection = collection;
+		}
+
+		@Override
+		public SimpleFeatureIterator features() {
+			return collection.features();
+		}
+
+		@Override
+		public int size() {
+			return collection.size();
+		}
+
+		@Override
+		public ReferencedEnvelope getBounds() {
+			return collection.getBounds();
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+/**
+ * Supplies a parser to the {@link ParserRegistry}. Providers are found with
+ * {@link java.util.ServiceLoader}, so a parser for a new kind of sensor is
+ * added by listing its provider in a
+ * {@code META-INF/services/uk.co.envsys.cobweb.middleware.sos.sosparser.ParserProvider}
+ * file on the classpath, rather than by editing the Factory.
+ *
+ * When choosing a parser for a response, the providers for its SOS version
+ * are asked in order of priority, highest first, and the first to accept
+ * the response is used. Generic parsers accept every response at a low
+ * priority, and parsers for particular sensors accept only responses whose
+ * first observation has their procedure or featureOfInterest.
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public interface ParserProvider {
+
+	/**
+	 * @return The name the parser is looked up by, e.g. "2.0.0" or "UCD_SOCIAL"
+	 */
+	String getName();
+
+	/**
+	 * @return The SOS version of the responses the parser reads, "1.0.0" or "2.0.0"
+	 */
+	String getVersion();
+
+	/**
+	 * @return Priority among the providers of the same version, higher is asked first
+	 */
+	int getPriority();
+
+	/**
+	 * Decides from the start of a response whether the parser should read it
+	 *
+	 * @param header The root element, payload, and first procedure and featureOfInterest of the response
+	 * @return true to read the response
+	 */
+	boolean accepts(ResponseHeader header);
+
+	/**
+	 * Creates the parser, which the registry then shares between all callers
+	 *
+	 * @return A new parser with its default settings
+	 */
+	SimpleSOSParser createParser();
+}
@@ -0,0 +1,32 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+/**
+ * Provides the generic parser for O&amp;M 1.0 ObservationCollections, from SOS 1.0.0,
+ * used for any response no more specific parser accepts
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public class ParserProvider_100 implements ParserProvider {
+
+	public String getName() {
+		return SimpleSOSParser.SOS_V1;
+	}
+
+	public String getVersion() {
+		return SimpleSOSParser.SOS_V1;
+	}
+
+	public int getPriority() {
+		return 0;
+	}
+
+	public boolean accepts(ResponseHeader header) {
+		return true;
+	}
+
+	public SimpleSOSParser createParser() {
+		return new SimpleSOSParser_100();
+	}
+}
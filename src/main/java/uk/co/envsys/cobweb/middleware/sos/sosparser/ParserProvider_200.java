@@ -0,0 +1,32 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+/**
+ * Provides the generic parser for SOS 2.0.0 GetObservationResponses,
+ * used for any response no more specific parser accepts
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public class ParserProvider_200 implements ParserProvider {
+
+	public String getName() {
+		return SimpleSOSParser.SOS_V2;
+	}
+
+	public String getVersion() {
+		return SimpleSOSParser.SOS_V2;
+	}
+
+	public int getPriority() {
+		return 0;
+	}
+
+	public boolean accepts(ResponseHeader header) {
+		return true;
+	}
+
+	public SimpleSOSParser createParser() {
+		return new SimpleSOSParser_200();
+	}
+}
@@ -0,0 +1,171 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.xml.namespace.QName;
+
+import net.opengis.om.x10.ObservationCollectionDocument;
+import net.opengis.sos.x20.GetObservationResponseDocument;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The parsers available to the Factory, each created once by its
+ * {@link ParserProvider} and shared between all callers.
+ *
+ * The default registry holds the providers listed in the
+ * {@code META-INF/services} files on the classpath, read once by
+ * {@link ServiceLoader} the first time it is used; nothing else on the
+ * classpath is scanned. Parsers are looked up by name in a map, and chosen
+ * for a response from the few providers of its SOS version.
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public class ParserRegistry {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ParserRegistry.class);
+	private static final QName OBSERVATION_COLLECTION = ObservationCollectionDocument.type.getDocumentElementName();
+	private static final QName GET_OBSERVATION_RESPONSE = GetObservationResponseDocument.type.getDocumentElementName();
+
+	// highest priority first, then by name so that the order does not depend on the classpath
+	private static final Comparator<ParserProvider> PRIORITY = new Comparator<ParserProvider>() {
+		public int compare(ParserProvider a, ParserProvider b) {
+			if(a.getPriority() != b.getPriority()) {
+				return a.getPriority() > b.getPriority() ? -1 : 1;
+			}
+			return a.getName().compareTo(b.getName());
+		}
+	};
+
+	private final Map<String, SimpleSOSParser> byName = new HashMap<String, SimpleSOSParser>();
+	// version to its providers and their parsers, in the order they are asked
+	private final Map<String, List<ParserProvider>> providersByVersion = new HashMap<String, List<ParserProvider>>();
+	private final Map<ParserProvider, SimpleSOSParser> parsers = new HashMap<ParserProvider, SimpleSOSParser>();
+
+	/**
+	 * Creates a registry of the given providers, creating and sharing the parser of each
+	 *
+	 * @param providers The providers, in any order
+	 */
+	public ParserRegistry(Iterable<? extends ParserProvider> providers) {
+		List<ParserProvider> ordered = new ArrayList<ParserProvider>();
+		for(ParserProvider provider : providers) {
+			ordered.add(provider);
+		}
+		Collections.sort(ordered, PRIORITY);
+		for(ParserProvider provider : ordered) {
+			SimpleSOSParser parser = SimpleSOSParser.share(provider.createParser());
+			parsers.put(provider, parser);
+			if(byName.containsKey(provider.getName())) {
+				LOGGER.warn("Parser {} from {} is hidden by one of higher priority", provider.getName(),
+						provider.getClass().getName());
+			} else {
+				byName.put(provider.getName(), parser);
+			}
+			List<ParserProvider> versionProviders = providersByVersion.get(provider.getVersion());
+			if(versionProviders == null) {
+				versionProviders = new ArrayList<ParserProvider>();
+				providersByVersion.put(provider.getVersion(), versionProviders);
+			}
+			versionProviders.add(provider);
+		}
+	}
+
+	/**
+	 * @return The registry of the providers found on the classpath
+	 */
+	public static ParserRegistry getDefault() {
+		return DefaultHolder.REGISTRY;
+	}
+
+	/**
+	 * Returns a shared parser by name
+	 *
+	 * @param name The name of the parser, e.g. "1.0.0", "2.0.0" or "UCD_SOCIAL"
+	 * @return The shared parser
+	 * @throws IllegalArgumentException if there is no parser of that name
+	 */
+	public SimpleSOSParser getParser(String name) {
+		SimpleSOSParser parser = byName.get(name);
+		if(parser == null) {
+			throw new IllegalArgumentException("Only " + getNames() + " supported.");
+		}
+		return parser;
+	}
+
+	/**
+	 * Chooses the shared parser for a response, from the providers of its SOS version
+	 *
+	 * @param header The start of the response
+	 * @return The parser of the highest priority provider accepting the response
+	 * @throws IllegalArgumentException if no parser accepts the response
+	 */
+	public SimpleSOSParser getParser(ResponseHeader header) {
+		List<ParserProvider> candidates = providersByVersion.get(versionOf(header.getPayload()));
+		if(candidates != null) {
+			for(ParserProvider provider : candidates) {
+				if(provider.accepts(header)) {
+					return parsers.get(provider);
+				}
+			}
+		}
+		throw new IllegalArgumentException("Suitable parser not found");
+	}
+
+	/**
+	 * @return The names parsers may be looked up by, in order
+	 */
+	public Set<String> getNames() {
+		return Collections.unmodifiableSet(new TreeSet<String>(byName.keySet()));
+	}
+
+	/**
+	 * @return The SOS version of a response with the given payload, or null if it is not an observation response
+	 */
+	private static String versionOf(QName payload) {
+		if(OBSERVATION_COLLECTION.equals(payload)) {
+			return SimpleSOSParser.SOS_V1;
+		}
+		if(GET_OBSERVATION_RESPONSE.equals(payload)) {
+			return SimpleSOSParser.SOS_V2;
+		}
+		return null;
+	}
+
+	/**
+	 * Loads the default registry on first use
+	 */
+	private static class DefaultHolder {
+		private static final ParserRegistry REGISTRY = new ParserRegistry(loadProviders());
+
+		private static List<ParserProvider> loadProviders() {
+			List<ParserProvider> providers = new ArrayList<ParserProvider>();
+			Iterator<ParserProvider> loaded = ServiceLoader.load(ParserProvider.class,
+					ParserRegistry.class.getClassLoader()).iterator();
+			while(true) {
+				try {
+					if(!loaded.hasNext()) {
+						break;
+					}
+					providers.add(loaded.next());
+				} catch(ServiceConfigurationError e) {
+					// a broken provider should not take the others down with it
+					LOGGER.error("Could not load parser provider: " + e.getMessage());
+				}
+			}
+			return providers;
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.io.InputStream;
+
+import org.n52.wps.io.data.IData;
+
+/**
+ * The parser chosen for a response by {@link SimpleSOSParser.Factory#select(InputStream)},
+ * together with a stream that still holds the whole response, including 
+ * the bytes read while choosing.
+ * 
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public class ParserSelection {
+	private final SimpleSOSParser parser;
+	private final InputStream inputStream;
+	
+	public ParserSelection(SimpleSOSParser parser, InputStream inputStream) {
+		this.parser = parser;
+		this.inputStream = inputStream;
+	}
+	
+	/**
+	 * @return The most specific parser available for the response
+	 */
+	public SimpleSOSParser getParser() {
+		return parser;
+	}
+	
+	/**
+	 * @return Stream from the start of the response, to be read in place of the original
+	 */
+	public InputStream getInputStream() {
+		return inputStream;
+	}
+	
+	/**
+	 * Parses the response with the chosen parser
+	 * 
+	 * @return GTVectorDataBinding of the observations
+	 */
+	public IData parse() {
+		return parser.parse(inputStream, "", "");
+	}
+	
+	/**
+	 * Parses the response with the chosen parser, converting only the
+	 * observations which match the filter
+	 * 
+	 * @param filter Which observations to keep, or null to keep all of them
+	 * @return GTVectorDataBinding of the matching observations
+	 */
+	public IData parse(ObservationFilter filter) {
+		return parser.parse(inputStream, filter);
+	}
+}
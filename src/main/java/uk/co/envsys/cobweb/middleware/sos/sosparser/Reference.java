@@ -0,0 +1,60 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+/**
+ * Immutable link to a procedure, observedProperty, featureOfInterest or 
+ * other resource of an observation, detached from the XmlBeans property 
+ * it was read from. Holds the xlink:href and xlink:title; for resources
+ * given inline rather than by reference the href is the name or gml:id 
+ * of the inline element.
+ * 
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public final class Reference {
+	private final String href;
+	private final String title;
+	
+	/**
+	 * @param href The xlink:href, may be null
+	 * @param title The xlink:title, may be null
+	 */
+	public Reference(String href, String title) {
+		this.href = href;
+		this.title = title;
+	}
+	
+	/**
+	 * @return The xlink:href, or identifier of an inline resource
+	 */
+	public String getHref() {
+		return href;
+	}
+	
+	/**
+	 * @return The xlink:title, or null if there is none
+	 */
+	public String getTitle() {
+		return title;
+	}
+	
+	@Override
+	public boolean equals(Object other) {
+		if(!(other instanceof Reference)) {
+			return false;
+		}
+		Reference reference = (Reference) other;
+		return (href == null ? reference.href == null : href.equals(reference.href)) &&
+				(title == null ? reference.title == null : title.equals(reference.title));
+	}
+	
+	@Override
+	public int hashCode() {
+		return (href == null ? 0 : href.hashCode()) * 31 + (title == null ? 0 : title.hashCode());
+	}
+	
+	@Override
+	public String toString() {
+		return title == null ? String.valueOf(href) : href + " (" + title + ")";
+	}
+}
@@ -0,0 +1,132 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.io.ByteArrayInputStream;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * What can be learnt about a SOS response from its first few kilobytes:
+ * the root element, the payload inside a SOAP Body, and the procedure and
+ * featureOfInterest of the first observation. Used to pick a parser
+ * without parsing the whole document.
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public class ResponseHeader {
+	protected static final String XLINK_NS = "http://www.w3.org/1999/xlink";
+	protected static final String OM_20_NS = "http://www.opengis.net/om/2.0";
+	protected static final String OM_10_NS = "http://www.opengis.net/om/1.0";
+
+	private static final XMLInputFactory INPUT_FACTORY = StreamingObservationReader.newInputFactory();
+
+	private QName root;
+	private QName payload;
+	private String procedure;
+	private String featureOfInterestTitle;
+
+	private ResponseHeader() {
+	}
+
+	/**
+	 * Reads what it can from the start of a response. The bytes need not hold
+	 * the whole document; reading simply stops where they run out.
+	 *
+	 * @param prefix Buffer holding the start of the response
+	 * @param length The number of bytes of the buffer in use
+	 * @return ResponseHeader describing the response
+	 */
+	public static ResponseHeader read(byte[] prefix, int length) {
+		ResponseHeader header = new ResponseHeader();
+		XMLStreamReader reader = null;
+		try {
+			reader = INPUT_FACTORY.createXMLStreamReader(new ByteArrayInputStream(prefix, 0, length));
+			header.scan(reader);
+		} catch(XMLStreamException e) {
+			// expected when the prefix ends part way through the document
+		} finally {
+			if(reader != null) {
+				try {
+					reader.close();
+				} catch(XMLStreamException e) {
+					// nothing more to read anyway
+				}
+			}
+		}
+		return header;
+	}
+
+	private void scan(XMLStreamReader reader) throws XMLStreamException {
+		boolean inBody = false;
+		while(reader.hasNext()) {
+			if(reader.next() != XMLStreamConstants.START_ELEMENT) {
+				continue;
+			}
+			QName name = reader.getName();
+			if(root == null) {
+				root = name;
+				if(!isSoap(name, "Envelope")) {
+					payload = name;
+				}
+			} else if(payload == null) {
+				if(isSoap(name, "Body")) {
+					inBody = true;
+				} else if(inBody) {
+					payload = name;
+				}
+			} else if(isObservationElement(name, "procedure")) {
+				procedure = reader.getAttributeValue(XLINK_NS, "href");
+			} else if(isObservationElement(name, "featureOfInterest")) {
+				featureOfInterestTitle = reader.getAttributeValue(XLINK_NS, "title");
+			}
+			if(procedure != null && featureOfInterestTitle != null) {
+				return;
+			}
+		}
+	}
+
+	private boolean isSoap(QName name, String localPart) {
+		return localPart.equals(name.getLocalPart()) &&
+				(StreamingObservationReader.SOAP_12_NS.equals(name.getNamespaceURI()) ||
+				StreamingObservationReader.SOAP_11_NS.equals(name.getNamespaceURI()));
+	}
+
+	private boolean isObservationElement(QName name, String localPart) {
+		return localPart.equals(name.getLocalPart()) &&
+				(OM_20_NS.equals(name.getNamespaceURI()) || OM_10_NS.equals(name.getNamespaceURI()));
+	}
+
+	/**
+	 * @return The document element, or null if none was found
+	 */
+	public QName getRoot() {
+		return root;
+	}
+
+	/**
+	 * @return The first child of the SOAP Body, or the document element when
+	 * the response is not in a SOAP Envelope
+	 */
+	public QName getPayload() {
+		return payload;
+	}
+
+	/**
+	 * @return The xlink:href of the first observation's procedure, if seen
+	 */
+	public String getProcedure() {
+		return procedure;
+	}
+
+	/**
+	 * @return The xlink:title of the first observation's featureOfInterest, if seen
+	 */
+	public String getFeatureOfInterestTitle() {
+		return featureOfInterestTitle;
+	}
+}
@@ -12,24 +12,37 @@
  */
 package uk.co.envsys.cobweb.middleware.sos.sosparser;
 
+import java.io.BufferedInputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
-import net.opengis.om.x10.ObservationCollectionDocument;
-import net.opengis.sos.x20.GetObservationResponseDocument;
-import net.opengis.sos.x20.GetObservationResponseType;
+import javax.xml.namespace.QName;
 
+import org.apache.xmlbeans.SchemaType;
+import org.apache.xmlbeans.SimpleValue;
+import org.apache.xmlbeans.XmlCursor;
 import org.apache.xmlbeans.XmlException;
 import org.apache.xmlbeans.XmlObject;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
-import org.n52.oxf.xmlbeans.tools.SoapUtil;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
 import org.n52.wps.io.data.IData;
 import org.n52.wps.io.data.binding.complex.GTVectorDataBinding;
 import org.n52.wps.io.datahandler.parser.AbstractParser;
+import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.vividsolutions.jts.geom.Geometry;
+
 
 /**
  * Class to provide the facility to parse SOS responses 
@@ -48,14 +61,38 @@ import org.slf4j.LoggerFactory;
 public abstract class SimpleSOSParser extends AbstractParser {
 	
 	// private members, inherited by implementing subclasses
-	protected SimpleFeatureType type;
-	protected SimpleFeatureBuilder featureBuilder;
+	// parsers hold settings only: the state of each parse is kept in a ParseContext
 	protected static Logger LOGGER = LoggerFactory.getLogger(SimpleSOSParser.class);
 	protected boolean strictMode = true;
+	protected boolean lazy = false;
+	protected boolean columnar = false;
+	protected long aggregationWindow = 0;
+	protected boolean detached = false;
+	protected boolean geometry = false;
+	protected ForkJoinPool conversionPool = null;
+	protected int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+	protected FeatureTypeCache typeCache = FeatureTypeCache.getDefault();
+	protected InternTable internTable = null;
+	protected ParseMetrics metrics = null;
+	private boolean shared = false;
 	
 	protected static final String SOS_V1 = "1.0.0";
 	protected static final String SOS_V2 = "2.0.0";
 	protected static final String SOCIAL_SENSOR = "UCD_SOCIAL";
+	protected static final int DEFAULT_PARALLEL_THRESHOLD = 1000;
+	protected static final String GEOMETRY = "geometry";
+	
+	private static final QName XLINK_HREF = new QName("http://www.w3.org/1999/xlink", "href");
+	private static final QName XLINK_TITLE = new QName("http://www.w3.org/1999/xlink", "title");
+	private static final QName GML_ID = new QName("http://www.opengis.net/gml", "id");
+	private static final QName GML_32_ID = new QName("http://www.opengis.net/gml/3.2", "id");
+	// decoders keep the last prefix and zone seen, so each thread has its own
+	private static final ThreadLocal<IsoTimeDecoder> TIME_DECODER = new ThreadLocal<IsoTimeDecoder>() {
+		@Override
+		protected IsoTimeDecoder initialValue() {
+			return new IsoTimeDecoder();
+		}
+	};
 	
 	
 	protected SimpleSOSParser() { // protected constructor, will use factory  
@@ -63,15 +100,373 @@ public abstract class SimpleSOSParser extends AbstractParser {
 		supportedIDataTypes.add(GTVectorDataBinding.class); 
 	} 
 	
-	protected void SetStrictMode(boolean strict) {
+	/**
+	 * Sets whether an observation that cannot be converted fails the whole parse,
+	 * the default, or is skipped. When not strict the remaining observations are
+	 * returned as usual and each one skipped is recorded in a {@link ParseErrorReport},
+	 * which may be passed to {@link #parse(InputStream, ObservationFilter, ParseErrorReport)}.
+	 * A response which cannot be read at all still fails.
+	 * 
+	 * @param strict false to skip invalid observations
+	 */
+	public void SetStrictMode(boolean strict) {
+		checkConfigurable();
 		strictMode = strict;
 	}
 	
+	/**
+	 * Adds the geometry attribute to a FeatureType being built, if geometries are decoded
+	 * 
+	 * @param builder The builder of the FeatureType
+	 */
+	protected void addGeometryAttribute(SimpleFeatureTypeBuilder builder) {
+		if(geometry) {
+			builder.add(GEOMETRY, Geometry.class, DefaultGeographicCRS.WGS84);
+			builder.setDefaultGeometry(GEOMETRY);
+		}
+	}
+	
+	/**
+	 * @return The start of the FeatureType cache keys for the settings of this parser
+	 */
+	protected String typeKeyPrefix() {
+		return (detached ? "detached:" : "") + (geometry ? "geometry:" : "");
+	}
+	
+	/**
+	 * Marks a parser as shared between callers, so that its settings are fixed
+	 * 
+	 * @param parser A parser with the settings to share it with
+	 * @return The same parser
+	 */
+	static SimpleSOSParser share(SimpleSOSParser parser) {
+		parser.shared = true;
+		return parser;
+	}
+	
+	/**
+	 * Checks that the settings of this parser may be changed. The parsers 
+	 * returned by the Factory are shared between all callers, so their 
+	 * settings are fixed; create a new parser to use other settings.
+	 * 
+	 * @throws IllegalStateException if this parser is shared
+	 */
+	protected void checkConfigurable() {
+		if(shared) {
+			throw new IllegalStateException("Shared parser from SimpleSOSParser.Factory cannot be reconfigured, " +
+					"create a new parser instead");
+		}
+	}
+	
+	/**
+	 * Checks that settings ask for one kind of output. Aggregation, columnar mode,
+	 * lazy mode and parallel conversion each return their own kind of collection,
+	 * and detached features and geometries only apply to features, which neither
+	 * aggregation nor columnar mode builds.
+	 * 
+	 * @throws IllegalStateException if two of the settings conflict
+	 */
+	private static void checkModes(long aggregationWindow, boolean columnar, boolean lazy, 
+			ForkJoinPool conversionPool, boolean detached, boolean geometry) {
+		List<String> modes = new ArrayList<String>();
+		if(aggregationWindow > 0) {
+			modes.add("aggregation");
+		}
+		if(columnar) {
+			modes.add("columnar mode");
+		}
+		if(lazy) {
+			modes.add("lazy mode");
+		}
+		if(conversionPool != null) {
+			modes.add("parallel conversion");
+		}
+		if(modes.size() < 2 && (aggregationWindow > 0 || columnar)) {
+			if(detached) {
+				modes.add("detached features");
+			}
+			if(geometry) {
+				modes.add("geometries");
+			}
+		}
+		if(modes.size() > 1) {
+			IllegalStateException e = new IllegalStateException("Cannot combine " + modes.get(0) + " with " + modes.get(1));
+			LOGGER.error(e.getMessage());
+			throw e;
+		}
+	}
+	
+	/**
+	 * Sets whether parsed observations are returned as a collection which
+	 * only converts them to features as they are iterated, rather than as
+	 * a list of features built up front. In lazy mode conversion problems
+	 * surface as IllegalArgumentExceptions from the collection's iterator.
+	 * When the response is streamed the collection can only be read once, and
+	 * its size is -1 and its bounds empty until it has been read to the end.
+	 * Cannot be combined with columnar mode, aggregation or a conversion pool.
+	 * 
+	 * @param lazy true to convert observations on demand
+	 * @throws IllegalStateException if another of those is set
+	 */
+	public void setLazy(boolean lazy) {
+		checkConfigurable();
+		checkModes(aggregationWindow, columnar, lazy, conversionPool, detached, geometry);
+		this.lazy = lazy;
+	}
+	
+	/**
+	 * Sets whether parsed observations are written to an {@link ObservationColumns}
+	 * store of primitive arrays rather than converted to features. The returned
+	 * binding then holds an {@link ObservationColumnsFeatureCollection}, which
+	 * gives access to the store and presents it as features without copying.
+	 * Cannot be combined with aggregation, lazy mode, a conversion pool,
+	 * detached features or geometries.
+	 * 
+	 * @param columnar true to parse observations into columns
+	 * @throws IllegalStateException if another of those is set
+	 */
+	public void setColumnar(boolean columnar) {
+		checkConfigurable();
+		checkModes(aggregationWindow, columnar, lazy, conversionPool, detached, geometry);
+		this.columnar = columnar;
+	}
+	
+	/**
+	 * Sets a window of phenomenonTime into which observations are binned while
+	 * they are parsed, for each procedure and observedProperty, keeping only the
+	 * count, minimum, maximum and sum of their numeric results; for the 
+	 * {@link SocialSOSParser} the result is the sentiment. No feature is built
+	 * for an observation, and the returned binding holds an 
+	 * {@link ObservationAggregatesFeatureCollection} of one feature per bucket.
+	 * With a streaming parser the observations themselves are never held either.
+	 * Cannot be combined with columnar mode, lazy mode, a conversion pool,
+	 * detached features or geometries.
+	 * 
+	 * @param window The length of each window in milliseconds, or 0 to not aggregate
+	 * @throws IllegalStateException if another of those is set
+	 */
+	public void setAggregationWindow(long window) {
+		checkConfigurable();
+		if(window < 0) {
+			throw new IllegalArgumentException("Aggregation window must not be negative: " + window);
+		}
+		checkModes(window, columnar, lazy, conversionPool, detached, geometry);
+		this.aggregationWindow = window;
+	}
+	
+	/**
+	 * Sets whether features hold small immutable values in place of the XmlBeans
+	 * objects of the response: {@link ObservationTime}s for times, {@link Reference}s
+	 * for linked resources, Doubles or Strings for results, and XML text for any
+	 * other elements. Nothing then refers back to the parsed document, which can
+	 * be garbage collected as soon as the parse is over. Features of the
+	 * {@link SocialSOSParser} hold only decoded values already. Cannot be combined
+	 * with columnar mode or aggregation, which build no features.
+	 * 
+	 * @param detached true to detach features from the parsed document
+	 * @throws IllegalStateException if either of those is set
+	 */
+	public void setDetached(boolean detached) {
+		checkConfigurable();
+		checkModes(aggregationWindow, columnar, lazy, conversionPool, detached, geometry);
+		this.detached = detached;
+	}
+	
+	/**
+	 * Sets whether features have a "geometry" attribute, the default geometry,
+	 * decoded from the sampling feature of their featureOfInterest, or for O&amp;M 1.0
+	 * from their location or boundedBy if the featureOfInterest has none. 
+	 * Geometries are in WGS84 with longitude as x; see {@link GeometryDecoder}. 
+	 * Observations of the same feature of interest share one geometry.
+	 * 
+	 * Parses converted into a list of features then return an {@link IndexedFeatureCollection}, 
+	 * which finds the features within a bounding box from a spatial index. Features of 
+	 * the {@link SocialSOSParser} have no geometry. Cannot be combined with columnar
+	 * mode or aggregation, which build no features.
+	 * 
+	 * @param geometry true to decode geometries and index the features by them
+	 * @throws IllegalStateException if either of those is set
+	 */
+	public void setGeometry(boolean geometry) {
+		checkConfigurable();
+		checkModes(aggregationWindow, columnar, lazy, conversionPool, detached, geometry);
+		this.geometry = geometry;
+	}
+	
+	/**
+	 * Sets where measurements of each parse are sent: bytes read, time spent
+	 * parsing the document, finding its observations, building the FeatureType
+	 * and converting each observation, and failures. With no metrics, the
+	 * default, nothing is measured.
+	 * 
+	 * @param metrics Receiver of the measurements, or null for none
+	 */
+	public void setMetrics(ParseMetrics metrics) {
+		checkConfigurable();
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Sets a ForkJoinPool on which to convert observations to features in 
+	 * parallel, with a feature builder for each worker. The features keep the
+	 * order of the observations in the response. Cannot be combined with lazy
+	 * mode, columnar mode or aggregation.
+	 * 
+	 * Note that XmlBeans serialises access to any one parsed document, so
+	 * conversion scales best when streaming, where each observation is 
+	 * loaded on its own.
+	 * 
+	 * @param pool The pool to use, or null to convert on the calling thread only
+	 * @throws IllegalStateException if another of those is set
+	 */
+	public void setConversionPool(ForkJoinPool pool) {
+		checkConfigurable();
+		checkModes(aggregationWindow, columnar, lazy, pool, detached, geometry);
+		this.conversionPool = pool;
+	}
+	
+	/**
+	 * Sets the number of observations below which conversion stays on the 
+	 * calling thread even when a conversion pool is set, as splitting small 
+	 * responses costs more than it saves. 
+	 * 
+	 * @param threshold The minimum number of observations to convert in parallel
+	 */
+	public void setParallelThreshold(int threshold) {
+		checkConfigurable();
+		this.parallelThreshold = threshold;
+	}
+	
+	/**
+	 * Sets the cache of FeatureTypes to share between parses. By default
+	 * all parsers use {@link FeatureTypeCache#getDefault()}.
+	 * 
+	 * @param typeCache The cache to use, or null to build a new FeatureType every parse
+	 */
+	public void setTypeCache(FeatureTypeCache typeCache) {
+		checkConfigurable();
+		this.typeCache = typeCache;
+	}
+	
+	/**
+	 * Sets a table of shared hrefs and titles to use for every parse, so that
+	 * features from different responses share them too. By default each parse
+	 * has a table of its own, of at most {@link InternTable#DEFAULT_MAX_SIZE} values.
+	 * A shared table is emptied whenever it fills, so size it to hold the
+	 * distinct values of the offerings parsed.
+	 * 
+	 * @param internTable The table to share between parses, or null for one per parse
+	 */
+	public void setInternTable(InternTable internTable) {
+		checkConfigurable();
+		this.internTable = internTable;
+	}
+	
+	/**
+	 * Looks up a FeatureType made by an earlier parse
+	 * 
+	 * @param key Identifies the parser and the optional elements present
+	 * @return The cached FeatureType, or null if it must be built
+	 */
+	protected SimpleFeatureType getCachedType(String key) {
+		return typeCache == null ? null : typeCache.get(key);
+	}
+	
+	/**
+	 * Keeps a newly built FeatureType for later parses
+	 * 
+	 * @param key Identifies the parser and the optional elements present
+	 * @param type The FeatureType that was built
+	 * @return The FeatureType to use, which is the cached one if another thread got there first
+	 */
+	protected SimpleFeatureType cacheType(String key, SimpleFeatureType type) {
+		return typeCache == null ? type : typeCache.put(key, type);
+	}
+	
 	// must be implemented by subclasses
-	protected abstract GTVectorDataBinding parseXML(XmlObject document);
+	protected abstract GTVectorDataBinding parseXML(XmlObject document, ObservationFilter filter, 
+			ParseErrorReport errors);
+	
+	protected GTVectorDataBinding parseXML(XmlObject document, ObservationFilter filter) {
+		return parseXML(document, filter, null);
+	}
+	
+	protected GTVectorDataBinding parseXML(XmlObject document) {
+		return parseXML(document, null, null);
+	}
 
 	// implement the IParser interface, for integration with WPS stack
 	public IData parse(InputStream input, String mimeType, String schema) {
+		return parse(input, (ObservationFilter) null);
+	}
+	
+	/**
+	 * Parses a response, converting only the observations which match the filter.
+	 * The filter is checked against each raw observation before a feature is built
+	 * for it, which saves most of the work of parsing when few observations match.
+	 * 
+	 * @param input The InputStream containing the SOS response
+	 * @param filter Which observations to keep, or null to keep all of them
+	 * @return GTVectorDataBinding of the matching observations
+	 */
+	public IData parse(InputStream input, ObservationFilter filter) {
+		return parse(input, filter, null);
+	}
+	
+	/**
+	 * Parses a response, converting only the observations which match the filter.
+	 * When strict mode is off, observations which cannot be converted are left out
+	 * and recorded in the error report.
+	 * 
+	 * @param input The InputStream containing the SOS response
+	 * @param filter Which observations to keep, or null to keep all of them
+	 * @param errors Where to record skipped observations, or null to only log them
+	 * @return GTVectorDataBinding of the matching observations
+	 */
+	public IData parse(InputStream input, ObservationFilter filter, ParseErrorReport errors) {
+		if(metrics == null) {
+			return parseStream(input, filter, errors);
+		}
+		long start = System.nanoTime();
+		CountingInputStream counted = new CountingInputStream(input);
+		try {
+			IData data = parseStream(counted, filter, errors);
+			metrics.parseCompleted(countObservations(data), System.nanoTime() - start);
+			return data;
+		} catch(RuntimeException e) {
+			metrics.parseFailed(e);
+			throw e;
+		} finally {
+			metrics.bytesRead(counted.getCount());
+		}
+	}
+	
+	/**
+	 * Publishes the features of a response as a subscriber requests them, rather
+	 * than parsing it all before returning. In lazy mode each observation is only
+	 * converted when requested, and when streaming too the input is only read that
+	 * far. See {@link ObservationPublisher}.
+	 * 
+	 * @param input The InputStream containing the SOS response, closed once it has been published
+	 * @param filter Which observations to publish, or null to publish all of them
+	 * @param errors Where to record skipped observations, or null to only log them
+	 * @return Publisher of the matching observations, for a single subscriber
+	 */
+	public ObservationPublisher publish(InputStream input, ObservationFilter filter, ParseErrorReport errors) {
+		return new ObservationPublisher(this, input, filter, errors);
+	}
+	
+	/**
+	 * Parses a response into an XmlObject document, then its observations into 
+	 * features. Subclasses may override this to read the stream another way.
+	 * 
+	 * @param input The InputStream containing the SOS response
+	 * @param filter Which observations to keep, or null to keep all of them
+	 * @param errors Where to record skipped observations, may be null
+	 * @return GTVectorDataBinding of the matching observations
+	 */
+	protected IData parseStream(InputStream input, ObservationFilter filter, ParseErrorReport errors) {
+		long start = metrics == null ? 0 : System.nanoTime();
 		XmlObject doc;
 		try {
 			doc = XmlObject.Factory.parse(input);
@@ -80,76 +475,586 @@ public abstract class SimpleSOSParser extends AbstractParser {
 		} catch (IOException e) {
 			throw new IllegalArgumentException("Error transferring XML", e);
 		}
-		return parseXML(doc);
+		if(metrics != null) {
+			metrics.documentParsed(System.nanoTime() - start);
+		}
+		return parseXML(doc, filter, errors);
+	}
+	
+	/**
+	 * @return The number of features parsed, or -1 if they are converted lazily
+	 */
+	private static int countObservations(IData data) {
+		Object payload = data instanceof GTVectorDataBinding ? ((GTVectorDataBinding) data).getPayload() : null;
+		if(payload == null || payload instanceof ObservationFeatureCollection) {
+			return -1;
+		}
+		return ((GTVectorDataBinding) data).getPayload().size();
+	}
+	
+	/**
+	 * Converts observations to features, either straight away into a list,
+	 * possibly in parallel, or in lazy mode on demand as the returned 
+	 * collection is iterated. Outside strict mode observations which cannot
+	 * be converted are skipped, and recorded in the error report by their 
+	 * position among the observations passing the filter.
+	 * 
+	 * @param source The observations to convert
+	 * @param converter How to convert observations of this type
+	 * @param filter Which observations to convert, or null for all of them
+	 * @param errors Where to record skipped observations, may be null
+	 * @return GTVectorDataBinding wrapping the FeatureCollection
+	 * @throws XmlException if any required elements were not found during parsing in strict mode
+	 */
+	protected <T> GTVectorDataBinding parseObservations(ObservationSource<T> source, 
+			ObservationConverter<T> converter, ObservationFilter filter, ParseErrorReport errors) throws XmlException {
+		if(filter != null) {
+			source = new FilteredObservationSource<T>(source, converter, filter);
+		}
+		// a null report means invalid observations fail the parse
+		ParseErrorReport report = strictMode ? null : (errors != null ? errors : new ParseErrorReport());
+		InternTable interns = internTable != null ? internTable : new InternTable(InternTable.DEFAULT_MAX_SIZE);
+		// one table for the whole parse, so that contexts made along the way share it
+		GeometryTable geometries = new GeometryTable(GeometryTable.DEFAULT_MAX_SIZE);
+		Iterator<T> observations = source.open();
+		try {
+			// the setters allow at most one of aggregation, columnar, lazy and parallel conversion
+			if(aggregationWindow > 0) {
+				ObservationAggregates aggregates = new ObservationAggregates(aggregationWindow);
+				appendAll(observations, converter, aggregates.pending(), aggregates, report);
+				return new GTVectorDataBinding(new ObservationAggregatesFeatureCollection(aggregates));
+			}
+			
+			if(columnar) {
+				ObservationColumns columns = new ObservationColumns();
+				appendAll(observations, converter, columns, null, report);
+				return new GTVectorDataBinding(new ObservationColumnsFeatureCollection(columns));
+			}
+			
+			if(lazy && observations.hasNext()) {
+				// the schema comes from the first observation, which is handed back to the collection,
+				// and the optional elements of all of them, as features cannot be rebuilt once handed out
+				int shape = scanShapes(source, converter);
+				int index = 0;
+				T first = observations.next();
+				SimpleFeatureType lazyType = createType(converter, first, shape, report, index);
+				while(lazyType == null && observations.hasNext()) {
+					first = observations.next();
+					lazyType = createType(converter, first, shape, report, ++index);
+				}
+				if(lazyType != null) {
+					ObservationSource<T> peeked = new ObservationFeatureCollection.PeekedSource<T>(source, first, observations);
+					observations = null; // now belongs to the collection
+					return new GTVectorDataBinding(new ObservationFeatureCollection<T>(lazyType, peeked, 
+							converter, typeCache, interns, report, index));
+				}
+			}
+			
+			if(conversionPool != null) {
+				// gather the observations so that they can be shared out between workers
+				List<T> pending = new ArrayList<T>();
+				int shape = 0;
+				while(observations.hasNext()) {
+					T observation = observations.next();
+					shape |= converter.shapeOf(observation);
+					pending.add(observation);
+				}
+				if(!pending.isEmpty() && pending.size() >= parallelThreshold) {
+					int first = 0;
+					SimpleFeatureType type = createType(converter, pending.get(first), shape, report, first);
+					while(type == null && ++first < pending.size()) {
+						type = createType(converter, pending.get(first), shape, report, first);
+					}
+					if(type == null) {
+						return new GTVectorDataBinding(new ListFeatureCollection((SimpleFeatureType) null));
+					}
+					if(type.getGeometryDescriptor() != null) {
+						keepGeometries(pending, converter, type, interns, geometries);
+					}
+					SimpleFeature[] features = ObservationConversionTask.convert(conversionPool, pending, first, 
+							converter, type, typeCache, interns, geometries, report);
+					// skipped observations leave gaps in the array
+					List<SimpleFeature> converted = new ArrayList<SimpleFeature>(features.length);
+					for(SimpleFeature feature : features) {
+						if(feature != null) {
+							converted.add(feature);
+						}
+					}
+					return new GTVectorDataBinding(listCollection(type, converted));
+				}
+				return convertObservations(pending.iterator(), converter, interns, geometries, report);
+			}
+			return convertObservations(observations, converter, interns, geometries, report);
+		} finally {
+			close(observations);
+		}
+	}
+	
+	/**
+	 * Adds each observation as a row of a columnar store, skipping those which cannot be read
+	 * 
+	 * @param sink The store to add the rows to
+	 * @param aggregates The aggregates the store is the buffer of, folded whenever it fills
+	 * and once at the end, or null to keep every row in the store
+	 * @throws XmlException if an observation cannot be read in strict mode
+	 */
+	private <T> void appendAll(Iterator<T> observations, ObservationConverter<T> converter, 
+			ObservationColumns sink, ObservationAggregates aggregates, ParseErrorReport report) throws XmlException {
+		for(int index = 0; observations.hasNext(); index++) {
+			T observation = observations.next();
+			long start = metrics == null ? 0 : System.nanoTime();
+			try {
+				// a row is only added once the whole observation has been read
+				converter.appendTo(observation, sink);
+			} catch(Exception e) {
+				skip(report, index, converter, observation, e);
+				continue;
+			}
+			if(aggregates != null && sink.size() >= ObservationAggregates.FOLD_SIZE) {
+				aggregates.fold();
+			}
+			if(metrics != null) {
+				metrics.observationConverted(System.nanoTime() - start);
+			}
+		}
+		if(aggregates != null) {
+			aggregates.fold();
+		}
+	}
+	
+	private static void close(Iterator<?> observations) {
+		if(observations instanceof Closeable) {
+			try {
+				((Closeable) observations).close();
+			} catch (IOException e) {
+				LOGGER.warn("Problem closing observations: {}", e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Decodes the features of interest given inline, in the order of the response,
+	 * before the observations are shared out between workers. Each worker can then
+	 * resolve a reference to a feature whichever chunk the feature was given in.
+	 */
+	private static <T> void keepGeometries(List<T> observations, ObservationConverter<T> converter, 
+			SimpleFeatureType type, InternTable interns, GeometryTable geometries) {
+		ParseContext context = new ParseContext(type, null, interns, geometries);
+		for(T observation : observations) {
+			featureGeometry(converter.getFeatureOfInterest(observation), context);
+		}
+	}
+	
+	/**
+	 * Reads through the observations of a source to find which optional elements
+	 * any of them have, without converting them
+	 * 
+	 * @return The shape of all the observations, or -1 for every optional element 
+	 * if the source cannot be read again
+	 */
+	private static <T> int scanShapes(ObservationSource<T> source, ObservationConverter<T> converter) {
+		if(!source.isRepeatable()) {
+			return -1;
+		}
+		Iterator<T> observations = source.open();
+		try {
+			int shape = 0;
+			while(observations.hasNext()) {
+				shape |= converter.shapeOf(observations.next());
+			}
+			return shape;
+		} finally {
+			close(observations);
+		}
+	}
+	
+	/**
+	 * Builds the FeatureType from an observation, or outside strict mode records 
+	 * the observation as skipped if it cannot be built from
+	 * 
+	 * @return The FeatureType, or null if the observation was skipped
+	 */
+	private <T> SimpleFeatureType createType(ObservationConverter<T> converter, T observation, int shape,
+			ParseErrorReport report, int index) throws XmlException {
+		if(report == null) {
+			return createType(converter, observation, shape);
+		}
+		try {
+			return createType(converter, observation, shape);
+		} catch(Exception e) {
+			skip(report, index, converter, observation, e);
+			return null;
+		}
+	}
+	
+	private <T> SimpleFeatureType createType(ObservationConverter<T> converter, T observation, int shape) 
+			throws XmlException {
+		if(metrics == null) {
+			return converter.createType(observation, shape);
+		}
+		long start = System.nanoTime();
+		SimpleFeatureType type = converter.createType(observation, shape);
+		metrics.typeBuilt(System.nanoTime() - start);
+		return type;
+	}
+	
+	private <T> GTVectorDataBinding convertObservations(Iterator<T> observations, 
+			ObservationConverter<T> converter, InternTable interns, GeometryTable geometries, 
+			ParseErrorReport report) throws XmlException {
+		// make a list to store the features
+		List<SimpleFeature> simpleFeatureList = new ArrayList<SimpleFeature>();
+		ParseContext context = null;
+		int shape = 0;
+		
+		try {
+			for(int index = 0; observations.hasNext(); index++) {
+				T observation = observations.next();
+				int observationShape = converter.shapeOf(observation);
+				if(context == null || (observationShape & ~shape) != 0) {
+					// create the feature type (schema) based on first observation, widening it 
+					// whenever an observation has optional elements not seen before
+					SimpleFeatureType type = createType(converter, observation, shape | observationShape, report, index);
+					if(type == null) {
+						continue;
+					}
+					shape |= observationShape;
+					if(context != null) {
+						context.release();
+						context = null;
+						for(int i = 0; i < simpleFeatureList.size(); i++) {
+							simpleFeatureList.set(i, SimpleFeatureBuilder.retype(simpleFeatureList.get(i), type));
+						}
+					}
+					context = new ParseContext(type, typeCache, interns, geometries);
+				}
+				// build the feature from the type and add it to the list
+				long start = metrics == null ? 0 : System.nanoTime();
+				SimpleFeature feature;
+				try {
+					feature = converter.convertToFeature(observation, context);
+				} catch(Exception e) {
+					skip(report, index, converter, observation, e);
+					context.getFeatureBuilder().reset();
+					continue;
+				}
+				if(metrics != null) {
+					metrics.observationConverted(System.nanoTime() - start);
+				}
+				simpleFeatureList.add(feature);
+			}
+		} finally {
+			if(context != null) {
+				context.release();
+			}
+		}
+		
+		SimpleFeatureType type = context == null ? null : context.getType();
+		return new GTVectorDataBinding(listCollection(type, simpleFeatureList));
+	}
+	
+	/**
+	 * @return The features as a collection, indexed by their geometries if they have them
+	 */
+	private SimpleFeatureCollection listCollection(SimpleFeatureType type, List<SimpleFeature> features) {
+		if(geometry && type != null && type.getGeometryDescriptor() != null) {
+			return new IndexedFeatureCollection(type, features);
+		}
+		return new ListFeatureCollection(type, features);
+	}
+	
+	/**
+	 * Records an observation which could not be converted, or in strict mode
+	 * rethrows the problem
+	 */
+	static <T> void skip(ParseErrorReport report, int index, ObservationConverter<T> converter, 
+			T observation, Exception e) throws XmlException {
+		if(report == null) {
+			throw rethrow(e);
+		}
+		record(report, index, converter, observation, e);
+	}
+	
+	/**
+	 * Records an observation which could not be converted
+	 */
+	static <T> void record(ParseErrorReport report, int index, ObservationConverter<T> converter, 
+			T observation, Exception e) {
+		String id;
+		try {
+			id = converter.getId(observation);
+		} catch(RuntimeException idException) {
+			id = null;
+		}
+		report.add(index, id, e);
+	}
+	
+	/**
+	 * @return The XmlException to throw, after throwing any RuntimeException directly
+	 */
+	private static XmlException rethrow(Exception e) {
+		if(e instanceof RuntimeException) {
+			throw (RuntimeException) e;
+		}
+		if(e instanceof XmlException) {
+			return (XmlException) e;
+		}
+		return new XmlException(e.getMessage(), e);
 	}
 	
 	/**
 	 * Static factory class to return concrete implementations of the SOS parser
 	 * based on the desired version or input stream properties
 	 * 
+	 * The parsers keep no state between calls, so the factory hands out one
+	 * shared, thread-safe instance of each with the default settings, from
+	 * the {@link ParserRegistry} of the parser providers on the classpath.
+	 * 
 	 * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
 	 * Copyright (c) 2015 - Environment Systems
 	 *
 	 */
 	public static class Factory {
+		// enough to reach the first observation of a response
+		private static final int SNIFF_LENGTH = 8192;
+		
 		/**
-		 * Returns a concrete parser implementation based on the
-		 * SOS version number supplied as a string
+		 * Returns the shared parser registered under a name, which
+		 * for the generic parsers is the SOS version number
 		 * 
 		 * @param version - A String containing the version number
-		 * "1.0.0" and "2.0.0" are currently allowed
-		 * @return an instantiated SimpleSOSParser for the requested
+		 * "1.0.0" and "2.0.0", or the name of a more specific parser
+		 * such as "UCD_SOCIAL"
+		 * @return the shared SimpleSOSParser for the requested
 		 * version of SOS
-		 * 
+		 * @see ParserRegistry
 		 */
 		public static SimpleSOSParser getParser(String version) {
-			if(version == SOS_V1) {
-				return new SimpleSOSParser_100();
-			} else if(version == SOS_V2) {
-				return new SimpleSOSParser_200();
-			} else if (version == SOCIAL_SENSOR) {
-				return new SocialSOSParser();
-			} else {
-				throw new IllegalArgumentException("Only " + SOS_V1 + ", " + SOS_V2 + " and " + SOCIAL_SENSOR + " supported.");
-			}
+			return ParserRegistry.getDefault().getParser(version);
 		}
 		
 		/**
 		 * Returns a concrete parser implementation based on the
-		 * InputStream provided. The input stream is analysed and
+		 * InputStream provided. The start of the input stream is analysed and
 		 * the most specific parser available is returned.
 		 * 
+		 * The bytes read are lost to the stream; use {@link #select(InputStream)}
+		 * to go on to parse the same stream.
+		 * 
 		 * @param is The InputStream to return a parser for
-		 * @return An instantiated SimpleSOSParser for the input stream
+		 * @return The shared SimpleSOSParser for the input stream
 		 */
 		public static SimpleSOSParser getParser(InputStream is) {
-			// try and parse input stream as XML
-			XmlObject doc;
+			return select(is).getParser();
+		}
+		
+		/**
+		 * Chooses a parser from the first few kilobytes of the InputStream: the root 
+		 * element, the payload of any SOAP Body, and the procedure and featureOfInterest
+		 * of the first observation, which mark responses from the UCD social sensor.
+		 * The document itself is not parsed.
+		 * 
+		 * @param is The InputStream to return a parser for
+		 * @return ParserSelection holding the shared parser and a stream to read
+		 * the whole response from
+		 */
+		public static ParserSelection select(InputStream is) {
+			BufferedInputStream buffered = new BufferedInputStream(is, SNIFF_LENGTH);
+			byte[] prefix = new byte[SNIFF_LENGTH];
+			int length = 0;
 			try {
-				doc = XmlObject.Factory.parse(is);
-			} catch (XmlException e) {
-				throw new IllegalArgumentException("Error parseing XML", e);
+				buffered.mark(SNIFF_LENGTH);
+				int read;
+				while(length < SNIFF_LENGTH && (read = buffered.read(prefix, length, SNIFF_LENGTH - length)) != -1) {
+					length += read;
+				}
+				buffered.reset();
 			} catch (IOException e) {
 				throw new IllegalArgumentException("Error transferring XML", e);
 			}
-			
-			// Check if it can be transformed into O&M 1 or O&M 2
-			if(!doc.schemaType().isAssignableFrom(ObservationCollectionDocument.type)) {
-				// O&M 1
-				return new SimpleSOSParser_100();
+			return new ParserSelection(getParser(ResponseHeader.read(prefix, length)), buffered);
+		}
+		
+		private static SimpleSOSParser getParser(ResponseHeader header) {
+			return ParserRegistry.getDefault().getParser(header);
+		}
+	}
+	
+	/**
+	 * Utility function to read an ISO 8601 time position, as used by gml:timePosition,
+	 * gml:beginPosition and gml:endPosition
+	 * 
+	 * @param time The text of the time position
+	 * @return long milliseconds since the epoch
+	 * @throws IllegalArgumentException if the text is not an ISO 8601 date and time
+	 */
+	protected static long parseTime(String time) {
+		return TIME_DECODER.get().decode(time);
+	}
+	
+	/**
+	 * Utility function to read an observation result as a number, where it
+	 * has simple content, e.g. a gml:MeasureType or xs:double result
+	 * 
+	 * @param result The result element
+	 * @return double value of the result, or NaN if it is not a number
+	 */
+	protected static double numericValue(XmlObject result) {
+		if(result == null) {
+			return Double.NaN;
+		}
+		SchemaType type = result.schemaType();
+		if(!type.isSimpleType() && type.getContentType() != SchemaType.SIMPLE_CONTENT) {
+			return Double.NaN;
+		}
+		try {
+			return Double.parseDouble(((SimpleValue) result).getStringValue().trim());
+		} catch(NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+	
+	/**
+	 * Utility function to detach an xlink property, such as a procedure or 
+	 * featureOfInterest, from the document. Where the resource is given inline 
+	 * rather than by xlink:href, its gml:name or gml:identifier is used as the 
+	 * href, or failing those its gml:id.
+	 * 
+	 * @param property The property element, may be null
+	 * @param context The context of the current parse, to intern the values with
+	 * @return Reference holding the href and title, or null for a null property
+	 */
+	protected static Reference detachReference(XmlObject property, ParseContext context) {
+		if(property == null) {
+			return null;
+		}
+		XmlCursor cursor = property.newCursor();
+		try {
+			String href = cursor.getAttributeText(XLINK_HREF);
+			String title = cursor.getAttributeText(XLINK_TITLE);
+			if(href == null && cursor.toFirstChild()) {
+				href = inlineIdentifier(cursor);
 			}
-			
-			if(SoapUtil.isSoapEnvelope(doc) &&
-					GetObservationResponseType.type.equals(SoapUtil.getSchemaTypeOfXmlPayload(doc))) {
-				return new SimpleSOSParser_200();
-			} else if(doc.schemaType().isAssignableFrom(GetObservationResponseDocument.type)) {
-				return new SimpleSOSParser_200();
-			} else {
-				throw new IllegalArgumentException("Suitable parser not found");
+			return new Reference(context.intern(href), context.intern(title));
+		} finally {
+			cursor.dispose();
+		}
+	}
+	
+	/**
+	 * Utility function to find the geometry of a featureOfInterest property. A
+	 * feature given inline is decoded once per parse and kept under its gml:id,
+	 * and its gml:identifier or first gml:name, so that later observations of the 
+	 * same feature, whether inline or by xlink:href, share the same Geometry.
+	 * 
+	 * @param property The featureOfInterest element, may be null
+	 * @param context The context of the current parse, to keep the geometries in
+	 * @return Geometry of the feature, or null if it has none that can be decoded
+	 */
+	protected static Geometry featureGeometry(XmlObject property, ParseContext context) {
+		if(property == null) {
+			return null;
+		}
+		XmlCursor cursor = property.newCursor();
+		try {
+			String href = cursor.getAttributeText(XLINK_HREF);
+			if(href != null) {
+				return context.getGeometry(href);
 			}
-			
-			// TODO: Return the SocialSOSParser sometimes
+			if(!cursor.toFirstChild()) {
+				return null;
+			}
+			String id = cursor.getAttributeText(GML_ID);
+			if(id == null) {
+				id = cursor.getAttributeText(GML_32_ID);
+			}
+			id = id == null ? null : "#" + id;
+			String name = null;
+			if(cursor.toFirstChild()) {
+				name = inlineName(cursor);
+				cursor.toParent();
+			}
+			Geometry geometry = context.getGeometry(id);
+			if(geometry == null) {
+				geometry = context.getGeometry(name);
+			}
+			if(geometry == null) {
+				geometry = context.putGeometry(id, GeometryDecoder.decode(cursor.getObject()));
+				context.putGeometry(name, geometry);
+			}
+			return geometry;
+		} finally {
+			cursor.dispose();
+		}
+	}
+	
+	private static String inlineIdentifier(XmlCursor cursor) {
+		String id = cursor.getAttributeText(GML_ID);
+		if(id == null) {
+			id = cursor.getAttributeText(GML_32_ID);
+		}
+		if(cursor.toFirstChild()) {
+			String name = inlineName(cursor);
+			if(name != null) {
+				return name;
+			}
+		}
+		return id == null ? null : "#" + id;
+	}
+	
+	/**
+	 * @return The text of the first gml:name or gml:identifier from the element 
+	 * at the cursor onwards, or null if there is none
+	 */
+	private static String inlineName(XmlCursor cursor) {
+		do {
+			QName name = cursor.getName();
+			if(("name".equals(name.getLocalPart()) || "identifier".equals(name.getLocalPart())) &&
+					(GML_ID.getNamespaceURI().equals(name.getNamespaceURI()) ||
+					GML_32_ID.getNamespaceURI().equals(name.getNamespaceURI()))) {
+				String text = cursor.getTextValue().trim();
+				if(text.length() > 0) {
+					return text;
+				}
+			}
+		} while(cursor.toNextSibling());
+		return null;
+	}
+	
+	/**
+	 * Utility function to detach an observation result from the document
+	 * 
+	 * @param result The result element, may be null
+	 * @return Double for numeric results, String for other simple results,
+	 * the XML text of complex results, or null for a null result
+	 */
+	protected static Object detachResult(XmlObject result) {
+		if(result == null) {
+			return null;
 		}
+		double value = numericValue(result);
+		if(!Double.isNaN(value)) {
+			return Double.valueOf(value);
+		}
+		SchemaType type = result.schemaType();
+		if(type.isSimpleType() || type.getContentType() == SchemaType.SIMPLE_CONTENT) {
+			return ((SimpleValue) result).getStringValue();
+		}
+		return result.xmlText();
+	}
+	
+	/**
+	 * Utility function to detach elements with no value type of their own 
+	 * from the document, as XML text
+	 * 
+	 * @param elements The elements, may be empty
+	 * @return The XML text of each element
+	 */
+	protected static String[] detachXml(XmlObject[] elements) {
+		String[] text = new String[elements.length];
+		for(int i = 0; i < elements.length; i++) {
+			text[i] = elements[i].xmlText();
+		}
+		return text;
 	}
 	
 	/**
@@ -162,7 +1067,7 @@ public abstract class SimpleSOSParser extends AbstractParser {
 	 */
 	protected Object ifNullThrowParseException(Object toTest, String elementName) throws XmlException {
 		if(toTest == null) {
-			XmlException e = new XmlException("Could not parse required element: " + elementName);
+			XmlException e = missingElement(elementName, "Could not parse required element: " + elementName, null);
 			LOGGER.error(e.getMessage());
 			throw e;
 		}
@@ -179,10 +1084,26 @@ public abstract class SimpleSOSParser extends AbstractParser {
 	 */
 	protected String testNullReturnName(Object toTest, String elementName) throws XmlException {
 		if(toTest == null) {
-			XmlException e = new XmlException("Could not parse required element: " + elementName);
+			XmlException e = missingElement(elementName, "Could not parse required element: " + elementName, null);
 			LOGGER.error(e.getMessage());
 			throw e;
 		}
 		return elementName;
 	}
+	
+	/**
+	 * Utility function to make the XmlException for a required element which
+	 * is missing or cannot be read, counting it in the metrics
+	 * 
+	 * @param elementName The name of the element
+	 * @param message The message of the XmlException
+	 * @param cause The cause of the XmlException, or null
+	 * @return XmlException to throw
+	 */
+	protected XmlException missingElement(String elementName, String message, Throwable cause) {
+		if(metrics != null) {
+			metrics.elementMissing(elementName);
+		}
+		return new XmlException(message, cause);
+	}
 }
\ No newline at end of file
@@ -1,23 +1,28 @@
 package uk.co.envsys.cobweb.middleware.sos.sosparser;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 import org.apache.xmlbeans.XmlException;
 import org.apache.xmlbeans.XmlObject;
-import org.geotools.data.collection.ListFeatureCollection;
-import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.n52.wps.io.data.binding.complex.GTVectorDataBinding;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
 
+import com.vividsolutions.jts.geom.Geometry;
+
+import net.opengis.gml.AbstractTimeObjectType;
 import net.opengis.gml.BoundingShapeType;
 import net.opengis.gml.FeaturePropertyType;
 import net.opengis.gml.LocationPropertyType;
 import net.opengis.gml.MetaDataPropertyType;
 import net.opengis.gml.StringOrRefType;
+import net.opengis.gml.TimeInstantType;
+import net.opengis.gml.TimePeriodType;
 import net.opengis.om.x10.AnyOrReferenceType;
 import net.opengis.om.x10.ObservationCollectionDocument;
 import net.opengis.om.x10.ObservationCollectionType;
@@ -27,9 +32,88 @@ import net.opengis.swe.x101.PhenomenonPropertyType;
 import net.opengis.swe.x101.TimeObjectPropertyType;
 
 public class SimpleSOSParser_100 extends SimpleSOSParser {
+	
+	private static final String TYPE_NAME = "om-1.0-observation";
+	private static final String ROW_TYPE_NAME = "om-1.0-data-array-row";
+	// definition of the DataArray field 52N uses to give the feature of interest of each block
+	private static final String FEATURE_OF_INTEREST_DEFINITION = "http://www.opengis.net/def/property/OGC/0/FeatureOfInterest";
+	
+	// optional elements of an observation, as bits of its shape
+	private static final int RESULT_TIME = 1;
+	private static final int RESULT_QUALITY = 1 << 1;
+	private static final int BOUNDED_BY = 1 << 2;
+	private static final int LOCATION = 1 << 3;
+	private static final int DESCRIPTION = 1 << 4;
+	private static final int ID = 1 << 5;
+	private static final int METADATA = 1 << 6;
+	private static final int ALL_ELEMENTS = (1 << 7) - 1;
+	
+	protected boolean expandArrays = false;
+	
+	private final ObservationConverter<ObservationType> converter = new ObservationConverter<ObservationType>() {
+		public int shapeOf(ObservationType observation) {
+			return SimpleSOSParser_100.shapeOf(observation);
+		}
+		
+		public SimpleFeatureType createType(ObservationType observation, int shape) throws XmlException {
+			return createFeatureType(observation, shape);
+		}
+		
+		public SimpleFeature convertToFeature(ObservationType observation, 
+				ParseContext context) throws XmlException {
+			return SimpleSOSParser_100.this.convertToFeature(observation, context);
+		}
+		
+		public boolean matches(ObservationType observation, ObservationFilter filter) {
+			return SimpleSOSParser_100.this.matches(observation, filter);
+		}
+		
+		public void appendTo(ObservationType observation, ObservationColumns columns) throws XmlException {
+			SimpleSOSParser_100.this.appendTo(observation, columns);
+		}
+		
+		public XmlObject getFeatureOfInterest(ObservationType observation) {
+			return observation.getFeatureOfInterest();
+		}
+		
+		public String getId(ObservationType observation) {
+			return observation.getId();
+		}
+	};
+	
+	// converts the blocks of DataArray results when arrays are expanded
+	private final ObservationConverter<DataArrayRow> rowConverter = new ObservationConverter<DataArrayRow>() {
+		public int shapeOf(DataArrayRow row) {
+			return 0;
+		}
+		
+		public SimpleFeatureType createType(DataArrayRow row, int shape) throws XmlException {
+			return createRowType(row);
+		}
+		
+		public SimpleFeature convertToFeature(DataArrayRow row, ParseContext context) throws XmlException {
+			return convertRow(row, context);
+		}
+		
+		public boolean matches(DataArrayRow row, ObservationFilter filter) {
+			return matchesRow(row, filter);
+		}
+		
+		public void appendTo(DataArrayRow row, ObservationColumns columns) throws XmlException {
+			appendRow(row, columns);
+		}
+		
+		public XmlObject getFeatureOfInterest(DataArrayRow row) {
+			return row.observation.getFeatureOfInterest();
+		}
+		
+		public String getId(DataArrayRow row) {
+			return row.observation.getId();
+		}
+	};
 
 	@Override
-	protected GTVectorDataBinding parseXML(XmlObject document) {
+	protected GTVectorDataBinding parseXML(XmlObject document, ObservationFilter filter, ParseErrorReport errors) {
 		// try and parse as SOS and O&M V1
 		if(!document.schemaType().isAssignableFrom(ObservationCollectionDocument.type)) {
 			IllegalArgumentException e = new IllegalArgumentException("Expected o&m 1.0 ObservationCollection"); 
@@ -37,13 +121,17 @@ public class SimpleSOSParser_100 extends SimpleSOSParser {
 			throw e;
 		} else {
 			// Convert to O&M 1.0 ObservationCollection XmlObject
+			long start = metrics == null ? 0 : System.nanoTime();
 			ObservationCollectionDocument observations = (ObservationCollectionDocument) 
 					document.changeType(ObservationCollectionDocument.type);
+			if(metrics != null) {
+				metrics.payloadUnwrapped(System.nanoTime() - start);
+			}
 			
 			// Try and parse the document to a FeatureCollection
 			GTVectorDataBinding parsedObservations;
 			try {
-				parsedObservations = parseObservations(observations);
+				parsedObservations = parseObservations(observations, filter, errors);
 			} catch (XmlException e) {
 				IllegalArgumentException ex = new IllegalArgumentException("Error parseing SOS XML:", e); 
 				LOGGER.error(ex.getMessage());
@@ -53,46 +141,322 @@ public class SimpleSOSParser_100 extends SimpleSOSParser {
 		}
 	}
 	
-	private GTVectorDataBinding parseObservations(ObservationCollectionDocument observationsDoc) throws XmlException {
+	private GTVectorDataBinding parseObservations(ObservationCollectionDocument observationsDoc, 
+			ObservationFilter filter, ParseErrorReport errors) throws XmlException {
 		// get the observations
-		ObservationCollectionType observations = observationsDoc.getObservationCollection();
+		final ObservationCollectionType observations = observationsDoc.getObservationCollection();
+	
+		final int numMembers = observations.sizeOfMemberArray();
+		LOGGER.debug("Parsing {} observations", numMembers);
+		
+		ObservationSource<ObservationType> source = new ObservationSource<ObservationType>() {
+			public Iterator<ObservationType> open() {
+				return new Iterator<ObservationType>() {
+					private int i = 0;
+					
+					public boolean hasNext() {
+						return i < numMembers;
+					}
+					
+					public ObservationType next() {
+						return observations.getMemberArray(i++).getObservation();
+					}
+					
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+			
+			public boolean isRepeatable() {
+				return true;
+			}
+		};
+		if(expandArrays) {
+			return parseObservations(expand(source, filter), rowConverter, filter, errors);
+		}
+		return parseObservations(source, converter, filter, errors);
+	}
+	
+	/**
+	 * Sets whether observations with a SWE DataArray result, such as those
+	 * from 52&deg;North's SOS, are expanded into one feature per block of the
+	 * array, holding the procedure and a typed attribute for each field of the
+	 * block. Times become Dates, Quantities Doubles, Counts Longs and the rest
+	 * Strings. In columnar mode each Quantity or Count of a block is one row,
+	 * with the field's definition as its observedProperty.
+	 * 
+	 * A filter's time window is checked against the first Time of each block.
+	 * Observations whose result is not a DataArray, or whose fields differ from
+	 * those of the first, cannot be converted, and blocks which cannot be read
+	 * are treated as invalid observations.
+	 * 
+	 * @param expandArrays true to return a feature per block of DataArray results
+	 */
+	public void setExpandArrays(boolean expandArrays) {
+		checkConfigurable();
+		this.expandArrays = expandArrays;
+	}
+	
+	/**
+	 * Turns a source of observations into one of the blocks of their DataArray
+	 * results. Each result is decoded once, when its observation is reached,
+	 * and only if the observation itself passes the filter.
+	 * 
+	 * @param observations The observations of the response
+	 * @param filter The filter for the current parse, or null
+	 * @return Source of the blocks, in document order
+	 */
+	private ObservationSource<DataArrayRow> expand(final ObservationSource<ObservationType> observations,
+			final ObservationFilter filter) {
+		return new ObservationSource<DataArrayRow>() {
+			public Iterator<DataArrayRow> open() {
+				final Iterator<ObservationType> members = observations.open();
+				final InternTable interns = internTable != null ? internTable : new InternTable(InternTable.DEFAULT_MAX_SIZE);
+				return new Iterator<DataArrayRow>() {
+					private ObservationType observation;
+					private DataArrayDecoder decoder;
+					private String procedure;
+					private String featureOfInterest;
+					private int row = 0;
+					private int rows = 0;
+					
+					public boolean hasNext() {
+						while(row == rows && members.hasNext()) {
+							ObservationType next = members.next();
+							if(filter == null || matches(next, filter)) {
+								start(next);
+							}
+						}
+						return row < rows;
+					}
+					
+					public DataArrayRow next() {
+						if(!hasNext()) {
+							throw new NoSuchElementException();
+						}
+						return new DataArrayRow(observation, decoder, procedure, featureOfInterest, row++);
+					}
+					
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+					
+					private void start(ObservationType next) {
+						observation = next;
+						decoder = new DataArrayDecoder();
+						if(decoder.decode(next.getResult(), interns)) {
+							rows = decoder.getRowCount();
+						} else {
+							// a single row, which fails to convert
+							decoder = null;
+							rows = 1;
+						}
+						row = 0;
+						ProcessPropertyType procedureProperty = next.getProcedure();
+						procedure = procedureProperty != null && procedureProperty.isSetHref() ? 
+								interns.intern(procedureProperty.getHref()) : null;
+						FeaturePropertyType foi = next.getFeatureOfInterest();
+						featureOfInterest = foi != null && foi.isSetHref() ? interns.intern(foi.getHref()) : null;
+					}
+				};
+			}
+			
+			public boolean isRepeatable() {
+				return observations.isRepeatable();
+			}
+		};
+	}
+	
+	/**
+	 * Checks an observation against a filter, reading only the hrefs of its
+	 * observedProperty and procedure, and its samplingTime if the filter
+	 * has a time window. Its gml:id and resultTime are read only if the 
+	 * filter checks each observation.
+	 * 
+	 * @param observation The observation to check
+	 * @param filter The filter for the current parse
+	 * @return false if the observation is to be skipped
+	 */
+	private boolean matches(ObservationType observation, ObservationFilter filter) {
+		PhenomenonPropertyType observedProperty = observation.getObservedProperty();
+		if(observedProperty != null && observedProperty.isSetHref() && 
+				!filter.acceptsObservedProperty(observedProperty.getHref())) {
+			return false;
+		}
+		ProcessPropertyType procedure = observation.getProcedure();
+		String procedureHref = procedure != null && procedure.isSetHref() ? procedure.getHref() : null;
+		if(!filter.acceptsProcedure(procedureHref)) {
+			return false;
+		}
+		boolean checksObservations = filter.checksObservations();
+		if(!filter.hasTimeWindow() && !checksObservations) {
+			return true;
+		}
+		long[] span = new long[2];
+		TimeObjectPropertyType samplingTime = observation.getSamplingTime();
+		AbstractTimeObjectType samplingTimeObject = samplingTime == null ? null : samplingTime.getTimeObject();
+		// with no inline time to check, the time window keeps the observation
+		boolean hasSamplingTime = readTimeSpan(samplingTimeObject, span);
+		if(hasSamplingTime && filter.hasTimeWindow() && 
+				!(span[0] == span[1] ? filter.acceptsInstant(span[0]) : filter.acceptsPeriod(span[0], span[1]))) {
+			return false;
+		}
+		if(!checksObservations) {
+			return true;
+		}
+		long samplingEnd = hasSamplingTime ? span[1] : ObservationColumns.NO_TIME;
+		long resultTimeMillis = ObservationColumns.NO_TIME;
+		long[] resultSpan = new long[2];
+		if(observation.isSetResultTime() && readResultTime(observation.getResultTime(), 
+				hasSamplingTime ? samplingTimeObject : null, samplingEnd, resultSpan)) {
+			resultTimeMillis = resultSpan[0];
+		}
+		return filter.acceptsObservation(observation.getId(), procedureHref, samplingEnd, resultTimeMillis);
+	}
 	
-		int numMembers = observations.sizeOfMemberArray();
-		LOGGER.debug("Parseing " + numMembers + "observations");
+	/**
+	 * Reads the start and end of an inline gml:TimeInstant or gml:TimePeriod
+	 * 
+	 * @param timeObject The time to read, may be null
+	 * @param span Array of two to receive the start and end, in epoch milliseconds. 
+	 * For a time instant both are the instant.
+	 * @return false if there is no inline time, or it is not a plain ISO 8601 time 
+	 */
+	static boolean readTimeSpan(AbstractTimeObjectType timeObject, long[] span) {
+		if(timeObject == null) {
+			return false;
+		}
+		try {
+			if(TimeInstantType.type.isAssignableFrom(timeObject.schemaType())) {
+				TimeInstantType timeInstant = (TimeInstantType) timeObject.changeType(TimeInstantType.type);
+				long instant = parseTime(timeInstant.getTimePosition().getStringValue());
+				span[0] = instant;
+				span[1] = instant;
+				return true;
+			} else if(TimePeriodType.type.isAssignableFrom(timeObject.schemaType())) {
+				TimePeriodType timePeriod = (TimePeriodType) timeObject.changeType(TimePeriodType.type);
+				long begin = parseTime(timePeriod.getBeginPosition().getStringValue());
+				long end = parseTime(timePeriod.getEndPosition().getStringValue());
+				span[0] = begin;
+				span[1] = end;
+				return true;
+			}
+		} catch(NullPointerException e) {
+			// time position missing
+		} catch(IllegalArgumentException e) {
+			// not a plain ISO 8601 time
+		}
+		return false;
+	}
+	
+	/**
+	 * Adds an observation to a columnar store, with its result as a number
+	 * where it has simple content
+	 * 
+	 * @param observation The observation to add
+	 * @param columns The store for the current parse
+	 * @throws XmlException if any required elements were not found during parsing
+	 */
+	private void appendTo(ObservationType observation, ObservationColumns columns) throws XmlException {
+		TimeObjectPropertyType samplingTime = (TimeObjectPropertyType) 
+				ifNullThrowParseException(observation.getSamplingTime(), "samplingTime");
+		ProcessPropertyType procedure = (ProcessPropertyType) 
+				ifNullThrowParseException(observation.getProcedure(), "procedure");
+		PhenomenonPropertyType observedProperty = (PhenomenonPropertyType) 
+				ifNullThrowParseException(observation.getObservedProperty(), "observedProperty");
+		FeaturePropertyType featureOfInterest = (FeaturePropertyType) 
+				ifNullThrowParseException(observation.getFeatureOfInterest(), "featureOfInterest");
+		XmlObject result = (XmlObject) ifNullThrowParseException(observation.getResult(), "result");
 		
-		// make a list to store the features
-		List<SimpleFeature> simpleFeatureList = new ArrayList<SimpleFeature>();
+		long[] span = {ObservationColumns.NO_TIME, ObservationColumns.NO_TIME};
+		AbstractTimeObjectType samplingTimeObject = samplingTime.getTimeObject();
+		readTimeSpan(samplingTimeObject, span);
 		
-		for(int i = 0; i < numMembers; i++) {
-			ObservationType observation = observations.getMemberArray(i).getObservation();
-			if(i == 0) {
-				// create the feature type (schema) based on first observation
-				type = createFeatureType(observation);
-				featureBuilder = new SimpleFeatureBuilder(type);
+		long resultTimeMillis = ObservationColumns.NO_TIME;
+		if(observation.isSetResultTime()) {
+			long[] resultSpan = new long[2];
+			if(readResultTime(observation.getResultTime(), samplingTimeObject, span[1], resultSpan)) {
+				resultTimeMillis = resultSpan[0];
 			}
-			// build the feature from the type and add it to the list
-			SimpleFeature feature = convertToFeature(observation);
-			simpleFeatureList.add(feature);
 		}
 		
-		SimpleFeatureCollection collection = new ListFeatureCollection(type, simpleFeatureList);
-		return new GTVectorDataBinding(collection);
+		columns.add(span[0], span[1], resultTimeMillis, procedure.getHref(), observedProperty.getHref(), 
+				featureOfInterest.getHref(), numericValue(result));
 	}
 	
 	/**
-	 * Function to create a FeatureType from an observation
+	 * Reads the resultTime, either inline or as an xlink:href to the samplingTime
+	 * 
+	 * @param resultTime The resultTime of the observation
+	 * @param samplingTime The inline samplingTime of the observation, may be null
+	 * @param samplingEnd The end of the samplingTime in epoch milliseconds
+	 * @param span Receives the begin and end of the resultTime in epoch milliseconds
+	 * @return true if the resultTime was read
+	 */
+	private static boolean readResultTime(TimeObjectPropertyType resultTime, AbstractTimeObjectType samplingTime,
+			long samplingEnd, long[] span) {
+		if(resultTime.isSetHref()) {
+			// usually refers back to the samplingTime, e.g. "#phenomenonTime_1"
+			if(samplingTime != null && resultTime.getHref().equals("#" + samplingTime.getId())) {
+				span[0] = samplingEnd;
+				span[1] = samplingEnd;
+				return true;
+			}
+			return false;
+		}
+		return readTimeSpan(resultTime.getTimeObject(), span);
+	}
+	
+	/**
+	 * Function to create a FeatureType for observations with any of the given
+	 * optional elements
 	 * 
 	 * The FeatureType acts like a "schema" and goes with Features
-	 * into the FeatureCollection
+	 * into the FeatureCollection. It holds the required elements, checked 
+	 * on the given observation, and the optional elements of the shape;
+	 * observations without one have null for its attribute.
+	 * 
+	 * FeatureTypes are cached by their optional elements,
+	 * so responses of the same shape share one FeatureType
 	 * 
-	 * @param observation The observation to base the FeatureType on
+	 * @param observation The observation to check the required elements of
+	 * @param shape The optional elements to include
 	 * @return {@code SimpleFeatureType} The created FeatureType
 	 * @throws XmlException If any critical problems are encountered during parsing, 
 	 * e.g., due to missing elements. 
 	 */
-	private SimpleFeatureType createFeatureType(ObservationType observation) throws XmlException {
+	private SimpleFeatureType createFeatureType(ObservationType observation, int shape) throws XmlException {
+		shape &= ALL_ELEMENTS;
+		String key = typeKeyPrefix() + TYPE_NAME + "#" + shape;
+		SimpleFeatureType cached = getCachedType(key);
+		if(cached != null) {
+			return cached;
+		}
+		return cacheType(key, detached ? buildDetachedFeatureType(observation, shape) : buildFeatureType(observation, shape));
+	}
+	
+	/**
+	 * Describes which optional elements are set on an observation
+	 * 
+	 * @param observation The observation to describe
+	 * @return Bits of ALL_ELEMENTS for the elements set
+	 */
+	private static int shapeOf(ObservationType observation) {
+		int shape = 0;
+		shape |= observation.isSetResultTime() ? RESULT_TIME : 0;
+		shape |= observation.isSetResultQuality() ? RESULT_QUALITY : 0;
+		shape |= observation.isSetBoundedBy() ? BOUNDED_BY : 0;
+		shape |= observation.isSetLocation() ? LOCATION : 0;
+		shape |= observation.isSetDescription() ? DESCRIPTION : 0;
+		shape |= observation.isSetId() ? ID : 0;
+		shape |= observation.isSetMetadata() ? METADATA : 0;
+		return shape;
+	}
+	
+	private SimpleFeatureType buildFeatureType(ObservationType observation, int shape) throws XmlException {
 		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
-		builder.setName("om-1.0-observation");
+		builder.setName(TYPE_NAME);
 		
 		// do required fields first, allows us to bail early in case of null fields
 		builder.add(testNullReturnName(observation.getSamplingTime(), "samplingTime"), 
@@ -106,25 +470,25 @@ public class SimpleSOSParser_100 extends SimpleSOSParser {
 		builder.add(testNullReturnName(observation.getResult(), "result"),
 				XmlObject.class);
 		
-		if(observation.isSetResultTime()) {
+		if((shape & RESULT_TIME) != 0) {
 			builder.add("resultTime", TimeObjectPropertyType.class);
 		}
-		if(observation.isSetResultQuality()) {
+		if((shape & RESULT_QUALITY) != 0) {
 			builder.add("resultQuality", AnyOrReferenceType.class);
 		}
-		if(observation.isSetBoundedBy()) {
+		if((shape & BOUNDED_BY) != 0) {
 			builder.add("boundedBy", BoundingShapeType.class);
 		}
-		if(observation.isSetLocation()) {
+		if((shape & LOCATION) != 0) {
 			builder.add("location", LocationPropertyType.class);
 		}
-		if(observation.isSetDescription()) {
+		if((shape & DESCRIPTION) != 0) {
 			builder.add("description", StringOrRefType.class);
 		}
-		if(observation.isSetId()) {
+		if((shape & ID) != 0) {
 			builder.add("id", String.class);
 		}
-		if(observation.isSetMetadata()) {
+		if((shape & METADATA) != 0) {
 			builder.add("metadata", AnyOrReferenceType.class);
 			builder.add("metadataPropertyArray", MetaDataPropertyType[].class);
 		}
@@ -132,47 +496,324 @@ public class SimpleSOSParser_100 extends SimpleSOSParser {
 			// TODO: Parameters!
 			LOGGER.warn("Ignoring parameters in observation: unimplemented.");
 		}
+		addGeometryAttribute(builder);
+		return builder.buildFeatureType();
+	}
+
+	/**
+	 * Creates a FeatureType of the same attributes as {@link #buildFeatureType(ObservationType, int)},
+	 * bound to the value classes of detached features
+	 */
+	private SimpleFeatureType buildDetachedFeatureType(ObservationType observation, int shape) throws XmlException {
+		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+		builder.setName(TYPE_NAME);
+		
+		builder.add(testNullReturnName(observation.getSamplingTime(), "samplingTime"), ObservationTime.class);
+		builder.add(testNullReturnName(observation.getProcedure(), "procedure"), Reference.class);
+		builder.add(testNullReturnName(observation.getObservedProperty(), "observedProperty"), Reference.class);
+		builder.add(testNullReturnName(observation.getFeatureOfInterest(), "featureOfInterest"), Reference.class);
+		builder.add(testNullReturnName(observation.getResult(), "result"), Object.class);
+		
+		if((shape & RESULT_TIME) != 0) {
+			builder.add("resultTime", ObservationTime.class);
+		}
+		if((shape & RESULT_QUALITY) != 0) {
+			builder.add("resultQuality", String.class);
+		}
+		if((shape & BOUNDED_BY) != 0) {
+			builder.add("boundedBy", String.class);
+		}
+		if((shape & LOCATION) != 0) {
+			builder.add("location", String.class);
+		}
+		if((shape & DESCRIPTION) != 0) {
+			builder.add("description", String.class);
+		}
+		if((shape & ID) != 0) {
+			builder.add("id", String.class);
+		}
+		if((shape & METADATA) != 0) {
+			builder.add("metadata", String.class);
+			builder.add("metadataPropertyArray", String[].class);
+		}
+		addGeometryAttribute(builder);
 		return builder.buildFeatureType();
 	}
 
+	/**
+	 * Decodes the geometry of an observation, from its featureOfInterest, 
+	 * or failing that its location or boundedBy
+	 * 
+	 * @param observation The observation
+	 * @param context The state of the current parse, holding the geometries decoded so far
+	 * @return The geometry, or null if the observation has none
+	 */
+	private static Geometry readGeometry(ObservationType observation, ParseContext context) {
+		Geometry geometry = featureGeometry(observation.getFeatureOfInterest(), context);
+		if(geometry == null && observation.isSetLocation()) {
+			geometry = GeometryDecoder.decode(observation.getLocation());
+		}
+		if(geometry == null && observation.isSetBoundedBy()) {
+			geometry = GeometryDecoder.decode(observation.getBoundedBy());
+		}
+		return geometry;
+	}
+	
 	/**
 	 * Function to convert an observation to a SimpleFeature to be stored in a FeatureCollection
-	 * This function uses the featureBuilder class member to construct the feature according
+	 * This function uses the featureBuilder of the context to construct the feature according
 	 * to the previously generated SimpleFeatureType
 	 * 
 	 * @param observation {@code ObservationType} The observation as represented by O&amp;M v1.0
+	 * @param context {@code ParseContext} for the current parse
 	 * @return {@code SimpleFeature} a feature representing this observation
 	 * @throws XmlException if any required elements were not found during parsing
 	 */
-	private SimpleFeature convertToFeature(ObservationType observation) throws XmlException {
-		// featureBuilder already instantiated by outer loop!
+	private SimpleFeature convertToFeature(ObservationType observation, 
+			ParseContext context) throws XmlException {
+		if(detached) {
+			return convertToDetachedFeature(observation, context);
+		}
+		SimpleFeatureBuilder featureBuilder = context.getFeatureBuilder();
 		featureBuilder.add(ifNullThrowParseException(observation.getSamplingTime(), "samplingTime"));
 		featureBuilder.add(ifNullThrowParseException(observation.getProcedure(), "procedure"));
 		featureBuilder.add(ifNullThrowParseException(observation.getObservedProperty(), "observedProperty"));
 		featureBuilder.add(ifNullThrowParseException(observation.getFeatureOfInterest(), "featureOfInterest"));
 		featureBuilder.add(ifNullThrowParseException(observation.getResult(), "result"));
+		// optional elements are set by name, as the FeatureType may hold others this observation lacks
 		if(observation.isSetResultTime()) {
-			featureBuilder.add(observation.getResultTime());
+			featureBuilder.set("resultTime", observation.getResultTime());
 		}
 		if(observation.isSetResultQuality()) {
-			featureBuilder.add(observation.getResultQuality());
+			featureBuilder.set("resultQuality", observation.getResultQuality());
 		}
 		if(observation.isSetBoundedBy()) {
-			featureBuilder.add(observation.getBoundedBy());
+			featureBuilder.set("boundedBy", observation.getBoundedBy());
 		}
 		if(observation.isSetLocation()) {
-			featureBuilder.add(observation.getLocation());
+			featureBuilder.set("location", observation.getLocation());
 		}
 		if(observation.isSetDescription()) {
-			featureBuilder.add(observation.getDescription());
+			featureBuilder.set("description", observation.getDescription());
 		}
 		if(observation.isSetId()) {
-			featureBuilder.add(observation.getId());
+			featureBuilder.set("id", observation.getId());
 		}
 		if(observation.isSetMetadata()) {
-			featureBuilder.add(observation.getMetadata());
-			featureBuilder.add(observation.getMetaDataPropertyArray());
+			featureBuilder.set("metadata", observation.getMetadata());
+			featureBuilder.set("metadataPropertyArray", observation.getMetaDataPropertyArray());
+		}
+		if(geometry) {
+			featureBuilder.set(GEOMETRY, readGeometry(observation, context));
+		}
+		return featureBuilder.buildFeature(null);
+	}
+	
+	/**
+	 * Converts an observation to a feature holding only immutable values, with 
+	 * no references back to the parsed document
+	 * 
+	 * @param observation {@code ObservationType} The observation as represented by O&amp;M v1.0
+	 * @param context {@code ParseContext} for the current parse
+	 * @return {@code SimpleFeature} a feature representing this observation
+	 * @throws XmlException if any required elements were not found during parsing
+	 */
+	private SimpleFeature convertToDetachedFeature(ObservationType observation, 
+			ParseContext context) throws XmlException {
+		SimpleFeatureBuilder featureBuilder = context.getFeatureBuilder();
+		TimeObjectPropertyType samplingTime = (TimeObjectPropertyType) 
+				ifNullThrowParseException(observation.getSamplingTime(), "samplingTime");
+		
+		long[] span = new long[2];
+		AbstractTimeObjectType samplingTimeObject = samplingTime.getTimeObject();
+		boolean hasSamplingTime = readTimeSpan(samplingTimeObject, span);
+		featureBuilder.add(hasSamplingTime ? ObservationTime.period(span[0], span[1]) : null);
+		featureBuilder.add(detachReference((XmlObject) 
+				ifNullThrowParseException(observation.getProcedure(), "procedure"), context));
+		featureBuilder.add(detachReference((XmlObject) 
+				ifNullThrowParseException(observation.getObservedProperty(), "observedProperty"), context));
+		featureBuilder.add(detachReference((XmlObject) 
+				ifNullThrowParseException(observation.getFeatureOfInterest(), "featureOfInterest"), context));
+		featureBuilder.add(detachResult((XmlObject) ifNullThrowParseException(observation.getResult(), "result")));
+		
+		if(observation.isSetResultTime()) {
+			long[] resultSpan = new long[2];
+			boolean hasResultTime = readResultTime(observation.getResultTime(), 
+					hasSamplingTime ? samplingTimeObject : null, span[1], resultSpan);
+			featureBuilder.set("resultTime", hasResultTime ? ObservationTime.period(resultSpan[0], resultSpan[1]) : null);
+		}
+		if(observation.isSetResultQuality()) {
+			featureBuilder.set("resultQuality", observation.getResultQuality().xmlText());
+		}
+		if(observation.isSetBoundedBy()) {
+			featureBuilder.set("boundedBy", observation.getBoundedBy().xmlText());
+		}
+		if(observation.isSetLocation()) {
+			featureBuilder.set("location", observation.getLocation().xmlText());
+		}
+		if(observation.isSetDescription()) {
+			featureBuilder.set("description", observation.getDescription().getStringValue());
+		}
+		if(observation.isSetId()) {
+			featureBuilder.set("id", observation.getId());
+		}
+		if(observation.isSetMetadata()) {
+			featureBuilder.set("metadata", observation.getMetadata().xmlText());
+			featureBuilder.set("metadataPropertyArray", detachXml(observation.getMetaDataPropertyArray()));
+		}
+		if(geometry) {
+			featureBuilder.set(GEOMETRY, readGeometry(observation, context));
+		}
+		return featureBuilder.buildFeature(null);
+	}
+	
+	/**
+	 * Creates the FeatureType for the blocks of a DataArray result: the procedure,
+	 * then an attribute for each field of the DataRecord. FeatureTypes are cached
+	 * by the names and types of the fields.
+	 * 
+	 * @param row The first block of the response
+	 * @return {@code SimpleFeatureType} The created FeatureType
+	 * @throws XmlException if the result is not a DataArray, or the procedure is missing
+	 */
+	private SimpleFeatureType createRowType(DataArrayRow row) throws XmlException {
+		DataArrayDecoder decoder = arrayOf(row);
+		String key = typeKeyPrefix() + ROW_TYPE_NAME + "#" + decoder.getSignature();
+		SimpleFeatureType cached = getCachedType(key);
+		if(cached != null) {
+			return cached;
+		}
+		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+		builder.setName(ROW_TYPE_NAME);
+		builder.add(testNullReturnName(row.procedure, "procedure"), String.class);
+		for(int field = 0; field < decoder.getFieldCount(); field++) {
+			builder.add(decoder.getFieldName(field), bindingOf(decoder.getFieldType(field)));
+		}
+		addGeometryAttribute(builder);
+		return cacheType(key, builder.buildFeatureType());
+	}
+	
+	private static Class<?> bindingOf(DataArrayDecoder.FieldType type) {
+		switch(type) {
+		case TIME:
+			return Date.class;
+		case QUANTITY:
+			return Double.class;
+		case COUNT:
+			return Long.class;
+		default:
+			return String.class;
+		}
+	}
+	
+	/**
+	 * Converts one block of a DataArray result to a feature
+	 * 
+	 * @param row The block
+	 * @param context {@code ParseContext} for the current parse
+	 * @return {@code SimpleFeature} a feature representing the block
+	 * @throws XmlException if the block cannot be read, or its fields differ from the FeatureType's
+	 */
+	private SimpleFeature convertRow(DataArrayRow row, ParseContext context) throws XmlException {
+		DataArrayDecoder decoder = arrayOf(row);
+		SimpleFeatureType type = context.getType();
+		SimpleFeatureBuilder featureBuilder = context.getFeatureBuilder();
+		featureBuilder.add(ifNullThrowParseException(row.procedure, "procedure"));
+		for(int field = 0; field < decoder.getFieldCount(); field++) {
+			String name = decoder.getFieldName(field);
+			DataArrayDecoder.FieldType fieldType = decoder.getFieldType(field);
+			AttributeDescriptor descriptor = type.getDescriptor(name);
+			if(descriptor == null || descriptor.getType().getBinding() != bindingOf(fieldType)) {
+				XmlException e = new XmlException("DataArray field " + name + " differs from the fields of the first observation");
+				LOGGER.error(e.getMessage());
+				throw e;
+			}
+			Object value = decoder.getValue(field, row.row);
+			if(fieldType == DataArrayDecoder.FieldType.TIME && value != null) {
+				value = new Date((Long) value);
+			}
+			featureBuilder.set(name, value);
+		}
+		if(geometry) {
+			featureBuilder.set(GEOMETRY, readGeometry(row.observation, context));
 		}
 		return featureBuilder.buildFeature(null);
 	}
+	
+	/**
+	 * Checks the first Time of a block against the time window of a filter. 
+	 * The rest of the filter has been checked against the observation.
+	 */
+	private static boolean matchesRow(DataArrayRow row, ObservationFilter filter) {
+		if(!filter.hasTimeWindow() || row.decoder == null) {
+			return true;
+		}
+		long time = rowTime(row.decoder, row.row);
+		return time == ObservationColumns.NO_TIME || filter.acceptsInstant(time);
+	}
+	
+	/**
+	 * Adds each Quantity and Count of a block to a columnar store, at the first Time
+	 * of the block and with the field's definition as the observedProperty. The
+	 * featureOfInterest is taken from the block where it has a field for it.
+	 * 
+	 * @param row The block
+	 * @param columns The store for the current parse
+	 * @throws XmlException if the block cannot be read
+	 */
+	private void appendRow(DataArrayRow row, ObservationColumns columns) throws XmlException {
+		DataArrayDecoder decoder = arrayOf(row);
+		String procedure = (String) ifNullThrowParseException(row.procedure, "procedure");
+		long time = rowTime(decoder, row.row);
+		String featureOfInterest = row.featureOfInterest;
+		for(int field = 0; field < decoder.getFieldCount(); field++) {
+			if(decoder.getFieldType(field) == DataArrayDecoder.FieldType.TEXT && 
+					FEATURE_OF_INTEREST_DEFINITION.equals(decoder.getDefinition(field))) {
+				featureOfInterest = decoder.getText(field, row.row);
+			}
+		}
+		for(int field = 0; field < decoder.getFieldCount(); field++) {
+			double value;
+			if(decoder.getFieldType(field) == DataArrayDecoder.FieldType.QUANTITY) {
+				value = decoder.getQuantity(field, row.row);
+			} else if(decoder.getFieldType(field) == DataArrayDecoder.FieldType.COUNT) {
+				value = decoder.getCount(field, row.row);
+			} else {
+				continue;
+			}
+			String property = decoder.getDefinition(field) != null ? decoder.getDefinition(field) : decoder.getFieldName(field);
+			columns.add(time, time, ObservationColumns.NO_TIME, procedure, property, featureOfInterest, value);
+		}
+	}
+	
+	/**
+	 * @return The first Time of a block, or {@link ObservationColumns#NO_TIME} if it has none
+	 */
+	private static long rowTime(DataArrayDecoder decoder, int row) {
+		for(int field = 0; field < decoder.getFieldCount(); field++) {
+			if(decoder.getFieldType(field) == DataArrayDecoder.FieldType.TIME) {
+				return decoder.getTime(field, row);
+			}
+		}
+		return ObservationColumns.NO_TIME;
+	}
+	
+	/**
+	 * @return The decoded DataArray holding a block
+	 * @throws XmlException if the result is not a DataArray, or the block could not be read
+	 */
+	private DataArrayDecoder arrayOf(DataArrayRow row) throws XmlException {
+		if(row.decoder == null) {
+			XmlException e = new XmlException("Result is not a SWE DataArray with a TextBlock encoding");
+			LOGGER.error(e.getMessage());
+			throw e;
+		}
+		String error = row.decoder.getRowError(row.row);
+		if(error != null) {
+			XmlException e = new XmlException("Could not read block " + row.row + " of DataArray: " + error);
+			LOGGER.error(e.getMessage());
+			throw e;
+		}
+		return row.decoder;
+	}
 }
@@ -3,13 +3,15 @@
  */
 package uk.co.envsys.cobweb.middleware.sos.sosparser;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.InputStream;
+import java.util.Iterator;
 
+import net.opengis.gml.x32.AbstractTimeObjectType;
 import net.opengis.gml.x32.FeaturePropertyType;
 import net.opengis.gml.x32.ReferenceType;
 import net.opengis.gml.x32.TimeInstantPropertyType;
-
+import net.opengis.gml.x32.TimeInstantType;
+import net.opengis.gml.x32.TimePeriodType;
 import net.opengis.gml.x32.TimePeriodPropertyType;
 import net.opengis.om.x20.OMObservationType;
 import net.opengis.om.x20.OMProcessPropertyType;
@@ -20,13 +22,12 @@ import net.opengis.sos.x20.GetObservationResponseType;
 
 import org.apache.xmlbeans.XmlException;
 import org.apache.xmlbeans.XmlObject;
-import org.geotools.data.collection.ListFeatureCollection;
-import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.isotc211.x2005.gmd.DQElementPropertyType;
 import org.isotc211.x2005.gmd.MDMetadataPropertyType;
 import org.n52.oxf.xmlbeans.tools.SoapUtil;
+import org.n52.wps.io.data.IData;
 import org.n52.wps.io.data.binding.complex.GTVectorDataBinding;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
@@ -39,15 +40,63 @@ import org.opengis.feature.simple.SimpleFeatureType;
  *
  */
 public class SimpleSOSParser_200 extends SimpleSOSParser {
+	
+	private static final String TYPE_NAME = "http://schemas.opengis.net/om/2.0/";
+	
+	// optional elements of an observation, as bits of its shape
+	protected static final int TYPE_ELEMENT = 1;
+	protected static final int METADATA = 1 << 1;
+	protected static final int VALID_TIME = 1 << 2;
+	protected static final int RELATED_OBSERVATIONS = 1 << 3;
+	protected static final int RESULT_QUALITY = 1 << 4;
+	protected static final int ALL_ELEMENTS = (1 << 5) - 1;
+	
+	protected boolean streaming = false;
+	
+	// hands observations to the createType and convertToFeature hooks, which subclasses may override
+	private final ObservationConverter<OMObservationType> converter = new ObservationConverter<OMObservationType>() {
+		public int shapeOf(OMObservationType observation) {
+			return SimpleSOSParser_200.this.shapeOf(observation);
+		}
+		
+		public SimpleFeatureType createType(OMObservationType observation, int shape) throws XmlException {
+			return SimpleSOSParser_200.this.createType(observation, shape);
+		}
+		
+		public SimpleFeature convertToFeature(OMObservationType observation, 
+				ParseContext context) throws XmlException {
+			return SimpleSOSParser_200.this.convertToFeature(observation, context);
+		}
+		
+		public boolean matches(OMObservationType observation, ObservationFilter filter) {
+			return SimpleSOSParser_200.this.matches(observation, filter);
+		}
+		
+		public void appendTo(OMObservationType observation, ObservationColumns columns) throws XmlException {
+			SimpleSOSParser_200.this.appendTo(observation, columns);
+		}
+		
+		public XmlObject getFeatureOfInterest(OMObservationType observation) {
+			return observation.getFeatureOfInterest();
+		}
+		
+		public String getId(OMObservationType observation) {
+			return observation.getId();
+		}
+	};
 
 	/* (non-Javadoc)
 	 * @see uk.co.envsys.geotools.sosparser.SimpleSOSParser#parseXML(org.apache.xmlbeans.XmlObject)
 	 */
 	@Override
-	protected GTVectorDataBinding parseXML(XmlObject document) {
+	protected GTVectorDataBinding parseXML(XmlObject document, ObservationFilter filter, ParseErrorReport errors) {
+		long start = metrics == null ? 0 : System.nanoTime();
 		XmlObject observations = getPayload(document);
+		if(metrics != null) {
+			metrics.payloadUnwrapped(System.nanoTime() - start);
+		}
 		try {
-			return parseObservations(observations);
+			return parseObservations(observations, filter, errors);
 		} catch(XmlException e) {
 			IllegalArgumentException ex = new IllegalArgumentException("Problem parseing xml", e);
 			LOGGER.error(ex.getMessage());
@@ -55,37 +104,275 @@ public class SimpleSOSParser_200 extends SimpleSOSParser {
 		}
 	}
 	
-	private GTVectorDataBinding parseObservations(XmlObject observations) throws XmlException {
-		GetObservationResponseType obs = (GetObservationResponseType)
+	/**
+	 * Parses the response with a pull parser when streaming mode is set, so that
+	 * the whole document is never held in memory as an XmlObject tree.
+	 * Otherwise the document is parsed as normal by the superclass.
+	 * When streaming in lazy mode the InputStream must stay open until the
+	 * returned collection has been read.
+	 */
+	@Override
+	protected IData parseStream(InputStream input, ObservationFilter filter, ParseErrorReport errors) {
+		if(!streaming) {
+			return super.parseStream(input, filter, errors);
+		}
+		final StreamingObservationReader reader = new StreamingObservationReader(input);
+		ObservationSource<OMObservationType> source = new ObservationSource<OMObservationType>() {
+			private boolean opened = false;
+			
+			public synchronized Iterator<OMObservationType> open() {
+				if(opened) {
+					throw new IllegalStateException("Streamed SOS response can only be read once");
+				}
+				opened = true;
+				return reader;
+			}
+			
+			public boolean isRepeatable() {
+				return false;
+			}
+		};
+		try {
+			return parseObservations(source, converter, filter, errors);
+		} catch(XmlException e) {
+			IllegalArgumentException ex = new IllegalArgumentException("Problem parseing xml", e);
+			LOGGER.error(ex.getMessage());
+			throw ex;
+		}
+	}
+	
+	/**
+	 * Sets whether responses are read observation by observation with a 
+	 * StAX pull parser rather than parsed whole into an XmlObject first
+	 * 
+	 * @param streaming true to parse responses as a stream
+	 */
+	public void setStreaming(boolean streaming) {
+		checkConfigurable();
+		this.streaming = streaming;
+	}
+	
+	private GTVectorDataBinding parseObservations(XmlObject observations, ObservationFilter filter, 
+			ParseErrorReport errors) throws XmlException {
+		final GetObservationResponseType obs = (GetObservationResponseType)
 				observations.changeType(GetObservationResponseType.type);	
 		
-		int numMembers = obs.sizeOfObservationDataArray();
-		LOGGER.debug("Parseing " + numMembers + "observations");
+		final int numMembers = obs.sizeOfObservationDataArray();
+		LOGGER.debug("Parsing {} observations", numMembers);
 		
-		// make a list to store the features
-		List<SimpleFeature> simpleFeatureList = new ArrayList<SimpleFeature>();
-		
-		for(int i = 0; i < numMembers; i++) {
-			OMObservationType observation = obs.getObservationDataArray(i).getOMObservation();
+		return parseObservations(new ObservationSource<OMObservationType>() {
+			public Iterator<OMObservationType> open() {
+				return new Iterator<OMObservationType>() {
+					private int i = 0;
+					
+					public boolean hasNext() {
+						return i < numMembers;
+					}
+					
+					public OMObservationType next() {
+						return obs.getObservationDataArray(i++).getOMObservation();
+					}
+					
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
 			
-			if(i == 0) {
-				// create the feature type (schema) based on first observation
-				type = createType(observation);
-				featureBuilder = new SimpleFeatureBuilder(type);
+			public boolean isRepeatable() {
+				return true;
+			}
+		}, converter, filter, errors);
+	}
+	
+	/**
+	 * Checks an observation against a filter, reading only the hrefs of its
+	 * observedProperty and procedure, and its phenomenonTime if the filter
+	 * has a time window. Its gml:id and resultTime are read only if the 
+	 * filter checks each observation.
+	 * 
+	 * @param observation The observation to check
+	 * @param filter The filter for the current parse
+	 * @return false if the observation is to be skipped
+	 */
+	protected boolean matches(OMObservationType observation, ObservationFilter filter) {
+		ReferenceType observedProperty = observation.getObservedProperty();
+		if(observedProperty != null && observedProperty.isSetHref() && 
+				!filter.acceptsObservedProperty(observedProperty.getHref())) {
+			return false;
+		}
+		OMProcessPropertyType procedure = observation.getProcedure();
+		String procedureHref = procedure != null && procedure.isSetHref() ? procedure.getHref() : null;
+		if(!filter.acceptsProcedure(procedureHref)) {
+			return false;
+		}
+		boolean checksObservations = filter.checksObservations();
+		if(!filter.hasTimeWindow() && !checksObservations) {
+			return true;
+		}
+		long[] span = new long[2];
+		TimeObjectPropertyType phenomenonTime = observation.getPhenomenonTime();
+		AbstractTimeObjectType phenomenonTimeObject = 
+				phenomenonTime == null ? null : phenomenonTime.getAbstractTimeObject();
+		// with no inline time to check, the time window keeps the observation
+		boolean hasPhenomenonTime = readTimeSpan(phenomenonTimeObject, span);
+		if(hasPhenomenonTime && filter.hasTimeWindow() && 
+				!(span[0] == span[1] ? filter.acceptsInstant(span[0]) : filter.acceptsPeriod(span[0], span[1]))) {
+			return false;
+		}
+		if(!checksObservations) {
+			return true;
+		}
+		long phenomenonEnd = hasPhenomenonTime ? span[1] : ObservationColumns.NO_TIME;
+		TimeInstantPropertyType resultTime = observation.getResultTime();
+		long resultTimeMillis = resultTime == null ? ObservationColumns.NO_TIME : 
+				readResultTime(resultTime, hasPhenomenonTime ? phenomenonTimeObject : null, phenomenonEnd);
+		return filter.acceptsObservation(observation.getId(), procedureHref, phenomenonEnd, resultTimeMillis);
+	}
+	
+	/**
+	 * Reads the start and end of an inline gml:TimeInstant or gml:TimePeriod
+	 * 
+	 * @param timeObject The time to read, may be null
+	 * @param span Array of two to receive the start and end, in epoch milliseconds. 
+	 * For a time instant both are the instant.
+	 * @return false if there is no inline time, or it is not a plain ISO 8601 time 
+	 */
+	protected static boolean readTimeSpan(AbstractTimeObjectType timeObject, long[] span) {
+		if(timeObject == null) {
+			return false;
+		}
+		try {
+			if(TimeInstantType.type.isAssignableFrom(timeObject.schemaType())) {
+				TimeInstantType timeInstant = (TimeInstantType) timeObject.changeType(TimeInstantType.type);
+				long instant = parseTime(timeInstant.getTimePosition().getStringValue());
+				span[0] = instant;
+				span[1] = instant;
+				return true;
+			} else if(TimePeriodType.type.isAssignableFrom(timeObject.schemaType())) {
+				TimePeriodType timePeriod = (TimePeriodType) timeObject.changeType(TimePeriodType.type);
+				long begin = parseTime(timePeriod.getBeginPosition().getStringValue());
+				long end = parseTime(timePeriod.getEndPosition().getStringValue());
+				span[0] = begin;
+				span[1] = end;
+				return true;
+			}
+		} catch(NullPointerException e) {
+			// time position missing
+		} catch(IllegalArgumentException e) {
+			// not a plain ISO 8601 time
+		}
+		return false;
+	}
+	
+	/**
+	 * Adds an observation to a columnar store, with its result as a number 
+	 * where it has simple content. Subclasses may override this to decode 
+	 * their own results.
+	 * 
+	 * @param observation The observation to add
+	 * @param columns The store for the current parse
+	 * @throws XmlException if any required elements were not found during parsing
+	 */
+	protected void appendTo(OMObservationType observation, ObservationColumns columns) throws XmlException {
+		appendTo(observation, columns, numericValue(observation.getResult()));
+	}
+	
+	/**
+	 * Adds an observation to a columnar store with the given result
+	 * 
+	 * @param observation The observation to add
+	 * @param columns The store for the current parse
+	 * @param result The numeric result of the observation, or NaN
+	 * @throws XmlException if any required elements were not found during parsing
+	 */
+	protected void appendTo(OMObservationType observation, ObservationColumns columns, 
+			double result) throws XmlException {
+		TimeObjectPropertyType phenomenonTime = (TimeObjectPropertyType) 
+				ifNullThrowParseException(observation.getPhenomenonTime(), "phenomenonTime");
+		TimeInstantPropertyType resultTime = (TimeInstantPropertyType) 
+				ifNullThrowParseException(observation.getResultTime(), "resultTime");
+		OMProcessPropertyType procedure = (OMProcessPropertyType) 
+				ifNullThrowParseException(observation.getProcedure(), "procedure");
+		ReferenceType observedProperty = (ReferenceType) 
+				ifNullThrowParseException(observation.getObservedProperty(), "observedProperty");
+		FeaturePropertyType featureOfInterest = (FeaturePropertyType) 
+				ifNullThrowParseException(observation.getFeatureOfInterest(), "featureOfInterest");
+		
+		long[] span = {ObservationColumns.NO_TIME, ObservationColumns.NO_TIME};
+		AbstractTimeObjectType phenomenonTimeObject = phenomenonTime.getAbstractTimeObject();
+		readTimeSpan(phenomenonTimeObject, span);
+		
+		long resultTimeMillis = readResultTime(resultTime, phenomenonTimeObject, span[1]);
+		
+		columns.add(span[0], span[1], resultTimeMillis, procedure.getHref(), observedProperty.getHref(), 
+				featureOfInterest.getHref(), result);
+	}
+	
+	/**
+	 * Reads the resultTime, either inline or as an xlink:href to the phenomenonTime
+	 * 
+	 * @param resultTime The resultTime of the observation
+	 * @param phenomenonTime The inline phenomenonTime of the observation, may be null
+	 * @param phenomenonEnd The end of the phenomenonTime in epoch milliseconds
+	 * @return resultTime in epoch milliseconds, or {@link ObservationColumns#NO_TIME} if it cannot be read
+	 */
+	protected static long readResultTime(TimeInstantPropertyType resultTime, AbstractTimeObjectType phenomenonTime,
+			long phenomenonEnd) {
+		if(resultTime.isSetHref()) {
+			// usually refers back to the phenomenonTime, e.g. "#phenomenonTime_1"
+			if(phenomenonTime != null && resultTime.getHref().equals("#" + phenomenonTime.getId())) {
+				return phenomenonEnd;
 			}
-			// build the feature from the type and add it to the list
-			SimpleFeature feature = convertToFeature(observation);
-			simpleFeatureList.add(feature);
+			return ObservationColumns.NO_TIME;
 		}
+		long[] span = new long[2];
+		return readTimeSpan(resultTime.getTimeInstant(), span) ? span[0] : ObservationColumns.NO_TIME;
+	}
+	
+	/**
+	 * Describes which optional elements are set on an observation
+	 * 
+	 * @param observation The observation to describe
+	 * @return Bits of {@link #ALL_ELEMENTS} for the elements set
+	 */
+	protected int shapeOf(OMObservationType observation) {
+		int shape = 0;
+		shape |= observation.isSetType() ? TYPE_ELEMENT : 0;
+		shape |= observation.isSetMetadata() ? METADATA : 0;
+		shape |= observation.isSetValidTime() ? VALID_TIME : 0;
+		shape |= observation.sizeOfRelatedObservationArray() > 0 ? RELATED_OBSERVATIONS : 0;
+		shape |= observation.sizeOfResultQualityArray() > 0 ? RESULT_QUALITY : 0;
+		return shape;
+	}
+	
+	/**
+	 * Creates the FeatureType for observations with any of the given optional
+	 * elements, so that one FeatureType covers a response of mixed observations.
+	 * Observations without an optional element have null for its attribute. 
+	 * FeatureTypes are cached by their optional elements, so responses of the 
+	 * same shape share one FeatureType.
+	 * 
+	 * @param observation The observation to check the required elements of
+	 * @param shape Bits of {@link #ALL_ELEMENTS} for the optional elements to include
+	 * @return {@code SimpleFeatureType} The created FeatureType
+	 * @throws XmlException If any required elements are missing
+	 */
+	protected SimpleFeatureType createType(OMObservationType observation, int shape) throws XmlException {
+		shape &= ALL_ELEMENTS;
+		String key = typeKeyPrefix() + TYPE_NAME + "#" + shape;
 		
-		SimpleFeatureCollection collection = new ListFeatureCollection(type, simpleFeatureList);
-		return new GTVectorDataBinding(collection);
+		SimpleFeatureType cached = getCachedType(key);
+		if(cached != null) {
+			return cached;
+		}
+		return cacheType(key, detached ? buildDetachedType(observation, shape) : buildType(observation, shape));
 	}
 	
-	private SimpleFeatureType createType(OMObservationType observation) throws XmlException {
+	private SimpleFeatureType buildType(OMObservationType observation, int shape) throws XmlException {
 		// type - optional - http://www.opengis.net/def/observationType/OGC-OM/2.0/	
 		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
-		builder.setName("http://schemas.opengis.net/om/2.0/");
+		builder.setName(TYPE_NAME);
 		
 		builder.add(testNullReturnName(observation.getObservedProperty(), "observedProperty"), 
 				ReferenceType.class);
@@ -100,26 +387,67 @@ public class SimpleSOSParser_200 extends SimpleSOSParser {
 		builder.add(testNullReturnName(observation.getResult(), "result"), 
 				XmlObject.class);
 		
-		if(observation.isSetType()) {
+		if((shape & TYPE_ELEMENT) != 0) {
 			builder.add("type", ReferenceType.class);
 		}
-		if(observation.isSetMetadata()) {
+		if((shape & METADATA) != 0) {
 			builder.add("metadata", MDMetadataPropertyType.class);
 		}
-		if(observation.isSetValidTime()) {
+		if((shape & VALID_TIME) != 0) {
 			builder.add("validTime", TimePeriodPropertyType.class);
 		}
-		if(observation.sizeOfRelatedObservationArray() > 0) {
+		if((shape & RELATED_OBSERVATIONS) != 0) {
 			builder.add("relatedObservations", ObservationContextPropertyType[].class);
 		}
-		if(observation.sizeOfResultQualityArray() > 0) {
+		if((shape & RESULT_QUALITY) != 0) {
 			builder.add("resultQuality", DQElementPropertyType[].class);
 		}
 		
+		addGeometryAttribute(builder);
 		return builder.buildFeatureType();
 	}
 	
-	private SimpleFeature convertToFeature(OMObservationType observation) throws XmlException {
+	/**
+	 * Creates a FeatureType of the same attributes as {@link #buildType(OMObservationType, int)},
+	 * bound to the value classes of detached features
+	 */
+	private SimpleFeatureType buildDetachedType(OMObservationType observation, int shape) throws XmlException {
+		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+		builder.setName(TYPE_NAME);
+		
+		builder.add(testNullReturnName(observation.getObservedProperty(), "observedProperty"), Reference.class);
+		builder.add(testNullReturnName(observation.getProcedure(), "procedure"), Reference.class);
+		builder.add(testNullReturnName(observation.getFeatureOfInterest(), "featureOfInterest"), Reference.class);
+		builder.add(testNullReturnName(observation.getPhenomenonTime(), "phenomenonTime"), ObservationTime.class);
+		builder.add(testNullReturnName(observation.getResultTime(), "resultTime"), ObservationTime.class);
+		builder.add(testNullReturnName(observation.getResult(), "result"), Object.class);
+		
+		if((shape & TYPE_ELEMENT) != 0) {
+			builder.add("type", Reference.class);
+		}
+		if((shape & METADATA) != 0) {
+			builder.add("metadata", String.class);
+		}
+		if((shape & VALID_TIME) != 0) {
+			builder.add("validTime", ObservationTime.class);
+		}
+		if((shape & RELATED_OBSERVATIONS) != 0) {
+			builder.add("relatedObservations", String[].class);
+		}
+		if((shape & RESULT_QUALITY) != 0) {
+			builder.add("resultQuality", String[].class);
+		}
+		
+		addGeometryAttribute(builder);
+		return builder.buildFeatureType();
+	}
+	
+	protected SimpleFeature convertToFeature(OMObservationType observation, 
+			ParseContext context) throws XmlException {
+		if(detached) {
+			return convertToDetachedFeature(observation, context);
+		}
+		SimpleFeatureBuilder featureBuilder = context.getFeatureBuilder();
 		featureBuilder.add(ifNullThrowParseException(observation.getObservedProperty(), "observedProperty"));
 		featureBuilder.add(ifNullThrowParseException(observation.getProcedure(), "procedure"));
 		featureBuilder.add(ifNullThrowParseException(observation.getFeatureOfInterest(), "featureOfInterest"));
@@ -127,22 +455,81 @@ public class SimpleSOSParser_200 extends SimpleSOSParser {
 		featureBuilder.add(ifNullThrowParseException(observation.getResultTime(), "resultTime"));
 		featureBuilder.add(ifNullThrowParseException(observation.getResult(), "result"));
 		
+		// optional elements are set by name, as the FeatureType may hold others this observation lacks
+		if(observation.isSetType()) {
+			featureBuilder.set("type", observation.getType());
+		}
+		if(observation.isSetMetadata()) {
+			featureBuilder.set("metadata", observation.getMetadata());
+		}
+		if(observation.isSetValidTime()) {
+			featureBuilder.set("validTime", observation.getValidTime());
+		}
+		if(observation.sizeOfRelatedObservationArray() > 0) {
+			featureBuilder.set("relatedObservations", observation.getRelatedObservationArray());
+		}
+		if(observation.sizeOfResultQualityArray() > 0) {
+			featureBuilder.set("resultQuality", observation.getResultQualityArray());
+		}
+		
+		if(geometry) {
+			featureBuilder.set(GEOMETRY, featureGeometry(observation.getFeatureOfInterest(), context));
+		}
+		return featureBuilder.buildFeature(null);
+	}
+	
+	/**
+	 * Converts an observation to a feature holding only immutable values, with 
+	 * no references back to the parsed document
+	 * 
+	 * @param observation The observation to convert
+	 * @param context The state of the current parse
+	 * @return {@code SimpleFeature} a feature representing this observation
+	 * @throws XmlException if any required elements were not found during parsing
+	 */
+	private SimpleFeature convertToDetachedFeature(OMObservationType observation, 
+			ParseContext context) throws XmlException {
+		SimpleFeatureBuilder featureBuilder = context.getFeatureBuilder();
+		TimeObjectPropertyType phenomenonTime = (TimeObjectPropertyType) 
+				ifNullThrowParseException(observation.getPhenomenonTime(), "phenomenonTime");
+		TimeInstantPropertyType resultTime = (TimeInstantPropertyType) 
+				ifNullThrowParseException(observation.getResultTime(), "resultTime");
+		
+		featureBuilder.add(detachReference((XmlObject) 
+				ifNullThrowParseException(observation.getObservedProperty(), "observedProperty"), context));
+		featureBuilder.add(detachReference((XmlObject) 
+				ifNullThrowParseException(observation.getProcedure(), "procedure"), context));
+		featureBuilder.add(detachReference((XmlObject) 
+				ifNullThrowParseException(observation.getFeatureOfInterest(), "featureOfInterest"), context));
+		
+		long[] span = new long[2];
+		AbstractTimeObjectType phenomenonTimeObject = phenomenonTime.getAbstractTimeObject();
+		boolean hasPhenomenonTime = readTimeSpan(phenomenonTimeObject, span);
+		featureBuilder.add(hasPhenomenonTime ? ObservationTime.period(span[0], span[1]) : null);
+		long resultTimeMillis = readResultTime(resultTime, hasPhenomenonTime ? phenomenonTimeObject : null, span[1]);
+		featureBuilder.add(resultTimeMillis == ObservationColumns.NO_TIME ? null : ObservationTime.instant(resultTimeMillis));
+		featureBuilder.add(detachResult((XmlObject) ifNullThrowParseException(observation.getResult(), "result")));
+		
 		if(observation.isSetType()) {
-			featureBuilder.add(observation.getType());
+			featureBuilder.set("type", detachReference(observation.getType(), context));
 		}
 		if(observation.isSetMetadata()) {
-			featureBuilder.add(observation.getMetadata());
+			featureBuilder.set("metadata", observation.getMetadata().xmlText());
 		}
 		if(observation.isSetValidTime()) {
-			featureBuilder.add(observation.getValidTime());
+			TimePeriodPropertyType validTime = observation.getValidTime();
+			featureBuilder.set("validTime", readTimeSpan(validTime.getTimePeriod(), span) ? ObservationTime.period(span[0], span[1]) : null);
 		}
 		if(observation.sizeOfRelatedObservationArray() > 0) {
-			featureBuilder.add(observation.getRelatedObservationArray());
+			featureBuilder.set("relatedObservations", detachXml(observation.getRelatedObservationArray()));
 		}
 		if(observation.sizeOfResultQualityArray() > 0) {
-			featureBuilder.add(observation.getResultQualityArray());
+			featureBuilder.set("resultQuality", detachXml(observation.getResultQualityArray()));
 		}
 		
+		if(geometry) {
+			featureBuilder.set(GEOMETRY, featureGeometry(observation.getFeatureOfInterest(), context));
+		}
 		return featureBuilder.buildFeature(null);
 	}
 	
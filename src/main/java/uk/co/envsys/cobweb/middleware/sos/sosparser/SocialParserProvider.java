@@ -0,0 +1,35 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+/**
+ * Provides the parser for responses from UCD's sixth social sensor, which
+ * are recognised by the title of their featureOfInterest or by their procedure
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public class SocialParserProvider implements ParserProvider {
+	private static final String SOCIAL_SENSOR_TITLE = "Twitter SIXTH";
+	private static final String SOCIAL_SENSOR_PROCEDURE = "http://smartcoasts.ucd.ie/procedure/";
+
+	public String getName() {
+		return SimpleSOSParser.SOCIAL_SENSOR;
+	}
+
+	public String getVersion() {
+		return SimpleSOSParser.SOS_V2;
+	}
+
+	public int getPriority() {
+		return 10;
+	}
+
+	public boolean accepts(ResponseHeader header) {
+		return SOCIAL_SENSOR_TITLE.equals(header.getFeatureOfInterestTitle()) ||
+				(header.getProcedure() != null && header.getProcedure().startsWith(SOCIAL_SENSOR_PROCEDURE));
+	}
+
+	public SimpleSOSParser createParser() {
+		return new SocialSOSParser();
+	}
+}
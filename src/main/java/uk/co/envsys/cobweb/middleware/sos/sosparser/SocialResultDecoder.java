@@ -0,0 +1,132 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import org.apache.xmlbeans.XmlException;
+
+/**
+ * Splits the result string of the UCD SIXTH social sensor, of the form
+ * {@code Sentiment: 0.80 User ID: 1969858256 Tweet: ...}, into its sentiment,
+ * user id and tweet text.
+ *
+ * The string is scanned once by index; the user id is read straight from
+ * the characters, and only the span of the sentiment is copied, for
+ * {@link Double#parseDouble(String)}, along with the tweet text. A decoder
+ * holds the fields of the last string decoded and is used by one thread
+ * at a time.
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public class SocialResultDecoder {
+	protected static final String SENTIMENT = "Sentiment:";
+	protected static final String USER_ID = "User ID:";
+	protected static final String TWEET = "Tweet:";
+
+	private double sentiment;
+	private long userId;
+	private String tweet;
+
+	/**
+	 * Decodes a result string, replacing the fields of any previous one
+	 *
+	 * @param result The text content of the om:result element
+	 * @throws XmlException If the string is not in the expected form
+	 */
+	public void decode(String result) throws XmlException {
+		int pos = expect(result, skipSpaces(result, 0), SENTIMENT);
+		pos = readSentiment(result, skipSpaces(result, pos));
+		pos = expect(result, skipSpaces(result, pos), USER_ID);
+		pos = readUserId(result, skipSpaces(result, pos));
+		pos = expect(result, skipSpaces(result, pos), TWEET);
+		tweet = result.substring(skipSpaces(result, pos));
+	}
+
+	/**
+	 * @return The sentiment of the last decoded result
+	 */
+	public double getSentiment() {
+		return sentiment;
+	}
+
+	/**
+	 * @return The Twitter user id of the last decoded result
+	 */
+	public long getUserId() {
+		return userId;
+	}
+
+	/**
+	 * @return The tweet text of the last decoded result
+	 */
+	public String getTweet() {
+		return tweet;
+	}
+
+	private int readSentiment(String s, int start) throws XmlException {
+		int pos = start;
+		if(pos < s.length() && (s.charAt(pos) == '-' || s.charAt(pos) == '+')) {
+			pos++;
+		}
+		boolean seen = false;
+		for(; pos < s.length(); pos++) {
+			char c = s.charAt(pos);
+			if(c >= '0' && c <= '9') {
+				seen = true;
+			} else if(c != '.') {
+				break;
+			}
+		}
+		if(!seen) {
+			throw new XmlException("Could not decode sentiment in result string");
+		}
+		if(pos < s.length() && (s.charAt(pos) == 'e' || s.charAt(pos) == 'E')) {
+			pos++;
+			if(pos < s.length() && (s.charAt(pos) == '-' || s.charAt(pos) == '+')) {
+				pos++;
+			}
+			while(pos < s.length() && s.charAt(pos) >= '0' && s.charAt(pos) <= '9') {
+				pos++;
+			}
+		}
+		try {
+			sentiment = Double.parseDouble(s.substring(start, pos));
+		} catch(NumberFormatException e) {
+			throw new XmlException("Could not decode sentiment in result string", e);
+		}
+		return pos;
+	}
+
+	private int readUserId(String s, int start) throws XmlException {
+		int pos = start;
+		long id = 0;
+		for(; pos < s.length(); pos++) {
+			char c = s.charAt(pos);
+			if(c < '0' || c > '9') {
+				break;
+			}
+			if(id > (Long.MAX_VALUE - (c - '0')) / 10) {
+				throw new XmlException("User ID in result string is too large");
+			}
+			id = id * 10 + (c - '0');
+		}
+		if(pos == start) {
+			throw new XmlException("Could not decode User ID in result string");
+		}
+		userId = id;
+		return pos;
+	}
+
+	private static int expect(String s, int pos, String label) throws XmlException {
+		if(!s.regionMatches(pos, label, 0, label.length())) {
+			throw new XmlException("Expected '" + label + "' in result string");
+		}
+		return pos + label.length();
+	}
+
+	private static int skipSpaces(String s, int pos) {
+		while(pos < s.length() && Character.isWhitespace(s.charAt(pos))) {
+			pos++;
+		}
+		return pos;
+	}
+}
@@ -1,32 +1,28 @@
 package uk.co.envsys.cobweb.middleware.sos.sosparser;
 
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.List;
 
 import net.opengis.gml.x32.AbstractTimeObjectType;
 import net.opengis.gml.x32.FeaturePropertyType;
 import net.opengis.gml.x32.ReferenceType;
-import net.opengis.gml.x32.TimeInstantPropertyType;
 import net.opengis.gml.x32.TimeInstantType;
 import net.opengis.om.x20.OMObservationType;
 import net.opengis.om.x20.OMProcessPropertyType;
-import net.opengis.sos.x20.GetObservationResponseType;
 
 import org.apache.xmlbeans.XmlException;
-import org.apache.xmlbeans.XmlObject;
-import org.geotools.data.collection.ListFeatureCollection;
-import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
-import org.n52.wps.io.data.binding.complex.GTVectorDataBinding;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 
 /**
  * Class to extend the SOS 200 parser to specifically parse
  * responses from UCD's sixth social sensor giving information
- * on Tweeted messages about floods with some sentiment analysis
+ * on Tweeted messages about floods with some sentiment analysis.
+ * The result string is kept, and also decoded into typed sentiment, 
+ * userId and tweet attributes. The resultTime is given as a Date, resolved
+ * from its reference to the phenomenonTime. The hrefs and titles repeated by each 
+ * observation are interned, so features share one instance of each.
  * 
  * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
  * Copyright (c) 2015 - Environment Systems 
@@ -34,123 +30,143 @@ import org.opengis.feature.simple.SimpleFeatureType;
  */
 public class SocialSOSParser extends SimpleSOSParser_200 {
 	
-
-	protected GTVectorDataBinding parseXML(XmlObject document) {
-		XmlObject observations = getPayload(document);
-		try {
-			return parseObservations(observations);
-		} catch(XmlException e) {
-			IllegalArgumentException ex = new IllegalArgumentException("Problem parseing xml", e);
-			LOGGER.error(ex.getMessage());
-			throw ex;
-		}
-	}
-	
-	private GTVectorDataBinding parseObservations(XmlObject observations) throws XmlException {
-		GetObservationResponseType obs = (GetObservationResponseType)
-				observations.changeType(GetObservationResponseType.type);	
-		int numMembers = obs.sizeOfObservationDataArray();
-		
-		LOGGER.debug("Parseing " + numMembers + "observations");
-		// make a list to store the features
-		List<SimpleFeature> simpleFeatureList = new ArrayList<SimpleFeature>();
-		// create the feature type (no need to use observation, we know what to expect)
-		type = createType();
-		featureBuilder = new SimpleFeatureBuilder(type);
-		for(int i = 0; i < numMembers; i++) {
-			OMObservationType observation = obs.getObservationDataArray(i).getOMObservation();
-			SimpleFeature feature = convertToFeature(observation);
-			simpleFeatureList.add(feature);
+	private static final String TYPE_NAME = "UCD Social Sensor Observation";
+	// decoders keep the fields of the last result, so each thread has its own
+	private static final ThreadLocal<SocialResultDecoder> RESULT_DECODER = new ThreadLocal<SocialResultDecoder>() {
+		@Override
+		protected SocialResultDecoder initialValue() {
+			return new SocialResultDecoder();
 		}
-		
-		SimpleFeatureCollection collection = new ListFeatureCollection(type, simpleFeatureList);
-		return new GTVectorDataBinding(collection);
-	} 
+	};
 	
 	/**
 	 * Creates the FeatureType to match the expected output
 	 * from the UCD SIXTH Social Sensor. This function is called by the superclass
 	 * 
-	 * @param observation The SOS Observation in SOS 2.0.0
+	 * @param observation The SOS Observation in SOS 2.0.0, unused as the
+	 * output of the social sensor is known in advance
+	 * @param shape The optional elements of the observations, unused as they are not kept
 	 * @return SimpleFeatureType 
 	 */
-	private SimpleFeatureType createType() {
+	@Override
+	protected SimpleFeatureType createType(OMObservationType observation, int shape) {
+		SimpleFeatureType cached = getCachedType(TYPE_NAME);
+		if(cached != null) {
+			return cached;
+		}
+		return cacheType(TYPE_NAME, buildType());
+	}
+	
+	/**
+	 * The FeatureType holds none of the optional elements, so all observations share it
+	 */
+	@Override
+	protected int shapeOf(OMObservationType observation) {
+		return 0;
+	}
+	
+	private SimpleFeatureType buildType() {
 		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
-		builder.setName("UCD Social Sensor Observation");
+		builder.setName(TYPE_NAME);
 		builder.add("phenomenonTime", Date.class);
 		builder.add("observedProperty", String.class);
-		builder.add("resultTime", String.class);
+		builder.add("resultTime", Date.class);
 		builder.add("procedure", String.class);
 		builder.add("foiHref", String.class);
 		builder.add("foiTitle", String.class);
 		builder.add("result", String.class);
+		builder.add("sentiment", Double.class);
+		builder.add("userId", Long.class);
+		builder.add("tweet", String.class);
 		
 		return builder.buildFeatureType();
 	}
 
 
-	@SuppressWarnings("restriction")
-	private SimpleFeature convertToFeature(OMObservationType observation) 
-														throws XmlException {
+	/**
+	 * Adds an observation to a columnar store, with the sentiment decoded
+	 * from the result string as its numeric result
+	 */
+	@Override
+	protected void appendTo(OMObservationType observation, ObservationColumns columns) throws XmlException {
+		SocialResultDecoder decoder = RESULT_DECODER.get();
+		try {
+			decoder.decode(observation.getResult().getDomNode().getFirstChild().getNodeValue());
+		} catch(NullPointerException e) {
+			XmlException ex = missingElement("result", "No result string found in result element", e);
+			LOGGER.error(ex.getMessage());
+			throw ex;
+		}
+		appendTo(observation, columns, decoder.getSentiment());
+	}
+	
+	@Override
+	protected SimpleFeature convertToFeature(OMObservationType observation, 
+			ParseContext context) throws XmlException {
+		SimpleFeatureBuilder featureBuilder = context.getFeatureBuilder();
 		try {
+			AbstractTimeObjectType timeObject;
+			long phenomenonTime;
 			try {
-				AbstractTimeObjectType timeObject = 
-						observation.getPhenomenonTime().getAbstractTimeObject();
+				timeObject = observation.getPhenomenonTime().getAbstractTimeObject();
 				if(TimeInstantType.type.isAssignableFrom(timeObject.schemaType())) {
 					TimeInstantType timeInstant = (TimeInstantType) timeObject.changeType(TimeInstantType.type);
-					Date phenomenonTime = javax.xml.bind.DatatypeConverter.parseDateTime(timeInstant.getTimePosition().getStringValue()).getTime();
-					featureBuilder.add(phenomenonTime);
+					phenomenonTime = parseTime(timeInstant.getTimePosition().getStringValue());
+					featureBuilder.add(new Date(phenomenonTime));
 				} else {
-					throw new XmlException("Could not parse phenomenonTime as ISO 8601 Time string");	
+					throw missingElement("phenomenonTime", "Could not parse phenomenonTime as ISO 8601 Time string", null);	
 				}
 			} catch(NullPointerException e) {
-				throw new XmlException("Could not parse phenomenonTime", e);
+				throw missingElement("phenomenonTime", "Could not parse phenomenonTime", e);
+			} catch(IllegalArgumentException e) {
+				throw missingElement("phenomenonTime", "Could not parse phenomenonTime as ISO 8601 Time string", e);
 			}
 			
 			try {
 				ReferenceType observedProperty = observation.getObservedProperty();
 				if(observedProperty.isSetHref()) {	
-					featureBuilder.add(observedProperty.getHref());
+					featureBuilder.add(context.intern(observedProperty.getHref()));
 				} else {
-					throw new XmlException("No href tag set on observedProperty element");
+					throw missingElement("observedProperty", "No href tag set on observedProperty element", null);
 				}
 			} catch(NullPointerException e) {
-				throw new XmlException("Could not parse observedProperty href", e);
+				throw missingElement("observedProperty", "Could not parse observedProperty href", e);
 			}
 			
+			// the resultTime normally refers to the phenomenonTime, so takes its decoded instant
 			try {
-				TimeInstantPropertyType resultTime = observation.getResultTime();
-				if(resultTime.isSetHref()) {	
-					featureBuilder.add(resultTime.getHref());
+				long resultTime = readResultTime(observation.getResultTime(), timeObject, phenomenonTime);
+				if(resultTime != ObservationColumns.NO_TIME) {
+					featureBuilder.add(new Date(resultTime));
 				} else {
-					throw new XmlException("No href tag set on resultTime element");
+					throw missingElement("resultTime", "Could not resolve resultTime to a time instant", null);
 				}
 			} catch(NullPointerException e) {
-				throw new XmlException("Could not parse resultTime href", e);
+				throw missingElement("resultTime", "Could not parse resultTime", e);
 			}
 			
 			try {
 				OMProcessPropertyType procedure = observation.getProcedure();
 				if(procedure.isSetHref()) {
-					featureBuilder.add(procedure.getHref());
+					featureBuilder.add(context.intern(procedure.getHref()));
 				} else {
-					throw new XmlException("No href tag set on procedure element");
+					throw missingElement("procedure", "No href tag set on procedure element", null);
 				}
 			} catch(NullPointerException e) {
-				throw new XmlException("Could not parse procedure href", e);
+				throw missingElement("procedure", "Could not parse procedure href", e);
 			}
 			
 			// get foi Link and Title as separate strings
 			try {
 				FeaturePropertyType foi = observation.getFeatureOfInterest();
 				if(foi.isSetHref() && foi.isSetTitle()) {
-					featureBuilder.add(foi.getHref());
-					featureBuilder.add(foi.getTitle());
+					featureBuilder.add(context.intern(foi.getHref()));
+					featureBuilder.add(context.intern(foi.getTitle()));
 				} else {
-					throw new XmlException("No href or title set on featureOfInterest element");
+					throw missingElement("featureOfInterest", "No href or title set on featureOfInterest element", null);
 				}
 			} catch(NullPointerException e) {
-				throw new XmlException("Could not parse featureOfInterest", e);
+				throw missingElement("featureOfInterest", "Could not parse featureOfInterest", e);
 			}
 			
 			// parse result string for separate sentiment, userid and tweet fields
@@ -158,8 +174,13 @@ public class SocialSOSParser extends SimpleSOSParser_200 {
 			if(resultString != null) {
 				featureBuilder.add(resultString);
 			} else {
-				throw new XmlException("No result string found in result element");
+				throw missingElement("result", "No result string found in result element", null);
 			}
+			SocialResultDecoder decoder = RESULT_DECODER.get();
+			decoder.decode(resultString);
+			featureBuilder.add(decoder.getSentiment());
+			featureBuilder.add(decoder.getUserId());
+			featureBuilder.add(decoder.getTweet());
 		} catch (XmlException e) {
 			LOGGER.error(e.getMessage());
 			throw e;
@@ -0,0 +1,210 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import net.opengis.om.x20.OMObservationDocument;
+import net.opengis.om.x20.OMObservationType;
+
+import org.apache.xmlbeans.XmlException;
+import org.apache.xmlbeans.XmlOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pull parser over a SOS 2.0.0 GetObservationResponse, optionally wrapped
+ * in a SOAP Envelope, which hands out one O&amp;M 2.0 observation at a time.
+ *
+ * Only the current {@code om:OM_Observation} element is loaded into an
+ * XmlBeans object, so the memory needed depends on the size of a single
+ * observation rather than on the size of the whole response.
+ *
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public class StreamingObservationReader implements Iterator<OMObservationType>, Closeable {
+
+	protected static final String SOAP_12_NS = "http://www.w3.org/2003/05/soap-envelope";
+	protected static final String SOAP_11_NS = "http://schemas.xmlsoap.org/soap/envelope/";
+	protected static final QName GET_OBSERVATION_RESPONSE =
+			new QName("http://www.opengis.net/sos/2.0", "GetObservationResponse");
+	protected static final QName OM_OBSERVATION = OMObservationDocument.type.getDocumentElementName();
+
+	private static final XMLInputFactory INPUT_FACTORY = newInputFactory();
+	private static Logger LOGGER = LoggerFactory.getLogger(StreamingObservationReader.class);
+
+	private final XMLStreamReader reader;
+	// namespaces declared on the envelope and response, handed on to each observation
+	private final Map<String, String> namespaces = new HashMap<String, String>();
+	private OMObservationType next;
+	private boolean finished = false;
+
+	/**
+	 * Responses come from remote services, so their readers neither load DTDs
+	 * nor resolve external entities
+	 *
+	 * @return A factory for such readers
+	 */
+	static XMLInputFactory newInputFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		return factory;
+	}
+
+	/**
+	 * Creates a reader over the given stream and checks that it holds a
+	 * GetObservationResponse, either bare or as the payload of a SOAP Body
+	 *
+	 * @param input The InputStream containing the SOS response
+	 * @throws IllegalArgumentException if the stream is not a GetObservationResponse
+	 */
+	public StreamingObservationReader(InputStream input) {
+		try {
+			reader = INPUT_FACTORY.createXMLStreamReader(input);
+			QName root = nextStartElement();
+			if(root != null && isSoapElement(root, "Envelope")) {
+				LOGGER.debug("Found SOAP Envelope");
+				QName child = nextStartElement();
+				if(child != null && isSoapElement(child, "Header")) {
+					skipElement();
+					child = nextStartElement();
+				}
+				if(child == null || !isSoapElement(child, "Body")) {
+					throw fail("Could not find SOAP Body in response");
+				}
+				root = nextStartElement();
+				if(!GET_OBSERVATION_RESPONSE.equals(root)) {
+					throw fail("SOAP Body does not contain valid GetObservationResponse");
+				}
+				LOGGER.debug("Found GetObservationResponse in SOAP Body!");
+			} else if(GET_OBSERVATION_RESPONSE.equals(root)) {
+				LOGGER.warn("GetObservations not in SOAP Envelope");
+			} else {
+				throw fail("Could not find SOAP Envelope or GetObservationResponse in response");
+			}
+		} catch(XMLStreamException e) {
+			throw new IllegalArgumentException("Error parseing XML", e);
+		}
+	}
+
+	public boolean hasNext() {
+		if(next == null && !finished) {
+			try {
+				next = readObservation();
+			} catch(XMLStreamException e) {
+				throw new IllegalArgumentException("Error parseing XML", e);
+			} catch(XmlException e) {
+				throw new IllegalArgumentException("Error parseing observation", e);
+			}
+			finished = next == null;
+		}
+		return next != null;
+	}
+
+	public OMObservationType next() {
+		if(!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		OMObservationType observation = next;
+		next = null;
+		return observation;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException("Observations cannot be removed from the stream");
+	}
+
+	/**
+	 * Releases the underlying pull parser. The InputStream itself is left
+	 * open as it belongs to the caller.
+	 */
+	public void close() {
+		finished = true;
+		next = null;
+		try {
+			reader.close();
+		} catch(XMLStreamException e) {
+			LOGGER.warn("Problem closing XML stream: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * Advances to the next om:OM_Observation and loads just that element
+	 *
+	 * @return the observation, or null when the response holds no more
+	 * @throws XMLStreamException if the underlying XML is malformed
+	 * @throws XmlException if the observation could not be loaded
+	 */
+	private OMObservationType readObservation() throws XMLStreamException, XmlException {
+		while(reader.hasNext()) {
+			int event = reader.next();
+			if(event == XMLStreamConstants.START_ELEMENT && OM_OBSERVATION.equals(reader.getName())) {
+				XmlOptions options = new XmlOptions();
+				options.setLoadAdditionalNamespaces(namespaces);
+				// XmlBeans consumes the stream up to the matching end element
+				OMObservationDocument document = OMObservationDocument.Factory.parse(reader, options);
+				return document.getOMObservation();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Moves to the next start element, recording its namespace declarations
+	 *
+	 * @return the name of the element, or null if the document ended first
+	 * @throws XMLStreamException if the underlying XML is malformed
+	 */
+	private QName nextStartElement() throws XMLStreamException {
+		while(reader.hasNext()) {
+			if(reader.next() == XMLStreamConstants.START_ELEMENT) {
+				for(int i = 0; i < reader.getNamespaceCount(); i++) {
+					String prefix = reader.getNamespacePrefix(i);
+					namespaces.put(prefix == null ? "" : prefix, reader.getNamespaceURI(i));
+				}
+				return reader.getName();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Skips over the element the reader is currently positioned on
+	 *
+	 * @throws XMLStreamException if the underlying XML is malformed
+	 */
+	private void skipElement() throws XMLStreamException {
+		int depth = 1;
+		while(depth > 0 && reader.hasNext()) {
+			int event = reader.next();
+			if(event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if(event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+
+	private boolean isSoapElement(QName name, String localPart) {
+		return localPart.equals(name.getLocalPart()) &&
+				(SOAP_12_NS.equals(name.getNamespaceURI()) || SOAP_11_NS.equals(name.getNamespaceURI()));
+	}
+
+	private IllegalArgumentException fail(String message) {
+		IllegalArgumentException e = new IllegalArgumentException(message);
+		LOGGER.error(e.getMessage());
+		return e;
+	}
+}
@@ -0,0 +1,65 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dictionary encoding of URIs, giving each distinct URI a small int code
+ * in the order first seen, so that a column of URIs can be held as an int[].
+ * 
+ * Not safe for use from several threads while codes are being added.
+ * 
+ * @author Sebastian Clarke - sebastian.clarke@envsys.co.uk
+ * Copyright (c) 2015 - Environment Systems
+ *
+ */
+public class UriDictionary {
+	/** Code for a missing URI */
+	public static final int NONE = -1;
+	
+	private final Map<String, Integer> codes = new HashMap<String, Integer>();
+	private final List<String> uris = new ArrayList<String>();
+	
+	/**
+	 * @param uri The URI to encode, may be null
+	 * @return The code of the URI, adding it if new, or {@link #NONE} for null
+	 */
+	public int encode(String uri) {
+		if(uri == null) {
+			return NONE;
+		}
+		Integer code = codes.get(uri);
+		if(code == null) {
+			code = uris.size();
+			codes.put(uri, code);
+			uris.add(uri);
+		}
+		return code;
+	}
+	
+	/**
+	 * @param uri The URI to look up
+	 * @return The code of the URI, or {@link #NONE} if it has not been seen
+	 */
+	public int codeOf(String uri) {
+		Integer code = uri == null ? null : codes.get(uri);
+		return code == null ? NONE : code;
+	}
+	
+	/**
+	 * @param code A code returned by {@link #encode(String)}
+	 * @return The URI for the code, or null for {@link #NONE}
+	 */
+	public String decode(int code) {
+		return code == NONE ? null : uris.get(code);
+	}
+	
+	/**
+	 * @return The number of distinct URIs
+	 */
+	public int size() {
+		return uris.size();
+	}
+}
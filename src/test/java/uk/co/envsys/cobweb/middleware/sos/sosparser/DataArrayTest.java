@@ -0,0 +1,212 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.List;
+
+import javax.xml.bind.DatatypeConverter;
+
+import net.opengis.om.x10.ObservationCollectionDocument;
+
+import org.apache.xmlbeans.XmlObject;
+import org.n52.wps.io.data.binding.complex.GTVectorDataBinding;
+import org.opengis.feature.simple.SimpleFeature;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the SWE DataArray results of the 52N SOS 1.0.0 response are
+ * decoded into typed values, and expanded into a feature per block
+ */
+public class DataArrayTest extends TestCase {
+	private static final String PROCEDURE = "Wassertemperatur-Stoer-Sperrwerk_Bp_5970040";
+	private static final String FEATURE = "Stoer-Sperrwerk_Bp_5970040";
+	private static final String SWE = "xmlns:swe=\"http://www.opengis.net/swe/1.0.1\"";
+
+	public void testDecodeFixture() throws Exception {
+		DataArrayDecoder decoder = new DataArrayDecoder();
+		InternTable interns = new InternTable(InternTable.DEFAULT_MAX_SIZE);
+		assertTrue(decoder.decode(firstResult(), interns));
+		assertEquals(3, decoder.getFieldCount());
+		assertEquals("SamplingTime", decoder.getFieldName(0));
+		assertEquals(DataArrayDecoder.FieldType.TIME, decoder.getFieldType(0));
+		assertEquals(DataArrayDecoder.FieldType.TEXT, decoder.getFieldType(1));
+		assertEquals(DataArrayDecoder.FieldType.QUANTITY, decoder.getFieldType(2));
+		assertEquals("Wassertemperatur", decoder.getDefinition(2));
+		assertEquals("°C", decoder.getUom(2));
+		assertEquals(61, decoder.getRowCount());
+		assertEquals(time("2015-03-31T13:00:00.000Z"), decoder.getTime(0, 0));
+		assertEquals(time("2015-03-31T14:00:00.000Z"), decoder.getTime(0, 60));
+		assertEquals(8.0, decoder.getQuantity(2, 0));
+		assertEquals(7.9, decoder.getQuantity(2, 4));
+		assertEquals(FEATURE, decoder.getText(1, 0));
+		assertSame(decoder.getText(1, 0), decoder.getText(1, 60));
+		for(int row = 0; row < decoder.getRowCount(); row++) {
+			assertNull(decoder.getRowError(row));
+		}
+	}
+
+	public void testDecodeOtherSeparators() throws Exception {
+		DataArrayDecoder decoder = new DataArrayDecoder();
+		assertTrue(decoder.decode(dataArray("decimalSeparator=\",\" tokenSeparator=\" \" blockSeparator=\"@@\"",
+				"\n  2015-03-31T13:00:00Z 12,5 3 a@@\n  2015-03-31T13:01:00Z 13 x b@@2015-03-31T13:02:00Z  4@@  \n"), null));
+		assertEquals(3, decoder.getRowCount());
+		assertEquals(12.5, decoder.getQuantity(1, 0));
+		assertEquals(3, decoder.getCount(2, 0));
+		assertEquals("a", decoder.getText(3, 0));
+		assertNull(decoder.getRowError(0));
+		// a count which is not a number spoils only its own block
+		assertNotNull(decoder.getRowError(1));
+		assertEquals(time("2015-03-31T13:02:00.000Z"), decoder.getTime(0, 2));
+		// an empty token is a missing quantity, but a missing token spoils the block
+		assertTrue(Double.isNaN(decoder.getQuantity(1, 2)));
+		assertNotNull(decoder.getRowError(2));
+	}
+
+	public void testValuesEndingPartWayThroughBlock() throws Exception {
+		DataArrayDecoder decoder = new DataArrayDecoder();
+		assertTrue(decoder.decode(dataArray("tokenSeparator=\",\" blockSeparator=\"@@\"",
+				"2015-03-31T13:00:00Z,1,2,a@@2015-03-31T13:01:00Z,"), null));
+		assertEquals(2, decoder.getRowCount());
+		assertNull(decoder.getRowError(0));
+		assertEquals(time("2015-03-31T13:01:00.000Z"), decoder.getTime(0, 1));
+		assertTrue(Double.isNaN(decoder.getQuantity(1, 1)));
+		assertEquals("Expected 4 tokens in block, found 2", decoder.getRowError(1));
+
+		// the empty token after the separator may be the last field
+		decoder = new DataArrayDecoder();
+		assertTrue(decoder.decode(dataArray("tokenSeparator=\",\" blockSeparator=\"@@\"",
+				"2015-03-31T13:00:00Z,1,2,"), null));
+		assertEquals(1, decoder.getRowCount());
+		assertNull(decoder.getRowError(0));
+		assertEquals(2, decoder.getCount(2, 0));
+	}
+
+	public void testNotADataArray() throws Exception {
+		DataArrayDecoder decoder = new DataArrayDecoder();
+		assertFalse(decoder.decode(XmlObject.Factory.parse("<result>12.5</result>"), null));
+		assertFalse(decoder.decode(null, null));
+	}
+
+	public void testExpandedFeatures() throws Exception {
+		SimpleSOSParser_100 parser = new SimpleSOSParser_100();
+		parser.setExpandArrays(true);
+		List<SimpleFeature> features = ParserFixtures.features(ParserFixtures.parse(parser, ParserFixtures.DEMO_52N_XML_100));
+		assertEquals(61, features.size());
+		SimpleFeature first = features.get(0);
+		assertEquals(PROCEDURE, first.getAttribute("procedure"));
+		assertEquals(new Date(time("2015-03-31T13:00:00.000Z")), first.getAttribute("SamplingTime"));
+		assertEquals(FEATURE, first.getAttribute("FeatureOfInterest"));
+		assertEquals(Double.valueOf(8.0), first.getAttribute("Wassertemperatur"));
+		assertEquals(Double.valueOf(7.9), features.get(60).getAttribute("Wassertemperatur"));
+	}
+
+	public void testTimeWindowChecksEachBlock() throws Exception {
+		SimpleSOSParser_100 parser = new SimpleSOSParser_100();
+		parser.setExpandArrays(true);
+		ObservationFilter filter = new ObservationFilter();
+		filter.setTimeWindow(new Date(time("2015-03-31T13:10:00.000Z")), new Date(time("2015-03-31T13:19:59.000Z")));
+		InputStream in = ParserFixtures.open(ParserFixtures.DEMO_52N_XML_100);
+		try {
+			List<SimpleFeature> features = ParserFixtures.features(parser.parse(in, filter));
+			assertEquals(10, features.size());
+			assertEquals(new Date(time("2015-03-31T13:10:00.000Z")), features.get(0).getAttribute("SamplingTime"));
+		} finally {
+			in.close();
+		}
+	}
+
+	public void testExpandedColumns() throws Exception {
+		SimpleSOSParser_100 parser = new SimpleSOSParser_100();
+		parser.setExpandArrays(true);
+		parser.setColumnar(true);
+		ObservationColumns columns = ((ObservationColumnsFeatureCollection) ((GTVectorDataBinding)
+				ParserFixtures.parse(parser, ParserFixtures.DEMO_52N_XML_100)).getPayload()).getColumns();
+		assertEquals(61, columns.size());
+		assertEquals(time("2015-03-31T13:01:00.000Z"), columns.getPhenomenonTimeBegin()[1]);
+		assertEquals(8.0, columns.getResult()[1], 0);
+		assertEquals("Wassertemperatur", columns.getObservedProperties().decode(columns.getObservedProperty()[0]));
+		assertEquals(FEATURE, columns.getFeaturesOfInterest().decode(columns.getFeatureOfInterest()[0]));
+		assertEquals(PROCEDURE, columns.getProcedures().decode(columns.getProcedure()[0]));
+	}
+
+	public void testLazyExpansion() throws Exception {
+		SimpleSOSParser_100 parser = new SimpleSOSParser_100();
+		parser.setExpandArrays(true);
+		SimpleSOSParser_100 lazy = new SimpleSOSParser_100();
+		lazy.setExpandArrays(true);
+		lazy.setLazy(true);
+		assertEquals(ParserFixtures.describe(ParserFixtures.parse(parser, ParserFixtures.DEMO_52N_XML_100)),
+				ParserFixtures.describe(ParserFixtures.parse(lazy, ParserFixtures.DEMO_52N_XML_100)));
+	}
+
+	public void testBadBlockSkippedWhenLenient() throws Exception {
+		SimpleSOSParser_100 parser = new SimpleSOSParser_100();
+		parser.setExpandArrays(true);
+		parser.SetStrictMode(false);
+		ParseErrorReport errors = new ParseErrorReport();
+		List<SimpleFeature> features = ParserFixtures.features(parser.parse(withBadBlock(), null, errors));
+		assertEquals(60, features.size());
+		assertEquals(1, errors.getErrorCount());
+		assertEquals(2, errors.getErrors().get(0).getIndex());
+
+		parser = new SimpleSOSParser_100();
+		parser.setExpandArrays(true);
+		try {
+			parser.parse(withBadBlock(), null);
+			fail("Parsed a bad block in strict mode");
+		} catch(IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testResultsWhichAreNotArrays() throws Exception {
+		SimpleSOSParser_100 parser = new SimpleSOSParser_100();
+		parser.setExpandArrays(true);
+		parser.SetStrictMode(false);
+		ParseErrorReport errors = new ParseErrorReport();
+		InputStream in = ParserFixtures.open(ParserFixtures.UCD_XML_100);
+		try {
+			assertEquals(0, ParserFixtures.features(parser.parse(in, null, errors)).size());
+		} finally {
+			in.close();
+		}
+		assertEquals(12, errors.getErrorCount());
+	}
+
+	private static XmlObject firstResult() throws Exception {
+		InputStream in = ParserFixtures.open(ParserFixtures.DEMO_52N_XML_100);
+		try {
+			return ObservationCollectionDocument.Factory.parse(in).getObservationCollection()
+					.getMemberArray(0).getObservation().getResult();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static XmlObject dataArray(String encoding, String values) throws Exception {
+		return XmlObject.Factory.parse("<result><swe:DataArray " + SWE + "><swe:elementType name=\"Components\">" +
+				"<swe:DataRecord>" +
+				"<swe:field name=\"time\"><swe:Time/></swe:field>" +
+				"<swe:field name=\"level\"><swe:Quantity><swe:uom code=\"m\"/></swe:Quantity></swe:field>" +
+				"<swe:field name=\"count\"><swe:Count/></swe:field>" +
+				"<swe:field name=\"flag\"><swe:Category/></swe:field>" +
+				"</swe:DataRecord></swe:elementType>" +
+				"<swe:encoding><swe:TextBlock " + encoding + "/></swe:encoding>" +
+				"<swe:values>" + values + "</swe:values></swe:DataArray></result>");
+	}
+
+	/**
+	 * The 52N response with the quantity of its third block spoilt
+	 */
+	private static InputStream withBadBlock() throws Exception {
+		String xml = ParserFixtures.slurp(ParserFixtures.DEMO_52N_XML_100);
+		xml = xml.replace("15:02:00.000+02:00,Stoer-Sperrwerk_Bp_5970040,8.0;", "15:02:00.000+02:00,Stoer-Sperrwerk_Bp_5970040,eight;");
+		return new ByteArrayInputStream(xml.getBytes("UTF-8"));
+	}
+
+	private static long time(String iso) {
+		return DatatypeConverter.parseDateTime(iso).getTimeInMillis();
+	}
+}
@@ -0,0 +1,73 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.apache.xmlbeans.XmlObject;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.feature.FeatureIterator;
+import org.n52.wps.io.data.binding.complex.GTVectorDataBinding;
+import org.opengis.feature.simple.SimpleFeature;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks detached features hold plain values equal to those of the 
+ * XmlBeans objects they come from
+ */
+public class DetachedFeatureTest extends TestCase {
+	
+	public void testMeasurementValues() throws Exception {
+		SimpleFeature feature = first(new SimpleSOSParser_200(), ParserFixtures.DEMO_52N_XML_200);
+		assertEquals(ObservationTime.period(time("2013-01-10T14:00:00.000Z"), time("2013-01-10T15:00:00.000Z")), 
+				feature.getAttribute("phenomenonTime"));
+		assertEquals(ObservationTime.instant(time("2014-03-31T00:00:00.000Z")), feature.getAttribute("resultTime"));
+		assertEquals("SPP-SE_NDIR_thermo42", ((Reference) feature.getAttribute("procedure")).getHref());
+		assertEquals("http://dd.eionet.europa.eu/vocabulary/aq/pollutant/10", 
+				((Reference) feature.getAttribute("observedProperty")).getHref());
+		assertEquals(Double.valueOf(0.4300000071525574), feature.getAttribute("result"));
+		assertNoXmlObjects(feature);
+	}
+	
+	public void testObservationCollectionValues() throws Exception {
+		SimpleFeature feature = first(new SimpleSOSParser_100(), ParserFixtures.UCD_XML_100);
+		ObservationTime samplingTime = (ObservationTime) feature.getAttribute("samplingTime");
+		assertEquals(time("2015-02-13T22:11:18.557Z"), samplingTime.getBeginMillis());
+		// resultTime refers to the samplingTime by its gml:id
+		assertEquals(ObservationTime.instant(samplingTime.getEndMillis()), feature.getAttribute("resultTime"));
+		// the feature of interest is inline, so it is named by its gml:name
+		assertEquals("http://smartcoasts.ucd.ie/featureOfInterest/e10f38e1-5d0e-4e7d-baab-111dcdf024ac", 
+				((Reference) feature.getAttribute("featureOfInterest")).getHref());
+		assertTrue(((String) feature.getAttribute("result")).startsWith("Sentiment: 0.0 User ID: 95915679"));
+		assertNoXmlObjects(feature);
+	}
+	
+	public void testDetachedTypeIsCachedApart() throws Exception {
+		SimpleSOSParser_200 parser = new SimpleSOSParser_200();
+		GTVectorDataBinding data = (GTVectorDataBinding) ParserFixtures.parse(parser, ParserFixtures.DEMO_52N_XML_200);
+		SimpleFeatureCollection attached = (SimpleFeatureCollection) data.getPayload();
+		SimpleFeature detached = first(parser, ParserFixtures.DEMO_52N_XML_200);
+		assertNotSame(attached.getSchema(), detached.getFeatureType());
+		assertEquals(ObservationTime.class, detached.getFeatureType().getDescriptor("phenomenonTime").getType().getBinding());
+	}
+	
+	private static void assertNoXmlObjects(SimpleFeature feature) {
+		for(Object value : feature.getAttributes()) {
+			assertFalse(String.valueOf(value), value instanceof XmlObject);
+		}
+	}
+	
+	private static SimpleFeature first(SimpleSOSParser parser, String fixture) throws Exception {
+		parser.setDetached(true);
+		GTVectorDataBinding data = (GTVectorDataBinding) ParserFixtures.parse(parser, fixture);
+		FeatureIterator<?> features = data.getPayload().features();
+		try {
+			return (SimpleFeature) features.next();
+		} finally {
+			features.close();
+		}
+	}
+	
+	private static long time(String iso) {
+		return DatatypeConverter.parseDateTime(iso).getTimeInMillis();
+	}
+}
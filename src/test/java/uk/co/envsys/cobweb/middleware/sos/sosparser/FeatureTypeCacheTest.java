@@ -0,0 +1,55 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that FeatureTypes are reused between parses of the same shape of
+ * response, and that the cache stays within its bounds
+ */
+public class FeatureTypeCacheTest extends TestCase {
+	
+	public void testReusesTypeBetweenParses() throws Exception {
+		FeatureTypeCache cache = new FeatureTypeCache(FeatureTypeCache.DEFAULT_MAX_SIZE);
+		SimpleSOSParser_200 parser = new SimpleSOSParser_200();
+		parser.setTypeCache(cache);
+		
+		ParserFixtures.parse(parser, ParserFixtures.DEMO_52N_XML_200);
+		assertEquals(1, cache.size());
+		assertEquals(1, cache.getMisses());
+		assertEquals(0, cache.getHits());
+		
+		ParserFixtures.parse(parser, ParserFixtures.DEMO_52N_XML_200);
+		assertEquals(1, cache.size());
+		assertEquals(1, cache.getHits());
+	}
+	
+	public void testEvictsLeastRecentlyUsed() {
+		FeatureTypeCache cache = new FeatureTypeCache(2);
+		cache.put("a", type("a"));
+		cache.put("b", type("b"));
+		cache.get("a");
+		cache.put("c", type("c"));
+		assertEquals(2, cache.size());
+		assertNotNull(cache.get("a"));
+		assertNull(cache.get("b"));
+	}
+	
+	public void testPoolsBuilders() {
+		FeatureTypeCache cache = new FeatureTypeCache(2);
+		SimpleFeatureType type = cache.put("a", type("a"));
+		SimpleFeatureBuilder builder = cache.borrowBuilder(type);
+		cache.releaseBuilder(builder);
+		assertSame(builder, cache.borrowBuilder(type));
+	}
+	
+	private SimpleFeatureType type(String name) {
+		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+		builder.setName(name);
+		builder.add("value", String.class);
+		return builder.buildFeatureType();
+	}
+}
@@ -0,0 +1,273 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.xmlbeans.XmlObject;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.n52.wps.io.data.IData;
+import org.n52.wps.io.data.binding.complex.GTVectorDataBinding;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the geometries of observations are decoded, shared between
+ * observations of the same feature of interest and indexed spatially
+ */
+public class GeometryTest extends TestCase {
+	private static final String GML = "xmlns:gml=\"http://www.opengis.net/gml\"";
+	private static final String FOI_HREF =
+			"<om:featureOfInterest xlink:href=\"SPO_F-SE0003A_00010_100_100\" xlink:title=\"Stockholm Hornsgatan\"/>";
+	private static final String FOI_INLINE = "<om:featureOfInterest>" +
+			"<sams:SF_SpatialSamplingFeature gml:id=\"SPO_F-SE0003A_00010_100_100\" " +
+			"xmlns:sams=\"http://www.opengis.net/samplingSpatial/2.0\" xmlns:sf=\"http://www.opengis.net/sampling/2.0\">" +
+			"<gml:identifier codeSpace=\"http://www.opengis.net/def/nil/OGC/0/unknown\">SPO_F-SE0003A_00010_100_100</gml:identifier>" +
+			"<sf:type xlink:href=\"http://www.opengis.net/def/samplingFeatureType/OGC-OM/2.0/SF_SamplingPoint\"/>" +
+			"<sf:sampledFeature xlink:href=\"http://www.opengis.net/def/nil/OGC/0/unknown\"/>" +
+			"<sams:shape><gml:Point gml:id=\"point_1\">" +
+			"<gml:pos srsName=\"urn:ogc:def:crs:EPSG::4326\">59.317 18.049</gml:pos>" +
+			"</gml:Point></sams:shape></sams:SF_SpatialSamplingFeature></om:featureOfInterest>";
+	private static final String PROCEDURE = "<om:procedure xlink:href=\"SPP-SE_NDIR_thermo42\"/>";
+	private static final String VALID_TIME = "<om:validTime><gml:TimePeriod gml:id=\"vt_1\">" +
+			"<gml:beginPosition>2013-01-10T00:00:00.000Z</gml:beginPosition>" +
+			"<gml:endPosition>2013-01-11T00:00:00.000Z</gml:endPosition></gml:TimePeriod></om:validTime>";
+
+	public void testPointsOfSamplingFeatures() throws Exception {
+		SimpleSOSParser_100 parser = new SimpleSOSParser_100();
+		parser.setGeometry(true);
+		FeatureCollection<?, ?> collection = payload(ParserFixtures.parse(parser, ParserFixtures.UCD_XML_100));
+		assertTrue(collection instanceof IndexedFeatureCollection);
+		List<SimpleFeature> features = ParserFixtures.features(collection);
+		assertEquals(12, features.size());
+
+		// the EPSG URN gives latitude first, longitude is x
+		Point point = (Point) features.get(0).getDefaultGeometry();
+		assertEquals(11.5270102892405, point.getX(), 1e-9);
+		assertEquals(64.574131, point.getY(), 1e-9);
+		assertSame(point, features.get(0).getAttribute(SimpleSOSParser.GEOMETRY));
+		assertFalse(collection.getBounds().isEmpty());
+	}
+
+	public void testQueryMatchesLinearScan() throws Exception {
+		SimpleSOSParser_100 parser = new SimpleSOSParser_100();
+		parser.setGeometry(true);
+		IndexedFeatureCollection collection = (IndexedFeatureCollection)
+				payload(ParserFixtures.parse(parser, ParserFixtures.UCD_XML_100));
+		List<SimpleFeature> features = ParserFixtures.features(collection);
+		Envelope extent = collection.getBounds();
+		Envelope[] boxes = new Envelope[] {
+				extent,
+				new Envelope(extent.getMinX(), extent.centre().x, extent.getMinY(), extent.getMaxY()),
+				new Envelope(extent.centre().x, extent.getMaxX(), extent.centre().y, extent.getMaxY()),
+				new Envelope(-180, -179, -90, -89)
+		};
+		for(Envelope box : boxes) {
+			List<SimpleFeature> expected = new ArrayList<SimpleFeature>();
+			for(SimpleFeature feature : features) {
+				if(((Geometry) feature.getDefaultGeometry()).getEnvelopeInternal().intersects(box)) {
+					expected.add(feature);
+				}
+			}
+			assertEquals(expected, collection.query(box));
+			assertEquals(expected.size(), collection.subCollection(box).size());
+		}
+		assertEquals(features.size(), collection.query(extent).size());
+	}
+
+	public void testFilterUsesIndex() throws Exception {
+		SimpleSOSParser_100 parser = new SimpleSOSParser_100();
+		parser.setGeometry(true);
+		IndexedFeatureCollection collection = (IndexedFeatureCollection)
+				payload(ParserFixtures.parse(parser, ParserFixtures.UCD_XML_100));
+		List<SimpleFeature> features = ParserFixtures.features(collection);
+		Envelope extent = collection.getBounds();
+		FilterFactory2 factory = CommonFactoryFinder.getFilterFactory2(null);
+		Filter[] filters = new Filter[] {
+				factory.bbox(SimpleSOSParser.GEOMETRY, extent.getMinX(), extent.getMinY(), extent.centre().x, extent.getMaxY(), null),
+				factory.bbox("", extent.centre().x, extent.centre().y, extent.getMaxX(), extent.getMaxY(), null),
+				factory.intersects(factory.property(SimpleSOSParser.GEOMETRY),
+						factory.literal(new GeometryFactory().toGeometry(extent))),
+				factory.bbox(SimpleSOSParser.GEOMETRY, -180, -90, -179, -89, null),
+				// not on the geometry, so checked feature by feature
+				factory.equals(factory.property("procedure"), factory.literal(features.get(0).getAttribute("procedure")))
+		};
+		for(Filter filter : filters) {
+			List<SimpleFeature> expected = new ArrayList<SimpleFeature>();
+			for(SimpleFeature feature : features) {
+				if(filter.evaluate(feature)) {
+					expected.add(feature);
+				}
+			}
+			assertEquals(expected, ParserFixtures.features(collection.subCollection(filter)));
+		}
+	}
+
+	public void testAddDropsIndex() throws Exception {
+		SimpleSOSParser_100 parser = new SimpleSOSParser_100();
+		parser.setGeometry(true);
+		IndexedFeatureCollection collection = (IndexedFeatureCollection)
+				payload(ParserFixtures.parse(parser, ParserFixtures.UCD_XML_100));
+		SimpleFeature first = ParserFixtures.features(collection).get(0);
+		Envelope far = new Envelope(-180, -179, -90, -89);
+		assertTrue(collection.query(far).isEmpty());
+
+		SimpleFeatureBuilder builder = new SimpleFeatureBuilder(collection.getSchema());
+		for(int i = 0; i < collection.getSchema().getAttributeCount(); i++) {
+			builder.set(i, first.getAttribute(i));
+		}
+		builder.set(SimpleSOSParser.GEOMETRY, new GeometryFactory().createPoint(new Coordinate(-179.5, -89.5)));
+		SimpleFeature added = builder.buildFeature("added");
+		collection.add(added);
+		assertEquals(Collections.singletonList(added), collection.query(far));
+		assertTrue(collection.getBounds().contains(-179.5, -89.5));
+	}
+
+	public void testWithoutGeometry() throws Exception {
+		FeatureCollection<?, ?> collection = payload(ParserFixtures.parse(new SimpleSOSParser_100(), ParserFixtures.UCD_XML_100));
+		assertFalse(collection instanceof IndexedFeatureCollection);
+		SimpleFeature feature = ParserFixtures.features(collection).get(0);
+		assertNull(feature.getFeatureType().getDescriptor(SimpleSOSParser.GEOMETRY));
+	}
+
+	public void testReferencedFeatureSharesGeometry() throws Exception {
+		SimpleSOSParser_200 parser = new SimpleSOSParser_200();
+		parser.setGeometry(true);
+		List<SimpleFeature> features = ParserFixtures.features(parser.parse(inlineFeatureResponse(), null));
+		Point point = (Point) features.get(0).getDefaultGeometry();
+		assertEquals(18.049, point.getX(), 1e-9);
+		assertEquals(59.317, point.getY(), 1e-9);
+		for(SimpleFeature feature : features) {
+			assertSame(point, feature.getDefaultGeometry());
+		}
+	}
+
+	public void testReferenceAfterTypeWidened() throws Exception {
+		SimpleSOSParser_200 parser = new SimpleSOSParser_200();
+		parser.setGeometry(true);
+		String xml = inlineFeatureXml();
+		// a validTime on the third observation widens the FeatureType after the feature was given
+		int third = xml.indexOf(PROCEDURE, xml.indexOf(PROCEDURE, xml.indexOf(PROCEDURE) + 1) + 1);
+		xml = xml.substring(0, third) + VALID_TIME + xml.substring(third);
+		List<SimpleFeature> features = ParserFixtures.features(parser.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")), null));
+		assertNotNull(features.get(2).getAttribute("validTime"));
+		Point point = (Point) features.get(0).getDefaultGeometry();
+		assertNotNull(point);
+		for(SimpleFeature feature : features) {
+			assertSame(point, feature.getDefaultGeometry());
+		}
+	}
+
+	public void testParallelReferenceMatchesSequential() throws Exception {
+		SimpleSOSParser_200 sequential = new SimpleSOSParser_200();
+		sequential.setGeometry(true);
+		List<SimpleFeature> expected = ParserFixtures.features(sequential.parse(inlineFeatureResponse(), null));
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			SimpleSOSParser_200 parallel = new SimpleSOSParser_200();
+			parallel.setGeometry(true);
+			parallel.setConversionPool(pool);
+			parallel.setParallelThreshold(1);
+			List<SimpleFeature> features = ParserFixtures.features(parallel.parse(inlineFeatureResponse(), null));
+			assertEquals(expected.size(), features.size());
+			// observations past the first chunk refer to the feature given in it
+			Point point = (Point) features.get(0).getDefaultGeometry();
+			for(int i = 0; i < features.size(); i++) {
+				assertEquals(expected.get(i).getDefaultGeometry(), features.get(i).getDefaultGeometry());
+				assertSame(point, features.get(i).getDefaultGeometry());
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	public void testUnresolvedReference() throws Exception {
+		SimpleSOSParser_200 parser = new SimpleSOSParser_200();
+		parser.setGeometry(true);
+		SimpleFeature feature = ParserFixtures.features(ParserFixtures.parse(parser, ParserFixtures.DEMO_52N_XML_200)).get(0);
+		assertNotNull(feature.getFeatureType().getDescriptor(SimpleSOSParser.GEOMETRY));
+		assertNull(feature.getDefaultGeometry());
+	}
+
+	public void testTableKeepsEarlierGeometriesWhenFull() throws Exception {
+		GeometryFactory factory = new GeometryFactory();
+		Point a = factory.createPoint(new Coordinate(1, 2));
+		Point b = factory.createPoint(new Coordinate(3, 4));
+		GeometryTable table = new GeometryTable(1);
+		assertSame(a, table.put("#a", a));
+		assertSame(a, table.put("#a", factory.createPoint(new Coordinate(1, 2))));
+		assertSame(b, table.put("#b", b));
+		assertNull(table.get("#b"));
+		assertSame(a, table.get("#a"));
+		assertEquals(1, table.size());
+	}
+
+	public void testDecodePolygon() throws Exception {
+		Geometry geometry = GeometryDecoder.decode(XmlObject.Factory.parse(
+				"<shape " + GML + "><gml:Polygon srsName=\"urn:ogc:def:crs:EPSG::4326\"><gml:exterior><gml:LinearRing>" +
+				"<gml:posList srsDimension=\"3\">50 -4 0 50 -3 0 51 -3 0 51 -4 0 50 -4 0</gml:posList>" +
+				"</gml:LinearRing></gml:exterior></gml:Polygon></shape>"));
+		assertTrue(geometry instanceof Polygon);
+		assertEquals(new Envelope(-4, -3, 50, 51), geometry.getEnvelopeInternal());
+		assertEquals(GeometryDecoder.WGS84_SRID, geometry.getSRID());
+	}
+
+	public void testDecodeEnvelope() throws Exception {
+		Geometry geometry = GeometryDecoder.decode(XmlObject.Factory.parse(
+				"<gml:boundedBy " + GML + "><gml:Envelope srsName=\"urn:ogc:def:crs:EPSG::4326\">" +
+				"<gml:lowerCorner>50 -4</gml:lowerCorner><gml:upperCorner>51 -3</gml:upperCorner>" +
+				"</gml:Envelope></gml:boundedBy>"));
+		assertEquals(new Envelope(-4, -3, 50, 51), geometry.getEnvelopeInternal());
+	}
+
+	public void testDecodeLongitudeFirst() throws Exception {
+		Point point = (Point) GeometryDecoder.decode(XmlObject.Factory.parse(
+				"<shape " + GML + "><gml:Point srsName=\"http://www.opengis.net/def/crs/OGC/1.3/CRS84\">" +
+				"<gml:pos>-4 50</gml:pos></gml:Point></shape>"));
+		assertEquals(-4.0, point.getX());
+		assertEquals(50.0, point.getY());
+	}
+
+	public void testDecodeUnsupportedReferenceSystem() throws Exception {
+		assertNull(GeometryDecoder.decode(XmlObject.Factory.parse(
+				"<shape " + GML + "><gml:Point srsName=\"urn:ogc:def:crs:EPSG::27700\">" +
+				"<gml:pos>260000 60000</gml:pos></gml:Point></shape>")));
+		assertNull(GeometryDecoder.decode(XmlObject.Factory.parse(
+				"<shape " + GML + "><gml:Point><gml:pos>not a number</gml:pos></gml:Point></shape>")));
+		assertNull(GeometryDecoder.decode(null));
+	}
+
+	private static FeatureCollection<?, ?> payload(IData data) {
+		return ((GTVectorDataBinding) data).getPayload();
+	}
+
+	/**
+	 * The 52N response with the feature of interest of the first observation given
+	 * inline, so that the others refer to it by its identifier
+	 */
+	private static InputStream inlineFeatureResponse() throws Exception {
+		return new ByteArrayInputStream(inlineFeatureXml().getBytes("UTF-8"));
+	}
+
+	private static String inlineFeatureXml() throws IOException {
+		String xml = ParserFixtures.slurp(ParserFixtures.DEMO_52N_XML_200);
+		int first = xml.indexOf(FOI_HREF);
+		return xml.substring(0, first) + FOI_INLINE + xml.substring(first + FOI_HREF.length());
+	}
+}
@@ -0,0 +1,204 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.n52.wps.io.data.IData;
+
+import junit.framework.TestCase;
+
+/**
+ * Reads the sample responses from a local stand-in for a SOS, plain and
+ * compressed, checking they parse as they do from a file
+ */
+public class HttpResponseReaderTest extends TestCase {
+	private ParserFixtures.SosServer server;
+	private String fixture = ParserFixtures.DEMO_52N_XML_200;
+	private final CountDownLatch firstParsed = new CountDownLatch(1);
+	private final CountDownLatch released = new CountDownLatch(1);
+	private volatile boolean overlapped = false;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new ParserFixtures.SosServer();
+		server.setFixture(fixture);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		released.countDown();
+		server.stop();
+	}
+
+	public void testPlain() throws Exception {
+		assertFetched(new SimpleSOSParser_200());
+	}
+
+	public void testGzip() throws Exception {
+		server.setEncoding("gzip", false);
+		assertFetched(new SimpleSOSParser_200());
+		assertEquals("gzip, deflate", server.getAcceptEncoding());
+	}
+
+	public void testDeflate() throws Exception {
+		server.setEncoding("deflate", false);
+		assertFetched(new SimpleSOSParser_200());
+	}
+
+	public void testRawDeflate() throws Exception {
+		server.setEncoding("deflate", true);
+		assertFetched(new SimpleSOSParser_200());
+	}
+
+	public void testSmallBuffer() throws Exception {
+		server.setEncoding("gzip", false);
+		fixture = ParserFixtures.UCD_XML_100;
+		server.setFixture(fixture);
+		HttpResponseReader reader = new HttpResponseReader(new SimpleSOSParser_100());
+		reader.setMaxBufferedBytes(7);
+		assertEquals(ParserFixtures.describe(ParserFixtures.parse(new SimpleSOSParser_100(), fixture)),
+				ParserFixtures.describe(reader.fetch(url(), null, null)));
+	}
+
+	public void testSelectsParser() throws Exception {
+		server.setEncoding("gzip", false);
+		fixture = ParserFixtures.UCD_XML_200;
+		server.setFixture(fixture);
+		IData data = new HttpResponseReader().fetch(url(), null, null);
+		assertEquals(ParserFixtures.describe(ParserFixtures.parse(new SocialSOSParser(), fixture)),
+				ParserFixtures.describe(data));
+	}
+
+	public void testParseOverlapsTransfer() throws Exception {
+		server.setEncoding("gzip", false);
+		SimpleSOSParser_200 parser = new SimpleSOSParser_200();
+		parser.setStreaming(true);
+		ObservationFilter filter = new ObservationFilter() {
+			@Override
+			public boolean acceptsProcedure(String href) {
+				firstParsed.countDown();
+				return super.acceptsProcedure(href);
+			}
+		};
+		// the compressed response is held back after its first half, well past the first observation
+		server.setWriter(new ParserFixtures.ResponseWriter() {
+			public void write(byte[] body, OutputStream out) throws IOException {
+				int holdAfter = body.length / 2;
+				out.write(body, 0, holdAfter);
+				out.flush();
+				try {
+					overlapped = firstParsed.await(10, TimeUnit.SECONDS);
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				out.write(body, holdAfter, body.length - holdAfter);
+			}
+		});
+		IData data = new HttpResponseReader(parser).fetch(url(), filter, null);
+		assertTrue("Parse waited for the whole response", overlapped);
+		assertEquals(27, ParserFixtures.describe(data).size());
+	}
+
+	public void testFailedParseDoesNotWaitForTransfer() throws Exception {
+		final byte[] stalled = "<?xml version=\"1.0\"?><sos:GetObservationResponse></sos:Observation>".getBytes("UTF-8");
+		// sent instead of the sample, before holding the response open until released
+		server.setWriter(new ParserFixtures.ResponseWriter() {
+			public void write(byte[] body, OutputStream out) throws IOException {
+				out.write(stalled);
+				out.flush();
+				try {
+					released.await(10, TimeUnit.SECONDS);
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		SimpleSOSParser_200 parser = new SimpleSOSParser_200();
+		parser.setStreaming(true);
+		HttpResponseReader reader = new HttpResponseReader(parser);
+		reader.setReadTimeout(20000);
+		long start = System.currentTimeMillis();
+		try {
+			reader.fetch(url(), null, null);
+			fail("Parsed a malformed response");
+		} catch(IllegalArgumentException e) {
+			// expected
+		}
+		assertTrue("Waited for the stalled transfer", System.currentTimeMillis() - start < 5000);
+	}
+
+	public void testChunkedChannel() throws Exception {
+		byte[] body = ParserFixtures.encode(ParserFixtures.read(fixture), "gzip", false);
+		ByteArrayOutputStream chunked = new ByteArrayOutputStream();
+		for(int start = 0; start < body.length; start += 1000) {
+			int length = Math.min(1000, body.length - start);
+			chunked.write((Integer.toHexString(length) + ";ext=1\r\n").getBytes("US-ASCII"));
+			chunked.write(body, start, length);
+			chunked.write("\r\n".getBytes("US-ASCII"));
+		}
+		chunked.write("0\r\nX-Trailer: 1\r\n\r\n".getBytes("US-ASCII"));
+		IData data = new HttpResponseReader(new SimpleSOSParser_200()).read(
+				Channels.newChannel(new ByteArrayInputStream(chunked.toByteArray())), "chunked", "gzip", null, null);
+		assertEquals(ParserFixtures.describe(ParserFixtures.parse(new SimpleSOSParser_200(), fixture)),
+				ParserFixtures.describe(data));
+	}
+
+	public void testTruncatedTransfer() throws Exception {
+		byte[] body = ParserFixtures.encode(ParserFixtures.read(fixture), "gzip", false);
+		body = Arrays.copyOf(body, body.length / 2);
+		try {
+			new HttpResponseReader(new SimpleSOSParser_200()).read(
+					Channels.newChannel(new ByteArrayInputStream(body)), null, "gzip", null, null);
+			fail("Parsed a truncated response");
+		} catch(IOException e) {
+			// expected
+		}
+	}
+
+	public void testUnsupportedEncoding() throws Exception {
+		try {
+			new HttpResponseReader(new SimpleSOSParser_200()).read(
+					Channels.newChannel(new ByteArrayInputStream(ParserFixtures.read(fixture))), null, "br", null, null);
+			fail("Read an unsupported coding");
+		} catch(IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("br"));
+		}
+	}
+
+	public void testLazyStreamingRejected() throws Exception {
+		SimpleSOSParser_200 parser = new SimpleSOSParser_200();
+		parser.setStreaming(true);
+		parser.setLazy(true);
+		try {
+			new HttpResponseReader(parser);
+			fail("Accepted a lazily streaming parser");
+		} catch(IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testFailedRequest() throws Exception {
+		try {
+			new HttpResponseReader().fetch(new URL(url().toString().replace("/sos", "/missing")), null, null);
+			fail("Fetched a missing service");
+		} catch(IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("404"));
+		}
+	}
+
+	private void assertFetched(SimpleSOSParser parser) throws Exception {
+		IData data = new HttpResponseReader(parser).fetch(url(), null, null);
+		assertEquals(ParserFixtures.describe(ParserFixtures.parse(parser, fixture)), ParserFixtures.describe(data));
+	}
+
+	private URL url() throws Exception {
+		return new URL(server.getUrl());
+	}
+}
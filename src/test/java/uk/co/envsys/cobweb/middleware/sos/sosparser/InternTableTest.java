@@ -0,0 +1,51 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import org.geotools.feature.FeatureIterator;
+import org.n52.wps.io.data.binding.complex.GTVectorDataBinding;
+import org.opengis.feature.simple.SimpleFeature;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks repeated values share one instance, and that the table stays
+ * within its bound while still sharing new values
+ */
+public class InternTableTest extends TestCase {
+	
+	public void testSharesEqualValues() {
+		InternTable table = new InternTable(2);
+		String first = table.intern(new String("a"));
+		assertSame(first, table.intern(new String("a")));
+		assertNull(table.intern(null));
+		assertEquals(1, table.size());
+	}
+	
+	public void testBounded() {
+		InternTable table = new InternTable(2);
+		table.intern("a");
+		table.intern("b");
+		assertEquals(2, table.size());
+		// a full table is emptied, and goes on sharing new values
+		String c = new String("c");
+		assertSame(c, table.intern(c));
+		assertSame(c, table.intern(new String("c")));
+		assertEquals(1, table.size());
+	}
+	
+	public void testFeaturesShareHrefs() throws Exception {
+		InternTable table = new InternTable(InternTable.DEFAULT_MAX_SIZE);
+		SocialSOSParser parser = new SocialSOSParser();
+		parser.setInternTable(table);
+		GTVectorDataBinding data = (GTVectorDataBinding) ParserFixtures.parse(parser, ParserFixtures.UCD_XML_200);
+		FeatureIterator<?> features = data.getPayload().features();
+		try {
+			SimpleFeature first = (SimpleFeature) features.next();
+			SimpleFeature second = (SimpleFeature) features.next();
+			assertSame(first.getAttribute("observedProperty"), second.getAttribute("observedProperty"));
+			assertSame(first.getAttribute("foiTitle"), second.getAttribute("foiTitle"));
+		} finally {
+			features.close();
+		}
+		assertTrue(table.size() > 0);
+	}
+}
@@ -0,0 +1,90 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.util.Date;
+import java.util.TimeZone;
+
+import javax.xml.datatype.DatatypeFactory;
+
+import org.geotools.feature.FeatureIterator;
+import org.n52.wps.io.data.binding.complex.GTVectorDataBinding;
+import org.opengis.feature.simple.SimpleFeature;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks time positions decode to the same instants as the xsd:dateTime
+ * parsing of the JDK
+ */
+public class IsoTimeDecoderTest extends TestCase {
+	
+	private static final String[] TIMES = {
+		"2015-02-13T22:11:18.557Z",
+		"2015-02-13T22:11:19.925Z",
+		"2013-01-10T14:00:00.000+01:00",
+		"2013-01-10T14:00:00-05:30",
+		"2016-02-29T23:59:59.9999Z",
+		"2000-03-01T00:00:00.1Z",
+		"1969-12-31T23:59:59Z",
+		"1600-01-01T00:00:00Z",
+		"2099-12-31T12:00:00+14:00",
+		"2015-02-13T22:11:18.557",
+		"2015-02-13T24:00:00Z",
+		"-0044-03-15T12:00:00Z",
+		"12015-02-13T22:11:18Z"
+	};
+	
+	public void testMatchesDatatypeFactory() throws Exception {
+		DatatypeFactory factory = DatatypeFactory.newInstance();
+		IsoTimeDecoder decoder = new IsoTimeDecoder();
+		// twice over, so the cached prefixes and zones are used
+		for(int pass = 0; pass < 2; pass++) {
+			for(String time : TIMES) {
+				long expected = factory.newXMLGregorianCalendar(time).toGregorianCalendar().getTimeInMillis();
+				assertEquals(time, expected, decoder.decode(time));
+			}
+		}
+	}
+	
+	public void testKnownInstants() {
+		IsoTimeDecoder decoder = new IsoTimeDecoder();
+		assertEquals(0L, decoder.decode("1970-01-01T00:00:00Z"));
+		assertEquals(1423865478557L, decoder.decode("2015-02-13T22:11:18.557Z"));
+		assertEquals(1423865478557L - 3600000L, decoder.decode("2015-02-13T22:11:18.557+01:00"));
+		// same prefix, other zone
+		assertEquals(1423865478557L, decoder.decode("2015-02-13T22:11:18.557Z"));
+	}
+	
+	public void testLocalTimeUsesDefaultZone() {
+		TimeZone zone = TimeZone.getDefault();
+		long local = new IsoTimeDecoder().decode("2015-02-13T22:11:18.557");
+		assertEquals(1423865478557L - zone.getOffset(local), local);
+	}
+	
+	public void testRejectsInvalid() {
+		String[] invalid = {"", "2015-02-30T00:00:00Z", "2015-13-01T00:00:00Z", "2015-02-13 22:11:18Z", "yesterday"};
+		IsoTimeDecoder decoder = new IsoTimeDecoder();
+		for(String time : invalid) {
+			try {
+				decoder.decode(time);
+				fail("Decoded " + time);
+			} catch(IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+	
+	public void testSocialResultTimeResolved() throws Exception {
+		GTVectorDataBinding data = (GTVectorDataBinding) ParserFixtures.parse(new SocialSOSParser(), 
+				ParserFixtures.UCD_XML_200);
+		FeatureIterator<?> features = data.getPayload().features();
+		try {
+			while(features.hasNext()) {
+				SimpleFeature feature = (SimpleFeature) features.next();
+				assertTrue(feature.getAttribute("resultTime") instanceof Date);
+				assertEquals(feature.getAttribute("phenomenonTime"), feature.getAttribute("resultTime"));
+			}
+		} finally {
+			features.close();
+		}
+	}
+}
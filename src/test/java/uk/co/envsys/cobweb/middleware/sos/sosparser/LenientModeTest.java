@@ -0,0 +1,136 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.n52.wps.io.data.IData;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that outside strict mode observations which cannot be converted are 
+ * skipped and reported, in every conversion mode, while the rest are kept
+ */
+public class LenientModeTest extends TestCase {
+	private static final String PROCEDURE = "<om:procedure xlink:href=\"http://smartcoasts.ucd.ie/procedure/0\"/>";
+	private static final String SECOND_ID = "o_DC5E7F99446BE50916D76848D75FFDF85B70D53E";
+	private static final int OBSERVATIONS = 55;
+	
+	public void testStrictModeFails() throws Exception {
+		try {
+			new SocialSOSParser().parse(withoutProcedures(1), null);
+			fail("Expected the missing procedure to fail the parse");
+		} catch(IllegalArgumentException e) {
+			// expected
+		}
+	}
+	
+	public void testSkipsInvalidObservation() throws Exception {
+		SocialSOSParser parser = lenient(new SocialSOSParser());
+		ParseErrorReport errors = new ParseErrorReport();
+		IData data = parser.parse(withoutProcedures(1), null, errors);
+		assertEquals(OBSERVATIONS - 1, ParserFixtures.describe(data).size());
+		assertSkippedSecond(errors);
+	}
+	
+	public void testKeepsValidFeatures() throws Exception {
+		List<String> all = ParserFixtures.describe(ParserFixtures.parse(new SocialSOSParser(), ParserFixtures.UCD_XML_200));
+		List<String> kept = ParserFixtures.describe(lenient(new SocialSOSParser()).parse(withoutProcedures(1), null, (ParseErrorReport) null));
+		all.remove(1);
+		assertEquals(all, kept);
+	}
+	
+	public void testSkipsFirstObservation() throws Exception {
+		ParseErrorReport errors = new ParseErrorReport();
+		IData data = lenient(new SimpleSOSParser_200()).parse(withoutProcedures(0), null, errors);
+		assertEquals(OBSERVATIONS - 1, ParserFixtures.describe(data).size());
+		assertEquals(1, errors.getErrorCount());
+		assertEquals(0, errors.getErrors().get(0).getIndex());
+	}
+	
+	public void testLazy() throws Exception {
+		SocialSOSParser parser = lenient(new SocialSOSParser());
+		parser.setLazy(true);
+		ParseErrorReport errors = new ParseErrorReport();
+		IData data = parser.parse(withoutProcedures(1), null, errors);
+		assertEquals(OBSERVATIONS - 1, ParserFixtures.describe(data).size());
+		assertSkippedSecond(errors);
+		// iterating again records nothing more
+		assertEquals(OBSERVATIONS - 1, ParserFixtures.describe(data).size());
+		assertEquals(1, errors.getErrorCount());
+	}
+	
+	public void testColumnar() throws Exception {
+		SocialSOSParser parser = lenient(new SocialSOSParser());
+		parser.setColumnar(true);
+		ParseErrorReport errors = new ParseErrorReport();
+		IData data = parser.parse(withoutProcedures(1), null, errors);
+		assertEquals(OBSERVATIONS - 1, ParserFixtures.describe(data).size());
+		assertSkippedSecond(errors);
+	}
+	
+	public void testParallel() throws Exception {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			SocialSOSParser parser = lenient(new SocialSOSParser());
+			parser.setConversionPool(pool);
+			parser.setParallelThreshold(1);
+			ParseErrorReport errors = new ParseErrorReport();
+			IData data = parser.parse(withoutProcedures(1), null, errors);
+			assertEquals(OBSERVATIONS - 1, ParserFixtures.describe(data).size());
+			assertSkippedSecond(errors);
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	public void testReportIsBounded() throws Exception {
+		ParseErrorReport errors = new ParseErrorReport(2);
+		IData data = lenient(new SocialSOSParser()).parse(withoutProcedures(0, 1, 2, 3), null, errors);
+		assertEquals(OBSERVATIONS - 4, ParserFixtures.describe(data).size());
+		assertEquals(4, errors.getErrorCount());
+		assertEquals(2, errors.getErrors().size());
+		assertTrue(errors.isTruncated());
+	}
+	
+	private static void assertSkippedSecond(ParseErrorReport errors) {
+		assertEquals(1, errors.getErrorCount());
+		assertFalse(errors.isTruncated());
+		ParseErrorReport.ParseError error = errors.getErrors().get(0);
+		assertEquals(1, error.getIndex());
+		assertEquals(SECOND_ID, error.getId());
+		assertTrue(error.getReason(), error.getReason().contains("procedure"));
+	}
+	
+	private static <P extends SimpleSOSParser> P lenient(P parser) {
+		parser.SetStrictMode(false);
+		return parser;
+	}
+	
+	/**
+	 * @return The UCD 2.0.0 response with the procedure of the given observations removed
+	 */
+	private static InputStream withoutProcedures(int... observations) throws Exception {
+		String xml = ParserFixtures.slurp(ParserFixtures.UCD_XML_200);
+		StringBuilder edited = new StringBuilder();
+		int from = 0;
+		int observation = 0;
+		int at;
+		while((at = xml.indexOf(PROCEDURE, from)) >= 0) {
+			edited.append(xml, from, at);
+			boolean remove = false;
+			for(int index : observations) {
+				remove |= index == observation;
+			}
+			if(!remove) {
+				edited.append(PROCEDURE);
+			}
+			from = at + PROCEDURE.length();
+			observation++;
+		}
+		edited.append(xml.substring(from));
+		return new ByteArrayInputStream(edited.toString().getBytes("UTF-8"));
+	}
+}
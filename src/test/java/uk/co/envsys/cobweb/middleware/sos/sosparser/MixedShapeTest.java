@@ -0,0 +1,95 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.opengis.feature.simple.SimpleFeature;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that a response whose observations have different optional elements
+ * is parsed into one FeatureType covering all of them, in every conversion mode
+ */
+public class MixedShapeTest extends TestCase {
+	private static final String TYPE = 
+			"<om:type xlink:href=\"http://www.opengis.net/def/observationType/OGC-OM/2.0/OM_Measurement\"/>";
+	private static final String PROCEDURE = "<om:procedure xlink:href=\"SPP-SE_NDIR_thermo42\"/>";
+	private static final String VALID_TIME = "<om:validTime><gml:TimePeriod gml:id=\"vt_1\">" +
+			"<gml:beginPosition>2013-01-10T00:00:00.000Z</gml:beginPosition>" +
+			"<gml:endPosition>2013-01-11T00:00:00.000Z</gml:endPosition></gml:TimePeriod></om:validTime>";
+	private static final int OBSERVATIONS = 27;
+	
+	public void testSequential() throws Exception {
+		assertMixed(new SimpleSOSParser_200());
+	}
+	
+	public void testDetached() throws Exception {
+		SimpleSOSParser_200 parser = new SimpleSOSParser_200();
+		parser.setDetached(true);
+		List<SimpleFeature> features = assertMixed(parser);
+		assertEquals(ObservationTime.period(1357776000000L, 1357862400000L), features.get(2).getAttribute("validTime"));
+	}
+	
+	public void testLazy() throws Exception {
+		SimpleSOSParser_200 parser = new SimpleSOSParser_200();
+		parser.setLazy(true);
+		assertMixed(parser);
+	}
+	
+	public void testParallel() throws Exception {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			SimpleSOSParser_200 parser = new SimpleSOSParser_200();
+			parser.setConversionPool(pool);
+			parser.setParallelThreshold(1);
+			assertMixed(parser);
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	public void testStreaming() throws Exception {
+		SimpleSOSParser_200 parser = new SimpleSOSParser_200();
+		parser.setStreaming(true);
+		assertMixed(parser);
+	}
+	
+	public void testStreamingLazy() throws Exception {
+		SimpleSOSParser_200 parser = new SimpleSOSParser_200();
+		parser.setStreaming(true);
+		parser.setLazy(true);
+		assertMixed(parser);
+	}
+	
+	/**
+	 * Parses the 52N response with no om:type on the first observation
+	 * and an om:validTime on the third only
+	 */
+	private static List<SimpleFeature> assertMixed(SimpleSOSParser parser) throws Exception {
+		List<SimpleFeature> features = ParserFixtures.features(parser.parse(mixedResponse(), null));
+		assertEquals(OBSERVATIONS, features.size());
+		SimpleFeature first = features.get(0);
+		assertNotNull(first.getFeatureType().getDescriptor("type"));
+		assertNotNull(first.getFeatureType().getDescriptor("validTime"));
+		assertNull(first.getAttribute("type"));
+		assertNotNull(first.getAttribute("result"));
+		assertNotNull(features.get(1).getAttribute("type"));
+		assertNull(features.get(1).getAttribute("validTime"));
+		assertNotNull(features.get(2).getAttribute("validTime"));
+		for(SimpleFeature feature : features) {
+			assertSame(first.getFeatureType(), feature.getFeatureType());
+		}
+		return features;
+	}
+	
+	private static InputStream mixedResponse() throws Exception {
+		String xml = ParserFixtures.slurp(ParserFixtures.DEMO_52N_XML_200);
+		xml = xml.replaceFirst(TYPE, "");
+		int third = xml.indexOf(PROCEDURE, xml.indexOf(PROCEDURE, xml.indexOf(PROCEDURE) + 1) + 1);
+		xml = xml.substring(0, third) + VALID_TIME + xml.substring(third);
+		return new ByteArrayInputStream(xml.getBytes("UTF-8"));
+	}
+}
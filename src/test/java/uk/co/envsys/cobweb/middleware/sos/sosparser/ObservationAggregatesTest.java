@@ -0,0 +1,281 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.n52.wps.io.data.IData;
+import org.n52.wps.io.data.binding.complex.GTVectorDataBinding;
+import org.opengis.feature.simple.SimpleFeature;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks observations are binned by phenomenonTime while they are parsed,
+ * giving the same statistics as the columns of every observation would
+ */
+public class ObservationAggregatesTest extends TestCase {
+	private static final long MINUTE = 60 * 1000L;
+	private static final long HOUR = 60 * MINUTE;
+	private static final String START = "2015-02-13T00:00:00.000Z";
+
+	public void testSocialMatchesColumns() throws Exception {
+		SocialSOSParser columnar = new SocialSOSParser();
+		columnar.setColumnar(true);
+		SocialSOSParser aggregating = new SocialSOSParser();
+		aggregating.setAggregationWindow(MINUTE);
+		assertMatchesColumns(columnar, aggregating, ParserFixtures.UCD_XML_200, MINUTE);
+	}
+
+	public void testMeasurementsMatchColumns() throws Exception {
+		SimpleSOSParser_200 columnar = new SimpleSOSParser_200();
+		columnar.setColumnar(true);
+		SimpleSOSParser_200 aggregating = new SimpleSOSParser_200();
+		aggregating.setAggregationWindow(24 * HOUR);
+		aggregating.setStreaming(true);
+		assertMatchesColumns(columnar, aggregating, ParserFixtures.DEMO_52N_XML_200, 24 * HOUR);
+	}
+
+	public void testExpandedArraysMatchColumns() throws Exception {
+		SimpleSOSParser_100 columnar = new SimpleSOSParser_100();
+		columnar.setExpandArrays(true);
+		columnar.setColumnar(true);
+		SimpleSOSParser_100 aggregating = new SimpleSOSParser_100();
+		aggregating.setExpandArrays(true);
+		aggregating.setAggregationWindow(10 * MINUTE);
+		assertMatchesColumns(columnar, aggregating, ParserFixtures.DEMO_52N_XML_100, 10 * MINUTE);
+	}
+
+	public void testManyTweets() throws Exception {
+		final int tweets = 20000;
+		SocialSOSParser parser = new SocialSOSParser();
+		parser.setStreaming(true);
+		parser.setAggregationWindow(MINUTE);
+		ObservationAggregatesFeatureCollection collection = (ObservationAggregatesFeatureCollection)
+				((GTVectorDataBinding) parser.parse(tweets(tweets), (ObservationFilter) null)).getPayload();
+		// a tweet a second, alternating between two procedures
+		assertEquals(2 * ((tweets + 59) / 60), collection.size());
+
+		List<SimpleFeature> features = ParserFixtures.features(collection);
+		long total = 0;
+		for(SimpleFeature feature : features) {
+			total += (Long) feature.getAttribute("count");
+		}
+		assertEquals(tweets, total);
+
+		SimpleFeature first = features.get(0);
+		assertEquals("http://smartcoasts.ucd.ie/procedure/0", first.getAttribute("procedure"));
+		assertEquals(time(START), ((java.util.Date) first.getAttribute("windowBegin")).getTime());
+		assertEquals(time(START) + MINUTE, ((java.util.Date) first.getAttribute("windowEnd")).getTime());
+		assertEquals(Long.valueOf(30), first.getAttribute("count"));
+		double sum = 0;
+		for(int i = 0; i < 60; i += 2) {
+			sum += sentiment(i);
+		}
+		assertEquals(0.0, (Double) first.getAttribute("min"), 0);
+		assertEquals(1.0, (Double) first.getAttribute("max"), 0);
+		assertEquals(sum, (Double) first.getAttribute("sum"), 1e-9);
+		assertEquals(sum / 30, (Double) first.getAttribute("mean"), 1e-9);
+		// the second procedure follows the whole of the first, in order of time
+		assertEquals("http://smartcoasts.ucd.ie/procedure/1", features.get(features.size() / 2).getAttribute("procedure"));
+		assertEquals(time(START) + MINUTE, ((java.util.Date) features.get(1).getAttribute("windowBegin")).getTime());
+	}
+
+	public void testFold() throws Exception {
+		ObservationAggregates aggregates = new ObservationAggregates(MINUTE);
+		ObservationColumns pending = aggregates.pending();
+		// enough windows to grow the table, some before the epoch
+		for(int i = -100; i < 100; i++) {
+			long time = i * MINUTE + 1;
+			pending.add(time, time, time, "p", "q", null, i);
+			pending.add(time + 1, time + 1, time, "p", "q", null, -i);
+		}
+		pending.add(ObservationColumns.NO_TIME, ObservationColumns.NO_TIME, ObservationColumns.NO_TIME, "p", "q", null, 1);
+		pending.add(5, 5, 5, "p", "q", null, Double.NaN);
+		aggregates.fold();
+		assertEquals(0, pending.size());
+		assertEquals(200, aggregates.size());
+		assertEquals(2, aggregates.getSkipped());
+		for(int bucket = 0; bucket < aggregates.size(); bucket++) {
+			long i = aggregates.getWindowBegin()[bucket] / MINUTE;
+			assertEquals(2, aggregates.getCount()[bucket]);
+			assertEquals(-Math.abs(i), aggregates.getMin()[bucket], 0);
+			assertEquals(Math.abs(i), aggregates.getMax()[bucket], 0);
+			assertEquals(0, aggregates.getMean(bucket), 0);
+		}
+		// folding again adds to the same buckets, without keeping the featureOfInterest
+		pending.add(1, 1, 1, "p", "q", "f", 4);
+		aggregates.fold();
+		assertEquals(200, aggregates.size());
+		assertEquals(0, pending.getFeaturesOfInterest().size());
+		int bucket = 0;
+		while(aggregates.getWindowBegin()[bucket] != 0) {
+			bucket++;
+		}
+		assertEquals(3, aggregates.getCount()[bucket]);
+		assertEquals(4, aggregates.getMax()[bucket], 0);
+	}
+
+	public void testInvalidWindow() throws Exception {
+		try {
+			new SimpleSOSParser_200().setAggregationWindow(-1);
+			fail("Accepted a negative window");
+		} catch(IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			SimpleSOSParser.Factory.getParser("UCD_SOCIAL").setAggregationWindow(MINUTE);
+			fail("Reconfigured a shared parser");
+		} catch(IllegalStateException e) {
+			// expected
+		}
+	}
+
+	public void testConflictingModesRejected() throws Exception {
+		SimpleSOSParser_200 aggregating = new SimpleSOSParser_200();
+		aggregating.setAggregationWindow(MINUTE);
+		try {
+			aggregating.setColumnar(true);
+			fail("Combined aggregation with columnar mode");
+		} catch(IllegalStateException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("columnar"));
+		}
+		try {
+			aggregating.setGeometry(true);
+			fail("Combined aggregation with geometries");
+		} catch(IllegalStateException e) {
+			// expected
+		}
+		// turning a mode off never conflicts
+		aggregating.setLazy(false);
+		aggregating.setAggregationWindow(0);
+		aggregating.setLazy(true);
+
+		SimpleSOSParser_200 columnar = new SimpleSOSParser_200();
+		columnar.setColumnar(true);
+		try {
+			columnar.setLazy(true);
+			fail("Combined columnar with lazy mode");
+		} catch(IllegalStateException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Bins the columns of every observation by hand, and compares them with the buckets
+	 */
+	private static void assertMatchesColumns(SimpleSOSParser columnar, SimpleSOSParser aggregating, String fixture,
+			long window) throws Exception {
+		ObservationColumns columns = ((ObservationColumnsFeatureCollection) ((GTVectorDataBinding)
+				ParserFixtures.parse(columnar, fixture)).getPayload()).getColumns();
+		Map<String, double[]> expected = new HashMap<String, double[]>();
+		for(int row = 0; row < columns.size(); row++) {
+			double result = columns.getResult()[row];
+			long begin = columns.getPhenomenonTimeBegin()[row];
+			if(Double.isNaN(result) || begin == ObservationColumns.NO_TIME) {
+				continue;
+			}
+			String key = columns.getProcedures().decode(columns.getProcedure()[row]) + "|"
+					+ columns.getObservedProperties().decode(columns.getObservedProperty()[row]) + "|"
+					+ Math.floorDiv(begin, window) * window;
+			double[] bucket = expected.get(key);
+			if(bucket == null) {
+				bucket = new double[] {0, result, result, 0};
+				expected.put(key, bucket);
+			}
+			bucket[0]++;
+			bucket[1] = Math.min(bucket[1], result);
+			bucket[2] = Math.max(bucket[2], result);
+			bucket[3] += result;
+		}
+		assertFalse(expected.isEmpty());
+
+		IData data = ParserFixtures.parse(aggregating, fixture);
+		List<SimpleFeature> features = ParserFixtures.features((ObservationAggregatesFeatureCollection)
+				((GTVectorDataBinding) data).getPayload());
+		assertEquals(expected.size(), features.size());
+		for(SimpleFeature feature : features) {
+			String key = feature.getAttribute("procedure") + "|" + feature.getAttribute("observedProperty") + "|"
+					+ ((java.util.Date) feature.getAttribute("windowBegin")).getTime();
+			double[] bucket = expected.get(key);
+			assertNotNull(key, bucket);
+			assertEquals(key, (long) bucket[0], ((Long) feature.getAttribute("count")).longValue());
+			assertEquals(key, bucket[1], (Double) feature.getAttribute("min"), 0);
+			assertEquals(key, bucket[2], (Double) feature.getAttribute("max"), 0);
+			assertEquals(key, bucket[3], (Double) feature.getAttribute("sum"), 1e-9);
+			assertEquals(key, bucket[3] / bucket[0], (Double) feature.getAttribute("mean"), 1e-9);
+		}
+	}
+
+	private static double sentiment(int tweet) {
+		return (tweet % 11) / 10.0;
+	}
+
+	/**
+	 * A social sensor response of a tweet a second, written as it is read
+	 */
+	private static InputStream tweets(final int count) throws UnsupportedEncodingException {
+		final long start = time(START);
+		final byte[] head = ("<soap:Envelope xmlns:soap=\"http://www.w3.org/2003/05/soap-envelope\" " +
+				"xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xmlns:sos=\"http://www.opengis.net/sos/2.0\" " +
+				"xmlns:om=\"http://www.opengis.net/om/2.0\" xmlns:gml=\"http://www.opengis.net/gml/3.2\" " +
+				"xmlns:xlink=\"http://www.w3.org/1999/xlink\"><soap:Body><sos:GetObservationResponse>").getBytes("UTF-8");
+		final byte[] tail = "</sos:GetObservationResponse></soap:Body></soap:Envelope>".getBytes("UTF-8");
+		return new SequenceInputStream(new Enumeration<InputStream>() {
+			private int next = -1;
+
+			public boolean hasMoreElements() {
+				return next <= count;
+			}
+
+			public InputStream nextElement() {
+				if(!hasMoreElements()) {
+					throw new NoSuchElementException();
+				}
+				int tweet = next++;
+				if(tweet == -1) {
+					return new ByteArrayInputStream(head);
+				}
+				if(tweet == count) {
+					return new ByteArrayInputStream(tail);
+				}
+				String xml = "<sos:observationData><om:OM_Observation gml:id=\"o_" + tweet + "\">" +
+						"<om:type xlink:href=\"http://www.opengis.net/def/observationType/OGC-OM/2.0/OM_TextObservation\"/>" +
+						"<om:phenomenonTime><gml:TimeInstant gml:id=\"phenomenonTime_" + tweet + "\"><gml:timePosition>" +
+						DatatypeConverter.printDateTime(utc(start + tweet * 1000L)) +
+						"</gml:timePosition></gml:TimeInstant></om:phenomenonTime>" +
+						"<om:resultTime xlink:href=\"#phenomenonTime_" + tweet + "\"/>" +
+						"<om:procedure xlink:href=\"http://smartcoasts.ucd.ie/procedure/" + (tweet % 2) + "\"/>" +
+						"<om:observedProperty xlink:href=\"http://smartcoasts.ucd.ie/observableProperty/0\"/>" +
+						"<om:featureOfInterest xlink:href=\"http://smartcoasts.ucd.ie/featureOfInterest/" + tweet +
+						"\" xlink:title=\"Twitter SIXTH\"/>" +
+						"<om:result xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" xsi:type=\"xs:string\">Sentiment: " +
+						sentiment(tweet) + " User ID: " + tweet + " Tweet: flood warning</om:result>" +
+						"</om:OM_Observation></sos:observationData>";
+				try {
+					return new ByteArrayInputStream(xml.getBytes("UTF-8"));
+				} catch(UnsupportedEncodingException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		});
+	}
+
+	private static java.util.Calendar utc(long time) {
+		java.util.Calendar calendar = java.util.Calendar.getInstance(java.util.TimeZone.getTimeZone("UTC"));
+		calendar.setTimeInMillis(time);
+		return calendar;
+	}
+
+	private static long time(String iso) {
+		return DatatypeConverter.parseDateTime(iso).getTimeInMillis();
+	}
+}
@@ -0,0 +1,74 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.util.Date;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.n52.wps.io.data.binding.complex.GTVectorDataBinding;
+import org.opengis.feature.simple.SimpleFeature;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks observations parsed into columns hold the same values as the 
+ * XmlBeans objects they come from, and read back the same as features
+ */
+public class ObservationColumnsTest extends TestCase {
+	
+	public void testMeasurementColumns() throws Exception {
+		ObservationColumnsFeatureCollection collection = parse(new SimpleSOSParser_200(), ParserFixtures.DEMO_52N_XML_200);
+		ObservationColumns columns = collection.getColumns();
+		assertEquals(27, columns.size());
+		assertEquals(27, collection.size());
+		assertEquals(time("2013-01-10T14:00:00.000Z"), columns.getPhenomenonTimeBegin()[0]);
+		assertEquals(time("2013-01-10T15:00:00.000Z"), columns.getPhenomenonTimeEnd()[0]);
+		assertEquals(time("2014-03-31T00:00:00.000Z"), columns.getResultTime()[0]);
+		assertEquals(0.4300000071525574, columns.getResult()[0], 0);
+		assertEquals(1, columns.getProcedures().size());
+		assertEquals("SPP-SE_NDIR_thermo42", columns.getProcedures().decode(columns.getProcedure()[26]));
+		assertEquals("SPO_F-SE0003A_00010_100_100", 
+				columns.getFeaturesOfInterest().decode(columns.getFeatureOfInterest()[0]));
+	}
+	
+	public void testSocialSentimentIsResult() throws Exception {
+		ObservationColumns columns = parse(new SocialSOSParser(), ParserFixtures.UCD_XML_200).getColumns();
+		assertEquals(55, columns.size());
+		assertEquals(0.8053406931054015, columns.getResult()[0], 0);
+		// resultTime refers to the phenomenonTime by its gml:id
+		assertEquals(time("2015-02-13T22:11:57.982Z"), columns.getResultTime()[0]);
+		assertEquals(columns.getPhenomenonTimeBegin()[0], columns.getPhenomenonTimeEnd()[0]);
+	}
+	
+	public void testObservationCollectionColumns() throws Exception {
+		ObservationColumns columns = parse(new SimpleSOSParser_100(), ParserFixtures.UCD_XML_100).getColumns();
+		assertTrue(columns.size() > 0);
+		assertEquals(time("2015-02-13T22:11:18.557Z"), columns.getPhenomenonTimeBegin()[0]);
+		assertEquals(columns.getPhenomenonTimeBegin()[0], columns.getResultTime()[0]);
+		assertEquals("http://smartcoasts.ucd.ie/procedure/0", columns.getProcedures().decode(columns.getProcedure()[0]));
+		assertTrue(Double.isNaN(columns.getResult()[0]));
+	}
+	
+	public void testFeatureView() throws Exception {
+		ObservationColumnsFeatureCollection collection = parse(new SimpleSOSParser_200(), ParserFixtures.DEMO_52N_XML_200);
+		SimpleFeatureIterator features = collection.features();
+		try {
+			SimpleFeature feature = features.next();
+			assertEquals(new Date(time("2013-01-10T14:00:00.000Z")), feature.getAttribute("phenomenonTimeBegin"));
+			assertEquals("http://dd.eionet.europa.eu/vocabulary/aq/pollutant/10", feature.getAttribute("observedProperty"));
+			assertEquals(Double.valueOf(0.4300000071525574), feature.getAttribute("result"));
+		} finally {
+			features.close();
+		}
+	}
+	
+	private ObservationColumnsFeatureCollection parse(SimpleSOSParser parser, String fixture) throws Exception {
+		parser.setColumnar(true);
+		GTVectorDataBinding data = (GTVectorDataBinding) ParserFixtures.parse(parser, fixture);
+		return (ObservationColumnsFeatureCollection) data.getPayload();
+	}
+	
+	private long time(String iso) {
+		return DatatypeConverter.parseDateTime(iso).getTimeInMillis();
+	}
+}
@@ -0,0 +1,66 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.io.InputStream;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
+import org.n52.wps.io.data.binding.complex.GTVectorDataBinding;
+
+/**
+ * Checks that lazily converted collections hold the same features as 
+ * the eagerly built ones
+ */
+public class ObservationFeatureCollectionTest extends TestCase {
+	
+	public void testLazyMatchesEager() throws Exception {
+		assertLazyMatches(new SimpleSOSParser_100(), new SimpleSOSParser_100(), ParserFixtures.UCD_XML_100);
+		assertLazyMatches(new SimpleSOSParser_100(), new SimpleSOSParser_100(), ParserFixtures.DEMO_52N_XML_100);
+		assertLazyMatches(new SimpleSOSParser_200(), new SimpleSOSParser_200(), ParserFixtures.DEMO_52N_XML_200);
+		assertLazyMatches(new SocialSOSParser(), new SocialSOSParser(), ParserFixtures.UCD_XML_200);
+	}
+	
+	public void testStreamedCollectionReadsOnce() throws Exception {
+		SimpleSOSParser_200 parser = new SocialSOSParser();
+		parser.setLazy(true);
+		parser.setStreaming(true);
+		InputStream in = ParserFixtures.open(ParserFixtures.UCD_XML_200);
+		try {
+			FeatureCollection<?, ?> collection = ((GTVectorDataBinding) parser.parse(in, "", "")).getPayload();
+			// unknown until read, rather than reading the only copy
+			assertEquals(-1, collection.size());
+			assertTrue(collection.getBounds().isEmpty());
+			FeatureIterator<?> features = collection.features();
+			int count = 0;
+			while(features.hasNext()) {
+				features.next();
+				count++;
+			}
+			features.close();
+			assertEquals(55, count);
+			assertEquals(55, collection.size());
+			assertNotNull(collection.getBounds());
+			try {
+				collection.features();
+				fail("Expected IllegalStateException");
+			} catch(IllegalStateException e) {
+				// expected
+			}
+		} finally {
+			in.close();
+		}
+	}
+	
+	private void assertLazyMatches(SimpleSOSParser eager, SimpleSOSParser lazy, String fixture) throws Exception {
+		lazy.setLazy(true);
+		GTVectorDataBinding lazyData = (GTVectorDataBinding) ParserFixtures.parse(lazy, fixture);
+		assertTrue(lazyData.getPayload() instanceof ObservationFeatureCollection);
+		List<String> expected = ParserFixtures.describe(ParserFixtures.parse(eager, fixture));
+		assertEquals(expected, ParserFixtures.describe(lazyData));
+		// document backed collections can be read again
+		assertEquals(expected, ParserFixtures.describe(lazyData));
+		assertEquals(expected.size(), lazyData.getPayload().size());
+	}
+}
@@ -0,0 +1,262 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.n52.wps.io.data.IData;
+import org.n52.wps.io.data.binding.complex.GTVectorDataBinding;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Point;
+
+import junit.framework.TestCase;
+
+/**
+ * Fetches the sample responses as offerings of a local stand-in for a SOS,
+ * checking they are merged in order of phenomenonTime and that no more
+ * requests are in flight than allowed
+ */
+public class ObservationFetcherTest extends TestCase {
+	private static final Map<String, String> OFFERINGS = new HashMap<String, String>();
+	static {
+		OFFERINGS.put("ucd100", ParserFixtures.UCD_XML_100);
+		OFFERINGS.put("demo100", ParserFixtures.DEMO_52N_XML_100);
+		OFFERINGS.put("ucd200", ParserFixtures.UCD_XML_200);
+		OFFERINGS.put("demo200", ParserFixtures.DEMO_52N_XML_200);
+	}
+
+	private ParserFixtures.SosServer server;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new ParserFixtures.SosServer();
+		for(Map.Entry<String, String> offering : OFFERINGS.entrySet()) {
+			server.addOffering(offering.getKey(), offering.getValue());
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.stop();
+	}
+
+	public void testMergedInTimeOrder() throws Exception {
+		List<String> offerings = Arrays.asList("demo200", "ucd200", "demo100", "ucd100");
+		IData data = fetcher().fetch(offerings, null, null);
+		List<SimpleFeature> merged = ParserFixtures.features(data);
+
+		List<String> expected = new ArrayList<String>();
+		for(String offering : offerings) {
+			String fixture = OFFERINGS.get(offering);
+			InputStream in = ParserFixtures.open(fixture);
+			try {
+				ParserSelection selection = SimpleSOSParser.Factory.select(in);
+				expected.addAll(describeByName(ParserFixtures.features(selection.getParser().parse(selection.getInputStream(), "", ""))));
+			} finally {
+				in.close();
+			}
+		}
+		// the responses of each version are retyped to one FeatureType holding the attributes of both
+		List<String> actual = describeByName(merged);
+		assertEquals(expected.size(), actual.size());
+		Collections.sort(expected);
+		Collections.sort(actual);
+		assertEquals(expected, actual);
+
+		long last = Long.MIN_VALUE;
+		for(SimpleFeature feature : merged) {
+			assertSame(((GTVectorDataBinding) data).getPayload().getSchema(), feature.getFeatureType());
+			long time = phenomenonTime(feature);
+			assertTrue("Features out of order", time >= last);
+			last = time;
+		}
+		// every sample observation has a phenomenonTime
+		assertTrue(last < Long.MAX_VALUE);
+	}
+
+	public void testConcurrencyBounded() throws Exception {
+		server.setDelay(100);
+		ObservationFetcher fetcher = fetcher();
+		fetcher.setMaxConcurrentRequests(2);
+		List<String> offerings = new ArrayList<String>();
+		for(int i = 0; i < 6; i++) {
+			offerings.add("demo200");
+		}
+		assertEquals(6 * 27, ParserFixtures.features(fetcher.fetch(offerings, null, null)).size());
+		assertTrue("Requests in flight: " + server.getMaxInFlight(), server.getMaxInFlight() <= 2);
+	}
+
+	public void testExecutor() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			ObservationFetcher fetcher = fetcher();
+			fetcher.setExecutor(executor);
+			fetcher.setMaxConcurrentRequests(3);
+			IData data = fetcher.fetch(Arrays.asList("ucd200", "demo200", "ucd200"), null, null);
+			assertEquals(55 + 27 + 55, ParserFixtures.features(data).size());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	public void testRejectedRequest() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		executor.shutdown();
+		ObservationFetcher fetcher = fetcher();
+		fetcher.setExecutor(executor);
+		try {
+			fetcher.fetch(Arrays.asList("demo200", "ucd200"), null, null);
+			fail("Fetched with a shut down executor");
+		} catch(IOException e) {
+			assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+	}
+
+	public void testFailedRequest() throws Exception {
+		try {
+			fetcher().fetch(Arrays.asList("demo200", "missing", "ucd200"), null, null);
+			fail("Fetched a missing offering");
+		} catch(IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("404"));
+		}
+	}
+
+	public void testMergeRuns() throws Exception {
+		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+		builder.setName("timed");
+		builder.add("name", String.class);
+		builder.add("phenomenonTime", Date.class);
+		SimpleFeatureType type = builder.buildFeatureType();
+
+		// the first run is out of order, and has a feature with no time
+		List<ObservationFetcher.Run> runs = new ArrayList<ObservationFetcher.Run>();
+		runs.add(new ObservationFetcher.Run(0, collection(type, "a3", 3L, "a1", 1L, "a-", null, "a2", 2L)));
+		runs.add(new ObservationFetcher.Run(1, collection(type)));
+		runs.add(new ObservationFetcher.Run(2, collection(type, "c2", 2L, "c5", 5L)));
+		List<String> names = new ArrayList<String>();
+		for(SimpleFeature feature : ParserFixtures.features(ObservationFetcher.merge(runs))) {
+			names.add((String) feature.getAttribute("name"));
+		}
+		assertEquals(Arrays.asList("a1", "a2", "c2", "a3", "c5", "a-"), names);
+	}
+
+	public void testMergeRunsOfDifferentTypes() throws Exception {
+		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+		builder.setName("timed");
+		builder.add("name", String.class);
+		builder.add("phenomenonTime", Date.class);
+		SimpleFeatureType named = builder.buildFeatureType();
+		builder.setName("timed");
+		builder.add("name", Integer.class);
+		builder.add("phenomenonTime", Date.class);
+		builder.add("value", Double.class);
+		SimpleFeatureType numbered = builder.buildFeatureType();
+
+		List<ObservationFetcher.Run> runs = new ArrayList<ObservationFetcher.Run>();
+		runs.add(new ObservationFetcher.Run(0, collection(named, "a2", 2L)));
+		runs.add(new ObservationFetcher.Run(1, collection(numbered, 1, 1L)));
+		ListFeatureCollection merged = ObservationFetcher.merge(runs);
+		SimpleFeatureType type = merged.getSchema();
+		assertEquals(3, type.getAttributeCount());
+		assertEquals(Object.class, type.getDescriptor("name").getType().getBinding());
+		assertEquals(Date.class, type.getDescriptor("phenomenonTime").getType().getBinding());
+		assertEquals(Double.class, type.getDescriptor("value").getType().getBinding());
+		List<SimpleFeature> features = ParserFixtures.features(merged);
+		assertEquals(Integer.valueOf(1), features.get(0).getAttribute("name"));
+		assertEquals("a2", features.get(1).getAttribute("name"));
+		assertNull(features.get(1).getAttribute("value"));
+		for(SimpleFeature feature : features) {
+			assertSame(type, feature.getFeatureType());
+		}
+	}
+
+	public void testMergeRunsInDifferentCrsRejected() throws Exception {
+		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+		builder.setName("located");
+		builder.add("geometry", Point.class, DefaultGeographicCRS.WGS84);
+		builder.add("phenomenonTime", Date.class);
+		SimpleFeatureType wgs84 = builder.buildFeatureType();
+		builder.setName("located");
+		builder.add("geometry", Point.class, (CoordinateReferenceSystem) null);
+		builder.add("phenomenonTime", Date.class);
+		builder.add("value", Double.class);
+		SimpleFeatureType unreferenced = builder.buildFeatureType();
+
+		List<ObservationFetcher.Run> runs = new ArrayList<ObservationFetcher.Run>();
+		runs.add(new ObservationFetcher.Run(0, collection(wgs84, null, 1L)));
+		runs.add(new ObservationFetcher.Run(1, collection(unreferenced, null, 2L)));
+		try {
+			ObservationFetcher.merge(runs);
+			fail("Merged geometries in different coordinate reference systems");
+		} catch(IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("geometry"));
+		}
+	}
+
+	private ObservationFetcher fetcher() {
+		return new ObservationFetcher(server.getUrl(), SimpleSOSParser.SOS_V2);
+	}
+
+	private static ListFeatureCollection collection(SimpleFeatureType type, Object... namesAndTimes) {
+		List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+		SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
+		for(int i = 0; i < namesAndTimes.length; i += 2) {
+			builder.add(namesAndTimes[i]);
+			builder.add(namesAndTimes[i + 1] == null ? null : new Date((Long) namesAndTimes[i + 1]));
+			features.add(builder.buildFeature(null));
+		}
+		return new ListFeatureCollection(type, features);
+	}
+
+	/**
+	 * Describes features by the names of their attributes which are set, in order of
+	 * name, so that features retyped with attributes added, moved or rebound can be compared
+	 */
+	private static List<String> describeByName(List<SimpleFeature> features) {
+		List<String> description = new ArrayList<String>();
+		for(SimpleFeature feature : features) {
+			List<String> attributes = new ArrayList<String>();
+			for(int i = 0; i < feature.getAttributeCount(); i++) {
+				Object value = feature.getAttribute(i);
+				if(value != null) {
+					attributes.add(feature.getFeatureType().getDescriptor(i).getLocalName() + "="
+							+ ParserFixtures.describe(value));
+				}
+			}
+			Collections.sort(attributes);
+			StringBuilder row = new StringBuilder();
+			for(String attribute : attributes) {
+				row.append(attribute).append('|');
+			}
+			description.add(row.toString());
+		}
+		return description;
+	}
+
+	/**
+	 * @return The phenomenonTime of a feature, or its samplingTime if it was parsed from SOS 1.0.0
+	 */
+	private static long phenomenonTime(SimpleFeature feature) {
+		long time = ObservationFetcher.timeOf(feature, feature.getFeatureType().indexOf("phenomenonTime"));
+		if(time == Long.MAX_VALUE) {
+			time = ObservationFetcher.timeOf(feature, feature.getFeatureType().indexOf("samplingTime"));
+		}
+		return time;
+	}
+}
@@ -0,0 +1,64 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.io.InputStream;
+import java.util.List;
+
+import javax.xml.bind.DatatypeConverter;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks observations are skipped during the parse when they do not match
+ * the filter, however the parser is set to convert them
+ */
+public class ObservationFilterTest extends TestCase {
+	private static final String PROPERTY = "http://dd.eionet.europa.eu/vocabulary/aq/pollutant/10";
+	
+	public void testTimeWindow() throws Exception {
+		ObservationFilter filter = new ObservationFilter();
+		filter.setTimeWindow(DatatypeConverter.parseDateTime("2013-01-11T00:00:00Z").getTime(), 
+				DatatypeConverter.parseDateTime("2013-01-12T00:00:00Z").getTime());
+		
+		assertEquals(12, parse(new SimpleSOSParser_200(), filter).size());
+		
+		SimpleSOSParser_200 streaming = new SimpleSOSParser_200();
+		streaming.setStreaming(true);
+		assertEquals(12, parse(streaming, filter).size());
+		
+		SimpleSOSParser_200 lazy = new SimpleSOSParser_200();
+		lazy.setLazy(true);
+		assertEquals(12, parse(lazy, filter).size());
+	}
+	
+	public void testPropertyAndProcedure() throws Exception {
+		ObservationFilter filter = new ObservationFilter();
+		filter.addObservedProperty(PROPERTY);
+		filter.addProcedure("SPP-SE_NDIR_thermo42");
+		assertEquals(27, parse(new SimpleSOSParser_200(), filter).size());
+		
+		filter.addObservedProperty("http://dd.eionet.europa.eu/vocabulary/aq/pollutant/1");
+		assertEquals(27, parse(new SimpleSOSParser_200(), filter).size());
+		
+		ObservationFilter other = new ObservationFilter();
+		other.addProcedure("another-procedure");
+		assertEquals(0, parse(new SimpleSOSParser_200(), other).size());
+	}
+	
+	public void testFilteredResultsMatchUnfiltered() throws Exception {
+		ObservationFilter filter = new ObservationFilter();
+		filter.setTimeWindow(DatatypeConverter.parseDateTime("2013-01-12T00:00:00Z").getTime(), null);
+		List<String> filtered = parse(new SimpleSOSParser_200(), filter);
+		List<String> all = ParserFixtures.describe(
+				ParserFixtures.parse(new SimpleSOSParser_200(), ParserFixtures.DEMO_52N_XML_200));
+		assertEquals(all.subList(all.size() - filtered.size(), all.size()), filtered);
+	}
+	
+	private List<String> parse(SimpleSOSParser parser, ObservationFilter filter) throws Exception {
+		InputStream in = ParserFixtures.open(ParserFixtures.DEMO_52N_XML_200);
+		try {
+			return ParserFixtures.describe(parser.parse(in, filter));
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.io.IOException;
+import java.util.Date;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.n52.wps.io.data.IData;
+import org.n52.wps.io.data.binding.complex.GTVectorDataBinding;
+
+import junit.framework.TestCase;
+
+/**
+ * Polls a local stand-in for a SOS serving the sample responses, checking
+ * only observations not returned before come back
+ */
+public class ObservationPollerTest extends TestCase {
+	private static final String OFFERING = "offering1";
+	private static final String UCD_PROCEDURE = "http://smartcoasts.ucd.ie/procedure/0";
+	
+	private ParserFixtures.SosServer server;
+	
+	@Override
+	protected void setUp() throws Exception {
+		server = new ParserFixtures.SosServer();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		server.stop();
+	}
+	
+	public void testSecondPollReturnsNothingNew() throws Exception {
+		server.setFixture(ParserFixtures.DEMO_52N_XML_200);
+		ObservationPoller poller = new ObservationPoller(server.getUrl(), "2.0.0", new SimpleSOSParser_200());
+		poller.addOffering(OFFERING);
+		assertEquals(27, size(poller.poll(OFFERING)));
+		assertFalse(server.getRequests().get(0).contains("temporalFilter"));
+		assertEquals(new Date(time("2014-03-31T00:00:00.000Z")), poller.getWatermark(OFFERING, "SPP-SE_NDIR_thermo42"));
+		
+		// every observation is at the watermark and has been seen
+		assertEquals(0, size(poller.poll(OFFERING)));
+		assertTrue(server.getRequests().get(1), server.getRequests().get(1).contains("temporalFilter=om:resultTime,2014-03-30T23:59:59.999Z/"));
+	}
+	
+	public void testResumesFromWatermark() throws Exception {
+		server.setFixture(ParserFixtures.UCD_XML_200);
+		ObservationPoller poller = new ObservationPoller(server.getUrl(), "2.0.0", new SocialSOSParser());
+		poller.addOffering(OFFERING, UCD_PROCEDURE);
+		poller.setWatermark(OFFERING, UCD_PROCEDURE, new Date(time("2015-02-13T22:14:28.546Z")));
+		// the last three observations are at or after the watermark
+		assertEquals(3, size(poller.poll(OFFERING)));
+		assertTrue(server.getRequests().get(0).contains("procedure=" + UCD_PROCEDURE));
+		assertEquals(new Date(time("2015-02-13T22:14:59.927Z")), poller.getWatermark(OFFERING, UCD_PROCEDURE));
+		assertEquals(0, size(poller.poll().get(0)));
+	}
+	
+	public void testSkippedObservationLeavesWatermark() throws Exception {
+		// the latest observation's sentiment cannot be read
+		String xml = ParserFixtures.slurp(ParserFixtures.UCD_XML_200).replace(
+				"Sentiment: 0.0 User ID: 2953368105", "Sentiment: none User ID: 2953368105");
+		server.setResponse(xml.getBytes("UTF-8"));
+		SocialSOSParser parser = new SocialSOSParser();
+		parser.SetStrictMode(false);
+		ObservationPoller poller = new ObservationPoller(server.getUrl(), "2.0.0", parser);
+		poller.addOffering(OFFERING);
+		assertEquals(54, size(poller.poll(OFFERING)));
+		assertEquals(new Date(time("2015-02-13T22:14:54.512Z")), poller.getWatermark(OFFERING, UCD_PROCEDURE));
+	}
+	
+	public void testUntimedObservationReturnedOnce() throws Exception {
+		// the first observation's times refer to another's, so cannot be read
+		String xml = ParserFixtures.slurp(ParserFixtures.DEMO_52N_XML_200);
+		int start = xml.indexOf("<om:phenomenonTime>");
+		int end = xml.indexOf("</om:resultTime>") + "</om:resultTime>".length();
+		xml = xml.substring(0, start) + "<om:phenomenonTime xlink:href=\"#phenomenonTime_978751\"/>"
+				+ "<om:resultTime xlink:href=\"#phenomenonTime_978751\"/>" + xml.substring(end);
+		server.setResponse(xml.getBytes("UTF-8"));
+		ObservationPoller poller = new ObservationPoller(server.getUrl(), "2.0.0", new SimpleSOSParser_200());
+		poller.addOffering(OFFERING);
+		assertEquals(27, size(poller.poll(OFFERING)));
+		assertEquals(0, size(poller.poll(OFFERING)));
+	}
+	
+	public void testFetchDoesNotLockPoller() throws Exception {
+		server.setFixture(ParserFixtures.DEMO_52N_XML_200);
+		server.setDelay(2000);
+		final ObservationPoller poller = new ObservationPoller(server.getUrl(), "2.0.0", new SimpleSOSParser_200());
+		poller.addOffering(OFFERING);
+		Thread polling = new Thread(new Runnable() {
+			public void run() {
+				try {
+					poller.poll(OFFERING);
+				} catch(IOException e) {
+					// checked by the watermark below
+				}
+			}
+		});
+		polling.start();
+		while(server.getRequests().isEmpty()) {
+			Thread.sleep(10);
+		}
+		long start = System.currentTimeMillis();
+		poller.setWatermark("offering2", "procedure", new Date(0));
+		assertTrue("Waited for the fetch", System.currentTimeMillis() - start < 1000);
+		polling.join();
+		assertNotNull(poller.getWatermark(OFFERING, "SPP-SE_NDIR_thermo42"));
+	}
+	
+	public void testObservationCollectionUsesEventTime() throws Exception {
+		server.setFixture(ParserFixtures.UCD_XML_100);
+		ObservationPoller poller = new ObservationPoller(server.getUrl(), "1.0.0");
+		poller.addOffering(OFFERING);
+		int first = size(poller.poll(OFFERING));
+		assertTrue(first > 0);
+		assertEquals(0, size(poller.poll(OFFERING)));
+		assertTrue(server.getRequests().get(1), server.getRequests().get(1).contains("eventTime="));
+	}
+	
+	public void testFailedRequest() throws Exception {
+		server.setFixture(ParserFixtures.DEMO_52N_XML_200);
+		ObservationPoller poller = new ObservationPoller(server.getUrl().replace("/sos", "/missing"), "2.0.0");
+		poller.addOffering(OFFERING);
+		try {
+			poller.poll(OFFERING);
+			fail("Polled a missing service");
+		} catch(IOException e) {
+			// expected
+		}
+		assertNull(poller.getWatermark(OFFERING, "SPP-SE_NDIR_thermo42"));
+	}
+	
+	private static int size(IData data) {
+		return ((GTVectorDataBinding) data).getPayload().size();
+	}
+	
+	private static long time(String iso) {
+		return DatatypeConverter.parseDateTime(iso).getTimeInMillis();
+	}
+}
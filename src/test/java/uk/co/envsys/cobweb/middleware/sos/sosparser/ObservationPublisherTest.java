@@ -0,0 +1,292 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.geotools.data.collection.ListFeatureCollection;
+import org.n52.wps.io.data.IData;
+import org.n52.wps.io.data.binding.complex.GTVectorDataBinding;
+import org.opengis.feature.simple.SimpleFeature;
+
+import junit.framework.TestCase;
+
+/**
+ * Subscribes to the features of the sample responses, checking they arrive
+ * as requested, that the input is only read as far as needed, and that
+ * cancelling closes it
+ */
+public class ObservationPublisherTest extends TestCase {
+
+	public void testPublishesAll() throws Exception {
+		RecordingSubscriber subscriber = new RecordingSubscriber(1);
+		streamingParser().publish(ParserFixtures.open(ParserFixtures.DEMO_52N_XML_200), null, null)
+				.subscribe(subscriber);
+		assertTrue(subscriber.finished.await(10, TimeUnit.SECONDS));
+		assertTrue(subscriber.completed);
+		assertNull(subscriber.error);
+		// as the same parser's collection gives them when iterated
+		InputStream in = ParserFixtures.open(ParserFixtures.DEMO_52N_XML_200);
+		try {
+			assertEquals(ParserFixtures.describe(streamingParser().parse(in, (ObservationFilter) null)),
+					ParserFixtures.describe(subscriber.received()));
+		} finally {
+			in.close();
+		}
+	}
+
+	public void testPublishesLazy100() throws Exception {
+		SimpleSOSParser_100 parser = new SimpleSOSParser_100();
+		parser.setLazy(true);
+		RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+		parser.publish(ParserFixtures.open(ParserFixtures.UCD_XML_100), null, null).subscribe(subscriber);
+		assertTrue(subscriber.finished.await(10, TimeUnit.SECONDS));
+		assertTrue(subscriber.completed);
+		assertEquals(ParserFixtures.describe(ParserFixtures.parse(new SimpleSOSParser_100(), ParserFixtures.UCD_XML_100)),
+				ParserFixtures.describe(subscriber.received()));
+	}
+
+	public void testInputHeldBack() throws Exception {
+		byte[] body = ParserFixtures.read(ParserFixtures.DEMO_52N_XML_200);
+		CountingStream input = new CountingStream(body);
+		RecordingSubscriber subscriber = new RecordingSubscriber(0);
+		ObservationPublisher publisher = streamingParser().publish(input, null, null);
+		publisher.subscribe(subscriber);
+		Thread.sleep(100);
+		assertEquals("Read before anything was requested", 0, input.count);
+
+		subscriber.subscription.request(2);
+		subscriber.awaitItems(2);
+		Thread.sleep(200);
+		long held = input.count;
+		Thread.sleep(200);
+		assertEquals(2, subscriber.items.size());
+		assertEquals("Kept reading with nothing requested", held, input.count);
+		assertTrue("Read the whole response for two features", held < body.length);
+
+		subscriber.subscription.request(Long.MAX_VALUE);
+		assertTrue(subscriber.finished.await(10, TimeUnit.SECONDS));
+		assertEquals(27, subscriber.items.size());
+		assertTrue(input.closed);
+	}
+
+	public void testCancelClosesBlockedInput() throws Exception {
+		byte[] body = ParserFixtures.read(ParserFixtures.DEMO_52N_XML_200);
+		// sends half the response, then blocks like a socket waiting for the rest
+		final BlockingStream input = new BlockingStream(body, body.length / 2);
+		RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+		final CountDownLatch stopped = new CountDownLatch(1);
+		ObservationPublisher publisher = streamingParser().publish(input, null, null);
+		publisher.setExecutor(new Executor() {
+			public void execute(final Runnable task) {
+				new Thread(new Runnable() {
+					public void run() {
+						task.run();
+						stopped.countDown();
+					}
+				}).start();
+			}
+		});
+		publisher.subscribe(subscriber);
+		assertTrue(input.blocked.await(10, TimeUnit.SECONDS));
+		assertFalse(subscriber.items.isEmpty());
+
+		subscriber.subscription.cancel();
+		assertTrue("Publisher still reading", stopped.await(10, TimeUnit.SECONDS));
+		assertTrue(input.closed);
+		assertFalse(subscriber.completed);
+		assertNull(subscriber.error);
+	}
+
+	public void testSecondSubscriberRefused() throws Exception {
+		ObservationPublisher publisher = streamingParser().publish(
+				ParserFixtures.open(ParserFixtures.DEMO_52N_XML_200), null, null);
+		RecordingSubscriber first = new RecordingSubscriber(Long.MAX_VALUE);
+		publisher.subscribe(first);
+		RecordingSubscriber second = new RecordingSubscriber(Long.MAX_VALUE);
+		publisher.subscribe(second);
+		assertTrue(second.error instanceof IllegalStateException);
+		assertTrue(first.finished.await(10, TimeUnit.SECONDS));
+		assertEquals(27, first.items.size());
+	}
+
+	public void testInvalidRequest() throws Exception {
+		RecordingSubscriber subscriber = new RecordingSubscriber(0);
+		CountingStream input = new CountingStream(ParserFixtures.read(ParserFixtures.DEMO_52N_XML_200));
+		streamingParser().publish(input, null, null).subscribe(subscriber);
+		subscriber.subscription.request(0);
+		assertTrue(subscriber.finished.await(10, TimeUnit.SECONDS));
+		assertTrue(subscriber.error instanceof IllegalArgumentException);
+		assertTrue(subscriber.items.isEmpty());
+		assertTrue(input.closed);
+	}
+
+	public void testParseError() throws Exception {
+		RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+		new SimpleSOSParser_200().publish(new ByteArrayInputStream("<not-sos".getBytes("UTF-8")), null, null)
+				.subscribe(subscriber);
+		assertTrue(subscriber.finished.await(10, TimeUnit.SECONDS));
+		assertTrue(subscriber.error instanceof IllegalArgumentException);
+	}
+
+	private static SimpleSOSParser_200 streamingParser() {
+		SimpleSOSParser_200 parser = new SimpleSOSParser_200();
+		parser.setStreaming(true);
+		parser.setLazy(true);
+		parser.setDetached(true);
+		return parser;
+	}
+
+	/**
+	 * Keeps what it is sent, requesting a number of features at a time
+	 */
+	private static class RecordingSubscriber implements ObservationFlow.Subscriber<SimpleFeature> {
+		private final long batch;
+		private final List<SimpleFeature> items = new ArrayList<SimpleFeature>();
+		private final CountDownLatch finished = new CountDownLatch(1);
+		private volatile ObservationFlow.Subscription subscription;
+		private volatile boolean completed = false;
+		private volatile Throwable error = null;
+
+		/**
+		 * @param batch Features to request at a time, 0 to leave requesting to the test
+		 */
+		RecordingSubscriber(long batch) {
+			this.batch = batch;
+		}
+
+		public void onSubscribe(ObservationFlow.Subscription subscription) {
+			this.subscription = subscription;
+			if(batch > 0) {
+				subscription.request(batch);
+			}
+		}
+
+		public void onNext(SimpleFeature item) {
+			synchronized(items) {
+				items.add(item);
+				items.notifyAll();
+			}
+			if(batch > 0 && batch != Long.MAX_VALUE) {
+				subscription.request(batch);
+			}
+		}
+
+		public void onError(Throwable throwable) {
+			error = throwable;
+			finished.countDown();
+		}
+
+		public void onComplete() {
+			completed = true;
+			finished.countDown();
+		}
+
+		void awaitItems(int count) throws InterruptedException {
+			synchronized(items) {
+				long until = System.currentTimeMillis() + 10000;
+				while(items.size() < count && System.currentTimeMillis() < until) {
+					items.wait(100);
+				}
+			}
+		}
+
+		IData received() {
+			synchronized(items) {
+				return new GTVectorDataBinding(new ListFeatureCollection(
+						items.isEmpty() ? null : items.get(0).getFeatureType(), new ArrayList<SimpleFeature>(items)));
+			}
+		}
+	}
+
+	/**
+	 * Counts the bytes read from a response, and whether it was closed
+	 */
+	private static class CountingStream extends ByteArrayInputStream {
+		private volatile long count = 0;
+		private volatile boolean closed = false;
+
+		CountingStream(byte[] body) {
+			super(body);
+		}
+
+		@Override
+		public synchronized int read() {
+			int read = super.read();
+			if(read != -1) {
+				count++;
+			}
+			return read;
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) {
+			// small reads, so that the parser cannot buffer far ahead
+			int read = super.read(b, off, Math.min(len, 256));
+			if(read > 0) {
+				count += read;
+			}
+			return read;
+		}
+
+		@Override
+		public void close() throws IOException {
+			closed = true;
+			super.close();
+		}
+	}
+
+	/**
+	 * Serves the start of a response, then blocks until closed
+	 */
+	private static class BlockingStream extends InputStream {
+		private final byte[] body;
+		private final int available;
+		private final CountDownLatch blocked = new CountDownLatch(1);
+		private int position = 0;
+		private volatile boolean closed = false;
+
+		BlockingStream(byte[] body, int available) {
+			this.body = body;
+			this.available = available;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) throws IOException {
+			while(position >= available && !closed) {
+				blocked.countDown();
+				try {
+					wait();
+				} catch(InterruptedException e) {
+					throw new IOException("Interrupted");
+				}
+			}
+			if(closed) {
+				throw new IOException("Stream closed");
+			}
+			int read = Math.min(len, available - position);
+			System.arraycopy(body, position, b, off, read);
+			position += read;
+			return read;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+			synchronized(this) {
+				notifyAll();
+			}
+		}
+	}
+}
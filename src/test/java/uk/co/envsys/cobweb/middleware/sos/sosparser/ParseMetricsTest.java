@@ -0,0 +1,60 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks each stage of a parse is measured when metrics are set
+ */
+public class ParseMetricsTest extends TestCase {
+	
+	public void testStagesMeasured() throws Exception {
+		ParseStatistics statistics = new ParseStatistics();
+		SimpleSOSParser_200 parser = new SimpleSOSParser_200();
+		parser.setMetrics(statistics);
+		ParserFixtures.parse(parser, ParserFixtures.DEMO_52N_XML_200);
+		
+		assertEquals(new File(ParserFixtures.DEMO_52N_XML_200).length(), statistics.getBytesRead());
+		assertEquals(1, statistics.getParses());
+		assertEquals(27, statistics.getObservations());
+		assertEquals(27, statistics.getConversions());
+		assertTrue(statistics.getDocumentNanos() > 0);
+		assertTrue(statistics.getTypeNanos() > 0);
+		assertTrue(statistics.getMeanConversionNanos() > 0);
+		assertTrue(statistics.getObservationsPerSecond() > 0);
+		assertEquals(0, statistics.getFailures());
+	}
+	
+	public void testStreamingAndColumnar() throws Exception {
+		ParseStatistics statistics = new ParseStatistics();
+		SocialSOSParser parser = new SocialSOSParser();
+		parser.setStreaming(true);
+		parser.setColumnar(true);
+		parser.setMetrics(statistics);
+		ParserFixtures.parse(parser, ParserFixtures.UCD_XML_200);
+		assertEquals(new File(ParserFixtures.UCD_XML_200).length(), statistics.getBytesRead());
+		assertEquals(55, statistics.getObservations());
+		assertEquals(55, statistics.getConversions());
+		// streamed responses are never parsed into a document
+		assertEquals(0, statistics.getDocumentNanos());
+	}
+	
+	public void testMissingElementCounted() throws Exception {
+		String response = ParserFixtures.slurp(ParserFixtures.DEMO_52N_XML_200)
+				.replace("<om:procedure xlink:href=\"SPP-SE_NDIR_thermo42\"/>", "");
+		ParseStatistics statistics = new ParseStatistics();
+		SimpleSOSParser_200 parser = new SimpleSOSParser_200();
+		parser.setMetrics(statistics);
+		try {
+			parser.parse(new ByteArrayInputStream(response.getBytes("UTF-8")), "", "");
+			fail("Parsed observations without procedures");
+		} catch(IllegalArgumentException e) {
+			// expected
+		}
+		assertEquals(1, statistics.getFailures());
+		assertEquals(0, statistics.getParses());
+		assertEquals(Long.valueOf(1), statistics.getMissingElements().get("procedure"));
+	}
+}
@@ -0,0 +1,159 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.n52.wps.io.data.IData;
+import org.n52.wps.io.data.binding.complex.GTVectorDataBinding;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks identical responses are parsed once, and the cache keeps within its bounds
+ */
+public class ParsedResponseCacheTest extends TestCase {
+	
+	public void testIdenticalResponseIsHit() throws Exception {
+		ParsedResponseCache cache = new ParsedResponseCache();
+		IData first = cache.parse(ParserFixtures.open(ParserFixtures.DEMO_52N_XML_200));
+		IData second = cache.parse(ParserFixtures.open(ParserFixtures.DEMO_52N_XML_200));
+		assertSame(first, second);
+		assertEquals(27, ((GTVectorDataBinding) second).getPayload().size());
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		
+		cache.parse(ParserFixtures.open(ParserFixtures.UCD_XML_200));
+		assertEquals(2, cache.getMisses());
+		assertEquals(2, cache.size());
+	}
+	
+	public void testEvictsLeastRecentlyUsed() throws Exception {
+		ParsedResponseCache cache = new ParsedResponseCache(2, Long.MAX_VALUE);
+		cache.parse(ParserFixtures.open(ParserFixtures.DEMO_52N_XML_200));
+		cache.parse(ParserFixtures.open(ParserFixtures.UCD_XML_200));
+		// touch the first, so the second is the least recently used
+		cache.parse(ParserFixtures.open(ParserFixtures.DEMO_52N_XML_200));
+		cache.parse(ParserFixtures.open(ParserFixtures.UCD_XML_100));
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictions());
+		cache.parse(ParserFixtures.open(ParserFixtures.DEMO_52N_XML_200));
+		assertEquals(2, cache.getHits());
+	}
+	
+	public void testEvictsBySize() throws Exception {
+		ParsedResponseCache measure = new ParsedResponseCache();
+		measure.parse(ParserFixtures.open(ParserFixtures.UCD_XML_200));
+		long first = measure.getEstimatedBytes();
+		measure.parse(ParserFixtures.open(ParserFixtures.DEMO_52N_XML_200));
+		long second = measure.getEstimatedBytes() - first;
+		// room for either response, but not both
+		ParsedResponseCache cache = new ParsedResponseCache(10, Math.max(first, second));
+		cache.parse(ParserFixtures.open(ParserFixtures.UCD_XML_200));
+		assertEquals(first, cache.getEstimatedBytes());
+		cache.parse(ParserFixtures.open(ParserFixtures.DEMO_52N_XML_200));
+		assertEquals(1, cache.size());
+		assertEquals(1, cache.getEvictions());
+		assertEquals(second, cache.getEstimatedBytes());
+	}
+	
+	public void testRequestKey() throws Exception {
+		ParsedResponseCache cache = new ParsedResponseCache();
+		assertNull(cache.get("offering=1"));
+		IData first = cache.parse("offering=1", ParserFixtures.open(ParserFixtures.DEMO_52N_XML_200));
+		assertSame(first, cache.get("offering=1"));
+		// on a hit the response is not read
+		assertSame(first, cache.parse("offering=1", new ByteArrayInputStream(new byte[0])));
+	}
+	
+	public void testEstimateCountsSharedValuesOnce() throws Exception {
+		SimpleFeatureTypeBuilder typeBuilder = new SimpleFeatureTypeBuilder();
+		typeBuilder.setName("observation");
+		typeBuilder.add("procedure", String.class);
+		typeBuilder.add("value", Double.class);
+		SimpleFeatureType type = typeBuilder.buildFeatureType();
+		String procedure = "urn:procedure";
+		ListFeatureCollection collection = new ListFeatureCollection(type);
+		collection.add(SimpleFeatureBuilder.build(type, new Object[] {procedure, 1.0}, "f1"));
+		ParsedResponseCache cache = new ParsedResponseCache();
+		long one = cache.estimateSize(1000, new GTVectorDataBinding(collection));
+		collection.add(SimpleFeatureBuilder.build(type, new Object[] {procedure, 2.0}, "f2"));
+		long two = cache.estimateSize(1000, new GTVectorDataBinding(collection));
+		// no XmlObjects are held, so no document is charged, and the procedure is counted once
+		assertEquals(ParsedResponseCache.FEATURE_BYTES + ParsedResponseCache.STRING_BYTES + 2 * 2
+				+ 2 * ParsedResponseCache.ATTRIBUTE_BYTES + ParsedResponseCache.VALUE_BYTES, two - one);
+		assertTrue(one < 1000 * ParsedResponseCache.DOCUMENT_BYTES_PER_RESPONSE_BYTE);
+	}
+	
+	public void testInvalidate() throws Exception {
+		ParsedResponseCache cache = new ParsedResponseCache();
+		IData first = cache.parse("offering=1", ParserFixtures.open(ParserFixtures.DEMO_52N_XML_200));
+		assertTrue(cache.getEstimatedBytes() > 0);
+		assertTrue(cache.invalidate("offering=1"));
+		assertFalse(cache.invalidate("offering=1"));
+		assertNull(cache.get("offering=1"));
+		assertEquals(0, cache.getEstimatedBytes());
+		assertNotSame(first, cache.parse("offering=1", ParserFixtures.open(ParserFixtures.DEMO_52N_XML_200)));
+	}
+	
+	public void testMaxAge() throws Exception {
+		ParsedResponseCache cache = new ParsedResponseCache();
+		cache.setMaxAge(50, TimeUnit.MILLISECONDS);
+		cache.parse("offering=1", ParserFixtures.open(ParserFixtures.DEMO_52N_XML_200));
+		cache.parse(ParserFixtures.open(ParserFixtures.UCD_XML_200));
+		assertNotNull(cache.get("offering=1"));
+		Thread.sleep(100);
+		assertNull(cache.get("offering=1"));
+		// responses keyed by content do not age
+		assertEquals(1, cache.size());
+		cache.parse(ParserFixtures.open(ParserFixtures.UCD_XML_200));
+		assertEquals(2, cache.getHits());
+	}
+	
+	public void testConcurrentIdenticalResponsesParsedOnce() throws Exception {
+		final byte[] response = ParserFixtures.read(ParserFixtures.UCD_XML_200);
+		final ParsedResponseCache cache = new ParsedResponseCache();
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<IData>> results = new ArrayList<Future<IData>>();
+			for(int i = 0; i < 16; i++) {
+				results.add(executor.submit(new Callable<IData>() {
+					public IData call() {
+						return cache.parse(new ByteArrayInputStream(response));
+					}
+				}));
+			}
+			IData first = results.get(0).get();
+			for(Future<IData> result : results) {
+				assertSame(first, result.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(1, cache.getMisses());
+		assertEquals(15, cache.getHits());
+	}
+	
+	public void testFailedParseIsNotCached() {
+		ParsedResponseCache cache = new ParsedResponseCache();
+		for(int i = 0; i < 2; i++) {
+			try {
+				cache.parse(new ByteArrayInputStream("<notSos/>".getBytes()));
+				fail("Parsed an unknown response");
+			} catch(IllegalArgumentException e) {
+				// expected
+			}
+		}
+		assertEquals(0, cache.size());
+		assertEquals(2, cache.getMisses());
+	}
+}
@@ -0,0 +1,95 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Stress test parseing the sample responses with the shared parsers
+ * from the Factory on many threads at once
+ */
+public class ParserConcurrencyTest extends TestCase {
+	private static final int THREADS = 16;
+	private static final int ROUNDS = 25;
+	
+	public void testFactoryParsersAreShared() {
+		assertSame(SimpleSOSParser.Factory.getParser("1.0.0"), SimpleSOSParser.Factory.getParser("1.0.0"));
+		assertSame(SimpleSOSParser.Factory.getParser("2.0.0"), SimpleSOSParser.Factory.getParser("2.0.0"));
+		try {
+			SimpleSOSParser.Factory.getParser("2.0.0").setLazy(true);
+			fail("Expected IllegalStateException");
+		} catch(IllegalStateException e) {
+			// expected
+		}
+	}
+	
+	public void testParallelConversionKeepsOrder() throws Exception {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			SimpleSOSParser_200 parser = new SocialSOSParser();
+			parser.setConversionPool(pool);
+			parser.setParallelThreshold(1);
+			parser.setStreaming(true);
+			List<String> expected = ParserFixtures.describe(ParserFixtures.parse(new SocialSOSParser(), ParserFixtures.UCD_XML_200));
+			assertEquals(expected, ParserFixtures.describe(ParserFixtures.parse(parser, ParserFixtures.UCD_XML_200)));
+			
+			SimpleSOSParser parser100 = new SimpleSOSParser_100();
+			parser100.setConversionPool(pool);
+			parser100.setParallelThreshold(1);
+			expected = ParserFixtures.describe(ParserFixtures.parse(new SimpleSOSParser_100(), ParserFixtures.UCD_XML_100));
+			assertEquals(expected, ParserFixtures.describe(ParserFixtures.parse(parser100, ParserFixtures.UCD_XML_100)));
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	public void testConcurrentParsesGiveIdenticalResults() throws Exception {
+		final SimpleSOSParser[] parsers = new SimpleSOSParser[] {
+				SimpleSOSParser.Factory.getParser("1.0.0"),
+				SimpleSOSParser.Factory.getParser("1.0.0"),
+				SimpleSOSParser.Factory.getParser("2.0.0"),
+				SimpleSOSParser.Factory.getParser("2.0.0"),
+				SimpleSOSParser.Factory.getParser("UCD_SOCIAL")
+		};
+		final String[] fixtures = new String[] {
+				ParserFixtures.UCD_XML_100,
+				ParserFixtures.DEMO_52N_XML_100,
+				ParserFixtures.UCD_XML_200,
+				ParserFixtures.DEMO_52N_XML_200,
+				ParserFixtures.UCD_XML_200
+		};
+		
+		// single threaded results to compare against
+		List<List<String>> expected = new ArrayList<List<String>>();
+		for(int i = 0; i < parsers.length; i++) {
+			expected.add(ParserFixtures.describe(ParserFixtures.parse(parsers[i], fixtures[i])));
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+			for(int round = 0; round < ROUNDS; round++) {
+				for(int i = 0; i < parsers.length; i++) {
+					final int index = i;
+					results.add(executor.submit(new Callable<List<String>>() {
+						public List<String> call() throws Exception {
+							return ParserFixtures.describe(ParserFixtures.parse(parsers[index], fixtures[index]));
+						}
+					}));
+				}
+			}
+			for(int i = 0; i < results.size(); i++) {
+				assertEquals(expected.get(i % parsers.length), results.get(i).get(60, TimeUnit.SECONDS));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the Factory picks the right parser from the start of each sample
+ * response, and that the selected stream can still be parsed in full
+ */
+public class ParserFactoryTest extends TestCase {
+	
+	public void testSelectsParserFromHeader() throws Exception {
+		assertSelected(SimpleSOSParser_100.class, ParserFixtures.UCD_XML_100);
+		assertSelected(SimpleSOSParser_100.class, ParserFixtures.DEMO_52N_XML_100);
+		assertSelected(SimpleSOSParser_200.class, ParserFixtures.DEMO_52N_XML_200);
+		assertSelected(SocialSOSParser.class, ParserFixtures.UCD_XML_200);
+	}
+	
+	public void testRejectsUnknownDocuments() throws Exception {
+		try {
+			SimpleSOSParser.Factory.getParser(new ByteArrayInputStream("<foo/>".getBytes("UTF-8")));
+			fail("Expected IllegalArgumentException");
+		} catch(IllegalArgumentException e) {
+			// expected
+		}
+	}
+	
+	private void assertSelected(Class<?> expected, String fixture) throws Exception {
+		InputStream in = ParserFixtures.open(fixture);
+		try {
+			ParserSelection selection = SimpleSOSParser.Factory.select(in);
+			assertEquals(expected, selection.getParser().getClass());
+			List<String> parsed = ParserFixtures.describe(selection.parse());
+			assertEquals(ParserFixtures.describe(ParserFixtures.parse(selection.getParser(), fixture)), parsed);
+		} finally {
+			in.close();
+		}
+	}
+}
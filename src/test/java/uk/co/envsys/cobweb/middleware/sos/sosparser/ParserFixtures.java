@@ -0,0 +1,323 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.xmlbeans.XmlObject;
+import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
+import org.n52.wps.io.data.IData;
+import org.n52.wps.io.data.binding.complex.GTVectorDataBinding;
+import org.opengis.feature.simple.SimpleFeature;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Shared access to the sample SOS responses in src/test, a local stand-in
+ * for a SOS serving them, and a way of comparing parsed output which
+ * ignores the generated feature ids
+ */
+public class ParserFixtures {
+	public static final String UCD_XML_100 = "./src/test/test_get_observation_100_ucd_twitter.xml";
+	public static final String DEMO_52N_XML_100 = "./src/test/test_get_obsevation_100_demo_52n.xml";
+	public static final String UCD_XML_200 = "./src/test/test_get_observation_200_ucd_twitter.xml";
+	public static final String DEMO_52N_XML_200 = "./src/test/test_get_observation_200_demo_52n.xml";
+	
+	public static InputStream open(String fixture) throws IOException {
+		return new FileInputStream(fixture);
+	}
+	
+	public static byte[] read(String fixture) throws IOException {
+		InputStream in = open(fixture);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while((read = in.read(buffer)) > 0) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * @return The whole of a sample response as text, for editing
+	 */
+	public static String slurp(String fixture) throws IOException {
+		return new String(read(fixture), "UTF-8");
+	}
+	
+	/**
+	 * @param encoding gzip, deflate, or null to leave the body as it is
+	 * @param rawDeflate Whether deflate omits its zlib wrapper
+	 */
+	public static byte[] encode(byte[] body, String encoding, boolean rawDeflate) throws IOException {
+		if(encoding == null) {
+			return body;
+		}
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		OutputStream out;
+		if("gzip".equals(encoding)) {
+			out = new GZIPOutputStream(encoded);
+		} else {
+			out = new DeflaterOutputStream(encoded, new Deflater(Deflater.DEFAULT_COMPRESSION, rawDeflate));
+		}
+		out.write(body);
+		out.close();
+		return encoded.toByteArray();
+	}
+	
+	public static IData parse(SimpleSOSParser parser, String fixture) throws IOException {
+		InputStream in = open(fixture);
+		try {
+			return parser.parse(in, "", "");
+		} finally {
+			in.close();
+		}
+	}
+	
+	public static List<SimpleFeature> features(IData data) {
+		return features(((GTVectorDataBinding) data).getPayload());
+	}
+	
+	public static List<SimpleFeature> features(FeatureCollection<?, ?> collection) {
+		List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+		FeatureIterator<?> iterator = collection.features();
+		try {
+			while(iterator.hasNext()) {
+				features.add((SimpleFeature) iterator.next());
+			}
+		} finally {
+			iterator.close();
+		}
+		return features;
+	}
+	
+	/**
+	 * Renders every attribute of every feature as a string, XmlObjects by their
+	 * xml text without namespace declarations, so that the results of two parses can be compared for equality
+	 */
+	public static List<String> describe(IData data) {
+		FeatureCollection<?, ?> collection = ((GTVectorDataBinding) data).getPayload();
+		List<String> description = new ArrayList<String>();
+		FeatureIterator<?> features = collection.features();
+		try {
+			while(features.hasNext()) {
+				SimpleFeature feature = (SimpleFeature) features.next();
+				StringBuilder row = new StringBuilder();
+				for(Object value : feature.getAttributes()) {
+					row.append(describe(value)).append('|');
+				}
+				description.add(row.toString());
+			}
+		} finally {
+			features.close();
+		}
+		return description;
+	}
+	
+	static String describe(Object value) {
+		if(value instanceof XmlObject) {
+			// streamed observations carry the envelope's namespace declarations along
+			return ((XmlObject) value).xmlText().replaceAll(" xmlns:\\w+=\"[^\"]*\"", "");
+		} else if(value instanceof Object[]) {
+			StringBuilder s = new StringBuilder("[");
+			for(Object o : (Object[]) value) {
+				s.append(describe(o)).append(',');
+			}
+			return s.append(']').toString();
+		}
+		return String.valueOf(value);
+	}
+	
+	/**
+	 * Writes the body of a response, given the encoded sample
+	 */
+	public interface ResponseWriter {
+		void write(byte[] body, OutputStream out) throws IOException;
+	}
+	
+	/**
+	 * A local stand-in for a SOS at /sos, answering requests with a sample
+	 * response, either the same one for every request or one per offering
+	 */
+	public static class SosServer {
+		private static final ResponseWriter WHOLE = new ResponseWriter() {
+			public void write(byte[] body, OutputStream out) throws IOException {
+				out.write(body);
+			}
+		};
+		
+		private final HttpServer server;
+		private final ExecutorService executor = Executors.newCachedThreadPool();
+		private final Map<String, String> offerings = new ConcurrentHashMap<String, String>();
+		private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private final AtomicInteger maxInFlight = new AtomicInteger();
+		private volatile String fixture = null;
+		private volatile byte[] response = null;
+		private volatile String encoding = null;
+		private volatile boolean rawDeflate = false;
+		private volatile int delay = 0;
+		private volatile ResponseWriter writer = WHOLE;
+		private volatile String acceptEncoding = null;
+		
+		public SosServer() throws IOException {
+			server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+			server.setExecutor(executor);
+			server.createContext("/sos", new HttpHandler() {
+				public void handle(HttpExchange exchange) throws IOException {
+					respond(exchange);
+				}
+			});
+			server.start();
+		}
+		
+		public void stop() {
+			server.stop(0);
+			executor.shutdownNow();
+		}
+		
+		public String getUrl() {
+			return "http://127.0.0.1:" + server.getAddress().getPort() + "/sos";
+		}
+		
+		/**
+		 * @param fixture The sample sent in answer to every request
+		 */
+		public void setFixture(String fixture) {
+			this.fixture = fixture;
+		}
+		
+		/**
+		 * @param response The body sent in answer to every request, e.g. an edited sample
+		 */
+		public void setResponse(byte[] response) {
+			this.response = response;
+		}
+		
+		/**
+		 * Once any offering is added, requests for other offerings are answered with 404
+		 */
+		public void addOffering(String offering, String fixture) {
+			offerings.put(offering, fixture);
+		}
+		
+		/**
+		 * @param encoding The Content-Encoding of responses, gzip, deflate or null for none
+		 * @param rawDeflate Whether deflate omits its zlib wrapper
+		 */
+		public void setEncoding(String encoding, boolean rawDeflate) {
+			this.encoding = encoding;
+			this.rawDeflate = rawDeflate;
+		}
+		
+		/**
+		 * @param delay Milliseconds to wait before answering each request
+		 */
+		public void setDelay(int delay) {
+			this.delay = delay;
+		}
+		
+		public void setWriter(ResponseWriter writer) {
+			this.writer = writer;
+		}
+		
+		/**
+		 * @return The decoded query of every request so far, in order
+		 */
+		public List<String> getRequests() {
+			synchronized(requests) {
+				return new ArrayList<String>(requests);
+			}
+		}
+		
+		/**
+		 * @return The Accept-Encoding of the last request
+		 */
+		public String getAcceptEncoding() {
+			return acceptEncoding;
+		}
+		
+		/**
+		 * @return The most requests answered at the same time
+		 */
+		public int getMaxInFlight() {
+			return maxInFlight.get();
+		}
+		
+		private void respond(HttpExchange exchange) throws IOException {
+			int now = inFlight.incrementAndGet();
+			try {
+				synchronized(maxInFlight) {
+					maxInFlight.set(Math.max(maxInFlight.get(), now));
+				}
+				String query = exchange.getRequestURI().getRawQuery();
+				requests.add(query == null ? "" : URLDecoder.decode(query, "UTF-8"));
+				acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+				if(delay > 0) {
+					Thread.sleep(delay);
+				}
+				byte[] body = response;
+				if(body == null) {
+					String served = offerings.isEmpty() ? fixture : offerings.get(offering(query));
+					if(served == null) {
+						exchange.sendResponseHeaders(404, -1);
+						return;
+					}
+					body = read(served);
+				}
+				body = encode(body, encoding, rawDeflate);
+				exchange.getResponseHeaders().set("Content-Type", "text/xml");
+				if(encoding != null) {
+					exchange.getResponseHeaders().set("Content-Encoding", encoding);
+				}
+				// a length of 0 sends the body in chunks
+				exchange.sendResponseHeaders(200, 0);
+				OutputStream out = exchange.getResponseBody();
+				try {
+					writer.write(body, out);
+				} finally {
+					out.close();
+				}
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				inFlight.decrementAndGet();
+				exchange.close();
+			}
+		}
+		
+		private static String offering(String query) throws IOException {
+			if(query == null) {
+				return "";
+			}
+			for(String parameter : query.split("&")) {
+				if(parameter.startsWith("offering=")) {
+					return URLDecoder.decode(parameter.substring("offering=".length()), "UTF-8");
+				}
+			}
+			return "";
+		}
+	}
+}
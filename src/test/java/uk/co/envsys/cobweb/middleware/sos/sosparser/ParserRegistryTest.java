@@ -0,0 +1,138 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks parsers are found through their providers, by name and by
+ * the start of a response, in order of priority
+ */
+public class ParserRegistryTest extends TestCase {
+
+	public void testDefaultProviders() throws Exception {
+		ParserRegistry registry = ParserRegistry.getDefault();
+		assertEquals(Arrays.asList("1.0.0", "2.0.0", "UCD_SOCIAL"), Arrays.asList(registry.getNames().toArray()));
+		assertEquals(SimpleSOSParser_100.class, registry.getParser("1.0.0").getClass());
+		assertEquals(SimpleSOSParser_200.class, registry.getParser("2.0.0").getClass());
+		assertEquals(SocialSOSParser.class, registry.getParser("UCD_SOCIAL").getClass());
+	}
+
+	public void testLookupByValue() throws Exception {
+		// versions built at runtime are not the interned literals
+		String version = new StringBuilder("2.0").append(".0").toString();
+		assertSame(SimpleSOSParser.Factory.getParser("2.0.0"), SimpleSOSParser.Factory.getParser(version));
+	}
+
+	public void testUnknownName() throws Exception {
+		try {
+			SimpleSOSParser.Factory.getParser("3.0.0");
+			fail("Expected IllegalArgumentException");
+		} catch(IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("UCD_SOCIAL"));
+		}
+	}
+
+	public void testParsersAreShared() throws Exception {
+		ParserRegistry registry = new ParserRegistry(Arrays.asList(new ParserProvider_200()));
+		try {
+			registry.getParser("2.0.0").setLazy(true);
+			fail("Reconfigured a shared parser");
+		} catch(IllegalStateException e) {
+			// expected
+		}
+	}
+
+	public void testHigherPriorityAskedFirst() throws Exception {
+		ParserProvider thermometers = new TestProvider("thermometers", 20, "SPP-SE_NDIR_thermo42");
+		ParserProvider others = new TestProvider("others", 5, "SPP-SE_NDIR");
+		ParserRegistry registry = new ParserRegistry(Arrays.asList(
+				new ParserProvider_200(), others, new SocialParserProvider(), thermometers, new ParserProvider_100()));
+		assertSame(registry.getParser("thermometers"), registry.getParser(header(ParserFixtures.DEMO_52N_XML_200)));
+		assertSame(registry.getParser("UCD_SOCIAL"), registry.getParser(header(ParserFixtures.UCD_XML_200)));
+		assertSame(registry.getParser("1.0.0"), registry.getParser(header(ParserFixtures.UCD_XML_100)));
+
+		registry = new ParserRegistry(Arrays.asList(new ParserProvider_200(), others));
+		assertSame(registry.getParser("others"), registry.getParser(header(ParserFixtures.DEMO_52N_XML_200)));
+		registry = new ParserRegistry(Arrays.asList(new ParserProvider_200()));
+		assertSame(registry.getParser("2.0.0"), registry.getParser(header(ParserFixtures.DEMO_52N_XML_200)));
+	}
+
+	public void testNoProviderForVersion() throws Exception {
+		ParserRegistry registry = new ParserRegistry(Arrays.asList(new ParserProvider_200()));
+		try {
+			registry.getParser(header(ParserFixtures.UCD_XML_100));
+			fail("Expected IllegalArgumentException");
+		} catch(IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testHeaderResolvesNoExternalEntities() throws Exception {
+		File secret = File.createTempFile("secret", ".txt");
+		try {
+			String xml = "<!DOCTYPE sos:GetObservationResponse [<!ENTITY x SYSTEM \"" + secret.toURI() + "\">]>"
+					+ "<sos:GetObservationResponse xmlns:sos=\"http://www.opengis.net/sos/2.0\""
+					+ " xmlns:om=\"" + ResponseHeader.OM_20_NS + "\" xmlns:xlink=\"" + ResponseHeader.XLINK_NS + "\">&x;"
+					+ "<om:procedure xlink:href=\"urn:test\"/></sos:GetObservationResponse>";
+			byte[] prefix = xml.getBytes("UTF-8");
+			ResponseHeader header = ResponseHeader.read(prefix, prefix.length);
+			assertEquals("GetObservationResponse", header.getRoot().getLocalPart());
+			assertNull(header.getProcedure());
+		} finally {
+			secret.delete();
+		}
+	}
+
+	private static ResponseHeader header(String fixture) throws Exception {
+		InputStream in = ParserFixtures.open(fixture);
+		try {
+			byte[] prefix = new byte[8192];
+			int length = 0;
+			int read;
+			while(length < prefix.length && (read = in.read(prefix, length, prefix.length - length)) != -1) {
+				length += read;
+			}
+			return ResponseHeader.read(prefix, length);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Accepts SOS 2.0.0 responses whose first procedure starts with a prefix
+	 */
+	private static class TestProvider implements ParserProvider {
+		private final String name;
+		private final int priority;
+		private final String procedure;
+
+		TestProvider(String name, int priority, String procedure) {
+			this.name = name;
+			this.priority = priority;
+			this.procedure = procedure;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getVersion() {
+			return "2.0.0";
+		}
+
+		public int getPriority() {
+			return priority;
+		}
+
+		public boolean accepts(ResponseHeader header) {
+			return header.getProcedure() != null && header.getProcedure().startsWith(procedure);
+		}
+
+		public SimpleSOSParser createParser() {
+			return new SimpleSOSParser_200();
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import org.apache.xmlbeans.XmlException;
+import org.geotools.feature.FeatureIterator;
+import org.n52.wps.io.data.binding.complex.GTVectorDataBinding;
+import org.opengis.feature.simple.SimpleFeature;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the social sensor result strings are split into the right typed values
+ */
+public class SocialResultDecoderTest extends TestCase {
+	
+	public void testDecodesResult() throws Exception {
+		SocialResultDecoder decoder = new SocialResultDecoder();
+		decoder.decode("Sentiment: 0.8053406931054015 User ID: 1969858256 Tweet: Gods love will flood your heart!!");
+		assertEquals(0.8053406931054015, decoder.getSentiment(), 0);
+		assertEquals(1969858256L, decoder.getUserId());
+		assertEquals("Gods love will flood your heart!!", decoder.getTweet());
+		
+		decoder.decode("Sentiment: -0.25 User ID: 20629966 Tweet: Ohio river cresting\nat 6 feet");
+		assertEquals(-0.25, decoder.getSentiment(), 0);
+		assertEquals(20629966L, decoder.getUserId());
+		assertEquals("Ohio river cresting\nat 6 feet", decoder.getTweet());
+	}
+	
+	public void testMatchesJdkForShortDecimals() throws Exception {
+		SocialResultDecoder decoder = new SocialResultDecoder();
+		String[] values = {"0.0", "0.1", "0.05", "0.333333333333333", "1", "0.123456789012345678", "1.5e-3"};
+		for(String value : values) {
+			decoder.decode("Sentiment: " + value + " User ID: 1 Tweet: x");
+			assertEquals(value, Double.parseDouble(value), decoder.getSentiment(), 0);
+		}
+	}
+	
+	public void testMatchesJdkForLongDecimals() throws Exception {
+		SocialResultDecoder decoder = new SocialResultDecoder();
+		// as given by the sensor, with 16 and 17 significant digits, and ties between two doubles
+		String[] values = {"0.5685799620527161", "0.8053406931054015", "0.16463784381867985",
+				"-0.44365059175771526", "9007199254740993", "0.9007199254740993"};
+		for(String value : values) {
+			decoder.decode("Sentiment: " + value + " User ID: 1 Tweet: x");
+			assertEquals(value, Double.parseDouble(value), decoder.getSentiment(), 0);
+		}
+	}
+	
+	public void testRejectsMalformedResult() {
+		SocialResultDecoder decoder = new SocialResultDecoder();
+		String[] results = {"", "Sentiment: User ID: 1 Tweet: x", "Sentiment: 0.1 Tweet: x", "Sentiment: 0.1 User ID: 1"};
+		for(String result : results) {
+			try {
+				decoder.decode(result);
+				fail("Expected XmlException for " + result);
+			} catch(XmlException e) {
+				// expected
+			}
+		}
+	}
+	
+	public void testParserAddsTypedAttributes() throws Exception {
+		GTVectorDataBinding data = (GTVectorDataBinding) ParserFixtures.parse(
+				new SocialSOSParser(), ParserFixtures.UCD_XML_200);
+		FeatureIterator<?> features = data.getPayload().features();
+		try {
+			SimpleFeature feature = (SimpleFeature) features.next();
+			assertEquals(0.8053406931054015, (Double) feature.getAttribute("sentiment"), 0);
+			assertEquals(Long.valueOf(1969858256L), feature.getAttribute("userId"));
+			assertTrue(((String) feature.getAttribute("tweet")).startsWith("RT @lyndiemccauley"));
+		} finally {
+			features.close();
+		}
+	}
+}
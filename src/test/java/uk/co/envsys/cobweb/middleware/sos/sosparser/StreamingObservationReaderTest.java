@@ -0,0 +1,69 @@
+package uk.co.envsys.cobweb.middleware.sos.sosparser;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the streaming SOS 2.0.0 parse gives the same features as
+ * parseing the whole document
+ */
+public class StreamingObservationReaderTest extends TestCase {
+	
+	public void testStreamingMatchesDocumentParse() throws Exception {
+		assertStreamingMatches(new SimpleSOSParser_200(), new SimpleSOSParser_200(), ParserFixtures.DEMO_52N_XML_200);
+		assertStreamingMatches(new SimpleSOSParser_200(), new SimpleSOSParser_200(), ParserFixtures.UCD_XML_200);
+		assertStreamingMatches(new SocialSOSParser(), new SocialSOSParser(), ParserFixtures.UCD_XML_200);
+	}
+	
+	public void testCountsObservations() throws Exception {
+		InputStream in = ParserFixtures.open(ParserFixtures.UCD_XML_200);
+		StreamingObservationReader reader = new StreamingObservationReader(in);
+		int count = 0;
+		while(reader.hasNext()) {
+			assertNotNull(reader.next().getPhenomenonTime());
+			count++;
+		}
+		reader.close();
+		in.close();
+		assertEquals(55, count);
+	}
+	
+	public void testRejectsOtherDocuments() throws Exception {
+		try {
+			new StreamingObservationReader(new ByteArrayInputStream("<foo/>".getBytes("UTF-8")));
+			fail("Expected IllegalArgumentException");
+		} catch(IllegalArgumentException e) {
+			// expected
+		}
+	}
+	
+	public void testResolvesNoExternalEntities() throws Exception {
+		File secret = File.createTempFile("secret", ".txt");
+		try {
+			String xml = "<!DOCTYPE sos:GetObservationResponse [<!ENTITY x SYSTEM \"" + secret.toURI() + "\">]>"
+					+ "<sos:GetObservationResponse xmlns:sos=\"http://www.opengis.net/sos/2.0\">&x;"
+					+ "</sos:GetObservationResponse>";
+			StreamingObservationReader reader = new StreamingObservationReader(
+					new ByteArrayInputStream(xml.getBytes("UTF-8")));
+			reader.hasNext();
+			fail("Expected IllegalArgumentException");
+		} catch(IllegalArgumentException e) {
+			// expected, the entity is never declared
+		} finally {
+			secret.delete();
+		}
+	}
+	
+	private void assertStreamingMatches(SimpleSOSParser_200 document, SimpleSOSParser_200 streaming, 
+			String fixture) throws Exception {
+		streaming.setStreaming(true);
+		List<String> expected = ParserFixtures.describe(ParserFixtures.parse(document, fixture));
+		List<String> actual = ParserFixtures.describe(ParserFixtures.parse(streaming, fixture));
+		assertFalse(expected.isEmpty());
+		assertEquals(expected, actual);
+	}
+}